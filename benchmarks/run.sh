@@ -0,0 +1,7 @@
+#!/usr/bin/env sh
+# Runs the benchmarks, the JMH options and benchmark name filters are passed through, and writes
+# the results to results/<commit>.json, so the results of different commits can be diffed
+set -e
+cd "$(dirname "$0")"
+mkdir -p results
+java -jar target/benchmarks.jar -rf json -rff "results/$(git rev-parse --short HEAD).json" "$@"
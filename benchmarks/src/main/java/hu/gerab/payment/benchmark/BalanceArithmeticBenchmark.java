@@ -0,0 +1,98 @@
+package hu.gerab.payment.benchmark;
+
+import static java.math.BigDecimal.ZERO;
+
+import hu.gerab.payment.domain.Money;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The balance arithmetic of a transfer. The balances are read from the database with the scale of
+ * the balance column (6), while the amounts of the requests usually have a scale of 2, so the
+ * scales differ in the real transfers. Long minor units are the baseline, {@link Money} is the
+ * representation of the balances, with the amount of the request converted on every debit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BalanceArithmeticBenchmark {
+
+  private static final int SIZE = 1024;
+  private static final int MASK = SIZE - 1;
+
+  private final BigDecimal[] balances = new BigDecimal[SIZE];
+  private final BigDecimal[] amounts = new BigDecimal[SIZE];
+  private final BigDecimal[] sameScaleAmounts = new BigDecimal[SIZE];
+  private final long[] balanceUnits = new long[SIZE];
+  private final long[] amountUnits = new long[SIZE];
+  private final Money[] moneyBalances = new Money[SIZE];
+  private int index;
+
+  @Setup
+  public void setup() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < SIZE; i++) {
+      balanceUnits[i] = random.nextLong(0, 1_000_000_000_000L);
+      amountUnits[i] = random.nextLong(1, 100_000_000L) * 10_000;
+      balances[i] = BigDecimal.valueOf(balanceUnits[i], 6);
+      sameScaleAmounts[i] = BigDecimal.valueOf(amountUnits[i], 6);
+      amounts[i] = sameScaleAmounts[i].setScale(2, RoundingMode.UNNECESSARY);
+      moneyBalances[i] = Money.of(balances[i]);
+    }
+  }
+
+  @Benchmark
+  public BigDecimal debit() {
+    int i = index++ & MASK;
+    BigDecimal newBalance = balances[i].subtract(amounts[i]);
+    return ZERO.compareTo(newBalance) > 0 ? balances[i] : newBalance;
+  }
+
+  @Benchmark
+  public BigDecimal debitSameScale() {
+    int i = index++ & MASK;
+    BigDecimal newBalance = balances[i].subtract(sameScaleAmounts[i]);
+    return ZERO.compareTo(newBalance) > 0 ? balances[i] : newBalance;
+  }
+
+  @Benchmark
+  public BigDecimal credit() {
+    int i = index++ & MASK;
+    return balances[i].add(amounts[i]);
+  }
+
+  @Benchmark
+  public long debitMinorUnits() {
+    int i = index++ & MASK;
+    long newBalance = Math.subtractExact(balanceUnits[i], amountUnits[i]);
+    return newBalance < 0 ? balanceUnits[i] : newBalance;
+  }
+
+  @Benchmark
+  public Money debitMoney() {
+    int i = index++ & MASK;
+    Money newBalance = moneyBalances[i].minus(Money.of(amounts[i]));
+    return newBalance.signum() < 0 ? moneyBalances[i] : newBalance;
+  }
+
+  @Benchmark
+  public Money creditMoney() {
+    int i = index++ & MASK;
+    return moneyBalances[i].plus(Money.of(amounts[i]));
+  }
+}
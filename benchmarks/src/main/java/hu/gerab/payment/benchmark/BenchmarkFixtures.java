@@ -0,0 +1,114 @@
+package hu.gerab.payment.benchmark;
+
+import hu.gerab.payment.domain.Money;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.repository.TransactionRepository;
+import hu.gerab.payment.repository.UserRepository;
+import hu.gerab.payment.service.MessagingService;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * In-memory replacements of the collaborators of the payment services, so their own overhead can
+ * be measured without a database or a broker.
+ */
+final class BenchmarkFixtures {
+
+  /** Drops every notification. */
+  static final MessagingService NO_MESSAGING =
+      new MessagingService() {
+        @Override
+        public void sendTransactionNotification(TransactionNotification notification) {}
+
+        @Override
+        public void sendTransactionNotification(
+            long userId, TransactionNotification notification) {}
+      };
+
+  private BenchmarkFixtures() {}
+
+  /**
+   * A user repository backed by the map. The users are copied on every read and write, like the
+   * entities detached from the persistence context, so the service cannot change the stored ones
+   * by accident.
+   */
+  static UserRepository users(Map<Long, User> store) {
+    return repository(
+        UserRepository.class,
+        (method, args) ->
+            switch (method.getName()) {
+              case "findAllById" -> {
+                List<User> found = new ArrayList<>();
+                for (Object id : (Iterable<?>) args[0]) {
+                  User user = store.get((Long) id);
+                  if (user != null) {
+                    found.add(copy(user));
+                  }
+                }
+                yield found;
+              }
+              case "saveAll" -> {
+                for (Object user : (Iterable<?>) args[0]) {
+                  store.put(((User) user).getId(), copy((User) user));
+                }
+                yield args[0];
+              }
+              case "addToBalance" -> {
+                User updated =
+                    store.computeIfPresent(
+                        (Long) args[0],
+                        (id, user) ->
+                            User.builder()
+                                .id(id)
+                                .balance(user.getBalance().plus((Money) args[1]))
+                                .currency(user.getCurrency())
+                                .updated((Instant) args[2])
+                                .build());
+                yield updated == null ? 0 : 1;
+              }
+              default -> throw new UnsupportedOperationException(method.getName());
+            });
+  }
+
+  /** A transaction repository only counting the saved transactions, so the heap stays flat. */
+  static TransactionRepository transactions(LongAdder saved) {
+    return repository(
+        TransactionRepository.class,
+        (method, args) -> {
+          if (!method.getName().equals("saveAll")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          ((Iterable<?>) args[0]).forEach(transaction -> saved.increment());
+          return args[0];
+        });
+  }
+
+  private static User copy(User user) {
+    return User.builder()
+        .id(user.getId())
+        .balance(user.getBalance())
+        .currency(user.getCurrency())
+        .updated(user.getUpdated())
+        .build();
+  }
+
+  private static <T> T repository(Class<T> type, BiFunction<Method, Object[], Object> handler) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) ->
+                switch (method.getName()) {
+                  case "hashCode" -> System.identityHashCode(proxy);
+                  case "equals" -> proxy == args[0];
+                  case "toString" -> "InMemory" + type.getSimpleName();
+                  default -> handler.apply(method, args);
+                }));
+  }
+}
@@ -0,0 +1,166 @@
+package hu.gerab.payment.benchmark;
+
+import hu.gerab.payment.Application;
+import hu.gerab.payment.benchmark.EndToEndTransferBenchmark.EmbeddedConfig;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.repository.UserRepository;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Transfers over HTTP against a local cluster of lock mode instances, started in this JVM on their
+ * own ports and sharing one in-memory database. Every benchmark thread is a client posting a batch
+ * of a single transfer to a random member, which forwards it to the owner of its lower user id
+ * unless it is the owner itself, so about (n-1)/n of the transfers take an extra hop. The
+ * notifications are dropped instead of sent to kafka.
+ *
+ * <p>The members only scale with their own cores, or machines, and a database which keeps up with
+ * them; on a single machine the numbers tell the cost of the forwarding hop, and the gain of the
+ * striped locks being contended by fewer transfers per member.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(50)
+@State(Scope.Benchmark)
+public class ClusterTransferBenchmark {
+
+  private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000000000");
+  private static final String TRANSFER =
+      "{\"senderId\":%d,\"receiverId\":%d,\"amount\":1.00,\"currency\":\"USD\"}";
+
+  @Param({"1", "2", "4"})
+  private int instances;
+
+  @Param({"1000"})
+  private int users;
+
+  private final List<ConfigurableApplicationContext> members = new ArrayList<>();
+  private final List<URI> batchUris = new ArrayList<>();
+  private HttpClient client;
+  private List<Long> userIds;
+
+  @Setup
+  public void setup() {
+    String database = UUID.randomUUID().toString();
+    int[] ports = new int[instances];
+    StringJoiner ring = new StringJoiner(",");
+    for (int i = 0; i < instances; i++) {
+      ports[i] = freePort();
+      ring.add("m" + i + "=http://localhost:" + ports[i]);
+    }
+    for (int i = 0; i < instances; i++) {
+      members.add(
+          new SpringApplicationBuilder(Application.class, EmbeddedConfig.class)
+              .web(WebApplicationType.SERVLET)
+              // the test profile disables the postgres data source
+              .profiles("test")
+              // as arguments, so they override the application.properties
+              .run(
+                  "--server.port=" + ports[i],
+                  "--service.cluster.self=m" + i,
+                  "--service.cluster.members=" + ring,
+                  "--service.cluster.secret=benchmark",
+                  // the balances are written by the other members as well
+                  "--service.payment.account.cache.mode=versioned",
+                  // required by the cluster mode, the outbox relays would share the outbox table
+                  "--service.messaging.mode=direct",
+                  "--service.journal.enabled=false",
+                  "--service.reconciliation.enabled=false",
+                  "--service.payment.admission.limit.max=10000",
+                  "--benchmark.database=" + database,
+                  // the tables are created by the first member only, and dropped by it at the end
+                  "--spring.jpa.hibernate.ddl-auto=" + (i == 0 ? "create-drop" : "none"),
+                  "--logging.level.root=WARN",
+                  "--logging.level.org.springframework.web=WARN",
+                  // logged per request by the application.properties
+                  "--logging.level.org.springframework.web.servlet.DispatcherServlet=WARN",
+                  "--logging.level.org.springframework.web.filter.CommonsRequestLoggingFilter=WARN",
+                  "--logging.level.org.apache.kafka=ERROR"));
+      batchUris.add(URI.create("http://localhost:" + ports[i] + "/payment/transfers/batch"));
+    }
+    List<User> saved = new ArrayList<>(users);
+    for (int i = 0; i < users; i++) {
+      saved.add(User.builder().balance(INITIAL_BALANCE).currency(Currency.USD).build());
+    }
+    userIds =
+        members.get(0).getBean(UserRepository.class).saveAll(saved).stream()
+            .map(User::getId)
+            .toList();
+    client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+  }
+
+  private static int freePort() {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    // the first member drops the tables
+    for (int i = members.size() - 1; i >= 0; i--) {
+      members.get(i).close();
+    }
+    members.clear();
+    batchUris.clear();
+  }
+
+  @Benchmark
+  public String transfer() throws IOException, InterruptedException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int sender = random.nextInt(users);
+    int receiver = (sender + random.nextInt(1, users)) % users;
+    HttpRequest request =
+        HttpRequest.newBuilder(batchUris.get(random.nextInt(instances)))
+            .header("Content-Type", "application/x-ndjson")
+            .POST(
+                BodyPublishers.ofString(
+                    String.format(TRANSFER, userIds.get(sender), userIds.get(receiver))))
+            .build();
+    HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+    if (response.statusCode() != 200) {
+      throw new IllegalStateException("Transfer failed with status=" + response.statusCode());
+    }
+    // the failures of the forwarding are reported per item
+    if (!response.body().contains("COMPLETED")) {
+      throw new IllegalStateException("Transfer failed with result=" + response.body());
+    }
+    return response.body();
+  }
+}
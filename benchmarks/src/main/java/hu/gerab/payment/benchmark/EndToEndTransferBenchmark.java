@@ -0,0 +1,153 @@
+package hu.gerab.payment.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import hu.gerab.payment.Application;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.repository.UserRepository;
+import hu.gerab.payment.service.MessagingService;
+import hu.gerab.payment.service.PaymentService;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Transfers through the whole application context against an embedded H2 database: the payment
+ * executor, the payment service of the mode, JPA or the ledger writer, and the transactions. The
+ * notifications are dropped instead of sent to kafka.
+ *
+ * <p>Every benchmark thread is a sender waiting for its transfer, so the executor modes can be
+ * compared at different concurrency with -t, e.g. -t 5, -t 50 and -t 500. The virtual executor
+ * mode requires Java 21. The users parameter sets the contention, e.g. the lock and optimistic
+ * modes can be compared with -p paymentMode=lock,optimistic -p executorMode=platform.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(50)
+@State(Scope.Benchmark)
+public class EndToEndTransferBenchmark {
+
+  private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000000000");
+  private static final BigDecimal AMOUNT = new BigDecimal("1.00");
+
+  @Param({"lock", "optimistic", "ledger"})
+  private String paymentMode;
+
+  @Param({"platform", "virtual"})
+  private String executorMode;
+
+  // high and low contention: with few users most transfers conflict in optimistic mode
+  @Param({"10", "1000"})
+  private int users;
+
+  private final AtomicLong requestIds = new AtomicLong();
+  private final String requestIdPrefix = UUID.randomUUID().toString().substring(0, 8) + "-";
+  private ConfigurableApplicationContext context;
+  private PaymentService paymentService;
+  private List<Long> userIds;
+
+  @Setup
+  public void setup() {
+    context =
+        new SpringApplicationBuilder(Application.class, EmbeddedConfig.class)
+            .web(WebApplicationType.NONE)
+            // the test profile disables the postgres data source
+            .profiles("test")
+            // as arguments, so they override the application.properties
+            .run(
+                "--service.payment.mode=" + paymentMode,
+                "--service.payment.executor.mode=" + executorMode,
+                "--service.payment.queue.capacity=10000",
+                "--service.messaging.mode=direct",
+                // the transfers are passed to the service directly, not through the journal
+                "--service.journal.enabled=false",
+                "--logging.level.root=WARN",
+                "--logging.level.org.springframework.web=WARN");
+    paymentService = context.getBean(PaymentService.class);
+    List<User> saved = new ArrayList<>(users);
+    for (int i = 0; i < users; i++) {
+      saved.add(User.builder().balance(INITIAL_BALANCE).currency(Currency.USD).build());
+    }
+    userIds =
+        context.getBean(UserRepository.class).saveAll(saved).stream().map(User::getId).toList();
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public void transfer() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int sender = random.nextInt(users);
+    int receiver = (sender + random.nextInt(1, users)) % users;
+    paymentService
+        .processTransfer(
+            requestIdPrefix + requestIds.incrementAndGet(),
+            userIds.get(sender),
+            userIds.get(receiver),
+            AMOUNT,
+            Currency.USD)
+        .join();
+  }
+
+  @Configuration
+  static class EmbeddedConfig {
+
+    @Bean
+    @Primary
+    DataSource embeddedDataSource(
+        @Value("${db.pool.size}") int poolSize, @Value("${benchmark.database:}") String database) {
+      // pooled like the postgres data source, the tables of the entities are created by hibernate
+      HikariDataSource dataSource = new HikariDataSource();
+      // named by the HttpTransferBenchmark, which reaches the same database through R2DBC as well
+      String name = database.isEmpty() ? UUID.randomUUID().toString() : database;
+      dataSource.setJdbcUrl("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+      dataSource.setUsername("sa");
+      dataSource.setMaximumPoolSize(poolSize);
+      // read by the HotAccountRegistry on startup, and written with plain statements
+      new JdbcTemplate(dataSource)
+          .execute(
+              "CREATE TABLE IF NOT EXISTS hot_credits (id BIGINT AUTO_INCREMENT PRIMARY KEY,"
+                  + " account_id INTEGER NOT NULL, amount DECIMAL(32, 6) NOT NULL,"
+                  + " inserted TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+      return dataSource;
+    }
+
+    @Bean
+    @Primary
+    MessagingService noMessaging() {
+      return BenchmarkFixtures.NO_MESSAGING;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package hu.gerab.payment.benchmark;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Money;
+import hu.gerab.payment.fx.FxRates;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The exchange of a cross-currency transfer: the debit of a EUR sender and the credit of a HUF
+ * receiver of a USD amount. With the {@link FxRates} of the long minor units, with the {@link
+ * Money} of the amounts as the payment services convert them, with the {@link BigDecimal} amounts,
+ * and with {@link BigDecimal} rates as the baseline. A transfer between accounts of its own
+ * currency is not converted at all.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FxConversionBenchmark {
+
+  private static final int SIZE = 1024;
+  private static final int MASK = SIZE - 1;
+  private static final Map<Currency, BigDecimal> VALUES =
+      Map.of(
+          Currency.USD, BigDecimal.ONE,
+          Currency.EUR, new BigDecimal("1.0842"),
+          Currency.HUF, new BigDecimal("0.002731"));
+
+  private final long[] amountUnits = new long[SIZE];
+  private final BigDecimal[] amounts = new BigDecimal[SIZE];
+  private final Money[] monies = new Money[SIZE];
+  private FxRates rates;
+  private BigDecimal usdToEur;
+  private BigDecimal usdToHuf;
+  private int index;
+
+  @Setup
+  public void setup() {
+    rates = FxRates.of(VALUES, Instant.now());
+    MathContext precision = new MathContext(10, RoundingMode.HALF_EVEN);
+    usdToEur = BigDecimal.ONE.divide(VALUES.get(Currency.EUR), precision);
+    usdToHuf = BigDecimal.ONE.divide(VALUES.get(Currency.HUF), precision);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < SIZE; i++) {
+      amountUnits[i] = random.nextLong(1, 100_000_000L);
+      amounts[i] = Currency.USD.fromMinorUnits(amountUnits[i]);
+      monies[i] = Money.of(amounts[i]);
+    }
+  }
+
+  @Benchmark
+  public void minorUnits(Blackhole blackhole) {
+    long amount = amountUnits[index++ & MASK];
+    blackhole.consume(rates.convertUp(amount, Currency.USD, Currency.EUR));
+    blackhole.consume(rates.convertDown(amount, Currency.USD, Currency.HUF));
+  }
+
+  @Benchmark
+  public void money(Blackhole blackhole) {
+    Money amount = monies[index++ & MASK];
+    blackhole.consume(rates.convertUp(amount, Currency.USD, Currency.EUR));
+    blackhole.consume(rates.convertDown(amount, Currency.USD, Currency.HUF));
+  }
+
+  @Benchmark
+  public void amounts(Blackhole blackhole) {
+    BigDecimal amount = amounts[index++ & MASK];
+    blackhole.consume(rates.convertUp(amount, Currency.USD, Currency.EUR));
+    blackhole.consume(rates.convertDown(amount, Currency.USD, Currency.HUF));
+  }
+
+  @Benchmark
+  public void sameCurrency(Blackhole blackhole) {
+    BigDecimal amount = amounts[index++ & MASK];
+    blackhole.consume(rates.convertUp(amount, Currency.USD, Currency.USD));
+    blackhole.consume(rates.convertDown(amount, Currency.USD, Currency.USD));
+  }
+
+  @Benchmark
+  public void bigDecimalRates(Blackhole blackhole) {
+    BigDecimal amount = amounts[index++ & MASK];
+    blackhole.consume(amount.multiply(usdToEur).setScale(2, RoundingMode.CEILING));
+    blackhole.consume(amount.multiply(usdToHuf).setScale(2, RoundingMode.FLOOR));
+  }
+}
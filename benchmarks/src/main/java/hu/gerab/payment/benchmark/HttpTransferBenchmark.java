@@ -0,0 +1,139 @@
+package hu.gerab.payment.benchmark;
+
+import hu.gerab.payment.Application;
+import hu.gerab.payment.benchmark.EndToEndTransferBenchmark.EmbeddedConfig;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.repository.UserRepository;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Transfers over HTTP, against the spring mvc stack of the lock mode and the WebFlux stack of the
+ * reactive mode of the same application, on the same machine and database. Every benchmark thread
+ * is a client posting a batch of a single transfer, which both stacks answer once the transfer is
+ * committed, so the stacks are compared at the concurrency of -t, e.g. -t 50 and -t 500. The
+ * notifications are dropped instead of sent to kafka.
+ *
+ * <p>Runs on embedded H2, which executes the R2DBC statements on the calling thread, so the
+ * reactive stack blocks its event loops on the database as well. The numbers tell the overhead of
+ * the stacks, not the gain of the non-blocking postgres driver.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(50)
+@State(Scope.Benchmark)
+public class HttpTransferBenchmark {
+
+  private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000000000");
+  private static final String TRANSFER =
+      "{\"senderId\":%d,\"receiverId\":%d,\"amount\":1.00,\"currency\":\"USD\"}";
+
+  @Param({"mvc", "reactive"})
+  private String stack;
+
+  @Param({"10", "1000"})
+  private int users;
+
+  private ConfigurableApplicationContext context;
+  private HttpClient client;
+  private URI batchUri;
+  private List<Long> userIds;
+
+  @Setup
+  public void setup() {
+    boolean reactive = "reactive".equals(stack);
+    String database = UUID.randomUUID().toString();
+    context =
+        new SpringApplicationBuilder(Application.class, EmbeddedConfig.class)
+            .web(reactive ? WebApplicationType.REACTIVE : WebApplicationType.SERVLET)
+            // the test profile disables the postgres data source
+            .profiles(reactive ? new String[] {"test", "reactive"} : new String[] {"test"})
+            // as arguments, so they override the application.properties
+            .run(
+                "--server.port=0",
+                "--service.messaging.mode=direct",
+                "--service.journal.enabled=false",
+                "--service.reconciliation.enabled=false",
+                "--service.payment.admission.limit.max=10000",
+                // the same in-memory database through JDBC and R2DBC
+                "--benchmark.database=" + database,
+                "--db.r2dbc.url=r2dbc:h2:mem:///" + database,
+                "--db.postgres.username=sa",
+                "--db.postgres.password=",
+                "--logging.level.root=WARN",
+                "--logging.level.org.springframework.web=WARN",
+                // logged per request by the application.properties
+                "--logging.level.org.springframework.web.servlet.DispatcherServlet=WARN",
+                "--logging.level.org.springframework.web.filter.CommonsRequestLoggingFilter=WARN",
+                "--logging.level.org.apache.kafka=ERROR",
+                // warns on every transaction that it cannot be set read-write
+                "--logging.level.io.r2dbc.h2=ERROR");
+    List<User> saved = new ArrayList<>(users);
+    for (int i = 0; i < users; i++) {
+      saved.add(User.builder().balance(INITIAL_BALANCE).currency(Currency.USD).build());
+    }
+    userIds =
+        context.getBean(UserRepository.class).saveAll(saved).stream().map(User::getId).toList();
+    client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    batchUri =
+        URI.create(
+            "http://localhost:"
+                + context.getEnvironment().getProperty("local.server.port")
+                + "/payment/transfers/batch");
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public String transfer() throws IOException, InterruptedException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int sender = random.nextInt(users);
+    int receiver = (sender + random.nextInt(1, users)) % users;
+    HttpRequest request =
+        HttpRequest.newBuilder(batchUri)
+            .header("Content-Type", "application/x-ndjson")
+            .POST(
+                BodyPublishers.ofString(
+                    String.format(TRANSFER, userIds.get(sender), userIds.get(receiver))))
+            .build();
+    HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+    if (response.statusCode() != 200) {
+      throw new IllegalStateException("Transfer failed with status=" + response.statusCode());
+    }
+    return response.body();
+  }
+}
@@ -0,0 +1,80 @@
+package hu.gerab.payment.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import hu.gerab.payment.repository.SequenceBlockAllocator;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Inserts a group of transactions with the ids allocated one by one (block size 1, the former
+ * allocationSize = 1) and in blocks of 50. The embedded H2 has no network round-trip, so against
+ * postgres the difference of the sequence calls is considerably larger.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class IdAllocationBenchmark {
+
+  private static final String INSERT =
+      "INSERT INTO transactions (id, request_id, amount) VALUES (?, ?, ?)";
+  private static final BigDecimal AMOUNT = new BigDecimal("1.00");
+
+  @Param({"1", "50"})
+  private int blockSize;
+
+  @Param({"100"})
+  private int groupSize;
+
+  private HikariDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private SequenceBlockAllocator idAllocator;
+  private long requestIds;
+
+  @Setup
+  public void setup() {
+    // pooled like in the application, so the connections are not opened per statement
+    dataSource = new HikariDataSource();
+    dataSource.setJdbcUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute(
+        "CREATE SEQUENCE transaction_sequence MINVALUE 1 INCREMENT BY " + blockSize);
+    jdbcTemplate.execute(
+        "CREATE TABLE transactions (id BIGINT PRIMARY KEY, request_id VARCHAR(50),"
+            + " amount DECIMAL(32, 6) NOT NULL)");
+    idAllocator = new SequenceBlockAllocator(jdbcTemplate, "transaction_sequence", blockSize);
+  }
+
+  @TearDown
+  public void tearDown() {
+    jdbcTemplate.execute("SHUTDOWN");
+    dataSource.close();
+  }
+
+  @Benchmark
+  public int[] insertGroup() {
+    List<Object[]> rows = new ArrayList<>(groupSize);
+    for (int i = 0; i < groupSize; i++) {
+      rows.add(new Object[] {idAllocator.nextId(), Long.toString(++requestIds), AMOUNT});
+    }
+    return jdbcTemplate.batchUpdate(INSERT, rows);
+  }
+}
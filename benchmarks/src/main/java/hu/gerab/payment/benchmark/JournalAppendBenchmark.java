@@ -0,0 +1,95 @@
+package hu.gerab.payment.benchmark;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.journal.TransferJournal;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Durable appends of accepted transfers to the {@link TransferJournal}, each followed by its
+ * processed record, as the single transfer endpoint does. The concurrent appends share the fsyncs,
+ * so the throughput grows with the threads (-t) until the appends themselves are the limit.
+ *
+ * <p>The journal is written under BENCHMARK_JOURNAL_DIR, or the temporary directory by default,
+ * which has to be on a real disk and not a tmpfs for the fsyncs to count.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JournalAppendBenchmark {
+
+  private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private Path directory;
+  private TransferJournal journal;
+
+  @Setup
+  public void setup() throws IOException {
+    String parent = System.getenv("BENCHMARK_JOURNAL_DIR");
+    directory =
+        Files.createTempDirectory(
+            parent == null ? Paths.get(System.getProperty("java.io.tmpdir")) : Paths.get(parent),
+            "journal-benchmark");
+    journal =
+        new TransferJournal(
+            directory.toString(), SEGMENT_SIZE, true, PaymentMetrics.unpublished());
+    journal.afterPropertiesSet();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    journal.destroy();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  /** The state of a client thread, a request id per thread, so creating them is not measured. */
+  @State(Scope.Thread)
+  public static class Client {
+    private final String requestId = UUID.randomUUID().toString();
+  }
+
+  @Benchmark
+  public long appendAndMarkProcessed(Client client) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long sequence =
+        journal.append(
+            new TransferRequest(
+                client.requestId,
+                random.nextLong(1, 100_000),
+                random.nextLong(1, 100_000),
+                BigDecimal.valueOf(random.nextLong(1, 1_000_000), 2),
+                Currency.USD));
+    journal.markProcessed(sequence);
+    return sequence;
+  }
+}
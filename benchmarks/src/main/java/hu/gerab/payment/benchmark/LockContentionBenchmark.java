@@ -0,0 +1,79 @@
+package hu.gerab.payment.benchmark;
+
+import com.google.common.util.concurrent.Striped;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Locks the stripes of a sender and a receiver the same way the lock mode payment service does, to
+ * show how the stripe count (pool size * lockstripe.multiplier) changes the contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class LockContentionBenchmark {
+
+  @Param({"5"})
+  private int poolSize;
+
+  @Param({"1", "10", "100", "1000"})
+  private int lockStripeMultiplier;
+
+  @Param({"10000"})
+  private int users;
+
+  /** The cost of the work done while holding the locks, in {@link Blackhole} tokens. */
+  @Param({"200"})
+  private int criticalSectionTokens;
+
+  private Striped<Lock> multiLock;
+
+  @Setup
+  public void setup() {
+    multiLock = Striped.lazyWeakLock(poolSize * lockStripeMultiplier);
+  }
+
+  @Benchmark
+  public void lockTransferPair() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long senderId = random.nextLong(1, users + 1);
+    long receiverId = (senderId - 1 + random.nextLong(1, users)) % users + 1;
+    List<Lock> locks = new ArrayList<>(2);
+    // in stripe order, the duplicates are next to each other
+    for (Lock lock : multiLock.bulkGet(List.of(senderId, receiverId))) {
+      if (locks.isEmpty() || locks.get(locks.size() - 1) != lock) {
+        locks.add(lock);
+      }
+    }
+    for (Lock lock : locks) {
+      lock.lock();
+    }
+    try {
+      Blackhole.consumeCPU(criticalSectionTokens);
+    } finally {
+      for (int i = locks.size() - 1; i >= 0; i--) {
+        locks.get(i).unlock();
+      }
+    }
+  }
+}
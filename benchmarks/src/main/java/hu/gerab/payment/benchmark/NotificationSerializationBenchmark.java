@@ -0,0 +1,90 @@
+package hu.gerab.payment.benchmark;
+
+import hu.gerab.payment.messaging.TransactionNotificationDeserializer;
+import hu.gerab.payment.messaging.TransactionNotificationSerializer;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+/**
+ * Compares the kafka value formats of the notifications. The size of the messages is printed at
+ * the start of the trial, the allocations are reported by the gc profiler (-prof gc).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NotificationSerializationBenchmark {
+
+  private static final String TOPIC = "transactions";
+
+  private final JsonSerializer<TransactionNotification> jsonSerializer = new JsonSerializer<>();
+  private final JsonDeserializer<TransactionNotification> jsonDeserializer =
+      new JsonDeserializer<>(TransactionNotification.class, false);
+  private final TransactionNotificationSerializer binarySerializer =
+      new TransactionNotificationSerializer();
+  private final TransactionNotificationDeserializer binaryDeserializer =
+      new TransactionNotificationDeserializer();
+
+  private TransactionNotification notification;
+  private byte[] json;
+  private byte[] binary;
+
+  @Setup
+  public void setup() {
+    notification =
+        TransactionNotification.builder()
+            .requestId(UUID.randomUUID().toString())
+            .senderId(1_000_001L)
+            .receiverId(2_000_002L)
+            .amount(new BigDecimal("1234.56"))
+            .currency("USD")
+            .successful(true)
+            .build();
+    json = jsonSerializer.serialize(TOPIC, notification);
+    binary = binarySerializer.serialize(TOPIC, notification);
+    System.out.printf("%nmessage size: json=%d bytes, binary=%d bytes%n", json.length, binary.length);
+  }
+
+  @TearDown
+  public void tearDown() {
+    jsonSerializer.close();
+    jsonDeserializer.close();
+  }
+
+  @Benchmark
+  public byte[] encodeJson() {
+    return jsonSerializer.serialize(TOPIC, notification);
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return binarySerializer.serialize(TOPIC, notification);
+  }
+
+  @Benchmark
+  public TransactionNotification decodeJson() {
+    return jsonDeserializer.deserialize(TOPIC, json);
+  }
+
+  @Benchmark
+  public TransactionNotification decodeBinary() {
+    return binaryDeserializer.deserialize(TOPIC, binary);
+  }
+}
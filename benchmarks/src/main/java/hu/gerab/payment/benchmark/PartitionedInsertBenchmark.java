@@ -0,0 +1,188 @@
+package hu.gerab.payment.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Inserts batches of new transactions into a transactions table already holding existingRows rows
+ * of the last 60 days: into a single table with the unique request id index, and into a table
+ * partitioned by day with the request ids reserved by the trigger, as in
+ * docker-db-partition-migration.sql. The new rows only go to the partition of today, so the cost of
+ * maintaining the history indexes should not grow with the existing rows, while the indexes of the
+ * single table grow out of the cache.
+ *
+ * <p>Needs Postgres 14, the one of compose.yml by default, or the one of BENCHMARK_POSTGRES_URL
+ * (with BENCHMARK_POSTGRES_USER and BENCHMARK_POSTGRES_PASSWORD). Filling the tables takes minutes
+ * for the larger sizes, the tables are left there for inspection and dropped by the next run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartitionedInsertBenchmark {
+
+  private static final int HISTORY_DAYS = 60;
+  private static final int USERS = 100_000;
+  private static final int BATCH_SIZE = 500;
+  private static final BigDecimal AMOUNT = new BigDecimal("1.00");
+  private static final String COLUMNS =
+      "id BIGINT NOT NULL, sender_id INTEGER, receiver_id INTEGER, request_id VARCHAR(50),"
+          + " amount DECIMAL(32, 6) NOT NULL, currency VARCHAR(3) NOT NULL,"
+          + " inserted TIMESTAMP NOT NULL";
+
+  @Param({"plain", "partitioned"})
+  private String table;
+
+  @Param({"0", "10000000", "30000000"})
+  private long existingRows;
+
+  private HikariDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private String tableName;
+  private String insert;
+  private long nextId;
+
+  @Setup
+  public void setup() {
+    dataSource = new HikariDataSource();
+    dataSource.setJdbcUrl(
+        env("BENCHMARK_POSTGRES_URL", "jdbc:postgresql://localhost:5432/kibit")
+            + "?reWriteBatchedInserts=true");
+    dataSource.setUsername(env("BENCHMARK_POSTGRES_USER", "kibit"));
+    dataSource.setPassword(env("BENCHMARK_POSTGRES_PASSWORD", "kibit"));
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    tableName = "benchmark_transactions_" + table;
+    insert =
+        "INSERT INTO "
+            + tableName
+            + " (id, sender_id, receiver_id, request_id, amount, currency, inserted)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    jdbcTemplate.execute("DROP TABLE IF EXISTS " + tableName + ", benchmark_requests");
+    if ("plain".equals(table)) {
+      jdbcTemplate.execute("CREATE TABLE " + tableName + " (" + COLUMNS + ", PRIMARY KEY (id))");
+      jdbcTemplate.execute(
+          "CREATE UNIQUE INDEX " + tableName + "_request_id_idx ON " + tableName + " (request_id)");
+    } else {
+      jdbcTemplate.execute(
+          "CREATE TABLE "
+              + tableName
+              + " ("
+              + COLUMNS
+              + ", PRIMARY KEY (id, inserted)) PARTITION BY RANGE (inserted)");
+      LocalDate today = LocalDate.now();
+      for (LocalDate day = today.minusDays(HISTORY_DAYS);
+          !day.isAfter(today.plusDays(1));
+          day = day.plusDays(1)) {
+        jdbcTemplate.execute(
+            "CREATE TABLE "
+                + tableName
+                + "_p"
+                + day.toString().replace("-", "")
+                + " PARTITION OF "
+                + tableName
+                + " FOR VALUES FROM ('"
+                + day
+                + "') TO ('"
+                + day.plusDays(1)
+                + "')");
+      }
+      jdbcTemplate.execute(
+          "CREATE TABLE benchmark_requests"
+              + " (request_id VARCHAR(50) PRIMARY KEY, inserted TIMESTAMP NOT NULL)");
+      jdbcTemplate.execute(
+          "CREATE OR REPLACE FUNCTION reserve_benchmark_request() RETURNS trigger AS $$ BEGIN"
+              + " INSERT INTO benchmark_requests VALUES (NEW.request_id, NEW.inserted);"
+              + " RETURN NEW; END; $$ LANGUAGE plpgsql");
+      jdbcTemplate.execute(
+          "CREATE TRIGGER "
+              + tableName
+              + "_request_id_unique BEFORE INSERT ON "
+              + tableName
+              + " FOR EACH ROW EXECUTE FUNCTION reserve_benchmark_request()");
+    }
+    jdbcTemplate.execute(
+        "CREATE INDEX " + tableName + "_sender_idx ON " + tableName + " (sender_id, inserted, id)");
+    jdbcTemplate.execute(
+        "CREATE INDEX "
+            + tableName
+            + "_receiver_idx ON "
+            + tableName
+            + " (receiver_id, inserted, id)");
+
+    // spread over the last days, before today, so the partitioned table has them in the old
+    // partitions
+    jdbcTemplate.update(
+        "INSERT INTO "
+            + tableName
+            + " SELECT g, 1 + g % "
+            + USERS
+            + ", 1 + (g * 7919) % "
+            + USERS
+            + ", 'existing-' || g, 1, 'USD',"
+            + " current_date - "
+            + HISTORY_DAYS
+            + " + (g - 1) * interval '"
+            + HISTORY_DAYS
+            + " days' / greatest(?, 1)"
+            + " FROM generate_series(1, ?) g",
+        existingRows,
+        existingRows);
+    jdbcTemplate.execute("VACUUM ANALYZE " + tableName);
+    nextId = existingRows + 1;
+  }
+
+  private static String env(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null ? defaultValue : value;
+  }
+
+  @TearDown
+  public void tearDown() {
+    dataSource.close();
+  }
+
+  /** A batch of transfers between random users, as written by the group commits. */
+  @Benchmark
+  public int[] insertBatch() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Timestamp now = Timestamp.from(Instant.now());
+    List<Object[]> rows = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      long id = nextId++;
+      rows.add(
+          new Object[] {
+            id,
+            1 + random.nextInt(USERS),
+            1 + random.nextInt(USERS),
+            "new-" + id,
+            AMOUNT,
+            "USD",
+            now
+          });
+    }
+    return jdbcTemplate.batchUpdate(insert, rows);
+  }
+}
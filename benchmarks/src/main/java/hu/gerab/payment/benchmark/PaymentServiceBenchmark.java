@@ -0,0 +1,93 @@
+package hu.gerab.payment.benchmark;
+
+import static hu.gerab.payment.benchmark.BenchmarkFixtures.NO_MESSAGING;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.service.PaymentService;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import hu.gerab.payment.service.PaymentServiceImpl;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The transfer processing of the lock mode {@link PaymentServiceImpl} with in-memory
+ * repositories: validation, lock ordering and acquisition, the balance changes and the
+ * notifications, without the database round-trips.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PaymentServiceBenchmark {
+
+  private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000000000.000000");
+  private static final BigDecimal AMOUNT = new BigDecimal("1.00");
+
+  @Param({"1000"})
+  private int users;
+
+  /** The number of transfers processed as one group, 1 is the single transfer endpoint. */
+  @Param({"1", "16"})
+  private int groupSize;
+
+  private final AtomicLong requestIds = new AtomicLong();
+  private PaymentService paymentService;
+
+  @Setup
+  public void setup() {
+    ConcurrentHashMap<Long, User> store = new ConcurrentHashMap<>();
+    for (long id = 1; id <= users; id++) {
+      store.put(id, User.builder().id(id).balance(INITIAL_BALANCE).currency(Currency.USD).build());
+    }
+    paymentService =
+        new PaymentServiceImpl(
+            NO_MESSAGING,
+            BenchmarkFixtures.users(store),
+            BenchmarkFixtures.transactions(new LongAdder()),
+            5,
+            100,
+            3);
+  }
+
+  @Benchmark
+  public List<TransferResult> processTransfers() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    List<TransferRequest> transfers = new ArrayList<>(groupSize);
+    for (int i = 0; i < groupSize; i++) {
+      long senderId = random.nextLong(1, users + 1);
+      // any other user
+      long receiverId = (senderId - 1 + random.nextLong(1, users)) % users + 1;
+      transfers.add(
+          new TransferRequest(
+              Long.toString(requestIds.incrementAndGet()),
+              senderId,
+              receiverId,
+              AMOUNT,
+              Currency.USD));
+    }
+    return paymentService.processTransfers(transfers);
+  }
+}
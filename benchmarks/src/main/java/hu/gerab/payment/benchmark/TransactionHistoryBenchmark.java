@@ -0,0 +1,113 @@
+package hu.gerab.payment.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import hu.gerab.payment.domain.Transaction;
+import hu.gerab.payment.repository.TransactionHistory;
+import hu.gerab.payment.repository.TransactionHistory.Cursor;
+import hu.gerab.payment.repository.TransactionHistory.Direction;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Reads a page of the history of a user with a long history, at different depths: with the keyset
+ * pagination of {@link TransactionHistory}, and with an offset as baseline, which has to read and
+ * skip every transaction before the page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionHistoryBenchmark {
+
+  private static final long USER_ID = 1;
+  private static final int HISTORY_SIZE = 200_000;
+  private static final int PAGE_SIZE = 100;
+  private static final String OFFSET_PAGE =
+      "SELECT id, sender_id, receiver_id, request_id, amount, currency, inserted"
+          + " FROM transactions WHERE sender_id = ?"
+          + " ORDER BY sender_id DESC, inserted DESC, id DESC LIMIT ? OFFSET ?";
+
+  @Param({"0", "10000", "190000"})
+  private int depth;
+
+  private HikariDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private TransactionHistory history;
+  private Cursor cursor;
+
+  @Setup
+  public void setup() {
+    dataSource = new HikariDataSource();
+    // H2 would return the cached result of a repeated query without executing it
+    dataSource.setJdbcUrl(
+        "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;OPTIMIZE_REUSE_RESULTS=FALSE");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute(
+        "CREATE TABLE transactions (id BIGINT PRIMARY KEY, sender_id BIGINT, receiver_id BIGINT,"
+            + " request_id VARCHAR(50), amount DECIMAL(32, 6) NOT NULL,"
+            + " currency VARCHAR(3) NOT NULL, inserted TIMESTAMP NOT NULL)");
+    jdbcTemplate.execute(
+        "CREATE INDEX transactions_sender_history_idx ON transactions (sender_id, inserted, id)");
+    Instant start = Instant.now().minusSeconds(HISTORY_SIZE);
+    List<Object[]> rows = new ArrayList<>(HISTORY_SIZE);
+    for (int i = 0; i < HISTORY_SIZE; i++) {
+      rows.add(
+          new Object[] {
+            i, USER_ID, 2L, "r-" + i, BigDecimal.ONE, "USD", Timestamp.from(start.plusSeconds(i))
+          });
+    }
+    jdbcTemplate.batchUpdate("INSERT INTO transactions VALUES (?, ?, ?, ?, ?, ?, ?)", rows);
+    history = new TransactionHistory(jdbcTemplate);
+    // the cursor of the page before the one at the depth, as a client paging through would have it
+    Transaction[] last = new Transaction[1];
+    if (depth > 0) {
+      history.forEach(USER_ID, Direction.SENT, null, depth, transaction -> last[0] = transaction);
+      cursor = new Cursor(last[0].getInserted(), last[0].getId());
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    jdbcTemplate.execute("SHUTDOWN");
+    dataSource.close();
+  }
+
+  @Benchmark
+  public Cursor keysetPage(Blackhole blackhole) {
+    return history.forEach(USER_ID, Direction.SENT, cursor, PAGE_SIZE, blackhole::consume);
+  }
+
+  @Benchmark
+  public void offsetPage(Blackhole blackhole) {
+    jdbcTemplate.query(
+        OFFSET_PAGE,
+        rs -> {
+          blackhole.consume(rs.getLong("id"));
+          blackhole.consume(rs.getBigDecimal("amount"));
+        },
+        USER_ID,
+        PAGE_SIZE,
+        depth);
+  }
+}
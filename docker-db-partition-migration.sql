@@ -0,0 +1,76 @@
+-- Migrates the unpartitioned transactions table of docker-db-schema-init.sql to the daily range partitioned one, kept by
+-- the TransactionPartitionManager with service.transactions.partition.interval=daily. Run it while the application is
+-- stopped, then start the application with the interval set. The existing table becomes the partition of everything
+-- before tomorrow, named as the partition of today, so the application creates the partitions after it, and detaches
+-- it once today is older than the retention. Monthly partitions need the name and the bound of the month instead.
+BEGIN;
+
+ALTER TABLE transactions RENAME TO transactions_unpartitioned;
+ALTER INDEX transactions_request_id_idx RENAME TO transactions_unpartitioned_request_id_idx;
+ALTER INDEX transactions_sender_history_idx RENAME TO transactions_unpartitioned_sender_history_idx;
+ALTER INDEX transactions_receiver_history_idx RENAME TO transactions_unpartitioned_receiver_history_idx;
+-- the primary key of a partition has to include the partition key as well
+ALTER TABLE transactions_unpartitioned DROP CONSTRAINT transactions_pkey;
+ALTER TABLE transactions_unpartitioned ADD PRIMARY KEY (id, inserted);
+
+-- range partitioned by inserted, so the inserts only maintain the indexes of the current partition, and the old
+-- partitions can be detached instead of deleted. The partitions are created and detached by the application
+-- (TransactionPartitionManager), the primary key of a partitioned table has to include the partition key
+CREATE TABLE transactions
+(
+    id              BIGINT         NOT NULL DEFAULT nextval('transaction_sequence'),
+    sender_id       INTEGER REFERENCES users (id),
+    receiver_id     INTEGER REFERENCES users (id),
+    request_id      varchar(50),
+    amount          DECIMAL(32, 6) NOT NULL,
+    currency        VARCHAR(3)     NOT NULL,
+    sender_amount   DECIMAL(32, 6),
+    receiver_amount DECIMAL(32, 6),
+    inserted        timestamp      NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (id, inserted)
+) PARTITION BY RANGE (inserted);
+-- the keyset pages of the history of a user are range scans of these, however deep the page is
+CREATE INDEX transactions_sender_history_idx ON transactions (sender_id, inserted, id);
+CREATE INDEX transactions_receiver_history_idx ON transactions (receiver_id, inserted, id);
+
+-- backs up the in-memory idempotency index of the application, a replayed request is never persisted twice. A unique
+-- index of the partitioned table could only be unique together with inserted, so the request ids are reserved here
+-- by a trigger, which raises the same unique violation on a duplicate. The ids of the detached partitions are deleted
+CREATE TABLE transaction_requests
+(
+    request_id varchar(50) PRIMARY KEY,
+    inserted   timestamp NOT NULL
+);
+INSERT INTO transaction_requests (request_id, inserted)
+SELECT request_id, inserted
+FROM transactions_unpartitioned
+WHERE request_id IS NOT NULL;
+CREATE FUNCTION reserve_transaction_request() RETURNS trigger AS
+$$
+BEGIN
+    INSERT INTO transaction_requests (request_id, inserted) VALUES (NEW.request_id, NEW.inserted);
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+CREATE TRIGGER transactions_request_id_unique
+    BEFORE INSERT
+    ON transactions
+    FOR EACH ROW
+    WHEN (NEW.request_id IS NOT NULL)
+EXECUTE FUNCTION reserve_transaction_request();
+
+DO
+$$
+    DECLARE
+        partition_name text := 'transactions_p' || to_char(CURRENT_DATE, 'YYYYMMDD');
+    BEGIN
+        EXECUTE format('ALTER TABLE transactions_unpartitioned RENAME TO %I', partition_name);
+        -- the existing indexes of the same columns are attached as the partitions of the new ones
+        EXECUTE format('ALTER TABLE transactions ATTACH PARTITION %I FOR VALUES FROM (MINVALUE) TO (%L)',
+                       partition_name, CURRENT_DATE + 1);
+    END
+$$;
+
+GRANT ALL PRIVILEGES ON TABLE transactions, transaction_requests TO kibit;
+
+COMMIT;
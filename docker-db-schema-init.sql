@@ -1,31 +1,97 @@
-DROP TABLE IF EXISTS users, transactions;
-DROP SEQUENCE IF EXISTS user_sequence, transaction_sequence;
-CREATE SEQUENCE user_sequence START 1 INCREMENT 1;
+DROP TABLE IF EXISTS users, transactions, transaction_requests, balance_snapshots, fx_rates, outbox, hot_credits;
+DROP FUNCTION IF EXISTS reserve_transaction_request;
+DROP SEQUENCE IF EXISTS user_sequence, transaction_sequence, outbox_sequence, hot_credit_sequence;
+-- the increments must match the ID_ALLOCATION_SIZE of the entities, as the application reserves blocks of ids
+-- with a single sequence call (pooled-lo). The user ids start after the initial users inserted below
+CREATE SEQUENCE user_sequence START 51 INCREMENT 50;
 CREATE TABLE users
 (
     id       INTEGER PRIMARY KEY DEFAULT nextval('user_sequence'), -- over 4 billion users does not seem realistic
     balance  DECIMAL(32, 6)      DEFAULT 0,                        -- actual precision may depend here on policy/main balance currency denominations
     currency VARCHAR(3)          DEFAULT 'USD' NOT NULL,
-    updated  timestamp NOT NULL  DEFAULT CURRENT_TIMESTAMP
+    updated  timestamp NOT NULL  DEFAULT CURRENT_TIMESTAMP,
+    version  BIGINT    NOT NULL  DEFAULT 0                       -- incremented by every balance change
 );
 
-CREATE SEQUENCE transaction_sequence START 1 INCREMENT 1;
+CREATE SEQUENCE transaction_sequence START 1 INCREMENT 50;
 
+-- unpartitioned, as service.transactions.partition.interval=none by default. docker-db-partition-migration.sql turns it
+-- into the range partitioned table kept by the TransactionPartitionManager
 CREATE TABLE transactions
 (
-    id          BIGINT PRIMARY KEY      DEFAULT nextval('transaction_sequence'), -- let's be an optimistic and plan for a long future
-    sender_id   INTEGER REFERENCES users (id),
-    receiver_id INTEGER REFERENCES users (id),
-    request_id  varchar(50),
-    amount      DECIMAL(32, 6) NOT NULL,
-    currency    VARCHAR(3)     NOT NULL,
-    inserted    timestamp      NOT NULL DEFAULT CURRENT_TIMESTAMP
+    id              BIGINT PRIMARY KEY      DEFAULT nextval('transaction_sequence'), -- let's be an optimistic and plan for a long future
+    sender_id       INTEGER REFERENCES users (id),
+    receiver_id     INTEGER REFERENCES users (id),
+    request_id      varchar(50),
+    amount          DECIMAL(32, 6) NOT NULL,
+    currency        VARCHAR(3)     NOT NULL,
+    sender_amount   DECIMAL(32, 6), -- debited in the currency of the sender account, null if it is the currency above
+    receiver_amount DECIMAL(32, 6), -- credited in the currency of the receiver account, null if it is the currency above
+    inserted        timestamp      NOT NULL DEFAULT CURRENT_TIMESTAMP
 );
-GRANT ALL PRIVILEGES ON TABLE users, transactions TO kibit;
-GRANT ALL PRIVILEGES ON SEQUENCE user_sequence, transaction_sequence TO kibit;
+-- a replayed request is never persisted twice
+CREATE UNIQUE INDEX transactions_request_id_idx ON transactions (request_id);
+-- the keyset pages of the history of a user are range scans of these, however deep the page is
+CREATE INDEX transactions_sender_history_idx ON transactions (sender_id, inserted, id);
+CREATE INDEX transactions_receiver_history_idx ON transactions (receiver_id, inserted, id);
+
+-- the balances of the users made up of the transactions inserted up to as_of, written by the BalanceReconciler,
+-- which verifies the balances against them and the transactions inserted since
+CREATE TABLE balance_snapshots
+(
+    user_id             INTEGER PRIMARY KEY,
+    balance             DECIMAL(32, 6) NOT NULL,
+    last_transaction_id BIGINT,             -- the highest id of the transactions in the balance, null if none yet
+    as_of               timestamp      NOT NULL
+);
+
+-- the value of one unit of each currency in USD, the rates of the cross-currency transfers. Read periodically by the
+-- FxRateProvider, a currency without a rate can only be transferred to accounts of the same currency
+CREATE TABLE fx_rates
+(
+    currency VARCHAR(3) PRIMARY KEY,
+    rate     DECIMAL(32, 12) NOT NULL,
+    updated  timestamp       NOT NULL DEFAULT CURRENT_TIMESTAMP -- the time the rate was published
+);
+INSERT INTO fx_rates (currency, rate)
+VALUES ('USD', 1),
+       ('EUR', 1.08),
+       ('GBP', 1.27),
+       ('CHF', 1.13),
+       ('HUF', 0.0027),
+       ('JPY', 0.0067);
+
+CREATE SEQUENCE outbox_sequence START 1 INCREMENT 50;
+CREATE TABLE outbox
+(
+    id        BIGINT    DEFAULT nextval('outbox_sequence') PRIMARY KEY,
+    user_id   INTEGER   NOT NULL, -- the kafka key, the relay partitions the messages by it
+    payload   TEXT      NOT NULL,
+    created   timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    delivered timestamp
+);
+-- only the pending messages are indexed, so the index stays small while the relay keeps up. The modulus must match
+-- service.messaging.outbox.partitions, so every relay thread reads the range of its partition in id order
+CREATE INDEX outbox_pending_idx ON outbox (MOD(user_id, 4), id) WHERE delivered IS NULL;
+
+-- the credits of the hot accounts committed with their transfers, but not yet added to the balances. Inserted instead
+-- of updating the contended balance, and deleted by the HotAccountRegistry when it adds them, so none is lost on a crash
+CREATE SEQUENCE hot_credit_sequence START 1;
+CREATE TABLE hot_credits
+(
+    id         BIGINT         DEFAULT nextval('hot_credit_sequence') PRIMARY KEY,
+    account_id INTEGER        NOT NULL,
+    amount     DECIMAL(32, 6) NOT NULL, -- in the currency of the account
+    inserted   timestamp      NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+CREATE INDEX hot_credits_account_idx ON hot_credits (account_id);
+
+GRANT ALL PRIVILEGES ON TABLE users, transactions, balance_snapshots, fx_rates, outbox, hot_credits TO kibit;
+GRANT ALL PRIVILEGES ON SEQUENCE user_sequence, transaction_sequence, outbox_sequence, hot_credit_sequence TO kibit;
 
 INSERT INTO users(id, balance)
 VALUES (1, 100),
        (2, 10000),
        (3, -10),
-       (4, 0);
\ No newline at end of file
+       (4, 0);
+
@@ -0,0 +1,180 @@
+package hu.gerab.payment.cluster;
+
+import static hu.gerab.payment.rest.PaymentAPI.CLUSTER_SECRET_HEADER;
+import static hu.gerab.payment.rest.PaymentAPI.FORWARDED_BY_HEADER;
+import static hu.gerab.payment.rest.PaymentAPI.IDEMPOTENCY_KEY_HEADER;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.rest.PaymentAPI.TransferItem;
+import hu.gerab.payment.rest.PaymentAPI.TransferItemResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Forwards the transfers to the members owning them, through their public endpoints, marked with
+ * the id of this member and the secret of the cluster, so the owner processes them even if it does
+ * not agree about the ring yet. The owner validates, deduplicates and journals the transfer itself. The connections are kept
+ * alive between the members.
+ */
+@Slf4j
+@Component
+public class ClusterForwarder {
+
+  private static final String TRANSFER_PATH =
+      "/payment/transfer?senderId={senderId}&receiverId={receiverId}&amount={amount}"
+          + "&currency={currency}";
+  private static final String BATCH_PATH = "/payment/transfers/batch";
+  private static final String HANDOFF_PATH = "/cluster/handoff?member={member}&ring={ring}";
+
+  private final String self;
+  private final String secret;
+  private final RestClient restClient;
+  private final ObjectMapper objectMapper;
+  private final ObjectReader resultReader;
+  private final Counter forwarded;
+
+  @Autowired
+  public ClusterForwarder(
+      ObjectMapper objectMapper,
+      MeterRegistry meterRegistry,
+      @Value("${service.cluster.self}") String self,
+      @Value("${service.cluster.secret}") String secret,
+      @Value("${service.cluster.forward.timeout.millis}") long timeoutMillis) {
+    this.self = self.trim();
+    this.secret = secret;
+    HttpClient httpClient =
+        HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofMillis(timeoutMillis))
+            .build();
+    JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(httpClient);
+    requestFactory.setReadTimeout(Duration.ofMillis(timeoutMillis));
+    this.restClient = RestClient.builder().requestFactory(requestFactory).build();
+    this.objectMapper = objectMapper;
+    this.resultReader = objectMapper.readerFor(TransferItemResult.class);
+    this.forwarded =
+        Counter.builder("payment.cluster.forwarded")
+            .description("Transfers forwarded to the member owning them")
+            .register(meterRegistry);
+  }
+
+  /**
+   * @return the request id returned by the owner
+   * @throws RestClientException if the owner failed or rejected the transfer, which is passed on
+   *     to the client
+   */
+  public String forwardTransfer(
+      String ownerUrl,
+      Long senderId,
+      Long receiverId,
+      BigDecimal amount,
+      Currency currency,
+      String idempotencyKey) {
+    forwarded.increment();
+    return restClient
+        .post()
+        .uri(ownerUrl + TRANSFER_PATH, senderId, receiverId, amount, currency)
+        .header(FORWARDED_BY_HEADER, self)
+        .header(CLUSTER_SECRET_HEADER, secret)
+        .headers(
+            headers -> {
+              if (idempotencyKey != null) {
+                headers.set(IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+              }
+            })
+        .retrieve()
+        .body(String.class);
+  }
+
+  /**
+   * Forwards the items of a batch owned by the member as a batch of their own, the owner answers
+   * once they are processed.
+   *
+   * @param items the items by their index in the batch of the client
+   * @return the results of the owner, by the indexes of the items, or failures for the items the
+   *     owner did not answer
+   */
+  public List<TransferItemResult> forwardItems(String ownerUrl, Map<Integer, TransferItem> items) {
+    forwarded.increment(items.size());
+    List<Integer> indexes = new ArrayList<>(items.keySet());
+    TransferItemResult[] results = new TransferItemResult[indexes.size()];
+    try {
+      String response =
+          restClient
+              .post()
+              .uri(ownerUrl + BATCH_PATH)
+              .contentType(APPLICATION_JSON)
+              .header(FORWARDED_BY_HEADER, self)
+              .header(CLUSTER_SECRET_HEADER, secret)
+              .body(objectMapper.writeValueAsString(items.values()))
+              .retrieve()
+              .body(String.class);
+      if (response == null || response.isBlank()) {
+        LOGGER.warn("Empty response to items={} from owner={}", items.size(), ownerUrl);
+      } else {
+        try (MappingIterator<TransferItemResult> answered = resultReader.readValues(response)) {
+          while (answered.hasNextValue()) {
+            TransferItemResult result = answered.nextValue();
+            if (result.index() >= 0 && result.index() < results.length) {
+              results[result.index()] =
+                  new TransferItemResult(
+                      indexes.get(result.index()),
+                      result.requestId(),
+                      result.status(),
+                      result.error());
+            }
+          }
+        }
+      }
+    } catch (RestClientException | IOException e) {
+      LOGGER.warn("Failed to forward items={} to owner={}", items.size(), ownerUrl, e);
+    }
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] == null) {
+        // it may have been processed, the client can tell by retrying with the idempotency key
+        results[i] =
+            new TransferItemResult(
+                indexes.get(i),
+                null,
+                TransferStatus.FAILED,
+                "The owner of the transfer did not answer");
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /** Tells the member that this one does not process the users it lost with the ring anymore. */
+  public void handoff(String memberUrl, String ringId) {
+    try {
+      restClient
+          .post()
+          .uri(memberUrl + HANDOFF_PATH, self, ringId)
+          .header(CLUSTER_SECRET_HEADER, secret)
+          .retrieve()
+          .toBodilessEntity();
+    } catch (RestClientException e) {
+      // the member takes the users over after its handoff timeout
+      LOGGER.warn("Failed to tell member={} about the handoff of ring={}", memberUrl, ringId, e);
+    }
+  }
+}
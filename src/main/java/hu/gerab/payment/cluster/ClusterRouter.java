@@ -0,0 +1,338 @@
+package hu.gerab.payment.cluster;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.base.Splitter;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.AccountCache;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Routes the transfers of a multi-instance deployment of the lock mode. Every instance owns the
+ * users of its points on the {@link HashRing} of the members, and a transfer is processed by the
+ * owner of its lower user id, so the transfers of a user are locked by the striped locks of a
+ * single instance. The other user of a transfer may be owned by another instance; the version
+ * check of its write makes the conflicting transfer reattempt with a fresh read.
+ *
+ * <p>The members are the id=url pairs of service.cluster.members, or of the properties file of
+ * service.cluster.membership.file, which is re-read periodically. When the ring changes, the
+ * transfers of the users moving away are forwarded to their new owners right away, and the ones
+ * already being processed here are drained before the other members are told about the handoff.
+ * The new owners hold the transfers of their new users until the previous owner handed them off,
+ * or up to the drain timeout and a reload interval, in case it is gone.
+ *
+ * <p>The members send service.cluster.secret with the requests of each other, a request claiming
+ * to be forwarded by a member without it is routed like any other request of a client.
+ *
+ * <p>Without service.cluster.self the router is disabled, and every transfer is processed here.
+ */
+@Slf4j
+@Component
+public class ClusterRouter implements InitializingBean {
+
+  private static final Splitter.MapSplitter MEMBERS_SPLITTER =
+      Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=');
+  private static final long DRAIN_POLL_MILLIS = 10;
+
+  private final String self;
+  private final byte[] secret;
+  private final String configuredMembers;
+  private final Path membershipFile;
+  private final int virtualNodes;
+  private final long drainTimeoutMillis;
+  private final long handoffTimeoutMillis;
+  private final ClusterForwarder forwarder;
+  // the transfers being processed here, by their lower user id
+  private final Map<Long, Integer> inFlight = new ConcurrentHashMap<>();
+  // the last ring each member handed off its moved users for, as it may be told before the change
+  private final Map<String, String> handedOffRings = new ConcurrentHashMap<>();
+  private final Object handoffMonitor = new Object();
+  // the previous owners of the users acquired with the current ring, which have not handed off yet
+  private final Set<String> pendingHandoffs = ConcurrentHashMap.newKeySet();
+  private volatile HashRing ring = HashRing.empty();
+  private volatile HashRing previousRing = HashRing.empty();
+  private long handoffDeadlineNanos;
+
+  @Autowired
+  public ClusterRouter(
+      ClusterForwarder forwarder,
+      @Value("${service.cluster.self}") String self,
+      @Value("${service.cluster.secret}") String secret,
+      @Value("${service.cluster.members}") String members,
+      @Value("${service.cluster.membership.file}") String membershipFile,
+      @Value("${service.cluster.membership.reload.interval.millis}") long reloadIntervalMillis,
+      @Value("${service.cluster.virtual.nodes}") int virtualNodes,
+      @Value("${service.cluster.drain.timeout.millis}") long drainTimeoutMillis,
+      @Value("${service.payment.mode}") String paymentMode,
+      @Value("${service.payment.account.cache.mode}") String accountCacheMode,
+      @Value("${service.messaging.mode}") String messagingMode) {
+    this.forwarder = forwarder;
+    this.self = self.isBlank() ? null : self.trim();
+    this.secret = secret.getBytes(UTF_8);
+    this.configuredMembers = members;
+    this.membershipFile = membershipFile.isBlank() ? null : Path.of(membershipFile);
+    this.virtualNodes = virtualNodes;
+    this.drainTimeoutMillis = drainTimeoutMillis;
+    // the previous owner notices the change up to a reload later, then drains
+    this.handoffTimeoutMillis = drainTimeoutMillis + reloadIntervalMillis;
+    if (this.self == null) {
+      return;
+    }
+    if (secret.isBlank()) {
+      // anyone could claim to be a member, and bypass the owner of the users
+      throw new IllegalArgumentException("The cluster mode requires service.cluster.secret");
+    }
+    if (members.isBlank() && this.membershipFile == null) {
+      throw new IllegalArgumentException(
+          "The cluster mode requires service.cluster.members or service.cluster.membership.file");
+    }
+    if (!"lock".equals(paymentMode)) {
+      throw new IllegalArgumentException(
+          "The cluster mode requires the lock payment mode, not mode=" + paymentMode);
+    }
+    if (AccountCache.LOCAL_MODE.equals(accountCacheMode)) {
+      // the other instances write the balances of the users owned here as well
+      throw new IllegalArgumentException(
+          "The cluster mode requires the versioned account cache mode, or none");
+    }
+    if (TransactionOutbox.OUTBOX_MODE.equals(messagingMode)) {
+      // the relay of every member would publish the same rows of the shared outbox table
+      throw new IllegalArgumentException("The cluster mode requires the direct messaging mode");
+    }
+  }
+
+  private ClusterRouter() {
+    this.forwarder = null;
+    this.self = null;
+    this.secret = new byte[0];
+    this.configuredMembers = "";
+    this.membershipFile = null;
+    this.virtualNodes = 1;
+    this.drainTimeoutMillis = 0;
+    this.handoffTimeoutMillis = 0;
+  }
+
+  /** A router of a single instance, every transfer is processed here. */
+  public static ClusterRouter disabled() {
+    return new ClusterRouter();
+  }
+
+  public boolean isEnabled() {
+    return self != null;
+  }
+
+  public HashRing getRing() {
+    return ring;
+  }
+
+  /**
+   * @param member the id the request claims to be sent by
+   * @param secret the secret sent with the request
+   * @return true if the request was sent by another member of the current or the previous ring,
+   *     with the secret of the cluster
+   */
+  public boolean isMember(String member, String secret) {
+    if (!isEnabled() || member == null) {
+      return false;
+    }
+    String id = member.trim();
+    boolean known =
+        !id.equals(self)
+            && (ring.getMembers().containsKey(id) || previousRing.getMembers().containsKey(id));
+    if (known && secret != null && MessageDigest.isEqual(this.secret, secret.getBytes(UTF_8))) {
+      return true;
+    }
+    LOGGER.warn("Ignoring a request claiming to be sent by member={}", id);
+    return false;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (!isEnabled()) {
+      return;
+    }
+    // a starting instance does not wait for handoffs, the version checks cover the transfers still
+    // being processed by the previous owners
+    ring = load();
+    previousRing = ring;
+    LOGGER.info("Joined the cluster as member={} of {}", self, ring);
+  }
+
+  @Scheduled(fixedDelayString = "${service.cluster.membership.reload.interval.millis}")
+  public void refresh() {
+    if (!isEnabled() || membershipFile == null) {
+      return;
+    }
+    HashRing loaded;
+    try {
+      loaded = load();
+    } catch (UncheckedIOException | IllegalArgumentException e) {
+      LOGGER.error("Failed to load the cluster membership, keeping {}", ring, e);
+      return;
+    }
+    if (!loaded.equals(ring)) {
+      changeRing(loaded);
+    }
+  }
+
+  /**
+   * Decides where the transfer is processed. A transfer processed here is counted as in flight
+   * until it is released, so a membership change waits for it before handing off its users.
+   *
+   * @param forwarded if the transfer was forwarded by another member, in which case it is processed
+   *     here even if the members disagree about the ring during a membership change
+   * @return the url of the member to forward the transfer to, or null if it is processed here, and
+   *     has to be {@link #release}d once processed
+   */
+  public String route(long senderId, long receiverId, boolean forwarded) {
+    if (!isEnabled()) {
+      return null;
+    }
+    long key = Math.min(senderId, receiverId);
+    // counted before the ring is read, so a drain started after the read sees it
+    inFlight.merge(key, 1, Integer::sum);
+    HashRing current = ring;
+    String owner = current.ownerOf(key);
+    if (owner != null && !owner.equals(self) && !forwarded) {
+      release(key);
+      return current.urlOf(owner);
+    }
+    if (self.equals(owner)) {
+      awaitHandoff(key, current);
+    }
+    return null;
+  }
+
+  /** Ends a transfer which was routed here by {@link #route}. */
+  public void release(long senderId, long receiverId) {
+    if (isEnabled()) {
+      release(Math.min(senderId, receiverId));
+    }
+  }
+
+  private void release(long key) {
+    inFlight.computeIfPresent(key, (id, count) -> count == 1 ? null : count - 1);
+  }
+
+  /** Told by a previous owner that it does not process the users it lost with the ring anymore. */
+  public void onHandoff(String member, String ringId) {
+    handedOffRings.put(member, ringId);
+    synchronized (handoffMonitor) {
+      if (ring.getId().equals(ringId) && pendingHandoffs.remove(member)) {
+        LOGGER.info("Member={} handed off its users of ring={}", member, ringId);
+        handoffMonitor.notifyAll();
+      }
+    }
+  }
+
+  private void changeRing(HashRing next) {
+    LOGGER.info("Cluster membership changed from {} to {}", ring, next);
+    synchronized (handoffMonitor) {
+      pendingHandoffs.clear();
+      for (String member : ring.getMembers().keySet()) {
+        if (!member.equals(self) && !next.getId().equals(handedOffRings.get(member))) {
+          pendingHandoffs.add(member);
+        }
+      }
+      handoffDeadlineNanos = System.nanoTime() + MILLISECONDS.toNanos(handoffTimeoutMillis);
+      previousRing = ring;
+      ring = next;
+    }
+    drain(next);
+    for (Map.Entry<String, String> member : next.getMembers().entrySet()) {
+      if (!member.getKey().equals(self)) {
+        forwarder.handoff(member.getValue(), next.getId());
+      }
+    }
+  }
+
+  /** Waits for the transfers of the users not owned here anymore, up to the drain timeout. */
+  private void drain(HashRing next) {
+    long deadline = System.nanoTime() + MILLISECONDS.toNanos(drainTimeoutMillis);
+    Set<Long> moving = new HashSet<>();
+    try {
+      while (true) {
+        moving.clear();
+        for (Long key : inFlight.keySet()) {
+          if (!self.equals(next.ownerOf(key))) {
+            moving.add(key);
+          }
+        }
+        if (moving.isEmpty()) {
+          return;
+        }
+        if (System.nanoTime() - deadline > 0) {
+          LOGGER.warn("Handing off with the transfers of {} users still in flight", moving.size());
+          return;
+        }
+        Thread.sleep(DRAIN_POLL_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warn("Interrupted while draining the transfers of {} users", moving.size());
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Holds a transfer of a user acquired with the ring until its previous owner handed it off. */
+  private void awaitHandoff(long key, HashRing current) {
+    if (pendingHandoffs.isEmpty()) {
+      return;
+    }
+    synchronized (handoffMonitor) {
+      String previousOwner = previousRing.ownerOf(key);
+      if (previousOwner == null) {
+        return;
+      }
+      try {
+        while (ring == current && pendingHandoffs.contains(previousOwner)) {
+          long remaining = handoffDeadlineNanos - System.nanoTime();
+          if (remaining <= 0) {
+            LOGGER.warn("Taking over the users of {} without their handoff", pendingHandoffs);
+            pendingHandoffs.clear();
+            return;
+          }
+          handoffMonitor.wait(NANOSECONDS.toMillis(remaining) + 1);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private HashRing load() {
+    Map<String, String> members = new TreeMap<>();
+    if (membershipFile == null) {
+      members.putAll(MEMBERS_SPLITTER.split(configuredMembers));
+    } else {
+      Properties properties = new Properties();
+      try (Reader reader = Files.newBufferedReader(membershipFile)) {
+        properties.load(reader);
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            "Failed to read the cluster membership of " + membershipFile, e);
+      }
+      properties.forEach(
+          (member, url) -> members.put(member.toString().trim(), url.toString().trim()));
+    }
+    return new HashRing(members, virtualNodes);
+  }
+}
@@ -0,0 +1,98 @@
+package hu.gerab.payment.cluster;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring of the cluster members. Every member is placed on the ring at virtualNodes
+ * points, and a user is owned by the member of the first point at or after the hash of its id, so
+ * adding or removing a member only moves the users of its own points, about 1/n of them, and the
+ * users are spread evenly even over a few members.
+ *
+ * <p>Immutable, so it is swapped as a whole when the membership changes. The rings of the same
+ * members are equal and have the same id on every instance.
+ */
+public final class HashRing {
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final SortedMap<String, String> members;
+  private final NavigableMap<Long, String> points = new TreeMap<>();
+  private final String id;
+
+  /**
+   * @param members the urls of the members by member id
+   */
+  public HashRing(Map<String, String> members, int virtualNodes) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("At least one virtual node is required");
+    }
+    this.members = new TreeMap<>(members);
+    for (String member : this.members.keySet()) {
+      for (int i = 0; i < virtualNodes; i++) {
+        points.put(HASH.hashString(member + "#" + i, UTF_8).asLong(), member);
+      }
+    }
+    this.id = HASH.hashString(this.members.toString(), UTF_8).toString().substring(0, 16);
+  }
+
+  /** An empty ring, which owns nothing. */
+  public static HashRing empty() {
+    return new HashRing(Map.of(), 1);
+  }
+
+  public boolean isEmpty() {
+    return members.isEmpty();
+  }
+
+  /** The same on every instance with the same members, so it identifies the ring in a handoff. */
+  public String getId() {
+    return id;
+  }
+
+  public SortedMap<String, String> getMembers() {
+    return members;
+  }
+
+  public String urlOf(String member) {
+    return members.get(member);
+  }
+
+  /**
+   * @return the id of the member owning the user, null if the ring is empty
+   */
+  public String ownerOf(long userId) {
+    if (points.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> point = points.ceilingEntry(HASH.hashLong(userId).asLong());
+    return point == null ? points.firstEntry().getValue() : point.getValue();
+  }
+
+  /** A transfer is owned by the owner of its lower user id, so it locks its users there. */
+  public String ownerOf(long senderId, long receiverId) {
+    return ownerOf(Math.min(senderId, receiverId));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof HashRing ring && members.equals(ring.members) && points.equals(ring.points);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(members, points.size());
+  }
+
+  @Override
+  public String toString() {
+    return "HashRing{id=" + id + ", members=" + members + "}";
+  }
+}
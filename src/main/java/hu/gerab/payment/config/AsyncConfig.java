@@ -1,15 +1,25 @@
 package hu.gerab.payment.config;
 
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskDecorator;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
 @Configuration
-@EnableAsync
+// class based proxies like the rest of spring boot, so the other methods of the services stay
+// reachable through the proxy, e.g. by the scheduler
+@EnableAsync(proxyTargetClass = true)
 @Component
 public class AsyncConfig {
 
@@ -18,27 +28,71 @@ public class AsyncConfig {
   @Value("${service.payment.pool.size}")
   private int threadPoolSize;
 
+  @Value("${service.payment.queue.capacity}")
+  private int queueCapacity;
+
+  // platform: fixed pool of service.payment.pool.size threads, virtual: a virtual thread per task
+  @Value("${service.payment.executor.mode}")
+  private String executorMode;
+
   private ThreadPoolTaskExecutor executor;
 
   @Bean(name = PAYMENT_SERVICE_EXECUTOR)
-  public Executor taskExecutor() {
+  public Executor taskExecutor(MeterRegistry meterRegistry, PaymentMetrics metrics) {
+    AtomicInteger active = new AtomicInteger();
+    Gauge.builder("payment.executor.active", active, AtomicInteger::get)
+        .description("Transfers being processed by the payment service executor")
+        .register(meterRegistry);
+    TaskDecorator queueWaitRecorder =
+        task -> {
+          long queuedNanos = System.nanoTime();
+          return () -> {
+            metrics.recordStage(Stage.QUEUE_WAIT, queuedNanos);
+            active.incrementAndGet();
+            try {
+              task.run();
+            } finally {
+              active.decrementAndGet();
+            }
+          };
+        };
+    if ("virtual".equals(executorMode)) {
+      return virtualThreadExecutor(queueWaitRecorder);
+    }
+
     executor = new ThreadPoolTaskExecutor();
     executor.setCorePoolSize(threadPoolSize);
     executor.setMaxPoolSize(threadPoolSize);
     executor.setThreadNamePrefix("A-PSE-");
-    executor.initialize();
-    /* This pool deals with the queued transactions. If the application is shut down
-    prematurely some queued, but unprocessed transactions may be lost. The following
-    settings should mitigate this to some degree, but not completely.
-
-    To prevent this, either the application would need to rely on some distributed
-    structure to store the unprocessed transaction requests or the queued transactions
-    could be 'logged' in kafka or some other system, so they can be checked during
-    startup for completion.
+    executor.setTaskDecorator(queueWaitRecorder);
+    /* This pool deals with the queued transactions. The single transfers are written to the
+    TransferJournal before they are queued, so the ones lost from the queue by a crash are
+    replayed on the next startup. On a regular shutdown the queue is still drained.
     */
-    executor.setQueueCapacity(300);
+    executor.setQueueCapacity(queueCapacity);
     executor.setAwaitTerminationSeconds(300);
     executor.setWaitForTasksToCompleteOnShutdown(true);
+    // the queue is created on initialization, so it has to come after the settings
+    executor.initialize();
+    Gauge.builder("payment.executor.queue.depth", executor, ThreadPoolTaskExecutor::getQueueSize)
+        .description("Transfers waiting in the queue of the payment service executor")
+        .register(meterRegistry);
     return executor;
   }
+
+  /*
+  Every transfer gets its own virtual thread, so blocking on the user locks, JDBC or kafka only
+  parks the virtual thread and frees the carrier thread for another transfer. The concurrency is
+  then limited by the admission limit and the connection pool (db.pool.size) instead of the
+  number of threads. The locks of the transfer processing are ReentrantLocks and the postgres
+  driver does not use monitors since 42.6, so they do not pin the carrier threads. Pinning can be
+  checked with -Djdk.tracePinnedThreads=short.
+   */
+  private Executor virtualThreadExecutor(TaskDecorator taskDecorator) {
+    SimpleAsyncTaskExecutor virtualExecutor = new SimpleAsyncTaskExecutor("V-PSE-");
+    virtualExecutor.setVirtualThreads(true);
+    virtualExecutor.setTaskDecorator(taskDecorator);
+    virtualExecutor.setTaskTerminationTimeout(TimeUnit.SECONDS.toMillis(300));
+    return virtualExecutor;
+  }
 }
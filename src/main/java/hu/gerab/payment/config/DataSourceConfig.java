@@ -1,5 +1,6 @@
 package hu.gerab.payment.config;
 
+import com.zaxxer.hikari.HikariDataSource;
 import javax.sql.DataSource;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.jdbc.DataSourceBuilder;
@@ -17,12 +18,21 @@ public class DataSourceConfig {
   public DataSource dataSource(
       @Value("${db.postgres.host}") String host,
       @Value("${db.postgres.username}") String user,
-      @Value("${db.postgres.password}") String pass) {
-    return DataSourceBuilder.create()
-        .driverClassName("org.postgresql.Driver")
-        .url("jdbc:postgresql://" + host + "/kibit")
-        .username(user)
-        .password(pass)
-        .build();
+      @Value("${db.postgres.password}") String pass,
+      @Value("${db.pool.size}") int poolSize,
+      @Value("${db.pool.connection.timeout.millis}") long connectionTimeoutMillis) {
+    HikariDataSource dataSource =
+        DataSourceBuilder.create()
+            .type(HikariDataSource.class)
+            .driverClassName("org.postgresql.Driver")
+            // rewrites the JDBC batch inserts into multi-row inserts
+            .url("jdbc:postgresql://" + host + "/kibit?reWriteBatchedInserts=true")
+            .username(user)
+            .password(pass)
+            .build();
+    // with virtual threads the connections are the real limit of the concurrent transfers
+    dataSource.setMaximumPoolSize(poolSize);
+    dataSource.setConnectionTimeout(connectionTimeoutMillis);
+    return dataSource;
   }
 }
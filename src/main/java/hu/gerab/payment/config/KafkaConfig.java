@@ -1,5 +1,6 @@
 package hu.gerab.payment.config;
 
+import hu.gerab.payment.messaging.TransactionNotificationSerializer;
 import java.util.HashMap;
 import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
@@ -10,14 +11,36 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.serializer.JsonSerializer;
 
 @Configuration
 @Slf4j
 public class KafkaConfig {
 
+  public static final String BINARY_FORMAT = "binary";
+  public static final String JSON_FORMAT = "json";
+
   @Value("${kafka.bootstrap.host}")
   private String bootstrapServers;
 
+  // the producer collects the records into batches per partition for up to linger.ms, or until
+  // the batch reaches batch.size bytes, and compresses the batches as a whole
+  @Value("${kafka.producer.linger.ms}")
+  private int lingerMillis;
+
+  @Value("${kafka.producer.batch.size}")
+  private int batchSize;
+
+  @Value("${kafka.producer.compression.type}")
+  private String compressionType;
+
+  @Value("${kafka.producer.acks}")
+  private String acks;
+
+  // json by default, binary for the compact TransactionNotificationCodec once the consumers read it
+  @Value("${kafka.value.format}")
+  private String valueFormat;
+
   @Bean
   public ProducerFactory<Long, Object> producerFactory() {
     Map<String, Object> configProps = new HashMap<>();
@@ -27,12 +50,23 @@ public class KafkaConfig {
     configProps.put(
         ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,
         "org.apache.kafka.common.serialization.LongSerializer");
-    configProps.put(
-        ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
-        "org.springframework.kafka.support.serializer.JsonSerializer");
+    configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, valueSerializer());
+    configProps.put(ProducerConfig.LINGER_MS_CONFIG, lingerMillis);
+    configProps.put(ProducerConfig.BATCH_SIZE_CONFIG, batchSize);
+    configProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compressionType);
+    configProps.put(ProducerConfig.ACKS_CONFIG, acks);
     return new DefaultKafkaProducerFactory<>(configProps);
   }
 
+  private Class<?> valueSerializer() {
+    return switch (valueFormat) {
+      case BINARY_FORMAT -> TransactionNotificationSerializer.class;
+      case JSON_FORMAT -> JsonSerializer.class;
+      default ->
+          throw new IllegalArgumentException("Unknown kafka value format=" + valueFormat);
+    };
+  }
+
   @Bean
   public KafkaTemplate<Long, Object> kafkaTemplate() {
     return new KafkaTemplate<>(producerFactory());
@@ -0,0 +1,81 @@
+package hu.gerab.payment.config;
+
+import static io.r2dbc.spi.ConnectionFactoryOptions.DRIVER;
+import static io.r2dbc.spi.ConnectionFactoryOptions.PASSWORD;
+import static io.r2dbc.spi.ConnectionFactoryOptions.USER;
+
+import hu.gerab.payment.service.PaymentServiceImpl;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.postgresql.PostgresqlConnectionFactoryProvider;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import java.time.Duration;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.r2dbc.connection.R2dbcTransactionManager;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+/**
+ * The R2DBC connections and the netty server of the reactive mode. The spring boot
+ * auto-configuration of R2DBC is excluded, so the other modes neither need the R2DBC url, nor get
+ * a second transaction manager next to the JPA one; the R2DBC transaction manager is only used
+ * through the operator.
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "reactive")
+public class ReactiveConfig {
+
+  @Bean(destroyMethod = "dispose")
+  public ConnectionPool connectionFactory(
+      @Value("${db.r2dbc.url}") String url,
+      @Value("${db.postgres.username}") String user,
+      @Value("${db.postgres.password}") String pass,
+      @Value("${db.pool.size}") int poolSize,
+      @Value("${db.pool.connection.timeout.millis}") long connectionTimeoutMillis) {
+    LOGGER.info("Creating R2DBC connection pool for url={}", url);
+    ConnectionFactoryOptions parsed = ConnectionFactoryOptions.parse(url);
+    ConnectionFactoryOptions.Builder options =
+        parsed.mutate().option(USER, user).option(PASSWORD, pass);
+    if ("postgresql".equals(parsed.getValue(DRIVER))) {
+      // the database gives up waiting for the row locks, as the lock mode gives up on the stripes
+      options.option(
+          PostgresqlConnectionFactoryProvider.OPTIONS,
+          Map.of("lock_timeout", PaymentServiceImpl.LOCK_TIMEOUT_MILLIS + "ms"));
+    }
+    return new ConnectionPool(
+        ConnectionPoolConfiguration.builder(ConnectionFactories.get(options.build()))
+            .maxSize(poolSize)
+            .initialSize(poolSize)
+            .maxAcquireTime(Duration.ofMillis(connectionTimeoutMillis))
+            .build());
+  }
+
+  @Bean
+  public DatabaseClient databaseClient(ConnectionFactory connectionFactory) {
+    return DatabaseClient.create(connectionFactory);
+  }
+
+  @Bean
+  public TransactionalOperator transactionalOperator(ConnectionFactory connectionFactory) {
+    return TransactionalOperator.create(new R2dbcTransactionManager(connectionFactory));
+  }
+
+  @Bean
+  @ConditionalOnWebApplication(type = Type.REACTIVE)
+  public NettyReactiveWebServerFactory reactiveWebServerFactory() {
+    // spring boot prefers tomcat when both are on the classpath, which would run the reactive
+    // endpoints on its worker threads instead of the event loops
+    return new NettyReactiveWebServerFactory();
+  }
+}
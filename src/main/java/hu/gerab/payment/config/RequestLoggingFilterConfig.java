@@ -1,10 +1,13 @@
 package hu.gerab.payment.config;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.filter.CommonsRequestLoggingFilter;
 
 @Configuration
+@ConditionalOnWebApplication(type = Type.SERVLET)
 public class RequestLoggingFilterConfig {
 
   @Bean
@@ -0,0 +1,46 @@
+package hu.gerab.payment.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+@ConditionalOnWebApplication(type = Type.SERVLET)
+public class WebMvcConfig implements WebMvcConfigurer {
+
+  @Value("${service.statement.pool.size}")
+  private int exportPoolSize;
+
+  @Value("${service.statement.queue.capacity}")
+  private int exportQueueCapacity;
+
+  @Value("${service.statement.timeout.millis}")
+  private long exportTimeoutMillis;
+
+  /*
+  The streamed responses, i.e. the statement exports, are written by this pool instead of the
+  unbounded default executor of spring mvc. Every export holds a database connection while it is
+  streamed, so the pool keeps the exports from taking the connections of the transfers. An export
+  over the queue capacity is rejected with 503.
+   */
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.setTaskExecutor(statementExportExecutor());
+    configurer.setDefaultTimeout(exportTimeoutMillis);
+  }
+
+  @Bean
+  public ThreadPoolTaskExecutor statementExportExecutor() {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(exportPoolSize);
+    executor.setMaxPoolSize(exportPoolSize);
+    executor.setQueueCapacity(exportQueueCapacity);
+    executor.setThreadNamePrefix("A-EXP-");
+    return executor;
+  }
+}
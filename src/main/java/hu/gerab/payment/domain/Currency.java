@@ -1,18 +1,34 @@
 package hu.gerab.payment.domain;
 
+import java.math.BigDecimal;
 import lombok.Getter;
 
-/** The accepted currencies of the system. */
+/** The accepted currencies of the system, with the number of decimals of their minor unit. */
 public enum Currency {
-  USD;
+  USD(2),
+  EUR(2),
+  GBP(2),
+  CHF(2),
+  HUF(2),
+  JPY(0);
 
   @Getter private String humanFriendlyName;
 
-  Currency() {
+  /** The scale of the minor unit, e.g. 2 for the cents of USD. */
+  @Getter private final int fractionDigits;
+
+  Currency(int fractionDigits) {
     this.humanFriendlyName = this.name();
+    this.fractionDigits = fractionDigits;
   }
 
-  private Currency(String humanFriendlyName) {
+  private Currency(String humanFriendlyName, int fractionDigits) {
     this.humanFriendlyName = humanFriendlyName;
+    this.fractionDigits = fractionDigits;
+  }
+
+  /** @return the amount of the minor units, e.g. 10.50 for 1050 cents of USD */
+  public BigDecimal fromMinorUnits(long minorUnits) {
+    return BigDecimal.valueOf(minorUnits, fractionDigits);
   }
 }
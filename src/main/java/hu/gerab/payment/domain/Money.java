@@ -0,0 +1,149 @@
+package hu.gerab.payment.domain;
+
+import java.math.BigDecimal;
+
+/**
+ * An immutable amount of money with the scale of the balance column, DECIMAL(32, 6).
+ *
+ * <p>An amount fitting a long of micro units (millionths, up to about 9.2 trillion) is kept as
+ * that long, so the arithmetic of the transfers is a primitive operation and a single small object
+ * per result, instead of the {@link BigDecimal} rescaling and inflating the operands. Only the
+ * amounts beyond the range of the long, and the amounts with more than 6 fraction digits, are kept
+ * as a {@link BigDecimal}. The representation is canonical, an amount fitting the long is never
+ * kept as a {@link BigDecimal}.
+ */
+public final class Money implements Comparable<Money> {
+
+  /** The number of fraction digits of the micro units. */
+  public static final int SCALE = 6;
+
+  public static final Money ZERO = new Money(0, null);
+
+  // the amounts with at most this many integer digits fit a long of micro units
+  private static final int COMPACT_INTEGER_DIGITS = 12;
+  // the unscaled values of at most this many digits are far below 2^52, the error of their double
+  // scaled by a power of ten stays well under a half
+  private static final int EXACT_DOUBLE_DIGITS = 15;
+  private static final BigDecimal MIN_MICROS = BigDecimal.valueOf(Long.MIN_VALUE);
+  private static final BigDecimal MAX_MICROS = BigDecimal.valueOf(Long.MAX_VALUE);
+  private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+  private final long micros;
+  // null if the amount is the micros
+  private final BigDecimal inflated;
+
+  private Money(long micros, BigDecimal inflated) {
+    this.micros = micros;
+    this.inflated = inflated;
+  }
+
+  public static Money ofMicros(long micros) {
+    return micros == 0 ? ZERO : new Money(micros, null);
+  }
+
+  public static Money of(BigDecimal amount) {
+    int scale = amount.scale();
+    if (scale >= 0 && scale <= SCALE && amount.precision() - scale <= COMPACT_INTEGER_DIGITS) {
+      // the unscaled value, an integer of at most 18 digits, so scaling it up cannot overflow
+      long unscaled;
+      if (scale == 0) {
+        unscaled = amount.longValue();
+      } else if (amount.precision() <= EXACT_DOUBLE_DIGITS) {
+        // the double of a small compact amount is its unscaled value divided by a power of ten,
+        // correctly rounded, so scaling it back rounds to the unscaled value without a BigDecimal
+        unscaled = Math.round(amount.doubleValue() * POWERS_OF_TEN[scale]);
+      } else {
+        unscaled = amount.movePointRight(scale).longValue();
+      }
+      return ofMicros(unscaled * POWERS_OF_TEN[SCALE - scale]);
+    }
+    // the trailing zeros of a larger scale, or a long of more than 12 integer digits
+    BigDecimal micros = amount.stripTrailingZeros().movePointRight(SCALE);
+    if (micros.scale() <= 0
+        && micros.compareTo(MIN_MICROS) >= 0
+        && micros.compareTo(MAX_MICROS) <= 0) {
+      return ofMicros(micros.longValueExact());
+    }
+    return new Money(0, amount);
+  }
+
+  /** @return true if the amount is kept as a long of micro units */
+  public boolean isCompact() {
+    return inflated == null;
+  }
+
+  /**
+   * @return the amount in micro units
+   * @throws ArithmeticException if the amount is not {@link #isCompact() compact}
+   */
+  public long getMicros() {
+    if (inflated != null) {
+      throw new ArithmeticException("The amount " + inflated + " does not fit the micro units");
+    }
+    return micros;
+  }
+
+  public Money plus(Money other) {
+    if (inflated == null && other.inflated == null) {
+      long sum = micros + other.micros;
+      // overflows only if both operands have a different sign than the sum, as Math.addExact
+      if (((micros ^ sum) & (other.micros ^ sum)) >= 0) {
+        return ofMicros(sum);
+      }
+    }
+    return of(toBigDecimal().add(other.toBigDecimal()));
+  }
+
+  public Money minus(Money other) {
+    if (inflated == null && other.inflated == null) {
+      long difference = micros - other.micros;
+      // overflows only if the operands have a different sign, and the difference has a different
+      // sign than the minuend, as Math.subtractExact
+      if (((micros ^ other.micros) & (micros ^ difference)) >= 0) {
+        return ofMicros(difference);
+      }
+    }
+    return of(toBigDecimal().subtract(other.toBigDecimal()));
+  }
+
+  public int signum() {
+    return inflated == null ? Long.signum(micros) : inflated.signum();
+  }
+
+  /** @return the amount with the scale of the micro units, or the kept {@link BigDecimal} */
+  public BigDecimal toBigDecimal() {
+    return inflated == null ? BigDecimal.valueOf(micros, SCALE) : inflated;
+  }
+
+  @Override
+  public int compareTo(Money other) {
+    if (inflated == null && other.inflated == null) {
+      return Long.compare(micros, other.micros);
+    }
+    return toBigDecimal().compareTo(other.toBigDecimal());
+  }
+
+  /** Equal to the same amount, regardless of the scale of a kept {@link BigDecimal}. */
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof Money money)) {
+      return false;
+    }
+    return inflated == null
+        ? money.inflated == null && micros == money.micros
+        : money.inflated != null && inflated.compareTo(money.inflated) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return inflated == null ? Long.hashCode(micros) : inflated.stripTrailingZeros().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return toBigDecimal().toPlainString();
+  }
+}
@@ -0,0 +1,20 @@
+package hu.gerab.payment.domain;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+import java.math.BigDecimal;
+
+/** Maps the {@link Money} of the entities to the DECIMAL(32, 6) columns. */
+@Converter
+public class MoneyConverter implements AttributeConverter<Money, BigDecimal> {
+
+  @Override
+  public BigDecimal convertToDatabaseColumn(Money money) {
+    return money == null ? null : money.toBigDecimal();
+  }
+
+  @Override
+  public Money convertToEntityAttribute(BigDecimal amount) {
+    return amount == null ? null : Money.of(amount);
+  }
+}
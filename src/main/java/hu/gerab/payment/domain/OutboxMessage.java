@@ -0,0 +1,61 @@
+package hu.gerab.payment.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+import java.time.Instant;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * A notification waiting to be published to kafka. Written in the same database transaction as the
+ * transfer it is about, and published by the {@link hu.gerab.payment.outbox.OutboxRelay}.
+ */
+@Entity
+@Table(name = "outbox")
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@ToString
+@Builder
+@EqualsAndHashCode(of = {"id"})
+public class OutboxMessage {
+
+  /**
+   * The number of ids reserved with a single sequence call. Must be the same as the increment of
+   * outbox_sequence in the database.
+   */
+  public static final int ID_ALLOCATION_SIZE = 50;
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "outbox_sequence")
+  @SequenceGenerator(
+      name = "outbox_sequence",
+      sequenceName = "outbox_sequence",
+      allocationSize = ID_ALLOCATION_SIZE)
+  private Long id;
+
+  /** The user the message is addressed to, used as the kafka key. */
+  @Column(name = "user_id", nullable = false)
+  private Long userId;
+
+  @Column(name = "payload", nullable = false, length = 2000)
+  private String payload;
+
+  @Column(name = "created", nullable = false)
+  private Instant created;
+
+  /** Null until kafka acknowledged the message. */
+  @Column(name = "delivered")
+  private Instant delivered;
+}
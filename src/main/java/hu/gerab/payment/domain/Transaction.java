@@ -7,6 +7,7 @@ import jakarta.persistence.Enumerated;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
 import java.math.BigDecimal;
@@ -20,7 +21,13 @@ import lombok.Setter;
 import lombok.ToString;
 
 @Entity
-@Table(name = "transactions")
+@Table(
+    name = "transactions",
+    indexes = {
+      @Index(name = "transactions_request_id_idx", columnList = "request_id", unique = true),
+      @Index(name = "transactions_sender_history_idx", columnList = "sender_id, inserted, id"),
+      @Index(name = "transactions_receiver_history_idx", columnList = "receiver_id, inserted, id")
+    })
 @NoArgsConstructor
 @AllArgsConstructor
 @Getter
@@ -29,12 +36,20 @@ import lombok.ToString;
 @Builder
 @EqualsAndHashCode(of = {"id", "userId", "requestId", "amount"})
 public class Transaction {
+
+  /**
+   * The number of ids reserved with a single sequence call. Must be the same as the increment of
+   * transaction_sequence in the database, as the ids are allocated with the pooled-lo strategy: the
+   * value returned by the sequence is the first id of the reserved block.
+   */
+  public static final int ID_ALLOCATION_SIZE = 50;
+
   @Id
   @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "transaction_sequence")
   @SequenceGenerator(
       name = "transaction_sequence",
       sequenceName = "transaction_sequence",
-      allocationSize = 1)
+      allocationSize = ID_ALLOCATION_SIZE)
   private Long id;
 
   /**
@@ -61,6 +76,20 @@ public class Transaction {
   @Column(name = "currency", nullable = false)
   private Currency currency;
 
+  /**
+   * The amount debited from the sender in the currency of its account, if it is not the currency of
+   * the transfer. Null if the sender paid the amount itself.
+   */
+  @Column(name = "sender_amount")
+  private BigDecimal senderAmount;
+
+  /**
+   * The amount credited to the receiver in the currency of its account, if it is not the currency
+   * of the transfer. Null if the receiver got the amount itself.
+   */
+  @Column(name = "receiver_amount")
+  private BigDecimal receiverAmount;
+
   @Column(name = "inserted")
   private Instant inserted;
 }
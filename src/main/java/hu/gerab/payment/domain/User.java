@@ -1,6 +1,7 @@
 package hu.gerab.payment.domain;
 
 import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.EnumType;
 import jakarta.persistence.Enumerated;
@@ -9,6 +10,7 @@ import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import java.math.BigDecimal;
 import java.time.Instant;
 import lombok.AllArgsConstructor;
@@ -18,6 +20,8 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
+import org.hibernate.annotations.Mutability;
+import org.hibernate.type.descriptor.java.Immutability;
 
 @Entity
 @Table(name = "users")
@@ -30,14 +34,26 @@ import lombok.ToString;
 @EqualsAndHashCode(of = {"id", "balance"})
 public class User {
 
+  /**
+   * The number of ids reserved with a single sequence call. Must be the same as the increment of
+   * user_sequence in the database.
+   */
+  public static final int ID_ALLOCATION_SIZE = 50;
+
   @Id
   @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_sequence")
   @Column(name = "id")
-  @SequenceGenerator(name = "user_sequence", sequenceName = "user_sequence", allocationSize = 1)
+  @SequenceGenerator(
+      name = "user_sequence",
+      sequenceName = "user_sequence",
+      allocationSize = ID_ALLOCATION_SIZE)
   private Long id;
 
+  /** Immutable, so the persistence context keeps the loaded instance, instead of a copy of it. */
   @Column(name = "balance", nullable = false)
-  private BigDecimal balance;
+  @Convert(converter = MoneyConverter.class)
+  @Mutability(Immutability.class)
+  private Money balance;
 
   @Enumerated(EnumType.STRING)
   @Column(name = "currency", nullable = false)
@@ -45,4 +61,22 @@ public class User {
 
   @Column(name = "updated")
   private Instant updated;
+
+  /** Incremented by every change of the balance, checked by the writes of the JPA entity. */
+  @Version
+  @Column(name = "version", nullable = false)
+  private Long version;
+
+  public static class UserBuilder {
+
+    public UserBuilder balance(Money balance) {
+      this.balance = balance;
+      return this;
+    }
+
+    /** The balance as read from the column, kept as {@link Money}. */
+    public UserBuilder balance(BigDecimal balance) {
+      return balance(Money.of(balance));
+    }
+  }
 }
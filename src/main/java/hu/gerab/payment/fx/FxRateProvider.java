@@ -0,0 +1,128 @@
+package hu.gerab.payment.fx;
+
+import hu.gerab.payment.domain.Currency;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Provides the current {@link FxRates} snapshot to the transfers. The rates are the value of one
+ * unit of each currency in USD, read from the fx_rates table, or from the properties file of
+ * service.fx.rates.file if set, with lines like EUR=1.08.
+ *
+ * <p>The rates are re-read periodically by the scheduler, and the new snapshot replaces the old one
+ * with a single volatile write, so a transfer never waits for a refresh, it converts with whichever
+ * snapshot it read. Should a refresh fail, the previous snapshot stays in use.
+ */
+@Slf4j
+@Component
+public class FxRateProvider implements InitializingBean {
+
+  private static final String SELECT_RATES = "SELECT currency, rate, updated FROM fx_rates";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final Path ratesFile;
+  private volatile FxRates rates = FxRates.none();
+
+  @Autowired
+  public FxRateProvider(
+      JdbcTemplate jdbcTemplate, @Value("${service.fx.rates.file}") String ratesFile) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.ratesFile = ratesFile.isBlank() ? null : Path.of(ratesFile);
+  }
+
+  private FxRateProvider(FxRates rates) {
+    this.jdbcTemplate = null;
+    this.ratesFile = null;
+    this.rates = rates;
+  }
+
+  /** A provider of the given rates, never refreshed. */
+  public static FxRateProvider fixed(FxRates rates) {
+    return new FxRateProvider(rates);
+  }
+
+  public FxRates getRates() {
+    return rates;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    // the transfers between accounts of the same currency need no rates, so they are not blocked
+    refresh();
+  }
+
+  @Scheduled(fixedDelayString = "${service.fx.refresh.interval.millis}")
+  public void refresh() {
+    if (jdbcTemplate == null) {
+      return;
+    }
+    try {
+      FxRates loaded = ratesFile == null ? loadTable() : loadFile();
+      if (loaded != null) {
+        if (!loaded.getAsOf().equals(rates.getAsOf())) {
+          LOGGER.info("Loaded the exchange rates as of {}", loaded.getAsOf());
+        }
+        rates = loaded;
+      }
+    } catch (DataAccessException | UncheckedIOException | IllegalArgumentException e) {
+      LOGGER.error(
+          "Failed to load the exchange rates, keeping the ones as of {}", rates.getAsOf(), e);
+    }
+  }
+
+  /** The table is small, it is read whole, so a deleted rate is noticed as well. */
+  private FxRates loadTable() {
+    Map<Currency, BigDecimal> values = new EnumMap<>(Currency.class);
+    Instant[] asOf = {Instant.EPOCH};
+    jdbcTemplate.query(
+        SELECT_RATES,
+        rs -> {
+          values.put(Currency.valueOf(rs.getString("currency")), rs.getBigDecimal("rate"));
+          Timestamp updated = rs.getTimestamp("updated");
+          if (updated != null && updated.toInstant().isAfter(asOf[0])) {
+            asOf[0] = updated.toInstant();
+          }
+        });
+    return FxRates.of(values, asOf[0]);
+  }
+
+  /** @return the rates of the file, or null if it was not modified */
+  private FxRates loadFile() {
+    try {
+      Instant modified = Files.getLastModifiedTime(ratesFile).toInstant();
+      if (!rates.getAsOf().equals(Instant.EPOCH) && !modified.isAfter(rates.getAsOf())) {
+        return null;
+      }
+      Properties properties = new Properties();
+      try (Reader reader = Files.newBufferedReader(ratesFile)) {
+        properties.load(reader);
+      }
+      Map<Currency, BigDecimal> values = new EnumMap<>(Currency.class);
+      properties.forEach(
+          (currency, rate) ->
+              values.put(
+                  Currency.valueOf(currency.toString().trim()),
+                  new BigDecimal(rate.toString().trim())));
+      return FxRates.of(values, modified);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read the exchange rates of " + ratesFile, e);
+    }
+  }
+}
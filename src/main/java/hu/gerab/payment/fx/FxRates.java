@@ -0,0 +1,233 @@
+package hu.gerab.payment.fx;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Money;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the exchange rates, converting amounts between the minor units of the
+ * currencies, e.g. from cents of USD to cents of EUR.
+ *
+ * <p>The rates are given as the value of one unit of each currency in a common unit, e.g. in USD.
+ * The rate of every pair is computed once, when the snapshot is built, rounded to {@link
+ * #RATE_PRECISION} significant digits, and kept as a decimal factor between the minor units: a
+ * long mantissa and a power of ten. So a conversion is a multiplication and a division of longs,
+ * without allocating anything. Only a product overflowing a long falls back to {@link BigDecimal},
+ * with the same result.
+ */
+public final class FxRates {
+
+  /** Returned by the conversions of the minor units if there is no rate between the currencies. */
+  public static final long NO_RATE = -1;
+
+  static final int RATE_PRECISION = 10;
+
+  private static final Currency[] CURRENCIES = Currency.values();
+  private static final int MAX_SCALE = 18;
+  private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i <= MAX_SCALE; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  // indexed by from.ordinal() * CURRENCIES.length + to.ordinal(), the mantissa is 0 without a rate
+  private final long[] mantissas = new long[CURRENCIES.length * CURRENCIES.length];
+  private final int[] scales = new int[CURRENCIES.length * CURRENCIES.length];
+  private final Instant asOf;
+
+  private FxRates(Map<Currency, BigDecimal> values, Instant asOf) {
+    this.asOf = asOf;
+    MathContext precision = new MathContext(RATE_PRECISION, RoundingMode.HALF_EVEN);
+    for (Map.Entry<Currency, BigDecimal> from : values.entrySet()) {
+      for (Map.Entry<Currency, BigDecimal> to : values.entrySet()) {
+        if (from.getKey() == to.getKey()) {
+          continue;
+        }
+        // minor units of from -> units of from -> units of to -> minor units of to
+        BigDecimal factor =
+            from.getValue()
+                .divide(to.getValue(), precision)
+                .movePointRight(
+                    to.getKey().getFractionDigits() - from.getKey().getFractionDigits());
+        if (factor.scale() < 0) {
+          factor = factor.setScale(0);
+        }
+        if (factor.scale() > MAX_SCALE) {
+          throw new IllegalArgumentException(
+              "The rate of " + from.getKey() + "/" + to.getKey() + " is out of range");
+        }
+        int pair = pair(from.getKey(), to.getKey());
+        mantissas[pair] = factor.unscaledValue().longValueExact();
+        scales[pair] = factor.scale();
+      }
+    }
+  }
+
+  /**
+   * @param values the value of one unit of each currency in a common unit, the currencies missing
+   *     from it can only be converted to themselves
+   * @param asOf the time the rates were published
+   * @throws IllegalArgumentException if a value is not positive
+   */
+  public static FxRates of(Map<Currency, BigDecimal> values, Instant asOf) {
+    values.forEach(
+        (currency, value) -> {
+          if (value.signum() <= 0) {
+            throw new IllegalArgumentException("The value of " + currency + " must be positive");
+          }
+        });
+    return new FxRates(values, asOf);
+  }
+
+  /** Rates converting every currency only to itself. */
+  public static FxRates none() {
+    return new FxRates(Map.of(), Instant.EPOCH);
+  }
+
+  public Instant getAsOf() {
+    return asOf;
+  }
+
+  public boolean hasRate(Currency from, Currency to) {
+    return from == to || mantissas[pair(from, to)] != 0;
+  }
+
+  /**
+   * Converts the non-negative amount of minor units, rounding down, for a credit the account
+   * should never get more than the value of the amount.
+   *
+   * @return the minor units of the converted amount, or {@link #NO_RATE}
+   */
+  public long convertDown(long minorUnits, Currency from, Currency to) {
+    return convert(minorUnits, from, to, false);
+  }
+
+  /**
+   * Converts the non-negative amount of minor units, rounding up, for a debit the account should
+   * never pay less than the value of the amount.
+   *
+   * @return the minor units of the converted amount, or {@link #NO_RATE}
+   */
+  public long convertUp(long minorUnits, Currency from, Currency to) {
+    return convert(minorUnits, from, to, true);
+  }
+
+  /**
+   * Converts the positive amount to the scale of the minor unit of to, rounding down. An amount in
+   * whole minor units of from is converted without any {@link BigDecimal} arithmetic.
+   *
+   * @return the converted amount, the same instance if from and to are the same, or null if there
+   *     is no rate between them
+   */
+  public BigDecimal convertDown(BigDecimal amount, Currency from, Currency to) {
+    return convert(amount, from, to, false);
+  }
+
+  /**
+   * Converts the positive amount to the scale of the minor unit of to, rounding up.
+   *
+   * @see #convertDown(BigDecimal, Currency, Currency)
+   */
+  public BigDecimal convertUp(BigDecimal amount, Currency from, Currency to) {
+    return convert(amount, from, to, true);
+  }
+
+  /**
+   * Converts the positive amount to the minor unit of to, rounding down. A compact amount in whole
+   * minor units of from is converted by {@link #convertDown(long, Currency, Currency)} on its micro
+   * units, without any {@link BigDecimal}.
+   *
+   * @return the converted amount, the same instance if from and to are the same, or null if there
+   *     is no rate between them
+   */
+  public Money convertDown(Money amount, Currency from, Currency to) {
+    return convert(amount, from, to, false);
+  }
+
+  /**
+   * Converts the positive amount to the minor unit of to, rounding up.
+   *
+   * @see #convertDown(Money, Currency, Currency)
+   */
+  public Money convertUp(Money amount, Currency from, Currency to) {
+    return convert(amount, from, to, true);
+  }
+
+  private Money convert(Money amount, Currency from, Currency to, boolean roundUp) {
+    if (from == to) {
+      return amount;
+    }
+    if (mantissas[pair(from, to)] == 0) {
+      return null;
+    }
+    if (amount.isCompact()) {
+      long microsPerFromUnit = POWERS_OF_TEN[Money.SCALE - from.getFractionDigits()];
+      long micros = amount.getMicros();
+      if (micros % microsPerFromUnit == 0) {
+        long converted = convert(micros / microsPerFromUnit, from, to, roundUp);
+        long microsPerToUnit = POWERS_OF_TEN[Money.SCALE - to.getFractionDigits()];
+        if (converted <= Long.MAX_VALUE / microsPerToUnit) {
+          return Money.ofMicros(converted * microsPerToUnit);
+        }
+      }
+    }
+    // fractions of a minor unit, or too large for the micro units
+    return Money.of(convert(amount.toBigDecimal(), from, to, roundUp));
+  }
+
+  private BigDecimal convert(BigDecimal amount, Currency from, Currency to, boolean roundUp) {
+    if (from == to) {
+      return amount;
+    }
+    int pair = pair(from, to);
+    if (mantissas[pair] == 0) {
+      return null;
+    }
+    BigDecimal minorUnits = amount.movePointRight(from.getFractionDigits());
+    if (minorUnits.scale() <= 0 && minorUnits.precision() - minorUnits.scale() < MAX_SCALE) {
+      return to.fromMinorUnits(convert(minorUnits.longValue(), from, to, roundUp));
+    }
+    // fractions of a minor unit, or too large for a long
+    return to.fromMinorUnits(convertExactly(minorUnits, pair, roundUp));
+  }
+
+  private long convert(long minorUnits, Currency from, Currency to, boolean roundUp) {
+    if (from == to) {
+      return minorUnits;
+    }
+    int pair = pair(from, to);
+    long mantissa = mantissas[pair];
+    if (mantissa == 0) {
+      return NO_RATE;
+    }
+    long product = minorUnits * mantissa;
+    if (Math.multiplyHigh(minorUnits, mantissa) != 0 || product < 0) {
+      return convertExactly(BigDecimal.valueOf(minorUnits), pair, roundUp);
+    }
+    long divisor = POWERS_OF_TEN[scales[pair]];
+    long converted = product / divisor;
+    if (roundUp && converted * divisor != product) {
+      converted++;
+    }
+    return converted;
+  }
+
+  /** @throws ArithmeticException if the converted amount does not fit a long of minor units */
+  private long convertExactly(BigDecimal minorUnits, int pair, boolean roundUp) {
+    return minorUnits
+        .multiply(BigDecimal.valueOf(mantissas[pair], scales[pair]))
+        .setScale(0, roundUp ? RoundingMode.CEILING : RoundingMode.FLOOR)
+        .longValueExact();
+  }
+
+  private static int pair(Currency from, Currency to) {
+    return from.ordinal() * CURRENCIES.length + to.ordinal();
+  }
+}
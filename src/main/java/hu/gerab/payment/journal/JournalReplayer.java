@@ -0,0 +1,118 @@
+package hu.gerab.payment.journal;
+
+import hu.gerab.payment.journal.TransferJournal.JournaledTransfer;
+import hu.gerab.payment.service.PaymentService;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Processes the transfers of the {@link TransferJournal} which were accepted, but not processed
+ * before the application stopped. Runs on the initialization, before the web server is started, so
+ * the replayed transfers are processed before the new ones.
+ *
+ * <p>A transfer written to the database right before a crash may not have its processed record in
+ * the journal, so the transfers whose request id is already in the transactions table are skipped.
+ * The processed records are only lost with the page cache, on a crash of the machine, a crash of
+ * the application keeps every record it appended to the mapped segment.
+ *
+ * <p>The request ids of a partitioned transactions table are looked up in the primary key of the
+ * transaction_requests table instead, the request id index of the partitioned table is per
+ * partition, so a lookup there would probe the index of every partition.
+ */
+@Slf4j
+@Component
+public class JournalReplayer implements InitializingBean {
+
+  private final TransferJournal journal;
+  private final PaymentService paymentService;
+  private final JdbcTemplate jdbcTemplate;
+  private final int chunkSize;
+  private final String requestIdTable;
+
+  @Autowired
+  public JournalReplayer(
+      TransferJournal journal,
+      PaymentService paymentService,
+      JdbcTemplate jdbcTemplate,
+      @Value("${service.payment.batch.chunk.size}") int chunkSize,
+      @Value("${service.transactions.partition.interval}") String partitionInterval) {
+    this.journal = journal;
+    this.paymentService = paymentService;
+    this.jdbcTemplate = jdbcTemplate;
+    this.chunkSize = chunkSize;
+    this.requestIdTable =
+        "none".equals(partitionInterval) ? "transactions" : "transaction_requests";
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    List<JournaledTransfer> recovered = journal.getRecovered();
+    if (recovered.isEmpty()) {
+      return;
+    }
+    LOGGER.info("Replaying unprocessed={} transfers of the journal", recovered.size());
+    int skipped = 0;
+    int completed = 0;
+    for (int from = 0; from < recovered.size(); from += chunkSize) {
+      List<JournaledTransfer> chunk =
+          recovered.subList(from, Math.min(from + chunkSize, recovered.size()));
+      Set<String> written = writtenRequestIds(chunk);
+      List<JournaledTransfer> replayed = new ArrayList<>(chunk.size());
+      List<TransferRequest> requests = new ArrayList<>(chunk.size());
+      for (JournaledTransfer transfer : chunk) {
+        if (written.contains(transfer.request().getRequestId())) {
+          journal.markProcessed(transfer.sequence());
+          skipped++;
+        } else {
+          replayed.add(transfer);
+          requests.add(transfer.request());
+        }
+      }
+      if (requests.isEmpty()) {
+        continue;
+      }
+      List<TransferResult> results = paymentService.processTransfers(requests);
+      for (int i = 0; i < replayed.size(); i++) {
+        boolean done = results.get(i).getStatus() == TransferStatus.COMPLETED;
+        journal.markProcessed(replayed.get(i).sequence(), !done);
+        if (done) {
+          completed++;
+        }
+      }
+    }
+    LOGGER.info(
+        "Replayed the journal, completed={} skipped as already written={} out of={}",
+        completed,
+        skipped,
+        recovered.size());
+  }
+
+  private Set<String> writtenRequestIds(List<JournaledTransfer> chunk) {
+    List<String> requestIds = new ArrayList<>(chunk.size());
+    for (JournaledTransfer transfer : chunk) {
+      requestIds.add(transfer.request().getRequestId());
+    }
+    String placeholders = String.join(", ", Collections.nCopies(requestIds.size(), "?"));
+    return new HashSet<>(
+        jdbcTemplate.queryForList(
+            "SELECT request_id FROM "
+                + requestIdTable
+                + " WHERE request_id IN ("
+                + placeholders
+                + ")",
+            String.class,
+            requestIds.toArray()));
+  }
+}
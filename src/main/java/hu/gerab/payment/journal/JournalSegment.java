@@ -0,0 +1,207 @@
+package hu.gerab.payment.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A file of the journal, pre-allocated to its full size and memory-mapped, so an append is a copy
+ * into the page cache, and the file system does not have to allocate blocks or update the size of
+ * the file on the fsync.
+ *
+ * <p>A record is [int length of the record][int crc32c of the rest][byte type][long sequence]
+ * [payload]. The unwritten part of the file is zeros, so a zero length is the end of the records.
+ * A record with a wrong checksum is a torn write of a crash, and is treated as the end too.
+ */
+@Slf4j
+final class JournalSegment implements Closeable {
+
+  static final String SUFFIX = ".journal";
+  static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+  // the checksummed part of the header, the type and the sequence
+  private static final int CHECKSUMMED_HEADER_SIZE = 1 + 8;
+  private static final int ZEROS_CHUNK_SIZE = 1 << 16;
+
+  private final Path path;
+  private final long number;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final CRC32C crc = new CRC32C();
+  private final byte[] header = new byte[CHECKSUMMED_HEADER_SIZE];
+  private int position;
+  private int forcedPosition;
+  // the sequence of the last transfer record, 0 if there is none
+  private long lastTransferSequence;
+  private boolean closed;
+
+  private JournalSegment(Path path, long number, FileChannel channel, int size)
+      throws IOException {
+    this.path = path;
+    this.number = number;
+    this.channel = channel;
+    this.buffer = channel.map(MapMode.READ_WRITE, 0, size);
+  }
+
+  /** Creates the file of the segment, filled with zeros up to the size, and forced to the disk. */
+  static JournalSegment create(Path directory, long number, int size) throws IOException {
+    Path path = directory.resolve(fileName(number));
+    FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try {
+      // written instead of a sparse truncate, so the blocks are allocated here and not on the
+      // appends
+      ByteBuffer zeros = ByteBuffer.allocate(Math.min(ZEROS_CHUNK_SIZE, size));
+      for (long written = 0; written < size; ) {
+        zeros.clear().limit((int) Math.min(zeros.capacity(), size - written));
+        written += channel.write(zeros, written);
+      }
+      channel.force(true);
+      return new JournalSegment(path, number, channel, size);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Opens an existing segment for reading its records. */
+  static JournalSegment open(Path path) throws IOException {
+    FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      return new JournalSegment(path, parseNumber(path), channel, (int) channel.size());
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  static String fileName(long number) {
+    return String.format("%020d%s", number, SUFFIX);
+  }
+
+  static long parseNumber(Path path) {
+    String name = path.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  long getNumber() {
+    return number;
+  }
+
+  long getLastTransferSequence() {
+    return lastTransferSequence;
+  }
+
+  int getPosition() {
+    return position;
+  }
+
+  boolean fits(int payloadLength) {
+    return buffer.capacity() - position >= HEADER_SIZE + payloadLength;
+  }
+
+  /**
+   * Appends a record, the caller has to check that it {@link #fits(int)}, and has to serialize the
+   * appends.
+   */
+  void append(byte type, long sequence, byte[] payload, int payloadLength) {
+    ByteBuffer.wrap(header).put(type).putLong(sequence);
+    crc.reset();
+    crc.update(header, 0, CHECKSUMMED_HEADER_SIZE);
+    crc.update(payload, 0, payloadLength);
+    // the length last, so a record is not visible to a scan before it is complete
+    buffer
+        .position(position + 4)
+        .putInt((int) crc.getValue())
+        .put(header)
+        .put(payload, 0, payloadLength)
+        .putInt(position, HEADER_SIZE + payloadLength);
+    position += HEADER_SIZE + payloadLength;
+    if (type == TransferJournal.TRANSFER) {
+      lastTransferSequence = sequence;
+    }
+  }
+
+  /**
+   * Writes the records up to the position to the disk. The records after the position can be
+   * appended concurrently.
+   */
+  synchronized void force(int upToPosition) {
+    if (closed || upToPosition <= forcedPosition) {
+      return;
+    }
+    buffer.force(forcedPosition, upToPosition - forcedPosition);
+    forcedPosition = upToPosition;
+  }
+
+  /** Reads the records from the start, and positions the segment after the last valid one. */
+  void scan(RecordVisitor visitor) {
+    ByteBuffer records = buffer.duplicate();
+    byte[] payload = new byte[0];
+    int offset = 0;
+    boolean intact = true;
+    while (buffer.capacity() - offset >= HEADER_SIZE) {
+      int length = records.getInt(offset);
+      if (length == 0) {
+        break;
+      }
+      if (length < HEADER_SIZE || length > buffer.capacity() - offset) {
+        intact = false;
+        break;
+      }
+      int checksum = records.getInt(offset + 4);
+      records.get(offset + 8, header);
+      int payloadLength = length - HEADER_SIZE;
+      if (payload.length < payloadLength) {
+        payload = new byte[payloadLength];
+      }
+      records.get(offset + HEADER_SIZE, payload, 0, payloadLength);
+      crc.reset();
+      crc.update(header, 0, CHECKSUMMED_HEADER_SIZE);
+      crc.update(payload, 0, payloadLength);
+      if ((int) crc.getValue() != checksum) {
+        intact = false;
+        break;
+      }
+      ByteBuffer parsedHeader = ByteBuffer.wrap(header);
+      byte type = parsedHeader.get();
+      long sequence = parsedHeader.getLong();
+      if (type == TransferJournal.TRANSFER) {
+        lastTransferSequence = sequence;
+      }
+      visitor.visit(type, sequence, ByteBuffer.wrap(payload, 0, payloadLength));
+      offset += length;
+    }
+    if (!intact) {
+      LOGGER.warn("Journal segment={} ends with a corrupt record at offset={}", path, offset);
+    }
+    position = offset;
+    forcedPosition = offset;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    channel.close();
+  }
+
+  @FunctionalInterface
+  interface RecordVisitor {
+    void visit(byte type, long sequence, ByteBuffer payload);
+  }
+}
@@ -0,0 +1,463 @@
+package hu.gerab.payment.journal;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * An append-only local journal of the accepted single transfers, so the transfers waiting in the
+ * queue of the payment service executor are not lost if the application crashes after their
+ * request id was returned to the client.
+ *
+ * <p>A transfer is appended to the memory-mapped current segment, and forced to the disk before
+ * {@link #append(TransferRequest)} returns. The fsync is shared by the concurrent appends: the
+ * thread doing it forces everything appended so far, and the appends it covered return without an
+ * fsync of their own (group commit). The end of the processing of a transfer is appended as a
+ * processed record, without an fsync unless the transfer was not written to the database, and the
+ * sequence below which every transfer is processed is periodically written to the checkpoint file.
+ * The segments before the checkpoint are deleted.
+ *
+ * <p>On startup, the transfers after the checkpoint without a processed record are recovered, and
+ * replayed by the {@link JournalReplayer}. A transfer processed right before a crash may have lost
+ * its processed record, so the replay has to skip the transfers already in the database. A failed
+ * transfer leaves nothing in the database, so its processed record is forced, otherwise it could
+ * be replayed, and completed, against the balances of a later run.
+ */
+@Slf4j
+@Component
+public class TransferJournal implements InitializingBean, DisposableBean {
+
+  static final byte TRANSFER = 1;
+  static final byte PROCESSED = 2;
+  static final String CHECKPOINT_FILE = "checkpoint";
+  private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+  private static final int MAX_STRING_LENGTH = 0xFFFF;
+  private static final int SCRATCH_SIZE = 1024;
+  private static final Currency[] CURRENCIES = Currency.values();
+
+  private static final ThreadLocal<ByteBuffer> SCRATCH =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(SCRATCH_SIZE));
+
+  private final Path directory;
+  private final int segmentSize;
+  private final boolean enabled;
+  private final PaymentMetrics metrics;
+
+  // serializes the appends, and guards the current segment and the last sequence
+  private final Lock appendLock = new ReentrantLock();
+  // taken by the thread forcing the segment for the waiting appends
+  private final Lock syncLock = new ReentrantLock();
+  // the sequences of the transfers appended, but not processed yet
+  private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+  // the segments before the current one, oldest first, guarded by the append lock
+  private final Deque<JournalSegment> closedSegments = new ArrayDeque<>();
+  private final List<JournaledTransfer> recovered = new ArrayList<>();
+  private ExecutorService preallocator;
+  private Future<JournalSegment> spareSegment;
+  private JournalSegment segment;
+  private long lastSequence;
+  private volatile long durableSequence;
+  private long checkpointSequence;
+
+  @Autowired
+  public TransferJournal(
+      @Value("${service.journal.directory}") String directory,
+      @Value("${service.journal.segment.size.bytes}") int segmentSize,
+      @Value("${service.journal.enabled}") boolean enabled,
+      PaymentMetrics metrics) {
+    if (enabled && segmentSize < MIN_SEGMENT_SIZE) {
+      throw new IllegalArgumentException(
+          "The journal segment size has to be at least " + MIN_SEGMENT_SIZE + " bytes");
+    }
+    this.directory = Paths.get(directory);
+    this.segmentSize = segmentSize;
+    this.enabled = enabled;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return a journal which does not write anything, the transfers queued are lost on a crash
+   */
+  public static TransferJournal disabled() {
+    return new TransferJournal(".", 0, false, PaymentMetrics.unpublished());
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    Files.createDirectories(directory);
+    checkpointSequence = readCheckpoint();
+    lastSequence = checkpointSequence;
+    Map<Long, TransferRequest> unprocessed = new LinkedHashMap<>();
+    long lastNumber = 0;
+    for (Path path : segmentPaths()) {
+      JournalSegment recoveredSegment = JournalSegment.open(path);
+      recoveredSegment.scan(
+          (type, sequence, payload) -> {
+            lastSequence = Math.max(lastSequence, sequence);
+            if (sequence <= checkpointSequence) {
+              return;
+            }
+            if (type == TRANSFER) {
+              unprocessed.put(sequence, decode(payload));
+            } else if (type == PROCESSED) {
+              unprocessed.remove(sequence);
+            }
+          });
+      // never appended to again, the appends continue in a new segment
+      recoveredSegment.close();
+      closedSegments.add(recoveredSegment);
+      lastNumber = recoveredSegment.getNumber();
+    }
+    unprocessed.forEach(
+        (sequence, request) -> {
+          recovered.add(new JournaledTransfer(sequence, request));
+          inFlight.add(sequence);
+        });
+    durableSequence = lastSequence;
+    segment = JournalSegment.create(directory, lastNumber + 1, segmentSize);
+    preallocator =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "journal-preallocator");
+              thread.setDaemon(true);
+              return thread;
+            });
+    prepareSpareSegment();
+    LOGGER.info(
+        "Opened the journal in directory={} at sequence={} checkpoint={} with unprocessed={}",
+        directory.toAbsolutePath(),
+        lastSequence,
+        checkpointSequence,
+        recovered.size());
+  }
+
+  /**
+   * @return the transfers of the previous run which were not processed, in the order of their
+   *     acceptance. They are in flight until they are {@link #markProcessed(long) marked}.
+   */
+  public List<JournaledTransfer> getRecovered() {
+    return recovered;
+  }
+
+  /**
+   * Appends the transfer and forces it to the disk.
+   *
+   * @return the sequence of the transfer, to {@link #markProcessed(long) mark} it processed, or 0
+   *     if the journal is disabled
+   * @throws UncheckedIOException if the transfer could not be written, it must not be accepted
+   */
+  public long append(TransferRequest request) {
+    if (!enabled) {
+      return 0;
+    }
+    long startNanos = System.nanoTime();
+    ByteBuffer payload = encode(request);
+    long sequence;
+    appendLock.lock();
+    try {
+      sequence = ++lastSequence;
+      write(TRANSFER, sequence, payload);
+      inFlight.add(sequence);
+    } finally {
+      appendLock.unlock();
+    }
+    sync(sequence);
+    metrics.recordStage(Stage.JOURNAL, startNanos);
+    return sequence;
+  }
+
+  /**
+   * Records that the transfer was written to the database, so it is not replayed after a restart.
+   * Not forced to the disk, a transfer processed right before a crash is skipped by the replay as
+   * a duplicate.
+   */
+  public void markProcessed(long sequence) {
+    markProcessed(sequence, false);
+  }
+
+  /**
+   * Records that the transfer was processed, so it is not replayed after a restart.
+   *
+   * @param durable whether the record is forced to the disk before returning, for the transfers
+   *     which failed, or were rejected, as the replay can not tell them by the database
+   */
+  public void markProcessed(long sequence, boolean durable) {
+    if (!enabled || sequence <= 0) {
+      return;
+    }
+    appendLock.lock();
+    try {
+      write(PROCESSED, sequence, ByteBuffer.allocate(0));
+    } catch (UncheckedIOException e) {
+      // the transfer is replayed as a duplicate at worst, and the checkpoint still moves
+      LOGGER.warn("Could not mark sequence={} processed in the journal", sequence, e);
+      durable = false;
+    } finally {
+      appendLock.unlock();
+    }
+    if (durable) {
+      syncLock.lock();
+      try {
+        forceAppended();
+      } catch (UncheckedIOException e) {
+        LOGGER.warn("Could not force the processed record of sequence={}", sequence, e);
+      } finally {
+        syncLock.unlock();
+      }
+    }
+    inFlight.remove(sequence);
+  }
+
+  private void write(byte type, long sequence, ByteBuffer payload) {
+    int length = payload.remaining();
+    if (!segment.fits(length)) {
+      roll();
+    }
+    segment.append(type, sequence, payload.array(), length);
+  }
+
+  /** Switches to the pre-allocated spare segment, the full one is forced first. */
+  private void roll() {
+    segment.force(segment.getPosition());
+    JournalSegment next;
+    try {
+      next = spareSegment.get();
+    } catch (ExecutionException e) {
+      throw new UncheckedIOException(
+          "Could not pre-allocate the next journal segment",
+          e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the next journal segment");
+    }
+    closedSegments.add(segment);
+    segment = next;
+    prepareSpareSegment();
+  }
+
+  private void prepareSpareSegment() {
+    long number = segment.getNumber() + 1;
+    spareSegment = preallocator.submit(() -> JournalSegment.create(directory, number, segmentSize));
+  }
+
+  /** Returns when the sequence is on the disk, forcing everything appended so far if needed. */
+  private void sync(long sequence) {
+    if (durableSequence >= sequence) {
+      return;
+    }
+    syncLock.lock();
+    try {
+      if (durableSequence >= sequence) {
+        return; // forced by the previous holder of the lock
+      }
+      forceAppended();
+    } finally {
+      syncLock.unlock();
+    }
+  }
+
+  /** Forces every record appended so far to the disk, under the sync lock. */
+  private void forceAppended() {
+    JournalSegment current;
+    int position;
+    long target;
+    appendLock.lock();
+    try {
+      // a rolled segment was forced by the roll
+      current = segment;
+      position = segment.getPosition();
+      target = lastSequence;
+    } finally {
+      appendLock.unlock();
+    }
+    current.force(position);
+    durableSequence = target;
+  }
+
+  /**
+   * Writes the sequence below which every transfer is processed to the checkpoint file, and
+   * deletes the segments holding only the transfers before it.
+   */
+  @Scheduled(fixedDelayString = "${service.journal.checkpoint.interval.millis}")
+  public void checkpoint() {
+    if (!enabled) {
+      return;
+    }
+    long checkpoint;
+    List<JournalSegment> obsolete = new ArrayList<>();
+    appendLock.lock();
+    try {
+      Long oldestInFlight = inFlight.isEmpty() ? null : inFlight.first();
+      checkpoint = oldestInFlight == null ? lastSequence : oldestInFlight - 1;
+      // the records of a segment after the checkpoint may refer to an earlier segment, so only
+      // the oldest ones are deleted
+      while (!closedSegments.isEmpty()
+          && closedSegments.peekFirst().getLastTransferSequence() <= checkpoint) {
+        obsolete.add(closedSegments.pollFirst());
+      }
+    } finally {
+      appendLock.unlock();
+    }
+    try {
+      if (checkpoint > checkpointSequence) {
+        writeCheckpoint(checkpoint);
+        checkpointSequence = checkpoint;
+      }
+      for (JournalSegment obsoleteSegment : obsolete) {
+        obsoleteSegment.close();
+        Files.deleteIfExists(obsoleteSegment.getPath());
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Could not checkpoint the journal at sequence={}", checkpoint, e);
+    }
+  }
+
+  private long readCheckpoint() throws IOException {
+    Path path = directory.resolve(CHECKPOINT_FILE);
+    if (!Files.exists(path)) {
+      return 0;
+    }
+    return ByteBuffer.wrap(Files.readAllBytes(path)).getLong();
+  }
+
+  // written next to the checkpoint and moved over it, so it is never torn
+  private void writeCheckpoint(long checkpoint) throws IOException {
+    Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.allocate(Long.BYTES).putLong(checkpoint).flip());
+      channel.force(true);
+    }
+    Files.move(
+        temporary,
+        directory.resolve(CHECKPOINT_FILE),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private List<Path> segmentPaths() throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      return paths
+          .filter(path -> path.getFileName().toString().endsWith(JournalSegment.SUFFIX))
+          .sorted()
+          .toList();
+    }
+  }
+
+  /*
+  request id : short length + UTF-8 bytes
+  sender id  : long
+  receiver id: long
+  currency   : byte, the ordinal of the Currency
+  amount     : int scale + short length + two's-complement bytes of the unscaled value
+   */
+  private static ByteBuffer encode(TransferRequest request) {
+    byte[] requestId = request.getRequestId().getBytes(UTF_8);
+    byte[] unscaled = request.getAmount().unscaledValue().toByteArray();
+    if (requestId.length > MAX_STRING_LENGTH || unscaled.length > MAX_STRING_LENGTH) {
+      throw new IllegalArgumentException("The transfer is too large for the journal");
+    }
+    int size = 2 + requestId.length + 8 + 8 + 1 + 4 + 2 + unscaled.length;
+    ByteBuffer buffer = SCRATCH.get();
+    if (buffer.capacity() < size) {
+      buffer = ByteBuffer.allocate(size);
+    }
+    buffer.clear();
+    buffer.putShort((short) requestId.length).put(requestId);
+    buffer.putLong(request.getSenderId()).putLong(request.getReceiverId());
+    buffer.put((byte) request.getCurrency().ordinal());
+    buffer.putInt(request.getAmount().scale());
+    buffer.putShort((short) unscaled.length).put(unscaled);
+    return buffer.flip();
+  }
+
+  private static TransferRequest decode(ByteBuffer payload) {
+    byte[] requestId = new byte[Short.toUnsignedInt(payload.getShort())];
+    payload.get(requestId);
+    long senderId = payload.getLong();
+    long receiverId = payload.getLong();
+    Currency currency = CURRENCIES[payload.get()];
+    int scale = payload.getInt();
+    byte[] unscaled = new byte[Short.toUnsignedInt(payload.getShort())];
+    payload.get(unscaled);
+    return new TransferRequest(
+        new String(requestId, UTF_8),
+        senderId,
+        receiverId,
+        new BigDecimal(new BigInteger(unscaled), scale),
+        currency);
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    // not interrupted, the pre-allocated file would be left half written
+    preallocator.shutdown();
+    try {
+      preallocator.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    appendLock.lock();
+    try {
+      segment.force(segment.getPosition());
+      segment.close();
+    } finally {
+      appendLock.unlock();
+    }
+    // the last checkpoint, the segments of the processed transfers are deleted on the next start
+    checkpoint();
+  }
+
+  /** A transfer of the journal with its sequence. */
+  public record JournaledTransfer(long sequence, TransferRequest request) {}
+}
@@ -0,0 +1,24 @@
+package hu.gerab.payment.ledger;
+
+import hu.gerab.payment.domain.Currency;
+import java.math.BigDecimal;
+
+/**
+ * The in-memory balance of a single user. Instances are confined to the thread of the {@link
+ * LedgerShard} owning the user, so no synchronization is necessary.
+ */
+final class LedgerAccount {
+
+  final long id;
+  final Currency currency;
+  BigDecimal balance;
+  // credited by transfers not persisted yet, which are not spendable until they are, so a failed
+  // write never takes back a credit which was already spent
+  BigDecimal pendingCredit = BigDecimal.ZERO;
+
+  LedgerAccount(long id, Currency currency, BigDecimal balance) {
+    this.id = id;
+    this.currency = currency;
+    this.balance = balance;
+  }
+}
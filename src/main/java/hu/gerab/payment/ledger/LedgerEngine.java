@@ -0,0 +1,229 @@
+package hu.gerab.payment.ledger;
+
+import static hu.gerab.payment.ledger.LedgerOutcome.COMPLETED;
+import static hu.gerab.payment.ledger.LedgerOutcome.INSUFFICIENT_BALANCE;
+import static hu.gerab.payment.ledger.LedgerOutcome.MISSING_RECEIVER;
+import static hu.gerab.payment.ledger.LedgerOutcome.MISSING_SENDER;
+import static hu.gerab.payment.ledger.LedgerOutcome.UNSUPPORTED_EXCHANGE;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.repository.UserRepository;
+import java.math.BigDecimal;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Lock free transfer processing engine. The user balances are kept in memory, partitioned into
+ * shards by user id, where each shard is owned by a single thread. Transfers are applied by the
+ * shard threads in the order they arrive, so no locking is needed.
+ *
+ * <p>A transfer between users of different shards is processed in two phases: first the shard of
+ * the sender validates and debits the sender balance, then hands the transfer over to the shard of
+ * the receiver to credit it. Should the receiver not exist, the transfer is handed back to the
+ * sender shard to refund the sender. As every phase is executed by a single thread in arrival
+ * order, the result is deterministic and a debited amount is never visible as spendable on both
+ * sides. The credit only becomes spendable once the transfer is persisted, so a write failing
+ * after it can revert the receiver without taking back an amount that was already spent.
+ *
+ * <p>An account of another currency than the transfer is debited or credited with the amount
+ * exchanged by its shard, both shards use the rates read when the transfer was submitted.
+ *
+ * <p>The engine assumes that it is the only writer of the user balances. The database is updated
+ * behind the engine by the {@link LedgerWriter}, and a transfer is only reported as completed once
+ * it has been persisted.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "ledger")
+public class LedgerEngine implements DisposableBean {
+
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 30_000;
+
+  private final LedgerShard[] shards;
+  private final LedgerWriter writer;
+  private final FxRateProvider fxRateProvider;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile boolean running = true;
+
+  public LedgerEngine(
+      UserRepository userRepository,
+      LedgerWriter writer,
+      FxRateProvider fxRateProvider,
+      @Value("${service.payment.ledger.shards}") int shardCount) {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("The ledger requires at least one shard");
+    }
+    this.writer = writer;
+    this.fxRateProvider = fxRateProvider;
+    this.shards = new LedgerShard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new LedgerShard(i, userRepository);
+    }
+  }
+
+  /**
+   * Submits a transfer to the engine. The amount is expected to be validated already.
+   *
+   * @return a future completed with the outcome of the transfer once it has been processed, and in
+   *     case of success persisted
+   */
+  public CompletableFuture<LedgerOutcome> submit(
+      String requestId, long senderId, long receiverId, BigDecimal amount, Currency currency) {
+    if (!running) {
+      throw new RejectedExecutionException("The ledger engine is shutting down");
+    }
+    LedgerTransfer transfer =
+        new LedgerTransfer(
+            requestId, senderId, receiverId, amount, currency, fxRateProvider.getRates());
+    inFlight.incrementAndGet();
+    transfer.getResult().whenComplete((outcome, error) -> inFlight.decrementAndGet());
+    shardOf(senderId).execute(transfer, this::debit);
+    return transfer.getResult();
+  }
+
+  int shardIndex(long userId) {
+    return (int) Math.floorMod(userId, (long) shards.length);
+  }
+
+  private LedgerShard shardOf(long userId) {
+    return shards[shardIndex(userId)];
+  }
+
+  /** First phase, executed by the shard of the sender. */
+  private void debit(LedgerTransfer transfer) {
+    LedgerShard senderShard = shardOf(transfer.getSenderId());
+    LedgerAccount sender = senderShard.account(transfer.getSenderId());
+    if (sender == null) {
+      transfer.complete(MISSING_SENDER);
+      return;
+    }
+    BigDecimal debit =
+        transfer
+            .getRates()
+            .convertUp(transfer.getAmount(), transfer.getCurrency(), sender.currency);
+    if (debit == null) {
+      transfer.complete(UNSUPPORTED_EXCHANGE);
+      return;
+    }
+    if (sender.balance.compareTo(debit) < 0) {
+      transfer.complete(INSUFFICIENT_BALANCE);
+      return;
+    }
+    sender.balance = sender.balance.subtract(debit);
+    transfer.debited(debit, sender.currency);
+
+    LedgerShard receiverShard = shardOf(transfer.getReceiverId());
+    if (receiverShard == senderShard) {
+      credit(transfer);
+    } else {
+      receiverShard.execute(transfer, this::credit);
+    }
+  }
+
+  /** Second phase, executed by the shard of the receiver. */
+  private void credit(LedgerTransfer transfer) {
+    LedgerAccount receiver;
+    try {
+      receiver = shardOf(transfer.getReceiverId()).account(transfer.getReceiverId());
+    } catch (RuntimeException e) {
+      shardOf(transfer.getSenderId()).execute(transfer, t -> refund(t, null, e));
+      return;
+    }
+    if (receiver == null) {
+      shardOf(transfer.getSenderId()).execute(transfer, t -> refund(t, MISSING_RECEIVER, null));
+      return;
+    }
+    BigDecimal credit =
+        transfer
+            .getRates()
+            .convertDown(transfer.getAmount(), transfer.getCurrency(), receiver.currency);
+    if (credit == null || credit.signum() == 0) {
+      shardOf(transfer.getSenderId()).execute(transfer, t -> refund(t, UNSUPPORTED_EXCHANGE, null));
+      return;
+    }
+    // only spendable once persisted, see release
+    receiver.pendingCredit = receiver.pendingCredit.add(credit);
+    transfer.credited(credit, receiver.currency);
+    transfer.markApplied();
+
+    writer
+        .write(transfer)
+        .whenComplete(
+            (ignored, error) -> {
+              if (error == null) {
+                release(transfer);
+              } else {
+                revert(transfer, error);
+              }
+            });
+  }
+
+  /**
+   * The transfer is persisted, so its credit becomes spendable, executed by the shard of the
+   * receiver. Completed afterwards, so a transfer of the receiver following the response sees it.
+   */
+  private void release(LedgerTransfer transfer) {
+    shardOf(transfer.getReceiverId())
+        .execute(
+            transfer,
+            t -> {
+              LedgerAccount receiver = shardOf(t.getReceiverId()).account(t.getReceiverId());
+              receiver.pendingCredit = receiver.pendingCredit.subtract(t.getCredit());
+              receiver.balance = receiver.balance.add(t.getCredit());
+              t.complete(COMPLETED);
+            });
+  }
+
+  /**
+   * Compensation of the first phase, executed by the shard of the sender. Completes the transfer
+   * with either the outcome or the error.
+   */
+  private void refund(LedgerTransfer transfer, LedgerOutcome outcome, Throwable error) {
+    LedgerAccount sender = shardOf(transfer.getSenderId()).account(transfer.getSenderId());
+    sender.balance = sender.balance.add(transfer.getDebit());
+    if (error != null) {
+      transfer.fail(error);
+    } else {
+      transfer.complete(outcome);
+    }
+  }
+
+  /**
+   * The transfer could not be persisted, so both sides are reverted in memory to match the
+   * database again. The credit was never spendable, so taking it back cannot overdraw the receiver.
+   */
+  private void revert(LedgerTransfer transfer, Throwable error) {
+    LOGGER.error("Failed to persist transfer={}, reverting it", transfer, error);
+    shardOf(transfer.getReceiverId())
+        .execute(
+            transfer,
+            t -> {
+              LedgerAccount receiver = shardOf(t.getReceiverId()).account(t.getReceiverId());
+              receiver.pendingCredit = receiver.pendingCredit.subtract(t.getCredit());
+              shardOf(t.getSenderId()).execute(t, s -> refund(s, null, error));
+            });
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    running = false;
+    long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+    while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    if (inFlight.get() > 0) {
+      LOGGER.warn("Shutting down ledger engine with {} transfers in flight", inFlight.get());
+    }
+    for (LedgerShard shard : shards) {
+      shard.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package hu.gerab.payment.ledger;
+
+/** The possible results of a transfer processed by the {@link LedgerEngine}. */
+public enum LedgerOutcome {
+  COMPLETED,
+  INSUFFICIENT_BALANCE,
+  MISSING_SENDER,
+  MISSING_RECEIVER,
+  UNSUPPORTED_EXCHANGE
+}
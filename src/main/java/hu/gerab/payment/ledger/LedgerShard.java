@@ -0,0 +1,86 @@
+package hu.gerab.payment.ledger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hu.gerab.payment.repository.UserRepository;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A partition of the ledger owned by a single thread. Every task touching the accounts of this
+ * shard is executed sequentially on that thread, so the account state needs no locking.
+ */
+@Slf4j
+final class LedgerShard {
+
+  private final int index;
+  private final UserRepository userRepository;
+  private final ExecutorService executor;
+  private final Map<Long, LedgerAccount> accounts = new HashMap<>();
+
+  LedgerShard(int index, UserRepository userRepository) {
+    this.index = index;
+    this.userRepository = userRepository;
+    this.executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("L-SHARD-" + index).build());
+  }
+
+  /**
+   * Schedules a step of the transfer on the thread of this shard. Should the step fail
+   * unexpectedly the transfer is completed exceptionally with the error.
+   */
+  void execute(LedgerTransfer transfer, Consumer<LedgerTransfer> step) {
+    executor.execute(
+        () -> {
+          try {
+            step.accept(transfer);
+          } catch (RuntimeException e) {
+            LOGGER.error("Unexpected error in ledger shard={} for transfer={}", index, transfer, e);
+            transfer.fail(e);
+          }
+        });
+  }
+
+  /**
+   * Returns the account of the user, loading it from the database on the first access. Must only
+   * be called from the thread of this shard.
+   *
+   * @return the account or null if no such user exists
+   */
+  LedgerAccount account(long userId) {
+    LedgerAccount account = accounts.get(userId);
+    if (account == null) {
+      account =
+          userRepository
+              .findById(userId)
+              .map(
+                  user ->
+                      new LedgerAccount(
+                          user.getId(), user.getCurrency(), user.getBalance().toBigDecimal()))
+              .orElse(null);
+      if (account != null) {
+        accounts.put(userId, account);
+      }
+    }
+    return account;
+  }
+
+  void shutdown(long timeoutMillis) throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      LOGGER.warn("Ledger shard={} did not terminate in {}ms", index, timeoutMillis);
+      executor.shutdownNow();
+    }
+  }
+}
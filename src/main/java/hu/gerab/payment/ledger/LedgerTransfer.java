@@ -0,0 +1,91 @@
+package hu.gerab.payment.ledger;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.fx.FxRates;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import lombok.Getter;
+import lombok.ToString;
+
+/** A transfer travelling through the shards of the {@link LedgerEngine}. */
+@Getter
+@ToString(exclude = {"result", "rates"})
+public final class LedgerTransfer {
+
+  private final String requestId;
+  private final long senderId;
+  private final long receiverId;
+  private final BigDecimal amount;
+  private final Currency currency;
+  /** The rates of both phases, so a refresh in between cannot change the exchange. */
+  private final FxRates rates;
+  private final CompletableFuture<LedgerOutcome> result = new CompletableFuture<>();
+  /**
+   * The amount in the currency of the sender account, set by the sender shard. Handed over with
+   * the transfer to the other threads, like the other fields set by the shards.
+   */
+  private BigDecimal debit;
+  private Currency senderCurrency;
+  /** The amount in the currency of the receiver account, set by the receiver shard. */
+  private BigDecimal credit;
+  private Currency receiverCurrency;
+  /** Set by the receiver shard once both sides of the transfer have been applied in memory. */
+  private volatile Instant applied;
+
+  LedgerTransfer(
+      String requestId, long senderId, long receiverId, BigDecimal amount, Currency currency) {
+    this(requestId, senderId, receiverId, amount, currency, FxRates.none());
+  }
+
+  LedgerTransfer(
+      String requestId,
+      long senderId,
+      long receiverId,
+      BigDecimal amount,
+      Currency currency,
+      FxRates rates) {
+    this.requestId = requestId;
+    this.senderId = senderId;
+    this.receiverId = receiverId;
+    this.amount = amount;
+    this.currency = currency;
+    this.rates = rates;
+    this.debit = amount;
+    this.senderCurrency = currency;
+    this.credit = amount;
+    this.receiverCurrency = currency;
+  }
+
+  void debited(BigDecimal debit, Currency senderCurrency) {
+    this.debit = debit;
+    this.senderCurrency = senderCurrency;
+  }
+
+  void credited(BigDecimal credit, Currency receiverCurrency) {
+    this.credit = credit;
+    this.receiverCurrency = receiverCurrency;
+  }
+
+  /** @return the debit if the sender account is in another currency than the transfer */
+  BigDecimal getExchangedDebit() {
+    return senderCurrency == currency ? null : debit;
+  }
+
+  /** @return the credit if the receiver account is in another currency than the transfer */
+  BigDecimal getExchangedCredit() {
+    return receiverCurrency == currency ? null : credit;
+  }
+
+  void markApplied() {
+    this.applied = Instant.now();
+  }
+
+  void complete(LedgerOutcome outcome) {
+    result.complete(outcome);
+  }
+
+  void fail(Throwable error) {
+    result.completeExceptionally(error);
+  }
+}
@@ -0,0 +1,248 @@
+package hu.gerab.payment.ledger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hu.gerab.payment.domain.Transaction;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.SequenceBlockAllocator;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.IncorrectUpdateSemanticsDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionOperations;
+
+/**
+ * Writes the transfers applied by the {@link LedgerEngine} to the database behind the engine.
+ *
+ * <p>The transfers are collected into groups, bounded by both size and a time window, and each
+ * group is written in a single database transaction (group commit). The transaction records are
+ * written with a single batch insert, and the balance changes of the group are collapsed into one
+ * relative update per user. As the balance updates are commutative, transfers completing on
+ * different shards can be persisted in any order. The future of a transfer is only completed once
+ * its group is committed. In outbox messaging mode the notifications of the group are written to
+ * the outbox in the same transaction.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "ledger")
+public class LedgerWriter implements DisposableBean {
+
+  private static final String INSERT_TRANSACTION =
+      "INSERT INTO transactions"
+          + " (id, sender_id, receiver_id, request_id, amount, currency, sender_amount,"
+          + " receiver_amount, inserted)"
+          + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String UPDATE_BALANCE =
+      "UPDATE users SET balance = balance + ?, updated = ?, version = version + 1 WHERE id = ?";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final SequenceBlockAllocator transactionIds;
+  private final TransactionOperations transactionOperations;
+  private final TransactionOutbox outbox;
+  private final PaymentMetrics metrics;
+  private final int batchSize;
+  private final long batchWindowNanos;
+  private final BlockingQueue<PendingWrite> queue;
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("L-WRITER").build());
+  private final AtomicLong commitCount = new AtomicLong();
+  private volatile boolean running = true;
+
+  @Autowired
+  public LedgerWriter(
+      JdbcTemplate jdbcTemplate,
+      TransactionOperations transactionOperations,
+      TransactionOutbox outbox,
+      PaymentMetrics metrics,
+      @Value("${service.payment.persistence.batch.size}") int batchSize,
+      @Value("${service.payment.persistence.batch.window.millis}") long batchWindowMillis,
+      @Value("${service.payment.persistence.queue.capacity}") int queueCapacity) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionIds =
+        new SequenceBlockAllocator(
+            jdbcTemplate, "transaction_sequence", Transaction.ID_ALLOCATION_SIZE);
+    this.transactionOperations = transactionOperations;
+    this.outbox = outbox;
+    this.metrics = metrics;
+    this.batchSize = batchSize;
+    this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    executor.execute(this::writeLoop);
+  }
+
+  /**
+   * Queues the transfer for persistence. Blocks if the persistence queue is full, pushing back on
+   * the shards until the database catches up.
+   *
+   * @return a future completed once the group containing the transfer has been committed
+   */
+  public CompletableFuture<Void> write(LedgerTransfer transfer) {
+    if (!running) {
+      throw new RejectedExecutionException("The ledger writer is shutting down");
+    }
+    PendingWrite write = new PendingWrite(transfer, new CompletableFuture<>());
+    try {
+      queue.put(write);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      write.result().completeExceptionally(e);
+    }
+    return write.result();
+  }
+
+  /** @return the number of group commits performed so far */
+  public long getCommitCount() {
+    return commitCount.get();
+  }
+
+  private void writeLoop() {
+    List<PendingWrite> batch = new ArrayList<>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + batchWindowNanos;
+        while (batch.size() < batchSize) {
+          queue.drainTo(batch, batchSize - batch.size());
+          long remaining = deadline - System.nanoTime();
+          if (batch.size() >= batchSize || remaining <= 0) {
+            break;
+          }
+          PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        persist(batch);
+      } catch (InterruptedException e) {
+        // probably a shutdown, the loop condition decides whether there is anything left to write
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void persist(List<PendingWrite> batch) {
+    try {
+      long writeStart = System.nanoTime();
+      transactionOperations.executeWithoutResult(status -> write(batch));
+      metrics.recordStage(Stage.DB_WRITE, writeStart);
+      commitCount.incrementAndGet();
+      batch.forEach(write -> write.result().complete(null));
+    } catch (RuntimeException e) {
+      if (batch.size() == 1) {
+        batch.get(0).result().completeExceptionally(e);
+        return;
+      }
+      // a single bad transfer should not fail the whole group, so retry them one by one
+      LOGGER.warn("Group commit of {} transfers failed, retrying individually", batch.size(), e);
+      for (PendingWrite write : batch) {
+        persist(List.of(write));
+      }
+    }
+  }
+
+  private void write(List<PendingWrite> batch) {
+    jdbcTemplate.batchUpdate(
+        INSERT_TRANSACTION,
+        new BatchPreparedStatementSetter() {
+          @Override
+          public void setValues(PreparedStatement ps, int i) throws SQLException {
+            LedgerTransfer transfer = batch.get(i).transfer();
+            ps.setLong(1, transactionIds.nextId());
+            ps.setLong(2, transfer.getSenderId());
+            ps.setLong(3, transfer.getReceiverId());
+            ps.setString(4, transfer.getRequestId());
+            ps.setBigDecimal(5, transfer.getAmount());
+            ps.setString(6, transfer.getCurrency().name());
+            ps.setBigDecimal(7, transfer.getExchangedDebit());
+            ps.setBigDecimal(8, transfer.getExchangedCredit());
+            ps.setTimestamp(9, Timestamp.from(transfer.getApplied()));
+          }
+
+          @Override
+          public int getBatchSize() {
+            return batch.size();
+          }
+        });
+
+    // sorted by user id, so concurrent writers would always lock the rows in the same order
+    Map<Long, BigDecimal> deltas = new TreeMap<>();
+    Instant updated = Instant.EPOCH;
+    for (PendingWrite write : batch) {
+      LedgerTransfer transfer = write.transfer();
+      deltas.merge(transfer.getSenderId(), transfer.getDebit().negate(), BigDecimal::add);
+      deltas.merge(transfer.getReceiverId(), transfer.getCredit(), BigDecimal::add);
+      if (transfer.getApplied().isAfter(updated)) {
+        updated = transfer.getApplied();
+      }
+    }
+    List<Object[]> updates = new ArrayList<>(deltas.size());
+    Timestamp updatedTimestamp = Timestamp.from(updated);
+    for (Entry<Long, BigDecimal> delta : deltas.entrySet()) {
+      updates.add(new Object[] {delta.getValue(), updatedTimestamp, delta.getKey()});
+    }
+    int[] updateCounts = jdbcTemplate.batchUpdate(UPDATE_BALANCE, updates);
+    for (int i = 0; i < updateCounts.length; i++) {
+      if (updateCounts[i] == 0) {
+        throw new IncorrectUpdateSemanticsDataAccessException(
+            "No user exists for id=" + updates.get(i)[2]);
+      }
+    }
+
+    if (outbox.isEnabled()) {
+      outbox.write(batch.stream().map(write -> notification(write.transfer())).toList());
+    }
+  }
+
+  private static TransactionNotification notification(LedgerTransfer transfer) {
+    return TransactionNotification.builder()
+        .requestId(transfer.getRequestId())
+        .senderId(transfer.getSenderId())
+        .receiverId(transfer.getReceiverId())
+        .amount(transfer.getAmount())
+        .currency(transfer.getCurrency().getHumanFriendlyName())
+        .successful(true)
+        .build();
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    running = false;
+    executor.shutdown();
+    if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+      LOGGER.error("Ledger writer did not terminate, some transfers may not have been persisted");
+    }
+  }
+
+  private record PendingWrite(LedgerTransfer transfer, CompletableFuture<Void> result) {}
+}
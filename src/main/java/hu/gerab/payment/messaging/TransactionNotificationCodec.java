@@ -0,0 +1,221 @@
+package hu.gerab.payment.messaging;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.apache.kafka.common.errors.SerializationException;
+
+/**
+ * Compact binary format of the {@link TransactionNotification}s. The layout of version 1:
+ *
+ * <pre>
+ * version   : byte
+ * flags     : byte, the successful flag and which of the optional fields are present
+ * senderId  : long, optional
+ * receiverId: long, optional
+ * currency  : byte, optional, the ordinal of the {@link Currency}
+ * amount    : optional, byte scale + long unscaled value, or for the amounts not fitting into
+ *             those (wide amount flag): int scale + short length + two's-complement bytes
+ * requestId : optional, short length + UTF-8 bytes
+ * error     : optional, short length + UTF-8 bytes
+ * </pre>
+ *
+ * Since the currencies are written by ordinal, new currencies may only be appended to the enum.
+ * Any other change of the layout requires a new version, the decoder rejects the versions it does
+ * not know.
+ */
+public final class TransactionNotificationCodec {
+
+  public static final byte VERSION = 1;
+
+  private static final int SUCCESSFUL = 1;
+  private static final int SENDER = 1 << 1;
+  private static final int RECEIVER = 1 << 2;
+  private static final int CURRENCY = 1 << 3;
+  private static final int AMOUNT = 1 << 4;
+  private static final int WIDE_AMOUNT = 1 << 5;
+  private static final int REQUEST_ID = 1 << 6;
+  private static final int ERROR = 1 << 7;
+
+  private static final int MAX_STRING_LENGTH = 0xFFFF;
+  private static final int SCRATCH_SIZE = 1024;
+
+  private static final Currency[] CURRENCIES = Currency.values();
+  private static final Map<String, Currency> CURRENCIES_BY_NAME =
+      Arrays.stream(CURRENCIES)
+          .collect(Collectors.toMap(Currency::getHumanFriendlyName, Function.identity()));
+
+  // reused by the encoding threads, so only the returned array is allocated per message
+  private static final ThreadLocal<ByteBuffer> SCRATCH =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(SCRATCH_SIZE));
+
+  private TransactionNotificationCodec() {}
+
+  /** Encodes the notification into a new array of exactly the encoded size. */
+  public static byte[] encode(TransactionNotification notification) {
+    ByteBuffer buffer = SCRATCH.get();
+    int maxSize = maxEncodedSize(notification);
+    if (buffer.capacity() < maxSize) {
+      buffer = ByteBuffer.allocate(maxSize); // not kept, oversized messages should be rare
+    }
+    buffer.clear();
+    encode(notification, buffer);
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+
+  /**
+   * Encodes the notification into the buffer, from its current position.
+   *
+   * @throws java.nio.BufferOverflowException if the buffer has less than {@link
+   *     #maxEncodedSize(TransactionNotification)} bytes remaining
+   */
+  public static void encode(TransactionNotification notification, ByteBuffer buffer) {
+    int flags = notification.isSuccessful() ? SUCCESSFUL : 0;
+    Currency currency = null;
+    if (notification.getCurrency() != null) {
+      currency = CURRENCIES_BY_NAME.get(notification.getCurrency());
+      if (currency == null) {
+        throw new SerializationException("Unknown currency=" + notification.getCurrency());
+      }
+      flags |= CURRENCY;
+    }
+    BigDecimal amount = notification.getAmount();
+    BigInteger unscaledAmount = amount != null ? amount.unscaledValue() : null;
+    boolean wideAmount = amount != null && !fitsCompactAmount(amount, unscaledAmount);
+    flags |= notification.getSenderId() != null ? SENDER : 0;
+    flags |= notification.getReceiverId() != null ? RECEIVER : 0;
+    flags |= amount != null ? AMOUNT : 0;
+    flags |= wideAmount ? WIDE_AMOUNT : 0;
+    flags |= notification.getRequestId() != null ? REQUEST_ID : 0;
+    flags |= notification.getError() != null ? ERROR : 0;
+
+    buffer.put(VERSION);
+    buffer.put((byte) flags);
+    if (notification.getSenderId() != null) {
+      buffer.putLong(notification.getSenderId());
+    }
+    if (notification.getReceiverId() != null) {
+      buffer.putLong(notification.getReceiverId());
+    }
+    if (currency != null) {
+      buffer.put((byte) currency.ordinal());
+    }
+    if (wideAmount) {
+      byte[] unscaled = unscaledAmount.toByteArray();
+      buffer.putInt(amount.scale());
+      buffer.putShort((short) unscaled.length);
+      buffer.put(unscaled);
+    } else if (amount != null) {
+      buffer.put((byte) amount.scale());
+      buffer.putLong(unscaledAmount.longValue());
+    }
+    if (notification.getRequestId() != null) {
+      putString(buffer, notification.getRequestId());
+    }
+    if (notification.getError() != null) {
+      putString(buffer, notification.getError());
+    }
+  }
+
+  /** @return an upper bound of the encoded size of the notification */
+  public static int maxEncodedSize(TransactionNotification notification) {
+    int size = 2 + 8 + 8 + 1;
+    if (notification.getAmount() != null) {
+      // the two's complement of a wide amount takes exactly bitLength / 8 + 1 bytes
+      int unscaledSize = notification.getAmount().unscaledValue().bitLength() / 8 + 1;
+      size += Math.max(1 + 8, 4 + 2 + unscaledSize);
+    }
+    if (notification.getRequestId() != null) {
+      size += 2 + 3 * notification.getRequestId().length();
+    }
+    if (notification.getError() != null) {
+      size += 2 + 3 * notification.getError().length();
+    }
+    return size;
+  }
+
+  public static TransactionNotification decode(ByteBuffer buffer) {
+    byte version = buffer.get();
+    if (version != VERSION) {
+      throw new SerializationException("Unsupported notification format version=" + version);
+    }
+    int flags = buffer.get() & 0xFF;
+    var builder = TransactionNotification.builder().successful((flags & SUCCESSFUL) != 0);
+    if ((flags & SENDER) != 0) {
+      builder.senderId(buffer.getLong());
+    }
+    if ((flags & RECEIVER) != 0) {
+      builder.receiverId(buffer.getLong());
+    }
+    if ((flags & CURRENCY) != 0) {
+      int ordinal = buffer.get() & 0xFF;
+      if (ordinal >= CURRENCIES.length) {
+        throw new SerializationException("Unknown currency ordinal=" + ordinal);
+      }
+      builder.currency(CURRENCIES[ordinal].getHumanFriendlyName());
+    }
+    if ((flags & WIDE_AMOUNT) != 0) {
+      int scale = buffer.getInt();
+      byte[] unscaled = new byte[buffer.getShort() & 0xFFFF];
+      buffer.get(unscaled);
+      builder.amount(new BigDecimal(new BigInteger(unscaled), scale));
+    } else if ((flags & AMOUNT) != 0) {
+      int scale = buffer.get();
+      builder.amount(BigDecimal.valueOf(buffer.getLong(), scale));
+    }
+    if ((flags & REQUEST_ID) != 0) {
+      builder.requestId(getString(buffer));
+    }
+    if ((flags & ERROR) != 0) {
+      builder.error(getString(buffer));
+    }
+    return builder.build();
+  }
+
+  private static boolean fitsCompactAmount(BigDecimal amount, BigInteger unscaledAmount) {
+    return unscaledAmount.bitLength() < Long.SIZE
+        && amount.scale() >= Byte.MIN_VALUE
+        && amount.scale() <= Byte.MAX_VALUE;
+  }
+
+  private static void putString(ByteBuffer buffer, String value) {
+    int lengthPosition = buffer.position();
+    buffer.position(lengthPosition + 2);
+    int length = value.length();
+    int i = 0;
+    // the request ids are usually ascii, those are copied without encoding them into a new array
+    while (i < length && value.charAt(i) < 0x80) {
+      buffer.put((byte) value.charAt(i++));
+    }
+    if (i < length) {
+      buffer.put(value.substring(i).getBytes(UTF_8));
+    }
+    int encodedLength = buffer.position() - lengthPosition - 2;
+    if (encodedLength > MAX_STRING_LENGTH) {
+      throw new SerializationException("Too long string of length=" + encodedLength);
+    }
+    buffer.putShort(lengthPosition, (short) encodedLength);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xFFFF;
+    String value;
+    if (buffer.hasArray()) {
+      value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      value = new String(bytes, UTF_8);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,14 @@
+package hu.gerab.payment.messaging;
+
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import java.nio.ByteBuffer;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/** Kafka value deserializer for the consumers of the binary notifications. */
+public class TransactionNotificationDeserializer implements Deserializer<TransactionNotification> {
+
+  @Override
+  public TransactionNotification deserialize(String topic, byte[] data) {
+    return data == null ? null : TransactionNotificationCodec.decode(ByteBuffer.wrap(data));
+  }
+}
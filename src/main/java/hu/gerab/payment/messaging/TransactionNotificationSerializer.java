@@ -0,0 +1,21 @@
+package hu.gerab.payment.messaging;
+
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+/** Kafka value serializer writing the notifications in the {@link TransactionNotificationCodec}. */
+public class TransactionNotificationSerializer implements Serializer<Object> {
+
+  @Override
+  public byte[] serialize(String topic, Object data) {
+    if (data == null) {
+      return null;
+    }
+    if (!(data instanceof TransactionNotification notification)) {
+      throw new SerializationException(
+          "Only transaction notifications are supported, got type=" + data.getClass());
+    }
+    return TransactionNotificationCodec.encode(notification);
+  }
+}
@@ -0,0 +1,135 @@
+package hu.gerab.payment.metrics;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Locale;
+import org.springframework.stereotype.Component;
+
+/**
+ * The meters of the transfer processing. Every meter of the hot path is registered upfront and
+ * looked up by ordinal, and the durations are measured with {@link System#nanoTime()}, so
+ * recording allocates nothing. The stage timers publish percentile histograms, which the
+ * prometheus endpoint exposes as buckets, so the percentiles can be aggregated across instances.
+ */
+@Component
+public class PaymentMetrics {
+
+  public enum Stage {
+    /** Appending an accepted transfer to the journal until it is on the disk. */
+    JOURNAL,
+    /** Waiting in the queue of the payment service executor. */
+    QUEUE_WAIT,
+    /** Acquiring the locks of the users of a transfer group. */
+    LOCK,
+    /** Reading the users of a transfer group. */
+    DB_READ,
+    /** Writing the balances and the transactions of a transfer group. */
+    DB_WRITE,
+    /** Sending a notification until kafka acknowledged it. */
+    KAFKA_SEND
+  }
+
+  public enum Outcome {
+    COMPLETED,
+    /** Rejected by the validation, e.g. a non-positive amount. */
+    INVALID,
+    INSUFFICIENT_BALANCE,
+    MISSING_SENDER,
+    MISSING_RECEIVER,
+    /**
+     * There is no exchange rate between the currency of the transfer and the currency of an
+     * account, or the amount is worth less than the minor unit of the receiver currency.
+     */
+    UNSUPPORTED_EXCHANGE,
+    /**
+     * The locks of the users could not be acquired in any of the attempts, or in optimistic mode,
+     * the transfer conflicted in every attempt.
+     */
+    LOCK_EXHAUSTION,
+    DUPLICATE,
+    INTERRUPTED,
+    ERROR
+  }
+
+  private final MeterRegistry meterRegistry;
+  private final Timer[] stages = new Timer[Stage.values().length];
+  private final Counter[] outcomes = new Counter[Outcome.values().length];
+  private final Counter lockReattempts;
+  private final Counter conflicts;
+
+  public PaymentMetrics(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+    for (Stage stage : Stage.values()) {
+      stages[stage.ordinal()] =
+          Timer.builder("payment.transfer.stage")
+              .description("Time spent by the transfers in the stages of the processing")
+              .tag("stage", tagValue(stage))
+              .publishPercentileHistogram()
+              .minimumExpectedValue(Duration.ofNanos(100_000))
+              .maximumExpectedValue(Duration.ofSeconds(30))
+              .register(meterRegistry);
+    }
+    for (Outcome outcome : Outcome.values()) {
+      outcomes[outcome.ordinal()] =
+          Counter.builder("payment.transfer.outcome")
+              .description("Processed transfers by their outcome")
+              .tag("outcome", tagValue(outcome))
+              .register(meterRegistry);
+    }
+    lockReattempts =
+        Counter.builder("payment.lock.reattempts")
+            .description("Lock acquisitions attempted again after a timeout")
+            .register(meterRegistry);
+    conflicts =
+        Counter.builder("payment.transfer.conflicts")
+            .description("Transfers attempted again after a conflicting write, in optimistic mode")
+            .register(meterRegistry);
+  }
+
+  /** Metrics which are not published anywhere, for the services created outside of spring. */
+  public static PaymentMetrics unpublished() {
+    return new PaymentMetrics(new SimpleMeterRegistry());
+  }
+
+  public void recordStage(Stage stage, long startNanos) {
+    stages[stage.ordinal()].record(System.nanoTime() - startNanos, NANOSECONDS);
+  }
+
+  public void recordOutcome(Outcome outcome) {
+    outcomes[outcome.ordinal()].increment();
+  }
+
+  public void recordOutcome(Outcome outcome, int transfers) {
+    outcomes[outcome.ordinal()].increment(transfers);
+  }
+
+  /**
+   * Counts a lock timeout of the stripe. Only the stripes which actually timed out get a counter,
+   * so the number of series stays low even with thousands of stripes, and the timeouts are slow
+   * anyway, so the lookup does not matter here.
+   */
+  public void recordLockTimeout(int stripe) {
+    Counter.builder("payment.lock.timeouts")
+        .description("Lock acquisitions timed out, by lock stripe")
+        .tag("stripe", Integer.toString(stripe))
+        .register(meterRegistry)
+        .increment();
+  }
+
+  public void recordLockReattempt() {
+    lockReattempts.increment();
+  }
+
+  public void recordConflict() {
+    conflicts.increment();
+  }
+
+  private static String tagValue(Enum<?> value) {
+    return value.name().toLowerCase(Locale.ROOT).replace('_', '.');
+  }
+}
@@ -0,0 +1,251 @@
+package hu.gerab.payment.outbox;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes the messages of the outbox table to kafka.
+ *
+ * <p>The users are split into service.messaging.outbox.partitions partitions by their id, and
+ * every partition is relayed by its own thread, reading the range of its partition of the pending
+ * index: it reads the pending messages of the partition in
+ * id order in large batches, sends the whole batch to kafka, and marks the acknowledged messages
+ * delivered with a single batched update. A message is only marked delivered if every earlier
+ * message of the batch was acknowledged as well, so the messages of a user are published in order.
+ * The delivery is at-least-once: a crash between the send and the update publishes the messages
+ * again, the consumers can recognise them by the request id.
+ *
+ * <p>The relay assumes it is the only one reading the outbox.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "service.messaging.mode", havingValue = TransactionOutbox.OUTBOX_MODE)
+public class OutboxRelay implements InitializingBean, DisposableBean {
+
+  // the number of partitions is a literal, so the expression is the one outbox_pending_idx indexes
+  private static final String SELECT_PENDING =
+      "SELECT id, user_id, payload, created FROM outbox"
+          + " WHERE delivered IS NULL AND MOD(user_id, %d) = ? ORDER BY id LIMIT ?";
+  private static final String MARK_DELIVERED = "UPDATE outbox SET delivered = ? WHERE id = ?";
+  private static final String DELETE_DELIVERED = "DELETE FROM outbox WHERE delivered < ?";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final KafkaTemplate<Long, Object> kafkaTemplate;
+  private final ObjectMapper objectMapper;
+  private final String topic;
+  private final String selectPending;
+  private final int partitions;
+  private final int batchSize;
+  private final long pollIntervalMillis;
+  private final long sendTimeoutMillis;
+  private final Duration retention;
+  private final ExecutorService executor;
+  // creation time of the oldest pending message of each partition, in epoch millis, 0 if none
+  private final AtomicLongArray oldestPending;
+  private final Counter published;
+  private final Counter failures;
+  private final PaymentMetrics metrics;
+  private volatile boolean running = true;
+
+  public OutboxRelay(
+      JdbcTemplate jdbcTemplate,
+      KafkaTemplate<Long, Object> kafkaTemplate,
+      ObjectMapper objectMapper,
+      MeterRegistry meterRegistry,
+      PaymentMetrics metrics,
+      @Value("${kafka.transaction.topic}") String topic,
+      @Value("${service.messaging.outbox.partitions}") int partitions,
+      @Value("${service.messaging.outbox.batch.size}") int batchSize,
+      @Value("${service.messaging.outbox.poll.interval.millis}") long pollIntervalMillis,
+      @Value("${service.messaging.outbox.send.timeout.millis}") long sendTimeoutMillis,
+      @Value("${service.messaging.outbox.retention.hours}") long retentionHours) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.kafkaTemplate = kafkaTemplate;
+    this.objectMapper = objectMapper;
+    this.metrics = metrics;
+    this.topic = topic;
+    this.selectPending = SELECT_PENDING.formatted(partitions);
+    this.partitions = partitions;
+    this.batchSize = batchSize;
+    this.pollIntervalMillis = pollIntervalMillis;
+    this.sendTimeoutMillis = sendTimeoutMillis;
+    this.retention = Duration.ofHours(retentionHours);
+    this.executor =
+        Executors.newFixedThreadPool(
+            partitions, new ThreadFactoryBuilder().setNameFormat("OUTBOX-%d").build());
+    this.oldestPending = new AtomicLongArray(partitions);
+    this.published =
+        Counter.builder("payment.outbox.published")
+            .description("Outbox messages published and marked delivered")
+            .register(meterRegistry);
+    this.failures =
+        Counter.builder("payment.outbox.failures")
+            .description("Outbox messages which could not be published, and will be retried")
+            .register(meterRegistry);
+    Gauge.builder("payment.outbox.lag.seconds", this, OutboxRelay::getLagSeconds)
+        .description("Age of the oldest pending outbox message seen by the relay")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    for (int partition = 0; partition < partitions; partition++) {
+      int relayedPartition = partition;
+      executor.execute(() -> relayLoop(relayedPartition));
+    }
+  }
+
+  private void relayLoop(int partition) {
+    while (running) {
+      try {
+        int relayed = relay(partition);
+        if (relayed < 0) {
+          Thread.sleep(pollIntervalMillis * 10); // kafka is failing, back off
+        } else if (relayed < batchSize) {
+          Thread.sleep(pollIntervalMillis); // caught up, wait for new messages
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        LOGGER.error("Unexpected error while relaying outbox partition={}", partition, e);
+        try {
+          Thread.sleep(pollIntervalMillis * 10);
+        } catch (InterruptedException interrupted) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Publishes the next batch of pending messages of the partition.
+   *
+   * @return the number of messages published, or -1 if some of them could not be published
+   */
+  int relay(int partition) throws InterruptedException {
+    List<PendingMessage> messages =
+        jdbcTemplate.query(
+            selectPending,
+            (rs, rowNum) ->
+                new PendingMessage(
+                    rs.getLong("id"),
+                    rs.getLong("user_id"),
+                    rs.getString("payload"),
+                    rs.getTimestamp("created").toInstant()),
+            partition,
+            batchSize);
+    oldestPending.set(
+        partition, messages.isEmpty() ? 0 : messages.get(0).created().toEpochMilli());
+    if (messages.isEmpty()) {
+      return 0;
+    }
+
+    List<CompletableFuture<?>> sends = new ArrayList<>(messages.size());
+    for (PendingMessage message : messages) {
+      long sentNanos = System.nanoTime();
+      sends.add(
+          kafkaTemplate
+              .send(topic, message.userId(), toNotification(message))
+              .whenComplete(
+                  (result, error) -> {
+                    if (error == null) {
+                      metrics.recordStage(Stage.KAFKA_SEND, sentNanos);
+                    }
+                  }));
+    }
+    List<Object[]> delivered = new ArrayList<>(messages.size());
+    Timestamp now = Timestamp.from(Instant.now());
+    long deadline = System.currentTimeMillis() + sendTimeoutMillis;
+    for (int i = 0; i < messages.size(); i++) {
+      try {
+        sends.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), MILLISECONDS);
+        delivered.add(new Object[] {now, messages.get(i).id()});
+      } catch (ExecutionException | TimeoutException e) {
+        // the later messages are sent again, so the messages of a user are never reordered
+        LOGGER.warn(
+            "Failed to publish outbox message id={}, {} messages will be retried",
+            messages.get(i).id(),
+            messages.size() - i,
+            e);
+        break;
+      }
+    }
+    if (!delivered.isEmpty()) {
+      jdbcTemplate.batchUpdate(MARK_DELIVERED, delivered);
+      published.increment(delivered.size());
+    }
+    if (delivered.size() < messages.size()) {
+      failures.increment(messages.size() - delivered.size());
+      return -1;
+    }
+    return delivered.size();
+  }
+
+  private TransactionNotification toNotification(PendingMessage message) {
+    try {
+      return objectMapper.readValue(message.payload(), TransactionNotification.class);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Corrupt outbox message id=" + message.id(), e);
+    }
+  }
+
+  /** Deletes the messages delivered longer ago than the retention. */
+  @Scheduled(fixedDelayString = "${service.messaging.outbox.cleanup.interval.millis}")
+  public void deleteDelivered() {
+    int deleted =
+        jdbcTemplate.update(DELETE_DELIVERED, Timestamp.from(Instant.now().minus(retention)));
+    LOGGER.debug("Deleted {} delivered outbox messages", deleted);
+  }
+
+  public double getLagSeconds() {
+    long oldest = Long.MAX_VALUE;
+    for (int i = 0; i < partitions; i++) {
+      long created = oldestPending.get(i);
+      if (created != 0 && created < oldest) {
+        oldest = created;
+      }
+    }
+    return oldest == Long.MAX_VALUE ? 0 : (System.currentTimeMillis() - oldest) / 1000.0;
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    running = false;
+    executor.shutdownNow();
+    if (!executor.awaitTermination(10, SECONDS)) {
+      LOGGER.warn("Outbox relay did not terminate in time");
+    }
+  }
+
+  private record PendingMessage(long id, long userId, String payload, Instant created) {}
+}
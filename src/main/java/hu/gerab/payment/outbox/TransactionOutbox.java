@@ -0,0 +1,121 @@
+package hu.gerab.payment.outbox;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hu.gerab.payment.domain.OutboxMessage;
+import hu.gerab.payment.repository.SequenceBlockAllocator;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes the notifications of the committed transfers into the outbox table, in the database
+ * transaction of the transfers. So a notification is published if and only if its transfer is
+ * committed, even if the application crashes right after the commit. Active with
+ * service.messaging.mode=outbox, in direct mode the notifications are sent right after the commit
+ * through the {@link hu.gerab.payment.service.MessagingService}.
+ */
+@Component
+public class TransactionOutbox {
+
+  public static final String OUTBOX_MODE = "outbox";
+  private static final String INSERT_MESSAGE =
+      "INSERT INTO outbox (id, user_id, payload, created) VALUES (?, ?, ?, ?)";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ObjectMapper objectMapper;
+  private final SequenceBlockAllocator messageIds;
+  private final boolean enabled;
+
+  @Autowired
+  public TransactionOutbox(
+      JdbcTemplate jdbcTemplate,
+      ObjectMapper objectMapper,
+      @Value("${service.messaging.mode}") String messagingMode) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.objectMapper = objectMapper;
+    this.enabled = OUTBOX_MODE.equals(messagingMode);
+    this.messageIds =
+        enabled
+            ? new SequenceBlockAllocator(
+                jdbcTemplate, "outbox_sequence", OutboxMessage.ID_ALLOCATION_SIZE)
+            : null;
+  }
+
+  /**
+   * @return an outbox which is never used, for the direct messaging mode
+   */
+  public static TransactionOutbox disabled() {
+    return new TransactionOutbox(null, null, "direct");
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Writes a message of every notification for both the sender and the receiver, like {@link
+   * hu.gerab.payment.service.MessagingService#sendTransactionNotification(TransactionNotification)}
+   * would send them. Must be called in the transaction of the transfers.
+   */
+  public void write(List<TransactionNotification> notifications) {
+    if (notifications.isEmpty()) {
+      return;
+    }
+    List<Message> messages = new ArrayList<>(notifications.size() * 2);
+    Timestamp created = Timestamp.from(Instant.now());
+    for (TransactionNotification notification : notifications) {
+      String payload = toJson(notification);
+      if (notification.getSenderId() != null) {
+        messages.add(new Message(notification.getSenderId(), payload));
+      }
+      if (notification.getReceiverId() != null) {
+        messages.add(new Message(notification.getReceiverId(), payload));
+      }
+    }
+    jdbcTemplate.batchUpdate(
+        INSERT_MESSAGE,
+        new BatchPreparedStatementSetter() {
+          @Override
+          public void setValues(PreparedStatement ps, int i) throws SQLException {
+            ps.setLong(1, messageIds.nextId());
+            ps.setLong(2, messages.get(i).userId());
+            ps.setString(3, messages.get(i).payload());
+            ps.setTimestamp(4, created);
+          }
+
+          @Override
+          public int getBatchSize() {
+            return messages.size();
+          }
+        });
+  }
+
+  /**
+   * Reserves the id of a message, for the statements writing the outbox themselves, like the
+   * atomic transfer statement.
+   */
+  public long nextMessageId() {
+    return messageIds.nextId();
+  }
+
+  /** The payload of the message of the notification, as written by {@link #write(List)}. */
+  public String toJson(TransactionNotification notification) {
+    try {
+      return objectMapper.writeValueAsString(notification);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Could not serialize notification=" + notification, e);
+    }
+  }
+
+  private record Message(long userId, String payload) {}
+}
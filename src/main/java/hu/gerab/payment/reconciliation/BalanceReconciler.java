@@ -0,0 +1,366 @@
+package hu.gerab.payment.reconciliation;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionOperations;
+
+/**
+ * Verifies in the background that the balance of every user equals its last balance snapshot plus
+ * the credits minus the debits since the snapshot, and moves the snapshots forward.
+ *
+ * <p>A snapshot holds the balance of the user made up of the transactions inserted up to its
+ * as_of time. A run takes now - service.reconciliation.lag.millis as the new as_of, the lag being
+ * longer than any transfer transaction, so every transaction inserted before it is committed. The
+ * users are split into ranges of service.reconciliation.chunk.size ids, verified in parallel by a
+ * fork/join pool. A range is verified by a single statement, so it reads one consistent state of
+ * the balances and the transactions, and it only sums the transactions after the snapshots, which
+ * are range scans of the history indexes.
+ *
+ * <p>The credits of a hot account buffered in the hot_credits table are in its transactions, but
+ * not yet in its balance, so they are added to the balance, read by the same statement. A
+ * difference is only reported as a drift if the next run finds it too, and until then the snapshot
+ * of the user is not moved. The snapshot of a drifted user is kept as well, so the drift stays
+ * visible against it, while it is reported once, until the balance agrees with the transactions
+ * again.
+ *
+ * <p>The pool and the runs are of low priority, with a pause after every range, and the run assumes
+ * it is the only one writing the snapshots.
+ */
+@Slf4j
+@Component
+@Profile("!test") // the tests start it themselves
+@ConditionalOnProperty(name = "service.reconciliation.enabled", havingValue = "true")
+public class BalanceReconciler implements InitializingBean, DisposableBean {
+
+  private static final String SELECT_ID_RANGE =
+      "SELECT min(id) AS min_id, max(id) AS max_id FROM users";
+  private static final String SELECT_RANGE =
+      "SELECT u.id, u.balance, s.balance AS snapshot_balance, s.last_transaction_id,"
+          + sinceSnapshot(sumOf("receiver_amount"), "receiver_id", "settled_credits")
+          + ","
+          + sinceSnapshot(sumOf("sender_amount"), "sender_id", "settled_debits")
+          + ","
+          + sinceSnapshot("max(t.id)", "receiver_id", "last_credit_id")
+          + ","
+          + sinceSnapshot("max(t.id)", "sender_id", "last_debit_id")
+          + ","
+          + afterAsOf("receiver_id", "receiver_amount", "pending_credits")
+          + ","
+          + afterAsOf("sender_id", "sender_amount", "pending_debits")
+          + ", (SELECT COALESCE(sum(h.amount), 0) FROM hot_credits h WHERE h.account_id = u.id)"
+          + " AS buffered_credits"
+          + " FROM users u LEFT JOIN balance_snapshots s ON s.user_id = u.id"
+          + " WHERE u.id >= ? AND u.id < ?";
+  // the number of as_of parameters of the statement before the range of the user ids
+  private static final int AS_OF_PARAMETERS = 10;
+  private static final String UPDATE_SNAPSHOT =
+      "UPDATE balance_snapshots SET balance = ?, last_transaction_id = ?, as_of = ?"
+          + " WHERE user_id = ?";
+  private static final String INSERT_SNAPSHOT =
+      "INSERT INTO balance_snapshots (balance, last_transaction_id, as_of, user_id)"
+          + " VALUES (?, ?, ?, ?)";
+
+  /**
+   * The sum of the amounts in the currency of the account, the exchanged amount of the account side
+   * if the transfer was in another currency.
+   */
+  private static String sumOf(String exchangedAmountColumn) {
+    return "COALESCE(sum(COALESCE(t." + exchangedAmountColumn + ", t.amount)), 0)";
+  }
+
+  /** The transactions of the user after its snapshot, or its first one, up to the new as_of. */
+  private static String sinceSnapshot(String aggregate, String userColumn, String alias) {
+    return " (SELECT "
+        + aggregate
+        + " FROM transactions t WHERE t."
+        + userColumn
+        + " = u.id AND t.inserted > COALESCE(s.as_of, ?) AND t.inserted <= ?) AS "
+        + alias;
+  }
+
+  /** The transactions of the user after the new as_of, already in its balance. */
+  private static String afterAsOf(String userColumn, String exchangedAmountColumn, String alias) {
+    return " (SELECT "
+        + sumOf(exchangedAmountColumn)
+        + " FROM transactions t WHERE t."
+        + userColumn
+        + " = u.id AND t.inserted > ?) AS "
+        + alias;
+  }
+
+  public record Drift(long userId, BigDecimal expected, BigDecimal actual) {}
+
+  public record Report(long users, List<Drift> drifts) {
+
+    static final Report EMPTY = new Report(0, List.of());
+
+    Report plus(Report other) {
+      List<Drift> merged = new ArrayList<>(drifts);
+      merged.addAll(other.drifts);
+      return new Report(users + other.users, merged);
+    }
+  }
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionOperations transactionOperations;
+  private final Duration lag;
+  private final long intervalMillis;
+  private final long chunkSize;
+  private final long chunkPauseMillis;
+  private final ForkJoinPool pool;
+  // the users with a difference seen by the last run, reported if the next run sees it too
+  private final Set<Long> suspects = ConcurrentHashMap.newKeySet();
+  // the users whose drift was reported, not reported again while it stays
+  private final Set<Long> drifted = ConcurrentHashMap.newKeySet();
+  private final Counter verified;
+  private final Counter drifts;
+  private final Timer duration;
+  private Thread runner;
+  private volatile boolean running = true;
+
+  public BalanceReconciler(
+      JdbcTemplate jdbcTemplate,
+      TransactionOperations transactionOperations,
+      MeterRegistry meterRegistry,
+      @Value("${service.reconciliation.lag.millis}") long lagMillis,
+      @Value("${service.reconciliation.interval.millis}") long intervalMillis,
+      @Value("${service.reconciliation.parallelism}") int parallelism,
+      @Value("${service.reconciliation.chunk.size}") long chunkSize,
+      @Value("${service.reconciliation.chunk.pause.millis}") long chunkPauseMillis) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionOperations = transactionOperations;
+    this.lag = Duration.ofMillis(lagMillis);
+    this.intervalMillis = intervalMillis;
+    this.chunkSize = chunkSize;
+    this.chunkPauseMillis = chunkPauseMillis;
+    this.pool =
+        new ForkJoinPool(
+            parallelism,
+            forkJoinPool -> {
+              ForkJoinWorkerThread thread =
+                  ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+              thread.setName("RECONCILE-" + thread.getPoolIndex());
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            },
+            null,
+            false);
+    this.verified =
+        Counter.builder("payment.reconciliation.users")
+            .description("Users whose balance was verified against their transactions")
+            .register(meterRegistry);
+    this.drifts =
+        Counter.builder("payment.reconciliation.drifts")
+            .description("Users whose balance drifted from their transactions")
+            .register(meterRegistry);
+    this.duration =
+        Timer.builder("payment.reconciliation.duration")
+            .description("Duration of the reconciliation runs of every user")
+            .register(meterRegistry);
+    Gauge.builder("payment.reconciliation.suspects", suspects, Set::size)
+        .description("Users with a difference, which is reported if the next run sees it too")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    runner = new Thread(this::runLoop, "RECONCILER");
+    runner.setDaemon(true);
+    runner.setPriority(Thread.MIN_PRIORITY);
+    runner.start();
+  }
+
+  private void runLoop() {
+    while (running) {
+      try {
+        Report report = reconcile();
+        LOGGER.info(
+            "Reconciled the balances of {} users, found {} drifts",
+            report.users(),
+            report.drifts().size());
+      } catch (RuntimeException e) {
+        LOGGER.error("Unexpected error while reconciling the balances", e);
+      }
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /** Verifies every user, and moves the snapshots forward. */
+  public Report reconcile() {
+    long start = System.nanoTime();
+    Instant asOf = Instant.now().minus(lag);
+    Map<String, Object> idRange = jdbcTemplate.queryForMap(SELECT_ID_RANGE);
+    if (idRange.get("min_id") == null) {
+      return Report.EMPTY;
+    }
+    long minId = ((Number) idRange.get("min_id")).longValue();
+    long maxId = ((Number) idRange.get("max_id")).longValue();
+    Report report = pool.invoke(new RangeTask(Timestamp.from(asOf), minId, maxId + 1));
+    duration.record(System.nanoTime() - start, NANOSECONDS);
+    return report;
+  }
+
+  /** Splits the range of the user ids in halves, until it is at most chunkSize ids. */
+  private class RangeTask extends RecursiveTask<Report> {
+
+    private final Timestamp asOf;
+    private final long fromId;
+    private final long toId;
+
+    RangeTask(Timestamp asOf, long fromId, long toId) {
+      this.asOf = asOf;
+      this.fromId = fromId;
+      this.toId = toId;
+    }
+
+    @Override
+    protected Report compute() {
+      if (toId - fromId <= chunkSize) {
+        Report report = reconcileRange(asOf, fromId, toId);
+        pause();
+        return report;
+      }
+      long middle = fromId + (toId - fromId) / 2;
+      RangeTask lower = new RangeTask(asOf, fromId, middle);
+      lower.fork();
+      Report upper = new RangeTask(asOf, middle, toId).compute();
+      return lower.join().plus(upper);
+    }
+  }
+
+  private Report reconcileRange(Timestamp asOf, long fromId, long toId) {
+    List<Object[]> updates = new ArrayList<>();
+    List<Object[]> inserts = new ArrayList<>();
+    List<Drift> found = new ArrayList<>();
+    long[] users = new long[1];
+    jdbcTemplate.query(
+        SELECT_RANGE,
+        ps -> {
+          for (int i = 1; i <= AS_OF_PARAMETERS; i++) {
+            ps.setTimestamp(i, asOf);
+          }
+          ps.setLong(AS_OF_PARAMETERS + 1, fromId);
+          ps.setLong(AS_OF_PARAMETERS + 2, toId);
+        },
+        rs -> {
+          users[0]++;
+          verify(rs, asOf, updates, inserts, found);
+        });
+    if (!updates.isEmpty() || !inserts.isEmpty()) {
+      transactionOperations.executeWithoutResult(
+          status -> {
+            jdbcTemplate.batchUpdate(UPDATE_SNAPSHOT, updates);
+            jdbcTemplate.batchUpdate(INSERT_SNAPSHOT, inserts);
+          });
+    }
+    verified.increment(users[0]);
+    return new Report(users[0], found);
+  }
+
+  private void verify(
+      ResultSet rs,
+      Timestamp asOf,
+      List<Object[]> updates,
+      List<Object[]> inserts,
+      List<Drift> found)
+      throws SQLException {
+    long userId = rs.getLong("id");
+    // the buffered credits of a hot account are written to its balance by the next flush
+    BigDecimal balance = rs.getBigDecimal("balance").add(rs.getBigDecimal("buffered_credits"));
+    BigDecimal snapshot = rs.getBigDecimal("snapshot_balance");
+    BigDecimal settled =
+        rs.getBigDecimal("settled_credits").subtract(rs.getBigDecimal("settled_debits"));
+    BigDecimal pending =
+        rs.getBigDecimal("pending_credits").subtract(rs.getBigDecimal("pending_debits"));
+    Long lastTransactionId =
+        max(
+            rs.getObject("last_transaction_id", Long.class),
+            max(
+                rs.getObject("last_credit_id", Long.class),
+                rs.getObject("last_debit_id", Long.class)));
+    if (snapshot == null) {
+      // the first snapshot of the user, nothing to verify yet
+      inserts.add(new Object[] {balance.subtract(pending), lastTransactionId, asOf, userId});
+      return;
+    }
+    BigDecimal expected = snapshot.add(settled).add(pending);
+    if (expected.compareTo(balance) == 0) {
+      suspects.remove(userId);
+      drifted.remove(userId);
+      updates.add(new Object[] {snapshot.add(settled), lastTransactionId, asOf, userId});
+    } else if (drifted.contains(userId)) {
+      // reported already, the snapshot stays the last verified balance
+      LOGGER.debug("Balance of userId={} still drifted, expected={}", userId, expected);
+    } else if (suspects.remove(userId)) {
+      LOGGER.error(
+          "Balance of userId={} drifted from its transactions, expected={}, actual={}",
+          userId,
+          expected,
+          balance);
+      drifts.increment();
+      drifted.add(userId);
+      found.add(new Drift(userId, expected, balance));
+    } else {
+      // the snapshot is kept until the next run
+      LOGGER.debug("Balance of userId={} differs from its transactions, rechecking later", userId);
+      suspects.add(userId);
+    }
+  }
+
+  private static Long max(Long a, Long b) {
+    if (a == null) {
+      return b;
+    }
+    return b == null ? a : Math.max(a, b);
+  }
+
+  private void pause() {
+    if (chunkPauseMillis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(chunkPauseMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void destroy() {
+    running = false;
+    if (runner != null) {
+      runner.interrupt();
+    }
+    pool.shutdownNow();
+  }
+}
@@ -0,0 +1,202 @@
+package hu.gerab.payment.repository;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Money;
+import hu.gerab.payment.domain.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Read-through cache of the accounts in front of the {@link UserRepository}, so the transfers of
+ * the already cached users need no query at all. The entries are immutable snapshots of the users,
+ * the callers get detached copies, which they may change freely.
+ *
+ * <p>The cache relies on the locking of the payment service: an account is only cached, written
+ * and updated by the holder of its lock, and the cache is updated with the new balances after the
+ * commit, before the lock is released. Any other change of the balance has to invalidate the
+ * account. In local mode the service is assumed to be the only writer of the balances. In
+ * versioned mode other instances may write them too, so the balance updates are checked against
+ * the cached version, and fail with an {@link OptimisticLockingFailureException} if the account
+ * changed since it was cached.
+ *
+ * <p>The size is bounded, Caffeine evicts by recency and frequency (W-TinyLFU), the hit rate and
+ * the evictions are published as the cache.* metrics of the accounts cache.
+ */
+@Component
+public class AccountCache {
+
+  public static final String DISABLED_MODE = "none";
+  public static final String LOCAL_MODE = "local";
+  public static final String VERSIONED_MODE = "versioned";
+
+  private static final String UPDATE_BALANCE =
+      "UPDATE users SET balance = ?, updated = ?, version = version + 1 WHERE id = ?";
+  private static final String UPDATE_BALANCE_IF_VERSION = UPDATE_BALANCE + " AND version = ?";
+
+  private final UserRepository userRepository;
+  private final JdbcTemplate jdbcTemplate;
+  private final Cache<Long, Account> cache;
+  private final boolean versioned;
+
+  @Autowired
+  public AccountCache(
+      UserRepository userRepository,
+      JdbcTemplate jdbcTemplate,
+      MeterRegistry meterRegistry,
+      @Value("${service.payment.account.cache.mode}") String mode,
+      @Value("${service.payment.account.cache.maximum.size}") long maximumSize) {
+    this.userRepository = userRepository;
+    this.jdbcTemplate = jdbcTemplate;
+    this.versioned = VERSIONED_MODE.equals(mode);
+    if (DISABLED_MODE.equals(mode)) {
+      this.cache = null;
+      return;
+    }
+    if (!LOCAL_MODE.equals(mode) && !versioned) {
+      throw new IllegalArgumentException("Unknown account cache mode=" + mode);
+    }
+    this.cache = Caffeine.newBuilder().maximumSize(maximumSize).recordStats().build();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "accounts");
+  }
+
+  private AccountCache() {
+    this.userRepository = null;
+    this.jdbcTemplate = null;
+    this.cache = null;
+    this.versioned = false;
+  }
+
+  /** A cache which is never used, the users are read and written through JPA. */
+  public static AccountCache disabled() {
+    return new AccountCache();
+  }
+
+  public boolean isEnabled() {
+    return cache != null;
+  }
+
+  public boolean isVersioned() {
+    return versioned;
+  }
+
+  /**
+   * Reads the users, from the cache if present, the rest with a single query. Only the locked
+   * users are cached, as an unlocked user may be written concurrently, after it was read.
+   *
+   * @return detached copies of the existing users by id
+   */
+  public Map<Long, User> findAllById(Collection<Long> ids, Set<Long> lockedIds) {
+    Map<Long, User> users = new HashMap<>();
+    List<Long> missing = new ArrayList<>();
+    for (Long id : ids) {
+      Account account = cache.getIfPresent(id);
+      if (account != null) {
+        users.put(id, account.toUser());
+      } else {
+        missing.add(id);
+      }
+    }
+    if (!missing.isEmpty()) {
+      for (User user : userRepository.findAllById(missing)) {
+        Account account = Account.of(user);
+        if (lockedIds.contains(user.getId())) {
+          cache.put(user.getId(), account);
+        }
+        users.put(user.getId(), account.toUser());
+      }
+    }
+    return users;
+  }
+
+  /**
+   * Reads a locked user from the database, replacing the cached entry, for the decisions which are
+   * not followed by a version-checked write.
+   *
+   * @return a detached copy of the user, null if it does not exist anymore
+   */
+  public User reload(Long id) {
+    cache.invalidate(id);
+    return findAllById(List.of(id), Set.of(id)).get(id);
+  }
+
+  /**
+   * Writes the balances of the users read by {@link #findAllById(Collection, Set)} with a single
+   * batch update, and increments their versions. Has to be followed by {@link #put(Collection)}
+   * once committed, or by {@link #invalidate(Collection)} if rolled back.
+   *
+   * @throws OptimisticLockingFailureException if a user does not exist anymore, or in versioned
+   *     mode, if it was changed since it was read
+   */
+  public void writeBalances(List<User> users) {
+    List<Object[]> updates = new ArrayList<>(users.size());
+    for (User user : users) {
+      BigDecimal balance = user.getBalance().toBigDecimal();
+      Timestamp updated = Timestamp.from(user.getUpdated());
+      updates.add(
+          versioned
+              ? new Object[] {balance, updated, user.getId(), user.getVersion()}
+              : new Object[] {balance, updated, user.getId()});
+    }
+    int[] counts =
+        jdbcTemplate.batchUpdate(versioned ? UPDATE_BALANCE_IF_VERSION : UPDATE_BALANCE, updates);
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0) {
+        throw new OptimisticLockingFailureException(
+            "Account id=" + users.get(i).getId() + " was changed or deleted since it was read");
+      }
+    }
+    users.forEach(user -> user.setVersion(user.getVersion() + 1));
+  }
+
+  /** Caches the committed state of the users. */
+  public void put(Collection<User> users) {
+    for (User user : users) {
+      cache.put(user.getId(), Account.of(user));
+    }
+  }
+
+  public void invalidate(Long id) {
+    if (cache != null) {
+      cache.invalidate(id);
+    }
+  }
+
+  public void invalidate(Collection<Long> ids) {
+    if (cache != null) {
+      cache.invalidateAll(ids);
+    }
+  }
+
+  private record Account(
+      Long id, Money balance, Currency currency, Instant updated, Long version) {
+
+    static Account of(User user) {
+      return new Account(
+          user.getId(),
+          user.getBalance(),
+          user.getCurrency(),
+          user.getUpdated(),
+          user.getVersion());
+    }
+
+    User toUser() {
+      return new User(id, balance, currency, updated, version);
+    }
+  }
+}
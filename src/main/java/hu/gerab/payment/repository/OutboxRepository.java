@@ -0,0 +1,9 @@
+package hu.gerab.payment.repository;
+
+import hu.gerab.payment.domain.OutboxMessage;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface OutboxRepository extends JpaRepository<OutboxMessage, Long> {
+
+  long countByDeliveredIsNull();
+}
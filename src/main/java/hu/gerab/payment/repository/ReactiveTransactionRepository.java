@@ -0,0 +1,88 @@
+package hu.gerab.payment.repository;
+
+import static hu.gerab.payment.repository.ReactiveUserRepository.toLocalDateTime;
+
+import hu.gerab.payment.domain.Transaction;
+import java.math.BigDecimal;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.r2dbc.core.DatabaseClient.GenericExecuteSpec;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+/**
+ * Inserts the transactions of the reactive mode through R2DBC. The ids are allocated the same
+ * pooled-lo way as by the {@link SequenceBlockAllocator}, so they do not collide with the ids of
+ * the JPA and JDBC inserts.
+ */
+@Repository
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "reactive")
+public class ReactiveTransactionRepository {
+
+  private static final String NEXT_BLOCK = "SELECT nextval('transaction_sequence')";
+  // the currency is cast, as some drivers bind the strings as large objects, e.g. r2dbc-h2, which
+  // cannot be converted to the enum column generated by hibernate
+  private static final String INSERT =
+      "INSERT INTO transactions (id, sender_id, receiver_id, request_id, amount, currency,"
+          + " sender_amount, receiver_amount, inserted) VALUES (:id, :senderId, :receiverId,"
+          + " :requestId, :amount, CAST(:currency AS VARCHAR(3)), :senderAmount, :receiverAmount,"
+          + " :inserted)";
+
+  private final DatabaseClient databaseClient;
+  private long next;
+  private long limit;
+
+  public ReactiveTransactionRepository(DatabaseClient databaseClient) {
+    this.databaseClient = databaseClient;
+  }
+
+  /** Inserts the transaction with a newly allocated id, and sets the id of the transaction. */
+  public Mono<Transaction> save(Transaction transaction) {
+    return nextId()
+        .flatMap(
+            id -> {
+              GenericExecuteSpec insert =
+                  databaseClient
+                      .sql(INSERT)
+                      .bind("id", id)
+                      .bind("senderId", transaction.getSenderId())
+                      .bind("receiverId", transaction.getReceiverId())
+                      .bind("requestId", transaction.getRequestId())
+                      .bind("amount", transaction.getAmount())
+                      .bind("currency", transaction.getCurrency().name())
+                      .bind("inserted", toLocalDateTime(transaction.getInserted()));
+              insert = bindNullable(insert, "senderAmount", transaction.getSenderAmount());
+              insert = bindNullable(insert, "receiverAmount", transaction.getReceiverAmount());
+              return insert.then().thenReturn(transaction).doOnNext(saved -> saved.setId(id));
+            });
+  }
+
+  private static GenericExecuteSpec bindNullable(
+      GenericExecuteSpec spec, String name, BigDecimal value) {
+    return value == null ? spec.bindNull(name, BigDecimal.class) : spec.bind(name, value);
+  }
+
+  private Mono<Long> nextId() {
+    synchronized (this) {
+      if (next < limit) {
+        return Mono.just(next++);
+      }
+    }
+    // not waiting for the block fetched by a concurrent insert, the one which comes back later
+    // only uses the first id of its own block
+    return databaseClient
+        .sql(NEXT_BLOCK)
+        .map(row -> row.get(0, Long.class))
+        .one()
+        .map(
+            first -> {
+              synchronized (this) {
+                if (next == limit) {
+                  next = first + 1;
+                  limit = first + Transaction.ID_ALLOCATION_SIZE;
+                }
+              }
+              return first;
+            });
+  }
+}
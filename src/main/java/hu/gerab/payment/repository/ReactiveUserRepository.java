@@ -0,0 +1,71 @@
+package hu.gerab.payment.repository;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Money;
+import hu.gerab.payment.domain.User;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The users of the reactive mode, read and written through R2DBC, so waiting for the database does
+ * not hold a thread. Must be used in a transaction of the {@link
+ * org.springframework.transaction.reactive.TransactionalOperator} of the reactive mode, the row
+ * locks are held until its end.
+ */
+@Repository
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "reactive")
+public class ReactiveUserRepository {
+
+  // in id order, so the transfers in opposite directions cannot deadlock
+  private static final String LOCK_USERS =
+      "SELECT id, balance, currency FROM users WHERE id IN (:first, :second) ORDER BY id"
+          + " FOR UPDATE";
+  private static final String UPDATE_BALANCE =
+      "UPDATE users SET balance = :balance, updated = :updated, version = version + 1"
+          + " WHERE id = :id";
+
+  private final DatabaseClient databaseClient;
+
+  public ReactiveUserRepository(DatabaseClient databaseClient) {
+    this.databaseClient = databaseClient;
+  }
+
+  /** Reads and locks the existing users of the two ids, until the end of the transaction. */
+  public Flux<User> lockAll(Long first, Long second) {
+    return databaseClient
+        .sql(LOCK_USERS)
+        .bind("first", first)
+        .bind("second", second)
+        .map(
+            row ->
+                User.builder()
+                    .id(row.get("id", Long.class))
+                    .balance(Money.of(row.get("balance", BigDecimal.class)))
+                    .currency(Currency.valueOf(row.get("currency", String.class)))
+                    .build())
+        .all();
+  }
+
+  /** Overwrites the balance of a user locked by {@link #lockAll(Long, Long)}. */
+  public Mono<Long> setBalance(Long id, Money balance, Instant updated) {
+    return databaseClient
+        .sql(UPDATE_BALANCE)
+        .bind("balance", balance.toBigDecimal())
+        .bind("updated", toLocalDateTime(updated))
+        .bind("id", id)
+        .fetch()
+        .rowsUpdated();
+  }
+
+  // the timestamp columns are without time zone, the JDBC writes bind them in the local zone too
+  static LocalDateTime toLocalDateTime(Instant instant) {
+    return LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+  }
+}
@@ -0,0 +1,43 @@
+package hu.gerab.payment.repository;
+
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Application side id allocator for records inserted with plain JDBC. It follows the same pooled-lo
+ * strategy as the Hibernate id generators: every sequence call reserves a block of blockSize ids,
+ * starting with the returned value, so the JDBC and JPA inserts can share the same sequence
+ * without collisions, and only every blockSize-th insert costs a sequence round-trip.
+ */
+public class SequenceBlockAllocator {
+
+  private final JdbcTemplate jdbcTemplate;
+  private final String nextValueQuery;
+  private final int blockSize;
+  private final ReentrantLock lock = new ReentrantLock();
+  private long next;
+  private long limit;
+
+  /**
+   * @param blockSize the number of ids reserved at once, must be the same as the increment of the
+   *     sequence
+   */
+  public SequenceBlockAllocator(JdbcTemplate jdbcTemplate, String sequenceName, int blockSize) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.nextValueQuery = "SELECT nextval('" + sequenceName + "')";
+    this.blockSize = blockSize;
+  }
+
+  public long nextId() {
+    lock.lock();
+    try {
+      if (next == limit) {
+        next = jdbcTemplate.queryForObject(nextValueQuery, Long.class);
+        limit = next + blockSize;
+      }
+      return next++;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package hu.gerab.payment.repository;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Transaction;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.function.Consumer;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Pages of the transaction history of a user, with keyset (seek) pagination: a page continues
+ * after the (inserted, id) of the last transaction of the previous page, instead of skipping an
+ * offset. Backed by the (sender_id, inserted, id) and (receiver_id, inserted, id) indexes, every
+ * page is a range scan of the index of its size, however deep it is.
+ */
+@Repository
+public class TransactionHistory {
+
+  private static final String SELECT =
+      "SELECT id, sender_id, receiver_id, request_id, amount, currency, sender_amount,"
+          + " receiver_amount, inserted FROM transactions WHERE ";
+  // the plain bound lets a partitioned table skip the newer partitions, which the row value
+  // comparison does not
+  private static final String AFTER_CURSOR = " AND inserted <= ? AND (inserted, id) < (?, ?)";
+  // ordered by the user too, which is the same for every row, so H2 also sees that the
+  // backward scan of the index is already in order, and it does not sort the range
+  private static final String ORDER = " DESC, inserted DESC, id DESC LIMIT ?";
+
+  public enum Direction {
+    SENT("sender_id"),
+    RECEIVED("receiver_id");
+
+    private final String firstPageQuery;
+    private final String nextPageQuery;
+
+    Direction(String userColumn) {
+      String orderBy = " ORDER BY " + userColumn;
+      this.firstPageQuery = SELECT + userColumn + " = ?" + orderBy + ORDER;
+      this.nextPageQuery = SELECT + userColumn + " = ?" + AFTER_CURSOR + orderBy + ORDER;
+    }
+  }
+
+  /** The position after a transaction in the history, the newest transactions come first. */
+  public record Cursor(Instant inserted, long id) {
+
+    /** An opaque, url safe form of the cursor, for the clients. */
+    public String encode() {
+      String cursor = inserted.getEpochSecond() + ":" + inserted.getNano() + ":" + id;
+      return Base64.getUrlEncoder()
+          .withoutPadding()
+          .encodeToString(cursor.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the cursor is not one returned by {@link #encode()}
+     */
+    public static Cursor decode(String encoded) {
+      try {
+        String[] parts =
+            new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.US_ASCII)
+                .split(":");
+        if (parts.length != 3) {
+          throw new IllegalArgumentException("Invalid cursor=" + encoded);
+        }
+        Instant inserted =
+            Instant.ofEpochSecond(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        return new Cursor(inserted, Long.parseLong(parts[2]));
+      } catch (IllegalArgumentException e) { // NumberFormatException included
+        throw new IllegalArgumentException("Invalid cursor=" + encoded, e);
+      }
+    }
+  }
+
+  private final JdbcTemplate jdbcTemplate;
+
+  public TransactionHistory(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  /**
+   * Passes the transactions of the page to the consumer one by one as they are read, newest
+   * first, so the page is never held in memory.
+   *
+   * @param after the cursor returned with the previous page, null for the first page
+   * @return the cursor of the next page, null if this page is the last one
+   */
+  public Cursor forEach(
+      Long userId, Direction direction, Cursor after, int limit, Consumer<Transaction> consumer) {
+    Cursor[] last = new Cursor[1];
+    int[] count = new int[1];
+    jdbcTemplate.query(
+        after == null ? direction.firstPageQuery : direction.nextPageQuery,
+        ps -> {
+          int i = 0;
+          ps.setLong(++i, userId);
+          if (after != null) {
+            Timestamp inserted = Timestamp.from(after.inserted());
+            ps.setTimestamp(++i, inserted);
+            ps.setTimestamp(++i, inserted);
+            ps.setLong(++i, after.id());
+          }
+          ps.setInt(++i, limit);
+        },
+        rs -> {
+          Transaction transaction =
+              Transaction.builder()
+                  .id(rs.getLong("id"))
+                  .senderId(rs.getObject("sender_id", Long.class))
+                  .receiverId(rs.getObject("receiver_id", Long.class))
+                  .requestId(rs.getString("request_id"))
+                  .amount(rs.getBigDecimal("amount"))
+                  .currency(Currency.valueOf(rs.getString("currency")))
+                  .senderAmount(rs.getBigDecimal("sender_amount"))
+                  .receiverAmount(rs.getBigDecimal("receiver_amount"))
+                  .inserted(rs.getTimestamp("inserted").toInstant())
+                  .build();
+          consumer.accept(transaction);
+          last[0] = new Cursor(transaction.getInserted(), transaction.getId());
+          count[0]++;
+        });
+    // a full page may be followed by more, the next page will tell
+    return count[0] == limit ? last[0] : null;
+  }
+}
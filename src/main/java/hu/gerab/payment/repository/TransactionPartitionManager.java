@@ -0,0 +1,208 @@
+package hu.gerab.payment.repository;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Maintains the range partitions of the transactions table by inserted: creates the partitions of
+ * the next service.transactions.partition.premake days or months ahead of time, and detaches the
+ * ones older than service.transactions.partition.retention days or months. A detached partition is
+ * kept as a standalone table for archiving, or dropped.
+ *
+ * <p>The partitions are created empty and attached afterwards, and detached concurrently, so
+ * neither blocks the inserts into the table, unlike creating a partition of the table directly.
+ * The missing partitions are also created on startup, the inserts would fail without them, as the
+ * table has no default partition, which would make the concurrent detach impossible. Requires
+ * Postgres 14.
+ */
+@Slf4j
+@Component
+@Profile("!test") // H2 has no partitioning
+@ConditionalOnExpression("'${service.transactions.partition.interval}' != 'none'")
+public class TransactionPartitionManager implements InitializingBean {
+
+  private static final String DROP_ACTION = "drop";
+  private static final String PREFIX = "transactions_p";
+  private static final String IS_PARTITIONED =
+      "SELECT EXISTS (SELECT 1 FROM pg_partitioned_table"
+          + " WHERE partrelid = to_regclass('transactions'))";
+  private static final String SELECT_PARTITIONS =
+      "SELECT c.relname, i.inhdetachpending FROM pg_inherits i"
+          + " JOIN pg_class c ON c.oid = i.inhrelid"
+          + " WHERE i.inhparent = 'transactions'::regclass";
+  private static final String DELETE_REQUESTS =
+      "DELETE FROM transaction_requests WHERE inserted < ?";
+
+  enum Interval {
+    DAILY("yyyyMMdd", ChronoUnit.DAYS),
+    MONTHLY("yyyyMM", ChronoUnit.MONTHS);
+
+    private final DateTimeFormatter suffix;
+    private final ChronoUnit unit;
+
+    Interval(String suffixPattern, ChronoUnit unit) {
+      this.suffix = DateTimeFormatter.ofPattern(suffixPattern);
+      this.unit = unit;
+    }
+
+    /** The start of the partition containing the date. */
+    LocalDate start(LocalDate date) {
+      return this == DAILY ? date : date.withDayOfMonth(1);
+    }
+
+    LocalDate plus(LocalDate start, long intervals) {
+      return start.plus(intervals, unit);
+    }
+
+    String name(LocalDate start) {
+      return PREFIX + suffix.format(start);
+    }
+
+    /** The start of the partition of the name, null if it is not a partition of this interval. */
+    LocalDate parse(String name) {
+      if (!name.startsWith(PREFIX)) {
+        return null;
+      }
+      String date = name.substring(PREFIX.length());
+      try {
+        return this == DAILY
+            ? LocalDate.parse(date, suffix)
+            : LocalDate.parse(date + "01", DateTimeFormatter.BASIC_ISO_DATE);
+      } catch (DateTimeParseException e) {
+        return null;
+      }
+    }
+  }
+
+  private final JdbcTemplate jdbcTemplate;
+  private final Interval interval;
+  private final int premake;
+  private final int retention;
+  private final boolean dropDetached;
+
+  public TransactionPartitionManager(
+      JdbcTemplate jdbcTemplate,
+      @Value("${service.transactions.partition.interval}") String interval,
+      @Value("${service.transactions.partition.premake}") int premake,
+      @Value("${service.transactions.partition.retention}") int retention,
+      @Value("${service.transactions.partition.retention.action}") String retentionAction) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.interval = Interval.valueOf(interval.toUpperCase());
+    this.premake = premake;
+    this.retention = retention;
+    this.dropDetached = DROP_ACTION.equals(retentionAction);
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (!Boolean.TRUE.equals(jdbcTemplate.queryForObject(IS_PARTITIONED, Boolean.class))) {
+      throw new IllegalStateException(
+          "The transactions table is not partitioned, set service.transactions.partition.interval"
+              + "=none, or migrate it with docker-db-partition-migration.sql");
+    }
+    maintain(LocalDate.now());
+  }
+
+  @Scheduled(fixedDelayString = "${service.transactions.partition.check.interval.millis}")
+  public void scheduledMaintain() {
+    try {
+      maintain(LocalDate.now());
+    } catch (DataAccessException e) {
+      LOGGER.error("Failed to maintain the partitions of the transactions table", e);
+    }
+  }
+
+  /** Creates the missing partitions from today on, and detaches the expired ones. */
+  void maintain(LocalDate today) {
+    Map<LocalDate, String> partitions = new TreeMap<>();
+    List<String> detachPending = new ArrayList<>();
+    jdbcTemplate.query(
+        SELECT_PARTITIONS,
+        rs -> {
+          String name = rs.getString("relname");
+          LocalDate start = interval.parse(name);
+          if (rs.getBoolean("inhdetachpending")) {
+            detachPending.add(name);
+          } else if (start != null) {
+            partitions.put(start, name);
+          }
+        });
+    // an interrupted concurrent detach, the partition is not used by the inserts anymore
+    detachPending.forEach(this::finishDetach);
+
+    LocalDate current = interval.start(today);
+    for (int i = 0; i <= premake; i++) {
+      LocalDate start = interval.plus(current, i);
+      if (!partitions.containsKey(start)) {
+        create(start);
+      }
+    }
+
+    if (retention > 0) {
+      LocalDate oldestKept = interval.plus(current, -retention);
+      boolean detached = false;
+      for (Map.Entry<LocalDate, String> partition : partitions.entrySet()) {
+        if (!partition.getKey().isBefore(oldestKept)) {
+          break;
+        }
+        detach(partition.getValue());
+        detached = true;
+      }
+      if (detached) {
+        int deleted = jdbcTemplate.update(DELETE_REQUESTS, oldestKept.atStartOfDay());
+        LOGGER.info("Deleted {} request ids of the detached transactions", deleted);
+      }
+    }
+  }
+
+  private void create(LocalDate start) {
+    String name = interval.name(start);
+    // nothing to validate in an empty table, so attaching it is instant, and its lock does not
+    // block the inserts
+    jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + name + " (LIKE transactions)");
+    jdbcTemplate.execute(
+        "ALTER TABLE transactions ATTACH PARTITION "
+            + name
+            + " FOR VALUES FROM ('"
+            + start
+            + "') TO ('"
+            + interval.plus(start, 1)
+            + "')");
+    LOGGER.info("Created transactions partition {}", name);
+  }
+
+  private void detach(String name) {
+    // cannot run in a transaction, the auto-commit of the JdbcTemplate is relied on
+    jdbcTemplate.execute("ALTER TABLE transactions DETACH PARTITION " + name + " CONCURRENTLY");
+    afterDetach(name);
+  }
+
+  private void finishDetach(String name) {
+    jdbcTemplate.execute("ALTER TABLE transactions DETACH PARTITION " + name + " FINALIZE");
+    afterDetach(name);
+  }
+
+  private void afterDetach(String name) {
+    if (dropDetached) {
+      jdbcTemplate.execute("DROP TABLE " + name);
+      LOGGER.info("Detached and dropped transactions partition {}", name);
+    } else {
+      LOGGER.info("Detached transactions partition {}, it can be archived and dropped", name);
+    }
+  }
+}
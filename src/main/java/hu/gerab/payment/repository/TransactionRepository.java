@@ -8,6 +8,7 @@ import org.springframework.data.repository.query.Param;
 
 public interface TransactionRepository extends JpaRepository<Transaction, Long> {
 
+  /** Every sent transaction of the user at once, for paging see {@link TransactionHistory}. */
   @Query(
       nativeQuery = true,
       value = "select * from transactions where sender_id = :senderId order by inserted desc")
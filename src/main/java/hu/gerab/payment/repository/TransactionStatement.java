@@ -0,0 +1,109 @@
+package hu.gerab.payment.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Statements of the transactions of a user and/or a time range, oldest first, read through a
+ * forward-only JDBC cursor of service.statement.fetch.size rows. Only a fetch of rows is held in
+ * memory at any time, whatever the size of the statement, and no entities are created, the rows are
+ * passed to the handler straight from the result set.
+ *
+ * <p>Postgres only keeps a cursor open in a transaction, otherwise it reads the whole result before
+ * returning the first row, so the statement is read in a read-only transaction.
+ */
+@Repository
+public class TransactionStatement {
+
+  private static final String SELECT =
+      "SELECT id, sender_id, receiver_id, request_id, amount, currency, sender_amount,"
+          + " receiver_amount, inserted FROM transactions";
+  private static final String ORDER = " ORDER BY inserted, id";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate readOnlyTransaction;
+  private final int fetchSize;
+
+  public TransactionStatement(
+      JdbcTemplate jdbcTemplate,
+      PlatformTransactionManager transactionManager,
+      @Value("${service.statement.fetch.size}") int fetchSize) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+    readOnlyTransaction.setReadOnly(true);
+    this.fetchSize = fetchSize;
+  }
+
+  /**
+   * Passes the rows of the statement to the handler as they are fetched, with the id, sender_id,
+   * receiver_id, request_id, amount, currency, sender_amount, receiver_amount and inserted columns.
+   *
+   * @param userId the sender or receiver of the transactions, null for every user
+   * @param from the inclusive start of the time range, null for no start
+   * @param to the exclusive end of the time range, null for no end
+   */
+  public void forEach(Long userId, Instant from, Instant to, RowCallbackHandler handler) {
+    List<Object> rangeParams = new ArrayList<>();
+    String range = range(from, to, rangeParams);
+    String sql;
+    List<Object> params = new ArrayList<>();
+    if (userId == null) {
+      sql = SELECT + (range.isEmpty() ? "" : " WHERE" + range.substring(" AND".length())) + ORDER;
+      params.addAll(rangeParams);
+    } else {
+      // two ordered index range scans merged, instead of an OR the database could only sort;
+      // a user never transfers to itself, so no transaction is in both
+      sql =
+          SELECT
+              + " WHERE sender_id = ?"
+              + range
+              + " UNION ALL "
+              + SELECT
+              + " WHERE receiver_id = ?"
+              + range
+              + ORDER;
+      params.add(userId);
+      params.addAll(rangeParams);
+      params.add(userId);
+      params.addAll(rangeParams);
+    }
+    readOnlyTransaction.executeWithoutResult(
+        status -> jdbcTemplate.query(connection -> prepare(connection, sql, params), handler));
+  }
+
+  private PreparedStatement prepare(Connection connection, String sql, List<Object> params)
+      throws SQLException {
+    PreparedStatement ps =
+        connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    ps.setFetchSize(fetchSize);
+    for (int i = 0; i < params.size(); i++) {
+      ps.setObject(i + 1, params.get(i));
+    }
+    return ps;
+  }
+
+  private static String range(Instant from, Instant to, List<Object> params) {
+    StringBuilder range = new StringBuilder();
+    if (from != null) {
+      range.append(" AND inserted >= ?");
+      params.add(Timestamp.from(from));
+    }
+    if (to != null) {
+      range.append(" AND inserted < ?");
+      params.add(Timestamp.from(to));
+    }
+    return range.toString();
+  }
+}
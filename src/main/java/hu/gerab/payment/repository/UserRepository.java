@@ -1,8 +1,27 @@
 package hu.gerab.payment.repository;
 
+import hu.gerab.payment.domain.Money;
 import hu.gerab.payment.domain.User;
+import java.time.Instant;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 public interface UserRepository extends JpaRepository<User, Long> {
 
+  /**
+   * Changes the balance of the user relative to the currently persisted value. As the update is
+   * commutative, the order in which concurrent changes are written does not matter.
+   *
+   * @return the number of updated records, 0 if the user does not exist
+   */
+  @Transactional
+  @Modifying
+  @Query(
+      "update User u set u.balance = u.balance + :delta, u.updated = :updated,"
+          + " u.version = u.version + 1 where u.id = :id")
+  int addToBalance(
+      @Param("id") Long id, @Param("delta") Money delta, @Param("updated") Instant updated);
 }
@@ -0,0 +1,34 @@
+package hu.gerab.payment.rest;
+
+import static hu.gerab.payment.rest.PaymentAPI.CLUSTER_SECRET_HEADER;
+import static io.swagger.v3.oas.annotations.enums.ParameterIn.QUERY;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+@RequestMapping("cluster")
+@Tag(name = "Cluster")
+public interface ClusterAPI {
+
+  /**
+   * Called by the other members of the cluster, once they drained the transfers of the users they
+   * lost with the ring, so this member starts processing the ones it acquired. Forbidden for
+   * anyone else than a member with the secret of the cluster.
+   */
+  @Operation(summary = "Handoff of the users of a previous owner after a membership change")
+  @PostMapping("handoff")
+  void handleHandoff(
+      @Parameter(description = "The id of the member handing off its users", in = QUERY)
+          @RequestParam("member")
+          String member,
+      @Parameter(description = "The id of the ring the users were handed off for", in = QUERY)
+          @RequestParam("ring")
+          String ring,
+      @Parameter(hidden = true) @RequestHeader(value = CLUSTER_SECRET_HEADER, required = false)
+          String clusterSecret);
+}
@@ -0,0 +1,29 @@
+package hu.gerab.payment.rest;
+
+import hu.gerab.payment.cluster.ClusterRouter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+@RestController
+@ConditionalOnWebApplication(type = Type.SERVLET)
+public class ClusterController implements ClusterAPI {
+
+  private final ClusterRouter clusterRouter;
+
+  @Autowired
+  public ClusterController(ClusterRouter clusterRouter) {
+    this.clusterRouter = clusterRouter;
+  }
+
+  @Override
+  public void handleHandoff(String member, String ring, String clusterSecret) {
+    if (!clusterRouter.isMember(member, clusterSecret)) {
+      throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Not a member of the cluster");
+    }
+    clusterRouter.onHandoff(member, ring);
+  }
+}
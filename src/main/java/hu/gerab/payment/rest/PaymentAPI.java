@@ -1,16 +1,27 @@
 package hu.gerab.payment.rest;
 
+import static io.swagger.v3.oas.annotations.enums.ParameterIn.HEADER;
 import static io.swagger.v3.oas.annotations.enums.ParameterIn.QUERY;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.ArraySchema;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.ws.rs.QueryParam;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 @RequestMapping("payment")
@@ -18,9 +29,18 @@ import org.springframework.web.bind.annotation.RequestMapping;
 // @SecurityRequirement() TBD
 public interface PaymentAPI {
 
+  String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+  /** The member of the cluster which forwarded the transfer to its owner. */
+  String FORWARDED_BY_HEADER = "Cluster-Forwarded-By";
+  /** The shared secret of the cluster, sent by the members with the requests of each other. */
+  String CLUSTER_SECRET_HEADER = "Cluster-Secret";
+
   /**
    * For simple invocation please send a POST request to:
    * localhost:8080/payment/trasnfer?senderId=2&receiverId=4&amount=10&currency=USD
+   *
+   * <p>Clients retrying a request should send the same Idempotency-Key header with every attempt,
+   * so the transfer is only executed once, and every attempt returns the same request id.
    */
   @Operation(
       summary = "Handles a simple transaction for the user",
@@ -46,5 +66,62 @@ public interface PaymentAPI {
                   "The currency of the transaction. Only USD transactions are accepted for now",
               in = QUERY)
           @QueryParam("currency")
-          String currency);
+          String currency,
+      @Parameter(
+              description =
+                  "Optional client generated key of the transfer. Requests of the same sender with"
+                      + " the same key are executed only once",
+              in = HEADER)
+          @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false)
+          String idempotencyKey,
+      @Parameter(hidden = true) @RequestHeader(value = FORWARDED_BY_HEADER, required = false)
+          String forwardedBy,
+      @Parameter(hidden = true) @RequestHeader(value = CLUSTER_SECRET_HEADER, required = false)
+          String clusterSecret);
+
+  /**
+   * Accepts either a JSON array or newline delimited JSON objects of {@link TransferItem}s, e.g.
+   * {"senderId":2,"receiverId":4,"amount":10,"currency":"USD","idempotencyKey":"a1"}. The body is
+   * read and processed in chunks, so the size of the batch is not limited by the heap.
+   *
+   * <p>The response is streamed as newline delimited {@link TransferItemResult}s, one for each
+   * item in the order of the request, written as soon as the chunk of the item is processed.
+   */
+  @Operation(
+      summary = "Handles a batch of transactions",
+      requestBody =
+          @io.swagger.v3.oas.annotations.parameters.RequestBody(
+              content =
+                  @Content(
+                      array =
+                          @ArraySchema(schema = @Schema(implementation = TransferItem.class)))),
+      responses = {
+        @ApiResponse(
+            content =
+                @Content(
+                    mediaType = APPLICATION_NDJSON_VALUE,
+                    schema = @Schema(implementation = TransferItemResult.class)))
+      })
+  @PostMapping(
+      path = "transfers/batch",
+      consumes = {APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE},
+      produces = APPLICATION_NDJSON_VALUE)
+  void handleTransferBatch(
+      @Parameter(hidden = true) InputStream body,
+      @Parameter(hidden = true) HttpServletResponse response,
+      @Parameter(hidden = true) @RequestHeader(value = FORWARDED_BY_HEADER, required = false)
+          String forwardedBy,
+      @Parameter(hidden = true) @RequestHeader(value = CLUSTER_SECRET_HEADER, required = false)
+          String clusterSecret)
+      throws IOException;
+
+  record TransferItem(
+      Long senderId,
+      Long receiverId,
+      BigDecimal amount,
+      String currency,
+      String idempotencyKey) {}
+
+  @JsonInclude(Include.NON_NULL)
+  record TransferItemResult(int index, String requestId, TransferStatus status, String error) {}
 }
@@ -1,26 +1,326 @@
 package hu.gerab.payment.rest;
 
 import static java.math.BigDecimal.ZERO;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import hu.gerab.payment.cluster.ClusterForwarder;
+import hu.gerab.payment.cluster.ClusterRouter;
 import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.journal.TransferJournal;
+import hu.gerab.payment.service.AdmissionLimiter;
+import hu.gerab.payment.service.IdempotencyIndex;
+import hu.gerab.payment.service.IdempotencyIndex.Fingerprint;
+import hu.gerab.payment.service.IdempotencyKeyReusedException;
 import hu.gerab.payment.service.PaymentService;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
 import org.springframework.web.bind.annotation.RestController;
 
+@Slf4j
 @RestController
+@ConditionalOnWebApplication(type = Type.SERVLET)
 public class PaymentController implements PaymentAPI {
 
   private final PaymentService paymentService;
+  private final IdempotencyIndex idempotencyIndex;
+  private final AdmissionLimiter admissionLimiter;
+  private final TransferJournal journal;
+  private final ClusterRouter clusterRouter;
+  private final ClusterForwarder clusterForwarder;
+  private final ObjectMapper objectMapper;
+  private final ObjectWriter resultWriter;
+  private final int batchChunkSize;
 
   @Autowired
-  public PaymentController(PaymentService paymentService) {
+  public PaymentController(
+      PaymentService paymentService,
+      IdempotencyIndex idempotencyIndex,
+      AdmissionLimiter admissionLimiter,
+      TransferJournal journal,
+      ClusterRouter clusterRouter,
+      ClusterForwarder clusterForwarder,
+      ObjectMapper objectMapper,
+      @Value("${service.payment.batch.chunk.size}") int batchChunkSize) {
     this.paymentService = paymentService;
+    this.idempotencyIndex = idempotencyIndex;
+    this.admissionLimiter = admissionLimiter;
+    this.journal = journal;
+    this.clusterRouter = clusterRouter;
+    this.clusterForwarder = clusterForwarder;
+    this.objectMapper = objectMapper;
+    this.resultWriter = objectMapper.writerFor(TransferItemResult.class);
+    this.batchChunkSize = batchChunkSize;
   }
 
   @Override
-  public String handleTransfer(Long senderId, Long receiverId, BigDecimal amount, String currency) {
+  public String handleTransfer(
+      Long senderId,
+      Long receiverId,
+      BigDecimal amount,
+      String currency,
+      String idempotencyKey,
+      String forwardedBy,
+      String clusterSecret) {
+    Currency validatedCurrency = validate(senderId, receiverId, amount, currency);
+    String owner =
+        clusterRouter.route(
+            senderId, receiverId, clusterRouter.isMember(forwardedBy, clusterSecret));
+    if (owner != null) {
+      // the owner admits, deduplicates and journals it on its own
+      return clusterForwarder.forwardTransfer(
+          owner, senderId, receiverId, amount, validatedCurrency, idempotencyKey);
+    }
+    // released by the processing once submitted, here otherwise
+    boolean processing = false;
+    try {
+      String requestId = requestId(senderId, idempotencyKey);
+      // admitted before registering the key, so a rejected request can be retried with the same key
+      long startNanos = admissionLimiter.acquire();
+      try {
+        if (!register(
+            idempotencyIndex,
+            requestId,
+            idempotencyKey,
+            senderId,
+            receiverId,
+            amount,
+            validatedCurrency)) {
+          admissionLimiter.onIgnore();
+          return requestId; // a replay, the transfer is already being processed
+        }
+      } catch (IllegalArgumentException e) {
+        admissionLimiter.onIgnore();
+        throw e;
+      }
+
+      long sequence;
+      try {
+        // on the disk before the request id is returned, so it is replayed after a crash
+        sequence =
+            journal.append(
+                new TransferRequest(requestId, senderId, receiverId, amount, validatedCurrency));
+      } catch (RuntimeException e) {
+        rejected(requestId, idempotencyKey);
+        throw e;
+      }
+      try {
+        paymentService
+            .processTransfer(requestId, senderId, receiverId, amount, validatedCurrency)
+            .whenComplete(
+                (result, error) -> {
+                  // the replay skips a written transfer, but can not tell a failed one
+                  journal.markProcessed(
+                      sequence,
+                      error != null || result.getStatus() != TransferStatus.COMPLETED);
+                  if (result != null) {
+                    processed(idempotencyIndex, result, idempotencyKey);
+                  }
+                  admissionLimiter.onSuccess(startNanos);
+                  clusterRouter.release(senderId, receiverId);
+                });
+        processing = true;
+      } catch (RuntimeException e) {
+        // e.g. a full executor or a shut down ledger engine, the transfer was not submitted, so it
+        // must not be replayed, and a retry with the same key is processed
+        journal.markProcessed(sequence, true);
+        rejected(requestId, idempotencyKey);
+        throw e;
+      }
+      return requestId;
+    } finally {
+      if (!processing) {
+        clusterRouter.release(senderId, receiverId);
+      }
+    }
+  }
+
+  private void rejected(String requestId, String idempotencyKey) {
+    admissionLimiter.onDropped();
+    if (idempotencyKey != null && !idempotencyKey.isBlank()) {
+      idempotencyIndex.forget(requestId);
+    }
+  }
+
+  @Override
+  public void handleTransferBatch(
+      InputStream body, HttpServletResponse response, String forwardedBy, String clusterSecret)
+      throws IOException {
+    // a batch takes one slot, its duration tells nothing about the latency of single transfers
+    admissionLimiter.acquire();
+    try {
+      processBatch(body, response, clusterRouter.isMember(forwardedBy, clusterSecret));
+    } finally {
+      admissionLimiter.onIgnore();
+    }
+  }
+
+  private void processBatch(InputStream body, HttpServletResponse response, boolean forwarded)
+      throws IOException {
+    response.setContentType(APPLICATION_NDJSON_VALUE);
+    OutputStream out = response.getOutputStream();
+    // the results of the chunk, null for the items which are passed to the service or forwarded
+    List<TransferItemResult> chunk = new ArrayList<>(batchChunkSize);
+    List<TransferRequest> transfers = new ArrayList<>(batchChunkSize);
+    // the idempotency keys of the transfers, null for the ones without a key
+    List<String> transferKeys = new ArrayList<>(batchChunkSize);
+    // the items of the chunk owned by other members, by their owner and index
+    Map<String, Map<Integer, TransferItem>> forwards = new LinkedHashMap<>();
+    int index = 0;
+    // reads a top level array element by element, or a sequence of root level objects
+    try (MappingIterator<TransferItem> items =
+        objectMapper.readerFor(TransferItem.class).readValues(body)) {
+      while (items.hasNextValue()) {
+        chunk.add(
+            accept(index++, items.nextValue(), forwarded, transfers, transferKeys, forwards));
+        if (chunk.size() == batchChunkSize) {
+          writeChunk(index - chunk.size(), chunk, transfers, transferKeys, forwards, out);
+        }
+      }
+    } catch (JsonProcessingException e) {
+      // the response is already streaming, so the problem is reported as the last item
+      LOGGER.warn("Malformed transfer batch at item={}", index, e);
+      writeChunk(index - chunk.size(), chunk, transfers, transferKeys, forwards, out);
+      write(new TransferItemResult(index, null, TransferStatus.REJECTED, "Malformed item"), out);
+      return;
+    }
+    writeChunk(index - chunk.size(), chunk, transfers, transferKeys, forwards, out);
+  }
+
+  /**
+   * Validates the item, and queues it for processing if it is valid and owned by this member of
+   * the cluster, or for forwarding to its owner otherwise.
+   *
+   * @return the result of the item if it is invalid or a duplicate, null otherwise
+   */
+  private TransferItemResult accept(
+      int index,
+      TransferItem item,
+      boolean forwarded,
+      List<TransferRequest> transfers,
+      List<String> transferKeys,
+      Map<String, Map<Integer, TransferItem>> forwards) {
+    String requestId = null;
+    boolean routedHere = false;
+    try {
+      Currency currency =
+          validate(item.senderId(), item.receiverId(), item.amount(), item.currency());
+      String owner = clusterRouter.route(item.senderId(), item.receiverId(), forwarded);
+      if (owner != null) {
+        forwards.computeIfAbsent(owner, url -> new LinkedHashMap<>()).put(index, item);
+        return null;
+      }
+      routedHere = true;
+      requestId = requestId(item.senderId(), item.idempotencyKey());
+      if (!register(
+          idempotencyIndex,
+          requestId,
+          item.idempotencyKey(),
+          item.senderId(),
+          item.receiverId(),
+          item.amount(),
+          currency)) {
+        clusterRouter.release(item.senderId(), item.receiverId());
+        return new TransferItemResult(index, requestId, TransferStatus.DUPLICATE, null);
+      }
+      transfers.add(
+          new TransferRequest(
+              requestId, item.senderId(), item.receiverId(), item.amount(), currency));
+      transferKeys.add(item.idempotencyKey());
+      return null;
+    } catch (IllegalArgumentException e) {
+      if (routedHere) {
+        clusterRouter.release(item.senderId(), item.receiverId());
+      }
+      return new TransferItemResult(index, requestId, TransferStatus.REJECTED, e.getMessage());
+    }
+  }
+
+  private void writeChunk(
+      int firstIndex,
+      List<TransferItemResult> chunk,
+      List<TransferRequest> transfers,
+      List<String> transferKeys,
+      Map<String, Map<Integer, TransferItem>> forwards,
+      OutputStream out)
+      throws IOException {
+    // one batch per owner, instead of a round-trip per item
+    Map<Integer, TransferItemResult> forwardedResults = new HashMap<>();
+    for (Map.Entry<String, Map<Integer, TransferItem>> owned : forwards.entrySet()) {
+      for (TransferItemResult result :
+          clusterForwarder.forwardItems(owned.getKey(), owned.getValue())) {
+        forwardedResults.put(result.index(), result);
+      }
+    }
+    Iterator<TransferResult> processed;
+    Iterator<String> idempotencyKeys = transferKeys.iterator();
+    try {
+      processed =
+          transfers.isEmpty()
+              ? List.<TransferResult>of().iterator()
+              : paymentService.processTransfers(transfers).iterator();
+    } finally {
+      for (TransferRequest transfer : transfers) {
+        clusterRouter.release(transfer.getSenderId(), transfer.getReceiverId());
+      }
+    }
+    for (int i = 0; i < chunk.size(); i++) {
+      TransferItemResult result = chunk.get(i);
+      if (result == null) {
+        result = forwardedResults.get(firstIndex + i);
+      }
+      if (result == null) {
+        TransferResult transferResult = processed.next();
+        processed(idempotencyIndex, transferResult, idempotencyKeys.next());
+        result =
+            new TransferItemResult(
+                firstIndex + i,
+                transferResult.getRequestId(),
+                transferResult.getStatus(),
+                transferResult.getError());
+      }
+      write(result, out);
+    }
+    out.flush();
+    chunk.clear();
+    transfers.clear();
+    transferKeys.clear();
+    forwards.clear();
+  }
+
+  private void write(TransferItemResult result, OutputStream out) throws IOException {
+    out.write(resultWriter.writeValueAsBytes(result));
+    out.write('\n');
+  }
+
+  // shared with the ReactivePaymentController, so both stacks validate the same way
+  static Currency validate(
+      Long senderId, Long receiverId, BigDecimal amount, String currency) {
+    if (senderId == null || receiverId == null || amount == null || currency == null) {
+      throw new IllegalArgumentException(
+          "The senderId, receiverId, amount and currency are required");
+    }
     Currency validatedCurrency;
     try {
       // we have to leave this case sensitive, for currencies like GBP and GBp where the minor
@@ -36,8 +336,46 @@ public class PaymentController implements PaymentAPI {
     if (senderId.equals(receiverId)) {
       throw new IllegalArgumentException("Sender and Receiver user cannot be the same.");
     }
-    String requestId = UUID.randomUUID().toString();
-    paymentService.processTransfer(requestId, senderId, receiverId, amount, validatedCurrency);
-    return requestId;
+    return validatedCurrency;
+  }
+
+  static String requestId(Long senderId, String idempotencyKey) {
+    if (idempotencyKey == null || idempotencyKey.isBlank()) {
+      return UUID.randomUUID().toString();
+    }
+    return IdempotencyIndex.requestId(senderId, idempotencyKey);
+  }
+
+  /**
+   * @return false if the request is a replay of an already registered one
+   * @throws IdempotencyKeyReusedException if the idempotency key was already used for another
+   *     transfer
+   */
+  static boolean register(
+      IdempotencyIndex idempotencyIndex,
+      String requestId,
+      String idempotencyKey,
+      Long senderId,
+      Long receiverId,
+      BigDecimal amount,
+      Currency currency) {
+    if (idempotencyKey == null || idempotencyKey.isBlank()) {
+      return true;
+    }
+    return idempotencyIndex.register(
+        requestId, Fingerprint.of(senderId, receiverId, amount, currency));
+  }
+
+  /**
+   * Forgets the idempotency key of a failed transfer. Nothing was written, so a retry with the same
+   * key is processed again, instead of being answered as a duplicate without the error.
+   */
+  static void processed(
+      IdempotencyIndex idempotencyIndex, TransferResult result, String idempotencyKey) {
+    if (result.getStatus() == TransferStatus.FAILED
+        && idempotencyKey != null
+        && !idempotencyKey.isBlank()) {
+      idempotencyIndex.forget(result.getRequestId());
+    }
   }
 }
@@ -0,0 +1,95 @@
+package hu.gerab.payment.rest;
+
+import static io.swagger.v3.oas.annotations.enums.ParameterIn.HEADER;
+import static io.swagger.v3.oas.annotations.enums.ParameterIn.QUERY;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
+
+import hu.gerab.payment.rest.PaymentAPI.TransferItem;
+import hu.gerab.payment.rest.PaymentAPI.TransferItemResult;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.ArraySchema;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.ws.rs.QueryParam;
+import java.math.BigDecimal;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The endpoints of the {@link PaymentAPI}, served by WebFlux in the reactive mode, with the same
+ * paths, parameters and bodies.
+ */
+@RequestMapping("payment")
+@Tag(name = "Payment")
+public interface ReactivePaymentAPI {
+
+  /**
+   * As {@link PaymentAPI#handleTransfer(Long, Long, BigDecimal, String, String)}, but the request
+   * id is returned once the transfer is committed, or failed.
+   */
+  @Operation(
+      summary = "Handles a simple transaction for the user",
+      responses = {
+        @ApiResponse(content = @Content(schema = @Schema(implementation = String.class)))
+      })
+  @PostMapping("transfer")
+  Mono<String> handleTransfer(
+      @Parameter(description = "The id of the user sending the money", in = QUERY)
+          @QueryParam("senderId")
+          Long senderId,
+      @Parameter(description = "The id of the user receiving the money", in = QUERY)
+          @QueryParam("receiverId")
+          Long receiverId,
+      @Parameter(
+              description =
+                  "The amount with which to change the user balance. Only non-zero amounts are valid",
+              in = QUERY)
+          @QueryParam("amount")
+          BigDecimal amount,
+      @Parameter(description = "The currency of the transaction", in = QUERY)
+          @QueryParam("currency")
+          String currency,
+      @Parameter(
+              description =
+                  "Optional client generated key of the transfer. Requests of the same sender with"
+                      + " the same key are executed only once",
+              in = HEADER)
+          @RequestHeader(value = PaymentAPI.IDEMPOTENCY_KEY_HEADER, required = false)
+          String idempotencyKey);
+
+  /**
+   * As {@link PaymentAPI#handleTransferBatch}, a JSON array or newline delimited JSON objects of
+   * {@link TransferItem}s, answered with a newline delimited {@link TransferItemResult} for each
+   * item, in the order of the request. The items are processed one after the other, each is
+   * written as soon as it is committed.
+   */
+  @Operation(
+      summary = "Handles a batch of transactions",
+      requestBody =
+          @io.swagger.v3.oas.annotations.parameters.RequestBody(
+              content =
+                  @Content(
+                      array =
+                          @ArraySchema(schema = @Schema(implementation = TransferItem.class)))),
+      responses = {
+        @ApiResponse(
+            content =
+                @Content(
+                    mediaType = APPLICATION_NDJSON_VALUE,
+                    schema = @Schema(implementation = TransferItemResult.class)))
+      })
+  @PostMapping(
+      path = "transfers/batch",
+      consumes = {APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE},
+      produces = APPLICATION_NDJSON_VALUE)
+  Flux<TransferItemResult> handleTransferBatch(
+      @Parameter(hidden = true) @RequestBody Flux<TransferItem> items);
+}
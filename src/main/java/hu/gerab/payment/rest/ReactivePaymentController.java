@@ -0,0 +1,153 @@
+package hu.gerab.payment.rest;
+
+import static hu.gerab.payment.rest.PaymentController.processed;
+import static hu.gerab.payment.rest.PaymentController.register;
+import static hu.gerab.payment.rest.PaymentController.requestId;
+import static hu.gerab.payment.rest.PaymentController.validate;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.rest.PaymentAPI.TransferItem;
+import hu.gerab.payment.rest.PaymentAPI.TransferItemResult;
+import hu.gerab.payment.service.AdmissionLimiter;
+import hu.gerab.payment.service.IdempotencyIndex;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import hu.gerab.payment.service.ReactivePaymentService;
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The transfer endpoints of the reactive mode. The requests are validated, admitted and
+ * deduplicated the same way as by the {@link PaymentController}, but the transfers are not
+ * journaled: the response waits for the commit of the transfer instead, without holding a thread.
+ */
+@Slf4j
+@RestController
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "reactive")
+@ConditionalOnWebApplication(type = Type.REACTIVE)
+public class ReactivePaymentController implements ReactivePaymentAPI {
+
+  private final ReactivePaymentService paymentService;
+  private final IdempotencyIndex idempotencyIndex;
+  private final AdmissionLimiter admissionLimiter;
+
+  @Autowired
+  public ReactivePaymentController(
+      ReactivePaymentService paymentService,
+      IdempotencyIndex idempotencyIndex,
+      AdmissionLimiter admissionLimiter) {
+    this.paymentService = paymentService;
+    this.idempotencyIndex = idempotencyIndex;
+    this.admissionLimiter = admissionLimiter;
+  }
+
+  @Override
+  public Mono<String> handleTransfer(
+      Long senderId,
+      Long receiverId,
+      BigDecimal amount,
+      String currency,
+      String idempotencyKey) {
+    Currency validatedCurrency = validate(senderId, receiverId, amount, currency);
+    String requestId = requestId(senderId, idempotencyKey);
+    // admitted before registering the key, so a rejected request can be retried with the same key
+    long startNanos = admissionLimiter.acquire();
+    try {
+      if (!register(
+          idempotencyIndex,
+          requestId,
+          idempotencyKey,
+          senderId,
+          receiverId,
+          amount,
+          validatedCurrency)) {
+        admissionLimiter.onIgnore();
+        return Mono.just(requestId); // a replay, the transfer is already being processed
+      }
+    } catch (IllegalArgumentException e) {
+      admissionLimiter.onIgnore();
+      throw e;
+    }
+    TransferRequest request =
+        new TransferRequest(requestId, senderId, receiverId, amount, validatedCurrency);
+    return uncancellable(
+            paymentService
+                .transfer(request)
+                .doOnSuccess(
+                    result -> {
+                      admissionLimiter.onSuccess(startNanos);
+                      processed(idempotencyIndex, result, idempotencyKey);
+                    }))
+        .thenReturn(requestId);
+  }
+
+  @Override
+  public Flux<TransferItemResult> handleTransferBatch(Flux<TransferItem> items) {
+    // a batch takes one slot, its duration tells nothing about the latency of single transfers
+    admissionLimiter.acquire();
+    AtomicInteger index = new AtomicInteger();
+    return items
+        .concatMap(item -> process(index.getAndIncrement(), item))
+        .onErrorResume(
+            ServerWebInputException.class,
+            e -> {
+              // the response is already streaming, so the problem is reported as the last item
+              LOGGER.warn("Malformed transfer batch at item={}", index.get(), e);
+              return Mono.just(
+                  new TransferItemResult(
+                      index.get(), null, TransferStatus.REJECTED, "Malformed item"));
+            })
+        .doFinally(signal -> admissionLimiter.onIgnore());
+  }
+
+  private Mono<TransferItemResult> process(int index, TransferItem item) {
+    String requestId = null;
+    TransferRequest request;
+    try {
+      Currency currency =
+          validate(item.senderId(), item.receiverId(), item.amount(), item.currency());
+      requestId = requestId(item.senderId(), item.idempotencyKey());
+      if (!register(
+          idempotencyIndex,
+          requestId,
+          item.idempotencyKey(),
+          item.senderId(),
+          item.receiverId(),
+          item.amount(),
+          currency)) {
+        return Mono.just(new TransferItemResult(index, requestId, TransferStatus.DUPLICATE, null));
+      }
+      request =
+          new TransferRequest(
+              requestId, item.senderId(), item.receiverId(), item.amount(), currency);
+    } catch (IllegalArgumentException e) {
+      return Mono.just(
+          new TransferItemResult(index, requestId, TransferStatus.REJECTED, e.getMessage()));
+    }
+    return uncancellable(paymentService.transfer(request))
+        .map(
+            result -> {
+              processed(idempotencyIndex, result, item.idempotencyKey());
+              return new TransferItemResult(
+                  index, result.getRequestId(), result.getStatus(), result.getError());
+            });
+  }
+
+  /**
+   * The transfer is processed even if the client goes away meanwhile, as by the spring mvc
+   * endpoints, instead of being rolled back on the cancellation of the response.
+   */
+  private static Mono<TransferResult> uncancellable(Mono<TransferResult> transfer) {
+    return Mono.fromFuture(transfer::toFuture, true);
+  }
+}
@@ -0,0 +1,85 @@
+package hu.gerab.payment.rest;
+
+import hu.gerab.payment.service.AdmissionRejectedException;
+import hu.gerab.payment.service.IdempotencyKeyReusedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientResponseException;
+
+/**
+ * Turns the overload of the service into explicit, retryable responses instead of internal server
+ * errors, so the clients can back off.
+ */
+@Slf4j
+@RestControllerAdvice
+public class RestExceptionHandler {
+
+  private final long retryAfterSeconds;
+  private final Counter executorRejections;
+
+  public RestExceptionHandler(
+      @Value("${service.payment.admission.retry.after.seconds}") long retryAfterSeconds,
+      MeterRegistry meterRegistry) {
+    this.retryAfterSeconds = retryAfterSeconds;
+    this.executorRejections =
+        Counter.builder("payment.executor.rejections")
+            .description("Transfers admitted, but rejected by the full payment service executor")
+            .register(meterRegistry);
+  }
+
+  /** The admission limit is reached, the client should slow down. */
+  @ExceptionHandler(AdmissionRejectedException.class)
+  public ResponseEntity<String> handleAdmissionRejected(AdmissionRejectedException e) {
+    return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+        .body(e.getMessage());
+  }
+
+  /** The idempotency key was already used for another transfer, retrying it will not help. */
+  @ExceptionHandler(IdempotencyKeyReusedException.class)
+  public ResponseEntity<String> handleIdempotencyKeyReused(IdempotencyKeyReusedException e) {
+    return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(e.getMessage());
+  }
+
+  /** The executor queue is full even though the transfer was admitted, the service is overloaded. */
+  @ExceptionHandler(TaskRejectedException.class)
+  public ResponseEntity<String> handleTaskRejected(TaskRejectedException e) {
+    LOGGER.warn("Payment service executor rejected a transfer: {}", e.getMessage());
+    executorRejections.increment();
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+        .body("The service is overloaded, please retry later");
+  }
+
+  /** The member of the cluster owning a forwarded transfer answered with an error, passed on. */
+  @ExceptionHandler(RestClientResponseException.class)
+  public ResponseEntity<String> handleOwnerError(RestClientResponseException e) {
+    ResponseEntity.BodyBuilder response = ResponseEntity.status(e.getStatusCode());
+    HttpHeaders headers = e.getResponseHeaders();
+    if (headers != null && headers.getFirst(HttpHeaders.RETRY_AFTER) != null) {
+      response.header(HttpHeaders.RETRY_AFTER, headers.getFirst(HttpHeaders.RETRY_AFTER));
+    }
+    return response.body(e.getResponseBodyAsString());
+  }
+
+  /**
+   * The member of the cluster owning a forwarded transfer did not answer, it may be restarting or
+   * leaving. It may have processed the transfer, so the client should retry with the same key.
+   */
+  @ExceptionHandler(ResourceAccessException.class)
+  public ResponseEntity<String> handleOwnerUnavailable(ResourceAccessException e) {
+    LOGGER.warn("Failed to forward a transfer to its owner: {}", e.getMessage());
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+        .body("The owner of the transfer is unavailable, please retry later");
+  }
+}
@@ -0,0 +1,96 @@
+package hu.gerab.payment.rest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Writes the rows of a {@link hu.gerab.payment.repository.TransactionStatement} as RFC 4180 CSV
+ * lines, straight from the result set. The sender_amount and receiver_amount are the amounts in the
+ * currencies of the accounts, empty if it is the currency of the transfer.
+ */
+class TransactionCsvWriter implements RowCallbackHandler {
+
+  static final String HEADER =
+      "id,inserted,request_id,sender_id,receiver_id,amount,currency,sender_amount,receiver_amount";
+
+  private final Writer writer;
+  private long rows;
+
+  TransactionCsvWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  void writeHeader() throws IOException {
+    writer.write(HEADER);
+    writer.write("\r\n");
+  }
+
+  /**
+   * @throws UncheckedIOException if the line could not be written, e.g. the client went away
+   */
+  @Override
+  public void processRow(ResultSet rs) throws SQLException {
+    try {
+      writer.write(Long.toString(rs.getLong("id")));
+      writer.write(',');
+      Timestamp inserted = rs.getTimestamp("inserted");
+      writer.write(inserted.toInstant().toString());
+      writer.write(',');
+      writeText(rs.getString("request_id"));
+      writer.write(',');
+      writeId(rs.getLong("sender_id"), rs.wasNull());
+      writer.write(',');
+      writeId(rs.getLong("receiver_id"), rs.wasNull());
+      writer.write(',');
+      writeAmount(rs.getBigDecimal("amount"));
+      writer.write(',');
+      writer.write(rs.getString("currency"));
+      writer.write(',');
+      writeAmount(rs.getBigDecimal("sender_amount"));
+      writer.write(',');
+      writeAmount(rs.getBigDecimal("receiver_amount"));
+      writer.write("\r\n");
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    rows++;
+  }
+
+  long getRows() {
+    return rows;
+  }
+
+  private void writeId(long id, boolean isNull) throws IOException {
+    if (!isNull) {
+      writer.write(Long.toString(id));
+    }
+  }
+
+  private void writeAmount(BigDecimal amount) throws IOException {
+    if (amount != null) {
+      writer.write(amount.toPlainString());
+    }
+  }
+
+  private void writeText(String text) throws IOException {
+    if (text == null) {
+      return;
+    }
+    if (text.indexOf(',') < 0
+        && text.indexOf('"') < 0
+        && text.indexOf('\r') < 0
+        && text.indexOf('\n') < 0) {
+      writer.write(text);
+      return;
+    }
+    writer.write('"');
+    writer.write(text.replace("\"", "\"\""));
+    writer.write('"');
+  }
+}
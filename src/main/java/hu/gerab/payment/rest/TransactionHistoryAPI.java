@@ -0,0 +1,80 @@
+package hu.gerab.payment.rest;
+
+import static io.swagger.v3.oas.annotations.enums.ParameterIn.PATH;
+import static io.swagger.v3.oas.annotations.enums.ParameterIn.QUERY;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+import hu.gerab.payment.domain.Currency;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+@RequestMapping("users")
+@Tag(name = "Transaction history")
+public interface TransactionHistoryAPI {
+
+  /**
+   * Returns a page of the sent or received transactions of the user, newest first, e.g. GET
+   * localhost:8080/users/2/transactions/sent?limit=100. The next page is requested with the
+   * nextCursor of the page, which is missing from the last page.
+   *
+   * <p>The page is streamed as it is read from the database, as a {@link TransactionPage}.
+   */
+  @Operation(
+      summary = "Returns a page of the transaction history of the user",
+      responses = {
+        @ApiResponse(
+            content =
+                @Content(
+                    mediaType = APPLICATION_JSON_VALUE,
+                    schema = @Schema(implementation = TransactionPage.class)))
+      })
+  @GetMapping(path = "{userId}/transactions/{direction}", produces = APPLICATION_JSON_VALUE)
+  void getTransactions(
+      @Parameter(description = "The id of the user", in = PATH) @PathVariable("userId")
+          Long userId,
+      @Parameter(description = "sent or received", in = PATH) @PathVariable("direction")
+          String direction,
+      @Parameter(
+              description = "The nextCursor of the previous page, none for the first page",
+              in = QUERY)
+          @RequestParam(value = "cursor", required = false)
+          String cursor,
+      @Parameter(description = "The maximum number of transactions in the page", in = QUERY)
+          @RequestParam(value = "limit", required = false)
+          Integer limit,
+      @Parameter(hidden = true) HttpServletResponse response)
+      throws IOException;
+
+  /**
+   * @param senderAmount the amount debited in the currency of the sender, null if it is the
+   *     currency of the transfer
+   * @param receiverAmount the amount credited in the currency of the receiver, null if it is the
+   *     currency of the transfer
+   */
+  record TransactionItem(
+      Long id,
+      Long senderId,
+      Long receiverId,
+      String requestId,
+      BigDecimal amount,
+      Currency currency,
+      BigDecimal senderAmount,
+      BigDecimal receiverAmount,
+      Instant inserted) {}
+
+  /** Only documents the response, which is streamed. */
+  record TransactionPage(List<TransactionItem> transactions, String nextCursor) {}
+}
@@ -0,0 +1,108 @@
+package hu.gerab.payment.rest;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import hu.gerab.payment.repository.TransactionHistory;
+import hu.gerab.payment.repository.TransactionHistory.Cursor;
+import hu.gerab.payment.repository.TransactionHistory.Direction;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+@RestController
+// served by spring mvc only, the reactive mode serves the transfer endpoints
+@ConditionalOnWebApplication(type = Type.SERVLET)
+public class TransactionHistoryController implements TransactionHistoryAPI {
+
+  private final TransactionHistory transactionHistory;
+  private final ObjectMapper objectMapper;
+  private final ObjectWriter itemWriter;
+  private final int defaultLimit;
+  private final int maxLimit;
+
+  @Autowired
+  public TransactionHistoryController(
+      TransactionHistory transactionHistory,
+      ObjectMapper objectMapper,
+      @Value("${service.history.page.size.default}") int defaultLimit,
+      @Value("${service.history.page.size.max}") int maxLimit) {
+    this.transactionHistory = transactionHistory;
+    this.objectMapper = objectMapper;
+    this.itemWriter = objectMapper.writerFor(TransactionItem.class);
+    this.defaultLimit = defaultLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  @Override
+  public void getTransactions(
+      Long userId, String direction, String cursor, Integer limit, HttpServletResponse response)
+      throws IOException {
+    Direction validatedDirection;
+    Cursor after;
+    try {
+      validatedDirection = direction(direction);
+      after = cursor == null || cursor.isBlank() ? null : Cursor.decode(cursor);
+    } catch (IllegalArgumentException e) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+    }
+    int pageSize = limit == null ? defaultLimit : limit;
+    if (pageSize < 1 || pageSize > maxLimit) {
+      throw new ResponseStatusException(
+          HttpStatus.BAD_REQUEST, "The limit must be between 1 and " + maxLimit);
+    }
+
+    response.setContentType(APPLICATION_JSON_VALUE);
+    try (JsonGenerator generator =
+        objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+      generator.writeStartObject();
+      generator.writeArrayFieldStart("transactions");
+      Cursor next =
+          transactionHistory.forEach(
+              userId,
+              validatedDirection,
+              after,
+              pageSize,
+              transaction -> {
+                try {
+                  itemWriter.writeValue(
+                      generator,
+                      new TransactionItem(
+                          transaction.getId(),
+                          transaction.getSenderId(),
+                          transaction.getReceiverId(),
+                          transaction.getRequestId(),
+                          transaction.getAmount(),
+                          transaction.getCurrency(),
+                          transaction.getSenderAmount(),
+                          transaction.getReceiverAmount(),
+                          transaction.getInserted()));
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              });
+      generator.writeEndArray();
+      if (next != null) {
+        generator.writeStringField("nextCursor", next.encode());
+      }
+      generator.writeEndObject();
+    }
+  }
+
+  private static Direction direction(String direction) {
+    return switch (direction) {
+      case "sent" -> Direction.SENT;
+      case "received" -> Direction.RECEIVED;
+      default -> throw new IllegalArgumentException("Unknown direction=" + direction);
+    };
+  }
+}
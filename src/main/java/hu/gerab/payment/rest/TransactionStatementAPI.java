@@ -0,0 +1,54 @@
+package hu.gerab.payment.rest;
+
+import static io.swagger.v3.oas.annotations.enums.ParameterIn.QUERY;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import java.time.Instant;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+@RequestMapping("statements")
+@Tag(name = "Transaction statements")
+public interface TransactionStatementAPI {
+
+  String TEXT_CSV_VALUE = "text/csv";
+
+  /**
+   * Exports the transactions of a user and/or a time range as CSV, oldest first, e.g. GET
+   * localhost:8080/statements?userId=2&from=2025-01-01T00:00:00Z&to=2025-02-01T00:00:00Z. At least
+   * a user or one end of the range is required.
+   *
+   * <p>The statement is streamed with chunked encoding as it is read from the database, gzipped if
+   * the request accepts gzip encoding, so statements of any size can be exported.
+   */
+  @Operation(
+      summary = "Exports the statement of the transactions of a user and/or a time range as CSV",
+      responses = {@ApiResponse(content = @Content(mediaType = TEXT_CSV_VALUE))})
+  @GetMapping(produces = TEXT_CSV_VALUE)
+  ResponseEntity<StreamingResponseBody> exportStatement(
+      @Parameter(description = "The sender or receiver of the transactions", in = QUERY)
+          @RequestParam(value = "userId", required = false)
+          Long userId,
+      @Parameter(
+              description = "The inclusive start of the range, e.g. 2025-01-01T00:00:00Z",
+              in = QUERY)
+          @RequestParam(value = "from", required = false)
+          Instant from,
+      @Parameter(
+              description = "The exclusive end of the range, e.g. 2025-02-01T00:00:00Z",
+              in = QUERY)
+          @RequestParam(value = "to", required = false)
+          Instant to,
+      @Parameter(hidden = true)
+          @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false)
+          String acceptEncoding);
+}
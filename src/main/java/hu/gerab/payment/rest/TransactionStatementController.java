@@ -0,0 +1,109 @@
+package hu.gerab.payment.rest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import hu.gerab.payment.repository.TransactionStatement;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.zip.GZIPOutputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+@Slf4j
+@RestController
+@ConditionalOnWebApplication(type = Type.SERVLET)
+public class TransactionStatementController implements TransactionStatementAPI {
+
+  private static final MediaType TEXT_CSV = new MediaType("text", "csv", UTF_8);
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final TransactionStatement transactionStatement;
+
+  @Autowired
+  public TransactionStatementController(TransactionStatement transactionStatement) {
+    this.transactionStatement = transactionStatement;
+  }
+
+  @Override
+  public ResponseEntity<StreamingResponseBody> exportStatement(
+      Long userId, Instant from, Instant to, String acceptEncoding) {
+    if (userId == null && from == null && to == null) {
+      throw new ResponseStatusException(
+          HttpStatus.BAD_REQUEST, "A userId or a from/to range is required");
+    }
+    if (from != null && to != null && !from.isBefore(to)) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from must be before to");
+    }
+    boolean gzip = acceptsGzip(acceptEncoding);
+    String filename = "statement-" + (userId == null ? "all" : userId) + ".csv";
+
+    // no content length, so the body is sent with chunked encoding as it is written
+    ResponseEntity.BodyBuilder response =
+        ResponseEntity.ok()
+            .contentType(TEXT_CSV)
+            .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+            .header(
+                HttpHeaders.CONTENT_DISPOSITION,
+                ContentDisposition.attachment().filename(filename).build().toString());
+    if (gzip) {
+      response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+    }
+    return response.body(out -> export(userId, from, to, gzip, out));
+  }
+
+  private void export(Long userId, Instant from, Instant to, boolean gzip, OutputStream out)
+      throws IOException {
+    long start = System.nanoTime();
+    OutputStream target = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(target, UTF_8), BUFFER_SIZE)) {
+      TransactionCsvWriter csvWriter = new TransactionCsvWriter(writer);
+      csvWriter.writeHeader();
+      transactionStatement.forEach(userId, from, to, csvWriter);
+      LOGGER.info(
+          "Exported statement of {} transactions for userId={}, from={}, to={} in {} ms",
+          csvWriter.getRows(),
+          userId,
+          from,
+          to,
+          (System.nanoTime() - start) / 1_000_000);
+    } catch (UncheckedIOException e) {
+      // the client went away, the cursor and its transaction are already closed
+      LOGGER.warn("Aborted statement export for userId={}: {}", userId, e.getCause().toString());
+      throw e.getCause();
+    }
+  }
+
+  /** True if the Accept-Encoding header accepts gzip, i.e. lists it without q=0. */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          if (parts[i].replace(" ", "").matches("q=0(\\.0*)?")) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,165 @@
+package hu.gerab.payment.service;
+
+import static java.math.BigDecimal.ZERO;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Outcome;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import hu.gerab.payment.service.MessagingService.TransactionNotification.TransactionNotificationBuilder;
+import java.math.BigDecimal;
+import java.util.Objects;
+import lombok.extern.slf4j.Slf4j;
+
+/** Validation and notification logic shared by the different transfer processing strategies. */
+@Slf4j
+abstract class AbstractPaymentService implements PaymentService {
+
+  protected static final String UNSUPPORTED_EXCHANGE_ERROR =
+      "The amount cannot be exchanged between the currencies of the accounts.";
+  private static final String UNSUPPORTED_TRANSFER_ERROR =
+      "Withdrawals and topups are not yet supported";
+
+  protected final MessagingService messagingService;
+  protected final PaymentMetrics metrics;
+
+  protected AbstractPaymentService(MessagingService messagingService, PaymentMetrics metrics) {
+    this.messagingService = messagingService;
+    this.metrics = metrics;
+  }
+
+  protected static TransactionNotificationBuilder notificationBuilder(
+      String requestId, Long senderId, Long receiverId, BigDecimal amount, Currency currency) {
+    return TransactionNotification.builder()
+        .requestId(requestId)
+        .senderId(senderId)
+        .receiverId(receiverId)
+        .amount(amount)
+        .currency(currency.getHumanFriendlyName());
+  }
+
+  protected static TransactionNotificationBuilder notificationBuilder(TransferRequest request) {
+    return notificationBuilder(
+        request.getRequestId(),
+        request.getSenderId(),
+        request.getReceiverId(),
+        request.getAmount(),
+        request.getCurrency());
+  }
+
+  /** The notification of a completed transfer, built without a builder, for the hot path. */
+  protected static TransactionNotification completedNotification(TransferRequest request) {
+    return new TransactionNotification(
+        request.getSenderId(),
+        request.getReceiverId(),
+        request.getRequestId(),
+        request.getAmount(),
+        request.getCurrency().getHumanFriendlyName(),
+        true,
+        null);
+  }
+
+  /**
+   * Validates the parts of the transfer request which do not require any user data. In case the
+   * validation fails the sender is notified.
+   *
+   * @return null if the transfer may proceed, the reason of the failure otherwise
+   * @throws UnsupportedOperationException in case of a withdrawal or topup request
+   */
+  protected String checkPreconditions(
+      TransactionNotificationBuilder notificationBuilder,
+      Long senderId,
+      Long receiverId,
+      BigDecimal amount) {
+    String error = preconditionError(senderId, receiverId, amount);
+    if (error != null) {
+      rejectPreconditions(notificationBuilder, error);
+    }
+    return error;
+  }
+
+  /**
+   * As {@link #checkPreconditions(TransactionNotificationBuilder, Long, Long, BigDecimal)}, only
+   * building the notification of the request if the validation fails.
+   */
+  protected String checkPreconditions(TransferRequest request) {
+    String error =
+        preconditionError(request.getSenderId(), request.getReceiverId(), request.getAmount());
+    if (error != null) {
+      rejectPreconditions(notificationBuilder(request), error);
+    }
+    return error;
+  }
+
+  private static String preconditionError(Long senderId, Long receiverId, BigDecimal amount) {
+    if (Objects.equals(senderId, receiverId)) {
+      return "Sender and receiver account cannot be the same";
+    } else if (senderId == null || receiverId == null) {
+      // TODO handle topups and withdrawals separately - not in scope
+      return UNSUPPORTED_TRANSFER_ERROR;
+    } else if (ZERO.compareTo(amount) >= 0) {
+      return "Transfer requires a positive amount";
+    }
+    return null;
+  }
+
+  private void rejectPreconditions(
+      TransactionNotificationBuilder notificationBuilder, String error) {
+    metrics.recordOutcome(Outcome.INVALID);
+    sendFailMessage(notificationBuilder, error);
+    if (UNSUPPORTED_TRANSFER_ERROR.equals(error)) {
+      throw new UnsupportedOperationException(error);
+    }
+  }
+
+  /**
+   * Notifies the users about the outcome of a processed transfer, and returns it to the caller.
+   *
+   * @param completionNotified true if the notification of a completed transfer was already written
+   *     to the outbox with the transfer
+   */
+  protected TransferResult report(
+      TransferRequest request,
+      TransactionNotificationBuilder notificationBuilder,
+      Outcome outcome,
+      boolean completionNotified) {
+    String requestId = request.getRequestId();
+    metrics.recordOutcome(outcome);
+    return switch (outcome) {
+      case COMPLETED -> {
+        if (!completionNotified) {
+          messagingService.sendTransactionNotification(
+              notificationBuilder.successful(true).build());
+        }
+        yield TransferResult.completed(requestId);
+      }
+      case INSUFFICIENT_BALANCE -> {
+        sendFailMessage(notificationBuilder, "Insufficient user balance.");
+        yield TransferResult.failed(requestId, "Insufficient user balance.");
+      }
+      case MISSING_RECEIVER -> {
+        Long receiverId = request.getReceiverId();
+        LOGGER.error("No user exists for receiverId={} for requestId={}", receiverId, requestId);
+        String message = "No user exists for receiver id=" + receiverId;
+        sendFailMessage(notificationBuilder, message);
+        yield TransferResult.failed(requestId, message);
+      }
+      case UNSUPPORTED_EXCHANGE -> {
+        sendFailMessage(notificationBuilder, UNSUPPORTED_EXCHANGE_ERROR);
+        yield TransferResult.failed(requestId, UNSUPPORTED_EXCHANGE_ERROR);
+      }
+      case MISSING_SENDER -> {
+        Long senderId = request.getSenderId();
+        LOGGER.error("No user exists for senderId={} for requestId={}", senderId, requestId);
+        yield TransferResult.failed(requestId, "No user exists for sender id=" + senderId);
+      }
+      default -> throw new IllegalStateException("Unexpected transfer outcome=" + outcome);
+    };
+  }
+
+  protected void sendFailMessage(TransactionNotificationBuilder notificationBuilder, String error) {
+    TransactionNotification notification =
+        notificationBuilder.successful(false).error(error).build();
+    messagingService.sendTransactionNotification(notification.getSenderId(), notification);
+  }
+}
@@ -0,0 +1,167 @@
+package hu.gerab.payment.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control in front of the transfer processing. Limits the number of transfers accepted
+ * but not yet completed, so the work queued behind the payment service executor - and with it
+ * the latency of the accepted requests - stays bounded, and the excess is rejected right away.
+ *
+ * <p>The limit adapts to the measured latency of the completed transfers, which includes the
+ * time spent waiting in the queue (AIMD): it is increased by one for every transfer completing in
+ * time while the limit is in use, and it is multiplied by the backoff ratio if a transfer took
+ * longer than the latency threshold or was dropped. The transfers completing together are slow for
+ * the same reason, so the limit is decreased at most once per latency threshold, otherwise a burst
+ * of slow transfers would drop it straight to the minimum.
+ *
+ * <p>Every successful {@link #tryAcquire()} must be followed by exactly one of {@link
+ * #onSuccess(long)}, {@link #onIgnore()} or {@link #onDropped()}.
+ */
+@Component
+public class AdmissionLimiter {
+
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final int minLimit;
+  private final int maxLimit;
+  private final long latencyThresholdNanos;
+  private final double backoffRatio;
+  private final long retryAfterSeconds;
+  private final LongSupplier clock;
+  private final Counter rejections;
+  // only changed while holding the monitor, read without it
+  private volatile double limit;
+  private long lastDecreaseNanos;
+
+  @Autowired
+  public AdmissionLimiter(
+      @Value("${service.payment.admission.limit.initial}") int initialLimit,
+      @Value("${service.payment.admission.limit.min}") int minLimit,
+      @Value("${service.payment.admission.limit.max}") int maxLimit,
+      @Value("${service.payment.admission.latency.threshold.millis}") long latencyThresholdMillis,
+      @Value("${service.payment.admission.backoff.ratio}") double backoffRatio,
+      @Value("${service.payment.admission.retry.after.seconds}") long retryAfterSeconds,
+      MeterRegistry meterRegistry) {
+    this(
+        initialLimit,
+        minLimit,
+        maxLimit,
+        latencyThresholdMillis,
+        backoffRatio,
+        retryAfterSeconds,
+        meterRegistry,
+        System::nanoTime);
+  }
+
+  AdmissionLimiter(
+      int initialLimit,
+      int minLimit,
+      int maxLimit,
+      long latencyThresholdMillis,
+      double backoffRatio,
+      long retryAfterSeconds,
+      MeterRegistry meterRegistry,
+      LongSupplier clock) {
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.latencyThresholdNanos = MILLISECONDS.toNanos(latencyThresholdMillis);
+    this.backoffRatio = backoffRatio;
+    this.retryAfterSeconds = retryAfterSeconds;
+    this.clock = clock;
+    this.lastDecreaseNanos = clock.getAsLong() - latencyThresholdNanos;
+    this.rejections =
+        Counter.builder("payment.admission.rejections")
+            .description("Transfer requests rejected by the admission limit")
+            .register(meterRegistry);
+    Gauge.builder("payment.admission.limit", this, AdmissionLimiter::getLimit)
+        .description("Current limit of the concurrently processed transfers")
+        .register(meterRegistry);
+    Gauge.builder("payment.admission.inflight", inflight, AtomicInteger::get)
+        .description("Transfers accepted, but not yet completed")
+        .register(meterRegistry);
+  }
+
+  /**
+   * @return the start time of the admitted transfer, to be passed to {@link #onSuccess(long)}
+   * @throws AdmissionRejectedException if the limit is reached
+   */
+  public long acquire() {
+    if (!tryAcquire()) {
+      throw new AdmissionRejectedException(
+          "Too many transfers are being processed, please retry later", retryAfterSeconds);
+    }
+    return clock.getAsLong();
+  }
+
+  /**
+   * @return true if the transfer is admitted, false if the limit is reached
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inflight.get();
+      if (current >= (int) limit) {
+        rejections.increment();
+        return false;
+      }
+      if (inflight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /** The admitted transfer was processed, its latency is used to adjust the limit. */
+  public void onSuccess(long startNanos) {
+    long latency = clock.getAsLong() - startNanos;
+    int current = inflight.getAndDecrement();
+    if (latency > latencyThresholdNanos) {
+      decrease(startNanos + latency);
+    } else if (current * 2 >= limit) {
+      // only grow while the limit is actually in use, otherwise it says nothing about capacity
+      increase();
+    }
+  }
+
+  /** The admitted transfer was not processed, so it tells nothing about the capacity. */
+  public void onIgnore() {
+    inflight.decrementAndGet();
+  }
+
+  /** The admitted transfer was rejected further down, the limit has to be decreased. */
+  public void onDropped() {
+    inflight.decrementAndGet();
+    decrease(clock.getAsLong());
+  }
+
+  public double getLimit() {
+    return limit;
+  }
+
+  public int getInflight() {
+    return inflight.get();
+  }
+
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  private synchronized void increase() {
+    limit = Math.min(maxLimit, limit + 1);
+  }
+
+  private synchronized void decrease(long nowNanos) {
+    if (nowNanos - lastDecreaseNanos < latencyThresholdNanos) {
+      return;
+    }
+    lastDecreaseNanos = nowNanos;
+    limit = Math.max(minLimit, limit * backoffRatio);
+  }
+}
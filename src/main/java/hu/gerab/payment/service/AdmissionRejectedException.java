@@ -0,0 +1,15 @@
+package hu.gerab.payment.service;
+
+import lombok.Getter;
+
+/** Thrown when a transfer request is not admitted for processing because of the load. */
+@Getter
+public class AdmissionRejectedException extends RuntimeException {
+
+  private final long retryAfterSeconds;
+
+  public AdmissionRejectedException(String message, long retryAfterSeconds) {
+    super(message);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+}
@@ -0,0 +1,222 @@
+package hu.gerab.payment.service;
+
+import static hu.gerab.payment.config.AsyncConfig.PAYMENT_SERVICE_EXECUTOR;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Transaction;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Outcome;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.SequenceBlockAllocator;
+import hu.gerab.payment.service.MessagingService.TransactionNotification.TransactionNotificationBuilder;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+/**
+ * Payment service executing every transfer as a single Postgres statement, so a transfer costs one
+ * round-trip, and neither a Hibernate session nor the balance arithmetic in Java is involved.
+ * Activated with service.payment.mode=atomic, requires Postgres, as H2 does not support data
+ * modifying common table expressions.
+ *
+ * <p>The statement locks both users in id order, so opposite transfers cannot deadlock, debits the
+ * sender only if both users exist and its balance covers the amount, then credits the receiver and
+ * inserts the transaction only if the sender was debited. With the outbox enabled the messages of
+ * the notification are inserted by the same statement. It runs in auto-commit, the statement is
+ * its own transaction, and its result tells the outcome of the transfer.
+ *
+ * <p>The exchange rates are not available to the statement, so only the transfers between accounts
+ * of the currency of the transfer are executed, the others fail as unsupported exchanges.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "atomic")
+public class AtomicPaymentService extends AbstractPaymentService {
+
+  private static final String TRANSFER =
+      "WITH locked AS ("
+          + " SELECT id, currency FROM users WHERE id IN (?, ?) ORDER BY id FOR UPDATE),"
+          + " debit AS ("
+          + " UPDATE users SET balance = balance - ?, updated = ?, version = version + 1"
+          + " WHERE id = ? AND balance >= ?"
+          + " AND (SELECT count(*) FROM locked WHERE currency = ?) = 2"
+          + " RETURNING id),"
+          + " credit AS ("
+          + " UPDATE users SET balance = balance + ?, updated = ?, version = version + 1"
+          + " WHERE id = ? AND EXISTS (SELECT 1 FROM debit)"
+          + " RETURNING id),"
+          + " inserted AS ("
+          + " INSERT INTO transactions"
+          + " (id, sender_id, receiver_id, request_id, amount, currency, inserted)"
+          + " SELECT ?, ?, ?, ?, ?, ?, ? FROM credit"
+          + " RETURNING id)";
+  private static final String WRITE_OUTBOX =
+      ", sender_message AS ("
+          + " INSERT INTO outbox (id, user_id, payload, created) SELECT ?, ?, ?, ? FROM inserted),"
+          + " receiver_message AS ("
+          + " INSERT INTO outbox (id, user_id, payload, created) SELECT ?, ?, ?, ? FROM inserted)";
+  private static final String RESULT =
+      " SELECT EXISTS (SELECT 1 FROM locked WHERE id = ?) AS sender_exists,"
+          + " EXISTS (SELECT 1 FROM locked WHERE id = ?) AS receiver_exists,"
+          + " EXISTS (SELECT 1 FROM locked WHERE currency <> ?) AS currency_mismatch,"
+          + " (SELECT count(*) FROM inserted) AS transferred";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final SequenceBlockAllocator transactionIds;
+  private final TransactionOutbox outbox;
+  private final String transferStatement;
+
+  public AtomicPaymentService(
+      MessagingService messagingService,
+      JdbcTemplate jdbcTemplate,
+      TransactionOutbox outbox,
+      PaymentMetrics metrics) {
+    super(messagingService, metrics);
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionIds =
+        new SequenceBlockAllocator(
+            jdbcTemplate, "transaction_sequence", Transaction.ID_ALLOCATION_SIZE);
+    this.outbox = outbox;
+    this.transferStatement = TRANSFER + (outbox.isEnabled() ? WRITE_OUTBOX : "") + RESULT;
+  }
+
+  @Async(PAYMENT_SERVICE_EXECUTOR)
+  @Override
+  public CompletableFuture<TransferResult> processTransfer(
+      String requestId, Long senderId, Long receiverId, BigDecimal amount, Currency currency) {
+    return CompletableFuture.completedFuture(
+        process(new TransferRequest(requestId, senderId, receiverId, amount, currency)));
+  }
+
+  /** Processes the transfers one by one, each with its own statement. */
+  @Override
+  public List<TransferResult> processTransfers(List<TransferRequest> transfers) {
+    List<TransferResult> results = new ArrayList<>(transfers.size());
+    for (TransferRequest request : transfers) {
+      results.add(process(request));
+    }
+    return results;
+  }
+
+  private TransferResult process(TransferRequest request) {
+    TransactionNotificationBuilder notificationBuilder = notificationBuilder(request);
+    String requestId = request.getRequestId();
+    try {
+      String error =
+          checkPreconditions(
+              notificationBuilder,
+              request.getSenderId(),
+              request.getReceiverId(),
+              request.getAmount());
+      if (error != null) {
+        return TransferResult.failed(requestId, error);
+      }
+    } catch (UnsupportedOperationException e) {
+      return TransferResult.failed(requestId, e.getMessage());
+    }
+
+    try {
+      long writeStart = System.nanoTime();
+      TransferStatementResult result =
+          jdbcTemplate.query(
+              transferStatement,
+              ps -> bind(ps, request),
+              rs -> {
+                rs.next();
+                return new TransferStatementResult(
+                    rs.getBoolean("sender_exists"),
+                    rs.getBoolean("receiver_exists"),
+                    rs.getBoolean("currency_mismatch"),
+                    rs.getLong("transferred") == 1);
+              });
+      metrics.recordStage(Stage.DB_WRITE, writeStart);
+      return report(request, notificationBuilder, result.outcome(), outbox.isEnabled());
+    } catch (DuplicateKeyException e) {
+      // the unique request id caught a replay the idempotency index did not know about
+      LOGGER.warn("Rejected duplicate transfer request for requestId={}", requestId);
+      metrics.recordOutcome(Outcome.DUPLICATE);
+      return new TransferResult(requestId, TransferStatus.DUPLICATE, null);
+    } catch (RuntimeException e) {
+      LOGGER.error(
+          "Unexpected error occurred during transfer processing for requestId=" + requestId, e);
+      metrics.recordOutcome(Outcome.ERROR);
+      String message = "Could not allocate resources for transfer processing.";
+      sendFailMessage(notificationBuilder, message);
+      return TransferResult.failed(requestId, message);
+    }
+  }
+
+  private void bind(PreparedStatement ps, TransferRequest request) throws SQLException {
+    long senderId = request.getSenderId();
+    long receiverId = request.getReceiverId();
+    BigDecimal amount = request.getAmount();
+    Timestamp now = Timestamp.from(Instant.now());
+    int i = 0;
+    // locked
+    ps.setLong(++i, senderId);
+    ps.setLong(++i, receiverId);
+    // debit
+    ps.setBigDecimal(++i, amount);
+    ps.setTimestamp(++i, now);
+    ps.setLong(++i, senderId);
+    ps.setBigDecimal(++i, amount);
+    ps.setString(++i, request.getCurrency().name());
+    // credit
+    ps.setBigDecimal(++i, amount);
+    ps.setTimestamp(++i, now);
+    ps.setLong(++i, receiverId);
+    // inserted
+    ps.setLong(++i, transactionIds.nextId());
+    ps.setLong(++i, senderId);
+    ps.setLong(++i, receiverId);
+    ps.setString(++i, request.getRequestId());
+    ps.setBigDecimal(++i, amount);
+    ps.setString(++i, request.getCurrency().name());
+    ps.setTimestamp(++i, now);
+    if (outbox.isEnabled()) {
+      String payload = outbox.toJson(notificationBuilder(request).successful(true).build());
+      for (long userId : new long[] {senderId, receiverId}) {
+        ps.setLong(++i, outbox.nextMessageId());
+        ps.setLong(++i, userId);
+        ps.setString(++i, payload);
+        ps.setTimestamp(++i, now);
+      }
+    }
+    // result
+    ps.setLong(++i, senderId);
+    ps.setLong(++i, receiverId);
+    ps.setString(++i, request.getCurrency().name());
+  }
+
+  private record TransferStatementResult(
+      boolean senderExists,
+      boolean receiverExists,
+      boolean currencyMismatch,
+      boolean transferred) {
+
+    Outcome outcome() {
+      if (transferred) {
+        return Outcome.COMPLETED;
+      } else if (!senderExists) {
+        return Outcome.MISSING_SENDER;
+      } else if (!receiverExists) {
+        return Outcome.MISSING_RECEIVER;
+      } else if (currencyMismatch) {
+        return Outcome.UNSUPPORTED_EXCHANGE;
+      }
+      return Outcome.INSUFFICIENT_BALANCE;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package hu.gerab.payment.service;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import hu.gerab.payment.domain.Money;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps track of the hot accounts - accounts receiving so many transfers that locking them for
+ * every credit would serialize the transfers - and buffers the credits sent to them.
+ *
+ * <p>An account is hot if it is configured as such in service.payment.hot.accounts, or if it
+ * received at least service.payment.hot.detection.threshold credits in the last detection
+ * window. Detected accounts stay hot while they keep receiving credits at that rate.
+ *
+ * <p>The credits of a hot account are inserted into the hot_credits table, in the database
+ * transaction of their transfers, instead of updating its balance, so the transfers crediting it
+ * do not need its lock, and are written by a periodic flush as a single relative balance update.
+ * The accounts with credits buffered are kept in memory, and read from the table on startup, so
+ * the credits committed before a crash are flushed after it.
+ */
+@Slf4j
+@Component
+public class HotAccountRegistry implements InitializingBean {
+
+  private static final String INSERT_CREDIT =
+      "INSERT INTO hot_credits (account_id, amount, inserted) VALUES (?, ?, ?)";
+  private static final String SELECT_CREDITS =
+      "SELECT id, amount FROM hot_credits WHERE account_id = ?";
+  private static final String DELETE_CREDIT = "DELETE FROM hot_credits WHERE id = ?";
+  private static final String SELECT_BUFFERED_ACCOUNTS =
+      "SELECT DISTINCT account_id FROM hot_credits";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final Set<Long> configured;
+  private final long detectionThreshold;
+  // may hold an account whose credits were drained already, never one with credits not drained
+  private final Set<Long> buffered = ConcurrentHashMap.newKeySet();
+  private volatile Map<Long, LongAdder> creditCounts = new ConcurrentHashMap<>();
+  private volatile Set<Long> hot;
+
+  /**
+   * @param configuredIds comma separated ids of the accounts which are always hot
+   * @param detectionThreshold credits per detection window above which an account becomes hot, 0
+   *     disables the detection
+   */
+  @Autowired
+  public HotAccountRegistry(
+      JdbcTemplate jdbcTemplate,
+      @Value("${service.payment.hot.accounts}") String configuredIds,
+      @Value("${service.payment.hot.detection.threshold}") long detectionThreshold) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.configured =
+        Splitter.on(',')
+            .trimResults()
+            .omitEmptyStrings()
+            .splitToStream(configuredIds)
+            .map(Long::valueOf)
+            .collect(ImmutableSet.toImmutableSet());
+    this.detectionThreshold = detectionThreshold;
+    this.hot = configured;
+  }
+
+  /**
+   * @return a registry without hot accounts, which never buffers a credit
+   */
+  public static HotAccountRegistry disabled() {
+    return new HotAccountRegistry(null, "", 0);
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (jdbcTemplate == null) {
+      return;
+    }
+    buffered.addAll(jdbcTemplate.queryForList(SELECT_BUFFERED_ACCOUNTS, Long.class));
+    if (!buffered.isEmpty()) {
+      LOGGER.info("Recovered buffered credits of hot accounts={}", buffered);
+    }
+  }
+
+  public boolean isHot(Long accountId) {
+    return hot.contains(accountId);
+  }
+
+  /** Counts a credit of the account for the detection of the hot accounts. */
+  public void recordCredit(Long accountId) {
+    if (detectionThreshold > 0) {
+      creditCounts.computeIfAbsent(accountId, id -> new LongAdder()).increment();
+    }
+  }
+
+  /** Closes the current detection window, and updates the hot accounts based on it. */
+  @Scheduled(fixedRateString = "${service.payment.hot.detection.window.millis}")
+  public void rollDetectionWindow() {
+    if (detectionThreshold <= 0) {
+      return;
+    }
+    Map<Long, LongAdder> counts = creditCounts;
+    creditCounts = new ConcurrentHashMap<>();
+    ImmutableSet.Builder<Long> detected = ImmutableSet.<Long>builder().addAll(configured);
+    counts.forEach(
+        (accountId, count) -> {
+          if (count.sum() >= detectionThreshold) {
+            detected.add(accountId);
+          }
+        });
+    Set<Long> previous = hot;
+    hot = detected.build();
+    if (!hot.equals(previous)) {
+      LOGGER.info("Hot accounts changed from={} to={}", previous, hot);
+    }
+  }
+
+  /**
+   * Buffers the credits of the accounts. Must be called in the transaction of their transfers, and
+   * the accounts passed to {@link #markBuffered(Set)} once it is committed.
+   */
+  public void writeCredits(Map<Long, Money> credits) {
+    if (credits.isEmpty()) {
+      return;
+    }
+    List<Entry<Long, Money>> entries = new ArrayList<>(credits.entrySet());
+    Timestamp inserted = Timestamp.from(Instant.now());
+    jdbcTemplate.batchUpdate(
+        INSERT_CREDIT,
+        new BatchPreparedStatementSetter() {
+          @Override
+          public void setValues(PreparedStatement ps, int i) throws SQLException {
+            ps.setLong(1, entries.get(i).getKey());
+            ps.setBigDecimal(2, entries.get(i).getValue().toBigDecimal());
+            ps.setTimestamp(3, inserted);
+          }
+
+          @Override
+          public int getBatchSize() {
+            return entries.size();
+          }
+        });
+  }
+
+  /**
+   * Marks the accounts as having committed credits buffered, to be drained by the next flush, or
+   * by the next transfer locking them. Also called with the accounts of a drain rolled back.
+   */
+  public void markBuffered(Set<Long> accountIds) {
+    buffered.addAll(accountIds);
+  }
+
+  /**
+   * Removes the buffered credits of the account. The caller must hold the lock of the account, and
+   * write the returned amount to its balance in the same transaction, or call {@link
+   * #markBuffered(Set)} with it if the transaction is rolled back.
+   *
+   * @return the sum of the credits committed since the last drain
+   */
+  public Money drain(Long accountId) {
+    // unmarked before the read, so a credit committed after the read is marked again
+    if (!buffered.remove(accountId)) {
+      return Money.ZERO;
+    }
+    List<Long> ids = new ArrayList<>();
+    Money[] sum = {Money.ZERO};
+    jdbcTemplate.query(
+        SELECT_CREDITS,
+        rs -> {
+          ids.add(rs.getLong(1));
+          sum[0] = sum[0].plus(Money.of(rs.getBigDecimal(2)));
+        },
+        accountId);
+    if (!ids.isEmpty()) {
+      jdbcTemplate.batchUpdate(DELETE_CREDIT, ids, ids.size(), (ps, id) -> ps.setLong(1, id));
+    }
+    return sum[0];
+  }
+
+  /**
+   * @return the accounts which may have credits buffered
+   */
+  public Set<Long> getBufferedAccounts() {
+    return buffered;
+  }
+}
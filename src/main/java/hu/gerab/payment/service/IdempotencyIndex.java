@@ -0,0 +1,144 @@
+package hu.gerab.payment.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import hu.gerab.payment.domain.Currency;
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded, time windowed in-memory index of the recently accepted idempotent transfer requests, so
+ * client retries can be recognised without touching the database.
+ *
+ * <p>The request id of an idempotent request is derived from the sender and the idempotency key
+ * provided by the client, so a retry always maps to the same request id. Retries arriving after
+ * their entry was evicted from this index are therefore still rejected by the unique index on
+ * transactions.request_id, this index only keeps them off the hot path.
+ *
+ * <p>The index is split into shards, each guarded by its own lock. The entries of a shard are kept
+ * in insertion order, so the expired entries are always at the head and can be evicted cheaply on
+ * every insertion.
+ */
+@Component
+public class IdempotencyIndex {
+
+  private static final int SHARD_COUNT = 16;
+
+  private final Shard[] shards = new Shard[SHARD_COUNT];
+  private final long ttlNanos;
+  private final LongSupplier clock;
+
+  @Autowired
+  public IdempotencyIndex(
+      @Value("${service.payment.idempotency.ttl.seconds}") long ttlSeconds,
+      @Value("${service.payment.idempotency.max.entries}") int maxEntries) {
+    this(ttlSeconds, maxEntries, System::nanoTime);
+  }
+
+  IdempotencyIndex(long ttlSeconds, int maxEntries, LongSupplier clock) {
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    this.clock = clock;
+    int maxEntriesPerShard = Math.max(1, maxEntries / SHARD_COUNT);
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      shards[i] = new Shard(maxEntriesPerShard);
+    }
+  }
+
+  /**
+   * @return the deterministic request id of the idempotent request of the sender
+   */
+  public static String requestId(long senderId, String idempotencyKey) {
+    return UUID.nameUUIDFromBytes((senderId + ":" + idempotencyKey).getBytes(UTF_8)).toString();
+  }
+
+  /**
+   * Registers the request in the index.
+   *
+   * @param requestId the id of the request, as returned by {@link #requestId(long, String)}
+   * @param fingerprint the parameters of the request, to detect reuse of a key for another request
+   * @return true if the request is new, false if it is a replay of a recently seen request
+   * @throws IdempotencyKeyReusedException if the idempotency key was already used for a request
+   *     with different parameters
+   */
+  public boolean register(String requestId, Fingerprint fingerprint) {
+    Shard shard = shards[(requestId.hashCode() & Integer.MAX_VALUE) % SHARD_COUNT];
+    long now = clock.getAsLong();
+    shard.lock.lock();
+    try {
+      shard.evict(now, ttlNanos);
+      Entry existing = shard.entries.get(requestId);
+      if (existing != null) {
+        if (!existing.fingerprint().equals(fingerprint)) {
+          throw new IdempotencyKeyReusedException(
+              "The idempotency key was already used for a different transfer");
+        }
+        return false;
+      }
+      shard.entries.put(requestId, new Entry(fingerprint, now));
+      return true;
+    } finally {
+      shard.lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the request from the index, so it can be submitted again. Used when a registered
+   * request could not be accepted for processing after all.
+   */
+  public void forget(String requestId) {
+    Shard shard = shards[(requestId.hashCode() & Integer.MAX_VALUE) % SHARD_COUNT];
+    shard.lock.lock();
+    try {
+      shard.entries.remove(requestId);
+    } finally {
+      shard.lock.unlock();
+    }
+  }
+
+  /**
+   * The parameters of an idempotent request, compared in full, as two transfers with the same hash
+   * must not pass for a replay of each other.
+   */
+  public record Fingerprint(long senderId, long receiverId, BigDecimal amount, Currency currency) {
+
+    /** The amount is normalized, so 10 and 10.00 are the same transfer. */
+    public static Fingerprint of(
+        long senderId, long receiverId, BigDecimal amount, Currency currency) {
+      return new Fingerprint(senderId, receiverId, amount.stripTrailingZeros(), currency);
+    }
+  }
+
+  private record Entry(Fingerprint fingerprint, long insertedNanos) {}
+
+  private static final class Shard {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final int maxEntries;
+
+    private Shard(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+
+    /** Evicts the expired entries and makes room for a new one if the shard is full. */
+    private void evict(long now, long ttlNanos) {
+      Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Entry eldest = iterator.next().getValue();
+        if (now - eldest.insertedNanos() < ttlNanos && entries.size() < maxEntries) {
+          return;
+        }
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,9 @@
+package hu.gerab.payment.service;
+
+/** Thrown when an idempotency key is used again for a transfer with different parameters. */
+public class IdempotencyKeyReusedException extends IllegalArgumentException {
+
+  public IdempotencyKeyReusedException(String message) {
+    super(message);
+  }
+}
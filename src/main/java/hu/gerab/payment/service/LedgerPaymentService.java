@@ -0,0 +1,176 @@
+package hu.gerab.payment.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.ledger.LedgerEngine;
+import hu.gerab.payment.ledger.LedgerOutcome;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Outcome;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.service.MessagingService.TransactionNotification.TransactionNotificationBuilder;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+/**
+ * Payment service processing the transfers through the in-memory {@link LedgerEngine} instead of
+ * locking and querying the database for every transfer. Activated with
+ * service.payment.mode=ledger.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "ledger")
+public class LedgerPaymentService extends AbstractPaymentService implements DisposableBean {
+
+  private final LedgerEngine ledgerEngine;
+  private final TransactionOutbox outbox;
+  // the notifications are sent from here, so neither the shard threads nor the writer are blocked
+  // by messaging
+  private final Executor notificationExecutor;
+  private final ExecutorService ownedExecutor;
+
+  @Autowired
+  public LedgerPaymentService(
+      MessagingService messagingService,
+      LedgerEngine ledgerEngine,
+      TransactionOutbox outbox,
+      PaymentMetrics metrics) {
+    this(messagingService, ledgerEngine, outbox, metrics, notificationExecutor());
+  }
+
+  LedgerPaymentService(
+      MessagingService messagingService,
+      LedgerEngine ledgerEngine,
+      TransactionOutbox outbox,
+      PaymentMetrics metrics,
+      Executor notificationExecutor) {
+    super(messagingService, metrics);
+    this.ledgerEngine = ledgerEngine;
+    this.outbox = outbox;
+    this.notificationExecutor = notificationExecutor;
+    this.ownedExecutor =
+        notificationExecutor instanceof ExecutorService service ? service : null;
+  }
+
+  /**
+   * Not the admission bounded payment executor, whose full queue would drop the notification and
+   * the result. Unbounded, as it holds at most the admitted transfers, and once shut down the
+   * notifications of the transfers still completing are sent on their completing threads.
+   */
+  private static ExecutorService notificationExecutor() {
+    return new ThreadPoolExecutor(
+        1,
+        1,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("L-NOTIFY").build(),
+        (task, executor) -> task.run());
+  }
+
+  @Override
+  public CompletableFuture<TransferResult> processTransfer(
+      String requestId, Long senderId, Long receiverId, BigDecimal amount, Currency currency) {
+    return submit(new TransferRequest(requestId, senderId, receiverId, amount, currency));
+  }
+
+  /**
+   * Submits every transfer to the engine before waiting for any of them, so the shards and the
+   * group commit of the writer can work on the whole batch at once.
+   */
+  @Override
+  public List<TransferResult> processTransfers(List<TransferRequest> transfers) {
+    List<CompletableFuture<TransferResult>> results = new ArrayList<>(transfers.size());
+    for (TransferRequest request : transfers) {
+      results.add(submit(request));
+    }
+    return results.stream().map(CompletableFuture::join).toList();
+  }
+
+  private CompletableFuture<TransferResult> submit(TransferRequest request) {
+    TransactionNotificationBuilder notificationBuilder = notificationBuilder(request);
+    String requestId = request.getRequestId();
+    try {
+      String error =
+          checkPreconditions(
+              notificationBuilder,
+              request.getSenderId(),
+              request.getReceiverId(),
+              request.getAmount());
+      if (error != null) {
+        return CompletableFuture.completedFuture(TransferResult.failed(requestId, error));
+      }
+    } catch (UnsupportedOperationException e) {
+      return CompletableFuture.completedFuture(TransferResult.failed(requestId, e.getMessage()));
+    }
+    return ledgerEngine
+        .submit(
+            requestId,
+            request.getSenderId(),
+            request.getReceiverId(),
+            request.getAmount(),
+            request.getCurrency())
+        .handleAsync(
+            (outcome, error) -> report(request, notificationBuilder, outcome, error),
+            notificationExecutor);
+  }
+
+  /** Reports the error of the engine, or its outcome like the other modes. */
+  private TransferResult report(
+      TransferRequest request,
+      TransactionNotificationBuilder notificationBuilder,
+      LedgerOutcome outcome,
+      Throwable error) {
+    String requestId = request.getRequestId();
+    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+    if (cause instanceof DuplicateKeyException) {
+      // the unique request id caught a replay the idempotency index did not know about
+      LOGGER.warn("Rejected duplicate transfer request for requestId={}", requestId);
+      metrics.recordOutcome(Outcome.DUPLICATE);
+      return new TransferResult(requestId, TransferStatus.DUPLICATE, null);
+    }
+    if (error != null) {
+      LOGGER.error(
+          "Unexpected error occurred during transfer processing for requestId=" + requestId, error);
+      String message = "Could not allocate resources for transfer processing.";
+      metrics.recordOutcome(Outcome.ERROR);
+      sendFailMessage(notificationBuilder, message);
+      return TransferResult.failed(requestId, message);
+    }
+    // the completion notifications are written to the outbox by the ledger writer
+    return report(request, notificationBuilder, toMetricsOutcome(outcome), outbox.isEnabled());
+  }
+
+  private static Outcome toMetricsOutcome(LedgerOutcome outcome) {
+    return switch (outcome) {
+      case COMPLETED -> Outcome.COMPLETED;
+      case INSUFFICIENT_BALANCE -> Outcome.INSUFFICIENT_BALANCE;
+      case MISSING_RECEIVER -> Outcome.MISSING_RECEIVER;
+      case MISSING_SENDER -> Outcome.MISSING_SENDER;
+      case UNSUPPORTED_EXCHANGE -> Outcome.UNSUPPORTED_EXCHANGE;
+    };
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+      if (!ownedExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+        LOGGER.warn("Ledger notifications were not sent within the shutdown timeout");
+      }
+    }
+  }
+}
@@ -3,6 +3,7 @@ package hu.gerab.payment.service;
 import java.math.BigDecimal;
 import lombok.Builder;
 import lombok.Data;
+import lombok.extern.jackson.Jacksonized;
 
 public interface MessagingService {
   void sendTransactionNotification(TransactionNotification notification);
@@ -11,6 +12,7 @@ public interface MessagingService {
 
   @Data
   @Builder
+  @Jacksonized // so the json consumers can read them with a plain ObjectMapper too
   class TransactionNotification {
     private Long senderId;
     private Long receiverId;
@@ -1,22 +1,126 @@
 package hu.gerab.payment.service;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
 
-/** Simplistic messaging service to forward messages to kafka. */
+/**
+ * Messaging service forwarding the messages to kafka, off the transfer processing threads.
+ *
+ * <p>The messages are put into a bounded queue, and sent by a single dispatcher thread, so a slow
+ * broker does not hold up the transfers. The producer batches the records (see {@link
+ * hu.gerab.payment.config.KafkaConfig}), and every send is tracked until it is acknowledged. The
+ * producer already retries until its delivery timeout, the sends failing even after that are
+ * retried with exponential backoff, up to service.messaging.retry.max.attempts. A retried message
+ * may overtake the later messages of the same user.
+ */
+@Slf4j
 @Service
-public class MessagingServiceImpl implements MessagingService {
+// the reactive mode sends with the ReactiveMessagingService
+@ConditionalOnExpression("'${service.payment.mode}' != 'reactive'")
+public class MessagingServiceImpl implements MessagingService, DisposableBean {
 
-  private final KafkaTemplate<Long, Object> kafkaTemplate;
+  private static final int DISPATCH_BATCH_SIZE = 1000;
 
-  @Value("${kafka.transaction.topic}")
-  private String topic;
+  private final KafkaTemplate<Long, Object> kafkaTemplate;
+  private final String topic;
+  private final BlockingQueue<PendingMessage> queue;
+  private final long offerTimeoutMillis;
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final long shutdownTimeoutMillis;
+  private final ScheduledExecutorService retryScheduler;
+  // the messages waiting for their next attempt, dropped if the scheduler is shut down before it
+  private final Set<PendingMessage> scheduledRetries = ConcurrentHashMap.newKeySet();
+  private final Thread dispatcher;
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final Counter acknowledged;
+  private final Counter retried;
+  private final Counter dropped;
+  private final Timer lag;
+  private final PaymentMetrics metrics;
+  private volatile boolean running = true;
 
   @Autowired
-  public MessagingServiceImpl(KafkaTemplate<Long, Object> kafkaTemplate) {
+  public MessagingServiceImpl(
+      KafkaTemplate<Long, Object> kafkaTemplate,
+      MeterRegistry meterRegistry,
+      PaymentMetrics metrics,
+      @Value("${kafka.transaction.topic}") String topic,
+      @Value("${service.messaging.queue.capacity}") int queueCapacity,
+      @Value("${service.messaging.queue.offer.timeout.millis}") long offerTimeoutMillis,
+      @Value("${service.messaging.retry.max.attempts}") int maxAttempts,
+      @Value("${service.messaging.retry.backoff.initial.millis}") long initialBackoffMillis,
+      @Value("${service.messaging.retry.backoff.max.millis}") long maxBackoffMillis,
+      @Value("${service.messaging.shutdown.timeout.millis}") long shutdownTimeoutMillis) {
     this.kafkaTemplate = kafkaTemplate;
+    this.topic = topic;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.offerTimeoutMillis = offerTimeoutMillis;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    this.metrics = metrics;
+    this.acknowledged =
+        Counter.builder("payment.notifications.acknowledged")
+            .description("Notifications acknowledged by kafka")
+            .register(meterRegistry);
+    this.retried =
+        Counter.builder("payment.notifications.retried")
+            .description("Failed notification sends scheduled for another attempt")
+            .register(meterRegistry);
+    this.dropped =
+        Counter.builder("payment.notifications.dropped")
+            .description("Notifications given up on, because the queue was full or sends failed")
+            .register(meterRegistry);
+    this.lag =
+        Timer.builder("payment.notifications.lag")
+            .description("Time from queueing a notification until kafka acknowledged it")
+            .register(meterRegistry);
+    Gauge.builder("payment.notifications.queue.depth", queue, BlockingQueue::size)
+        .description("Notifications waiting to be sent")
+        .register(meterRegistry);
+    Gauge.builder("payment.notifications.inflight", inflight, AtomicInteger::get)
+        .description("Notifications sent, but not yet acknowledged")
+        .register(meterRegistry);
+
+    retryScheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "K-RETRY");
+              thread.setDaemon(true);
+              return thread;
+            });
+    dispatcher = new Thread(this::dispatch, "K-DISPATCH");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
   }
 
   /**
@@ -48,6 +152,147 @@ public class MessagingServiceImpl implements MessagingService {
       - With large number of users a large number of partitions would be created. This leads
       to a large number of open files on the kafka node, which can degrade performance
      */
-    kafkaTemplate.send(topic, userId, notification);
+    enqueue(new PendingMessage(userId, notification, System.nanoTime(), 1));
+  }
+
+  private void enqueue(PendingMessage message) {
+    try {
+      if (queue.offer(message, offerTimeoutMillis, MILLISECONDS)) {
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    dropped.increment();
+    LOGGER.error(
+        "Notification queue is full, dropped notification for userId={} notification={}",
+        message.userId(),
+        message.notification());
+  }
+
+  private void dispatch() {
+    List<PendingMessage> batch = new ArrayList<>(DISPATCH_BATCH_SIZE);
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingMessage first = queue.poll(100, MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, DISPATCH_BATCH_SIZE - 1);
+        batch.forEach(this::send);
+        batch.clear();
+      } catch (RuntimeException e) {
+        LOGGER.error("Unexpected error while dispatching notifications", e);
+        batch.clear();
+      } catch (InterruptedException e) {
+        LOGGER.warn("Notification dispatcher interrupted with {} queued messages", queue.size());
+        return;
+      }
+    }
+  }
+
+  private void send(PendingMessage message) {
+    inflight.incrementAndGet();
+    long sentNanos = System.nanoTime();
+    CompletableFuture<SendResult<Long, Object>> result;
+    try {
+      result = kafkaTemplate.send(topic, message.userId(), message.notification());
+    } catch (RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+    // completed on the producer thread, so it must not block
+    result.whenComplete(
+        (sendResult, error) -> {
+          inflight.decrementAndGet();
+          if (error == null) {
+            acknowledged.increment();
+            metrics.recordStage(Stage.KAFKA_SEND, sentNanos);
+            lag.record(System.nanoTime() - message.enqueuedNanos(), NANOSECONDS);
+          } else {
+            retry(message, error);
+          }
+        });
+  }
+
+  private void retry(PendingMessage message, Throwable error) {
+    if (message.attempt() < maxAttempts) {
+      long backoffMillis =
+          Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(message.attempt() - 1, 20));
+      LOGGER.warn(
+          "Failed to send notification for userId={} attempt={}, retrying in {} ms: {}",
+          message.userId(),
+          message.attempt(),
+          backoffMillis,
+          error.getMessage());
+      PendingMessage next = message.nextAttempt();
+      scheduledRetries.add(next);
+      try {
+        retryScheduler.schedule(
+            () -> {
+              if (scheduledRetries.remove(next)) {
+                enqueue(next);
+              }
+            },
+            backoffMillis,
+            MILLISECONDS);
+        retried.increment();
+        return;
+      } catch (RejectedExecutionException e) {
+        // shutting down, give up on the message below
+        scheduledRetries.remove(next);
+      }
+    }
+    dropped.increment();
+    LOGGER.error(
+        "Giving up on notification for userId={} after attempts={} notification={}",
+        message.userId(),
+        message.attempt(),
+        message.notification(),
+        error);
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public int getInflight() {
+    return inflight.get();
+  }
+
+  /** Sends the queued messages, and waits for their acknowledgement, up to the timeout. */
+  @Override
+  public void destroy() throws InterruptedException {
+    running = false;
+    long deadline = System.currentTimeMillis() + shutdownTimeoutMillis;
+    dispatcher.join(shutdownTimeoutMillis);
+    retryScheduler.shutdownNow();
+    for (PendingMessage message : scheduledRetries) {
+      if (scheduledRetries.remove(message)) {
+        dropped.increment();
+        LOGGER.error(
+            "Shut down before retrying notification for userId={} attempt={} notification={}",
+            message.userId(),
+            message.attempt(),
+            message.notification());
+      }
+    }
+    while (inflight.get() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    if (!queue.isEmpty() || inflight.get() > 0) {
+      LOGGER.error(
+          "Shut down with {} queued and {} unacknowledged notifications",
+          queue.size(),
+          inflight.get());
+    }
+  }
+
+  private record PendingMessage(
+      long userId, TransactionNotification notification, long enqueuedNanos, int attempt) {
+
+    private PendingMessage nextAttempt() {
+      return new PendingMessage(userId, notification, enqueuedNanos, attempt + 1);
+    }
   }
 }
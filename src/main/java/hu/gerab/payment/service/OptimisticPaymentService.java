@@ -0,0 +1,279 @@
+package hu.gerab.payment.service;
+
+import static hu.gerab.payment.config.AsyncConfig.PAYMENT_SERVICE_EXECUTOR;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Money;
+import hu.gerab.payment.domain.Transaction;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.fx.FxRates;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Outcome;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.SequenceBlockAllocator;
+import hu.gerab.payment.service.MessagingService.TransactionNotification.TransactionNotificationBuilder;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionOperations;
+
+/**
+ * Payment service without any lock in the JVM, so unrelated users never wait for each other and
+ * several instances can share the database. Activated with service.payment.mode=optimistic.
+ *
+ * <p>Every transfer is a short database transaction: the users are read without locking them, then
+ * the sender is debited by a conditional update, which only applies if its balance still covers
+ * the amount and its version is still the one read, and the receiver is credited by a relative
+ * update. If the sender changed since it was read, or the database aborted the transaction on a
+ * lock conflict, the transfer is retried after a random backoff, which grows exponentially with
+ * the attempts. Nothing is locked while reading or backing off, the rows are only locked from the
+ * updates until the commit. The accounts of other currencies than the one of the transfer are
+ * debited and credited with the exchanged amounts, like in lock mode.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "optimistic")
+public class OptimisticPaymentService extends AbstractPaymentService {
+
+  private static final String SELECT_USERS =
+      "SELECT id, balance, currency, version FROM users WHERE id IN (?, ?)";
+  private static final String DEBIT =
+      "UPDATE users SET balance = balance - ?, updated = ?, version = version + 1"
+          + " WHERE id = ? AND balance >= ? AND version = ?";
+  private static final String CREDIT =
+      "UPDATE users SET balance = balance + ?, updated = ?, version = version + 1 WHERE id = ?";
+  private static final String INSERT_TRANSACTION =
+      "INSERT INTO transactions"
+          + " (id, sender_id, receiver_id, request_id, amount, currency, sender_amount,"
+          + " receiver_amount, inserted)"
+          + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final SequenceBlockAllocator transactionIds;
+  private final TransactionOperations transactionOperations;
+  private final TransactionOutbox outbox;
+  private final FxRateProvider fxRateProvider;
+  private final int attemptLimit;
+  private final long backoffMillis;
+
+  public OptimisticPaymentService(
+      MessagingService messagingService,
+      JdbcTemplate jdbcTemplate,
+      TransactionOperations transactionOperations,
+      TransactionOutbox outbox,
+      FxRateProvider fxRateProvider,
+      PaymentMetrics metrics,
+      @Value("${service.payment.optimistic.attempt.limit}") int attemptLimit,
+      @Value("${service.payment.optimistic.backoff.millis}") long backoffMillis) {
+    super(messagingService, metrics);
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionIds =
+        new SequenceBlockAllocator(
+            jdbcTemplate, "transaction_sequence", Transaction.ID_ALLOCATION_SIZE);
+    this.transactionOperations = transactionOperations;
+    this.outbox = outbox;
+    this.fxRateProvider = fxRateProvider;
+    this.attemptLimit = attemptLimit;
+    this.backoffMillis = backoffMillis;
+  }
+
+  @Async(PAYMENT_SERVICE_EXECUTOR)
+  @Override
+  public CompletableFuture<TransferResult> processTransfer(
+      String requestId, Long senderId, Long receiverId, BigDecimal amount, Currency currency) {
+    return CompletableFuture.completedFuture(
+        process(new TransferRequest(requestId, senderId, receiverId, amount, currency)));
+  }
+
+  /**
+   * Processes the transfers one by one, each in its own transaction, so a conflict only repeats
+   * the conflicting transfer.
+   */
+  @Override
+  public List<TransferResult> processTransfers(List<TransferRequest> transfers) {
+    List<TransferResult> results = new ArrayList<>(transfers.size());
+    for (TransferRequest request : transfers) {
+      results.add(process(request));
+    }
+    return results;
+  }
+
+  private TransferResult process(TransferRequest request) {
+    TransactionNotificationBuilder notificationBuilder = notificationBuilder(request);
+    String requestId = request.getRequestId();
+    try {
+      String error =
+          checkPreconditions(
+              notificationBuilder,
+              request.getSenderId(),
+              request.getReceiverId(),
+              request.getAmount());
+      if (error != null) {
+        return TransferResult.failed(requestId, error);
+      }
+    } catch (UnsupportedOperationException e) {
+      return TransferResult.failed(requestId, e.getMessage());
+    }
+
+    for (int attempt = 1; ; attempt++) {
+      try {
+        Outcome outcome = transactionOperations.execute(status -> transfer(request));
+        return report(request, notificationBuilder, outcome, outbox.isEnabled());
+      } catch (DuplicateKeyException e) {
+        // the unique request id caught a replay the idempotency index did not know about
+        LOGGER.warn("Rejected duplicate transfer request for requestId={}", requestId);
+        metrics.recordOutcome(Outcome.DUPLICATE);
+        return new TransferResult(requestId, TransferStatus.DUPLICATE, null);
+      } catch (ConcurrencyFailureException e) {
+        if (attempt >= attemptLimit) {
+          LOGGER.error("Transfer conflicted in all {} attempts, requestId={}", attempt, requestId);
+          metrics.recordOutcome(Outcome.LOCK_EXHAUSTION);
+          String message = "Could not allocate resources to process your transfer.";
+          sendFailMessage(notificationBuilder, message);
+          return TransferResult.failed(requestId, message);
+        }
+        metrics.recordConflict();
+        if (!backoff(attempt)) {
+          LOGGER.warn("Prematurely ended processing of requestId={} due to shutdown", requestId);
+          metrics.recordOutcome(Outcome.INTERRUPTED);
+          String message = "Transfer processing was interrupted.";
+          sendFailMessage(notificationBuilder, message);
+          return TransferResult.failed(requestId, message);
+        }
+      } catch (RuntimeException e) {
+        LOGGER.error(
+            "Unexpected error occurred during transfer processing for requestId=" + requestId, e);
+        metrics.recordOutcome(Outcome.ERROR);
+        String message = "Could not allocate resources for transfer processing.";
+        sendFailMessage(notificationBuilder, message);
+        return TransferResult.failed(requestId, message);
+      }
+    }
+  }
+
+  /**
+   * A single attempt of the transfer, in a transaction.
+   *
+   * @throws OptimisticLockingFailureException if a user changed since it was read
+   */
+  private Outcome transfer(TransferRequest request) {
+    Long senderId = request.getSenderId();
+    Long receiverId = request.getReceiverId();
+    BigDecimal amount = request.getAmount();
+    long readStart = System.nanoTime();
+    Map<Long, VersionedBalance> balances = new HashMap<>();
+    jdbcTemplate.query(
+        SELECT_USERS,
+        rs -> {
+          balances.put(
+              rs.getLong("id"),
+              new VersionedBalance(
+                  Money.of(rs.getBigDecimal("balance")),
+                  Currency.valueOf(rs.getString("currency")),
+                  rs.getLong("version")));
+        },
+        senderId,
+        receiverId);
+    metrics.recordStage(Stage.DB_READ, readStart);
+    VersionedBalance sender = balances.get(senderId);
+    if (sender == null) {
+      return Outcome.MISSING_SENDER;
+    }
+    VersionedBalance receiver = balances.get(receiverId);
+    if (receiver == null) {
+      return Outcome.MISSING_RECEIVER;
+    }
+    Currency currency = request.getCurrency();
+    FxRates rates = fxRateProvider.getRates();
+    Money transferred = Money.of(amount);
+    Money debit = rates.convertUp(transferred, currency, sender.currency());
+    Money credit = rates.convertDown(transferred, currency, receiver.currency());
+    if (debit == null || credit == null || credit.signum() == 0) {
+      return Outcome.UNSUPPORTED_EXCHANGE;
+    }
+    if (sender.balance().compareTo(debit) < 0) {
+      return Outcome.INSUFFICIENT_BALANCE;
+    }
+
+    long writeStart = System.nanoTime();
+    Instant now = Instant.now();
+    Timestamp updated = Timestamp.from(now);
+    // the rows are locked in id order, so two opposite transfers cannot deadlock each other
+    if (senderId < receiverId) {
+      debit(senderId, debit, updated, sender.version());
+      credit(receiverId, credit, updated);
+    } else {
+      credit(receiverId, credit, updated);
+      debit(senderId, debit, updated, sender.version());
+    }
+    jdbcTemplate.update(
+        INSERT_TRANSACTION,
+        transactionIds.nextId(),
+        senderId,
+        receiverId,
+        request.getRequestId(),
+        amount,
+        currency.name(),
+        sender.currency() == currency ? null : debit.toBigDecimal(),
+        receiver.currency() == currency ? null : credit.toBigDecimal(),
+        updated);
+    if (outbox.isEnabled()) {
+      outbox.write(List.of(notificationBuilder(request).successful(true).build()));
+    }
+    metrics.recordStage(Stage.DB_WRITE, writeStart);
+    return Outcome.COMPLETED;
+  }
+
+  private void debit(Long senderId, Money amount, Timestamp updated, long version) {
+    BigDecimal debit = amount.toBigDecimal();
+    if (jdbcTemplate.update(DEBIT, debit, updated, senderId, debit, version) == 0) {
+      throw new OptimisticLockingFailureException(
+          "Sender id=" + senderId + " changed since it was read");
+    }
+  }
+
+  private void credit(Long receiverId, Money amount, Timestamp updated) {
+    if (jdbcTemplate.update(CREDIT, amount.toBigDecimal(), updated, receiverId) == 0) {
+      throw new OptimisticLockingFailureException(
+          "Receiver id=" + receiverId + " was deleted since it was read");
+    }
+  }
+
+  /**
+   * Sleeps a random time up to backoffMillis * 2^(attempt-1), so the conflicting transfers spread
+   * out instead of colliding again.
+   *
+   * @return false if interrupted
+   */
+  private boolean backoff(int attempt) {
+    if (backoffMillis <= 0) {
+      return true;
+    }
+    long maxMillis = backoffMillis << Math.min(attempt - 1, 16);
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(maxMillis + 1));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private record VersionedBalance(Money balance, Currency currency, long version) {}
+}
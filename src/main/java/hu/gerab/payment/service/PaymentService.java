@@ -2,9 +2,62 @@ package hu.gerab.payment.service;
 
 import hu.gerab.payment.domain.Currency;
 import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.Value;
 
 public interface PaymentService {
 
-  void processTransfer(
+  /**
+   * Processes a transfer between two users. The outcome of the transfer is reported to the users
+   * through the {@link MessagingService}.
+   *
+   * @return a future of the result, which completes once the transfer has been fully processed,
+   *     whether it succeeded or not
+   */
+  CompletableFuture<TransferResult> processTransfer(
       String requestId, Long senderId, Long receiverId, BigDecimal amount, Currency currency);
+
+  /**
+   * Processes a group of transfers synchronously, in the given order. The users are notified the
+   * same way as for single transfers, and the outcome is returned to the caller as well.
+   *
+   * @return the results, in the same order as the transfers
+   */
+  List<TransferResult> processTransfers(List<TransferRequest> transfers);
+
+  @Value
+  class TransferRequest {
+    String requestId;
+    Long senderId;
+    Long receiverId;
+    BigDecimal amount;
+    Currency currency;
+  }
+
+  @Value
+  class TransferResult {
+    String requestId;
+    TransferStatus status;
+    String error;
+
+    public static TransferResult completed(String requestId) {
+      return new TransferResult(requestId, TransferStatus.COMPLETED, null);
+    }
+
+    public static TransferResult failed(String requestId, String error) {
+      return new TransferResult(requestId, TransferStatus.FAILED, error);
+    }
+  }
+
+  enum TransferStatus {
+    /** The transfer was executed. */
+    COMPLETED,
+    /** The transfer was processed, but could not be executed. */
+    FAILED,
+    /** The transfer request was invalid, so it was not processed. */
+    REJECTED,
+    /** The transfer is a replay of an earlier request, so it was not processed again. */
+    DUPLICATE
+  }
 }
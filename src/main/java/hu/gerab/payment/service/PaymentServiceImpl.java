@@ -1,208 +1,629 @@
 package hu.gerab.payment.service;
 
 import static hu.gerab.payment.config.AsyncConfig.PAYMENT_SERVICE_EXECUTOR;
-import static java.math.BigDecimal.ZERO;
 import static java.util.Arrays.asList;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Striped;
 import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Money;
 import hu.gerab.payment.domain.Transaction;
 import hu.gerab.payment.domain.User;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.fx.FxRates;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Outcome;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.AccountCache;
 import hu.gerab.payment.repository.TransactionRepository;
 import hu.gerab.payment.repository.UserRepository;
 import hu.gerab.payment.service.MessagingService.TransactionNotification;
-import hu.gerab.payment.service.MessagingService.TransactionNotification.TransactionNotificationBuilder;
-import jakarta.persistence.EntityNotFoundException;
 import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.Lock;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionOperations;
 
 @Slf4j
 @Service
-public class PaymentServiceImpl implements PaymentService {
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "lock", matchIfMissing = true)
+public class PaymentServiceImpl extends AbstractPaymentService implements DisposableBean {
 
   public static final int LOCK_TIMEOUT_MILLIS = 3000;
-  private MessagingService messagingService;
+  /** The SQL state of a unique constraint violation, in both Postgres and H2. */
+  private static final String UNIQUE_VIOLATION_STATE = "23505";
   private UserRepository userRepository;
   private TransactionRepository transactionRepository;
   private Striped<Lock> multiLock;
+  private final TransactionOperations transactionOperations;
+  private final HotAccountRegistry hotAccounts;
+  private final AccountCache accountCache;
+  private final TransactionOutbox outbox;
+  private final FxRateProvider fxRateProvider;
   private final int reattemptLimit;
+  private final int maxGroupUsers;
 
   public PaymentServiceImpl(
       MessagingService messagingService,
       UserRepository userRepository,
       TransactionRepository transactionRepository,
+      int threadPoolSize,
+      int lockStripeMultiplier,
+      int reattemptLimit) {
+    this(
+        messagingService,
+        userRepository,
+        transactionRepository,
+        TransactionOperations.withoutTransaction(),
+        HotAccountRegistry.disabled(),
+        AccountCache.disabled(),
+        TransactionOutbox.disabled(),
+        FxRateProvider.fixed(FxRates.none()),
+        PaymentMetrics.unpublished(),
+        threadPoolSize,
+        lockStripeMultiplier,
+        reattemptLimit,
+        threadPoolSize * lockStripeMultiplier);
+  }
+
+  @Autowired
+  public PaymentServiceImpl(
+      MessagingService messagingService,
+      UserRepository userRepository,
+      TransactionRepository transactionRepository,
+      TransactionOperations transactionOperations,
+      HotAccountRegistry hotAccounts,
+      AccountCache accountCache,
+      TransactionOutbox outbox,
+      FxRateProvider fxRateProvider,
+      PaymentMetrics metrics,
       @Value("${service.payment.pool.size}") int threadPoolSize,
       @Value("${service.payment.lockstripe.multiplier}") int lockStripeMultiplier,
-      @Value("${service.payment.reattempt.limit}") int reattemptLimit) {
-    this.messagingService = messagingService;
+      @Value("${service.payment.reattempt.limit}") int reattemptLimit,
+      @Value("${service.payment.group.max.users}") int maxGroupUsers) {
+    super(messagingService, metrics);
+    if (maxGroupUsers < 2) {
+      throw new IllegalArgumentException("A group has to hold the two users of a transfer");
+    }
     this.userRepository = userRepository;
     this.transactionRepository = transactionRepository;
+    this.transactionOperations = transactionOperations;
+    this.hotAccounts = hotAccounts;
+    this.accountCache = accountCache;
+    this.outbox = outbox;
+    this.fxRateProvider = fxRateProvider;
     this.multiLock = Striped.lazyWeakLock(threadPoolSize * lockStripeMultiplier);
     this.reattemptLimit = reattemptLimit;
+    this.maxGroupUsers = maxGroupUsers;
   }
 
   @Async(PAYMENT_SERVICE_EXECUTOR)
-  @Transactional
-  public void processTransfer(
+  @Override
+  public CompletableFuture<TransferResult> processTransfer(
       String requestId, Long senderId, Long receiverId, BigDecimal amount, Currency currency) {
-    TransactionNotificationBuilder notificationBuilder =
-        TransactionNotification.builder()
-            .requestId(requestId)
-            .senderId(senderId)
-            .receiverId(receiverId)
-            .amount(amount)
-            .currency(currency.getHumanFriendlyName());
-    if (senderId == receiverId) {
-      sendFailMessage(notificationBuilder, "Sender and receiver account cannot be the same");
-      return;
-    }
-    if (senderId == null || receiverId == null) {
-      // TODO handle topups and withdrawals separately - not in scope
-      sendFailMessage(notificationBuilder, "Withdrawals and topups are not yet supported");
-      throw new UnsupportedOperationException("Withdrawals and topups are not yet supported");
-    }
-    if (ZERO.compareTo(amount) >= 0) {
-      sendFailMessage(notificationBuilder, "Transfer requires a positive amount");
-      return;
+    return CompletableFuture.completedFuture(
+        processTransfers(
+                List.of(new TransferRequest(requestId, senderId, receiverId, amount, currency)))
+            .get(0));
+  }
+
+  /**
+   * Processes the transfers in groups of at most service.payment.group.max.users users, see {@link
+   * TransferGroups}, usually a single group. The stripes of every user of a group are locked at
+   * once, the users are read with a single query and every change is written in one database
+   * transaction, so a group costs one round-trip of each kind instead of one per transfer.
+   *
+   * <p>The hot receivers are not locked, their credits are buffered in the {@link
+   * HotAccountRegistry} in the transaction of the group, and written by {@link
+   * #flushHotCredits()}.
+   * Every database write of a balance happens while holding the lock of the user, so the buffered
+   * credits of a hot sender are written before its balance is checked.
+   *
+   * <p>With the {@link AccountCache} enabled the locked users are read from the cache, and the
+   * cache is updated with the committed balances before the locks are released. If a cached
+   * account turns out to be stale on write, the group is rolled back and reattempted with fresh
+   * reads. The outcomes of the transfers are reported once the group is committed, so a
+   * reattempted group neither notifies nor counts a failure twice.
+   *
+   * <p>The amount is in the currency of the transfer, an account of another currency is debited or
+   * credited with the amount exchanged by the {@link FxRates} of the group, a debit rounded up, a
+   * credit rounded down to the minor unit of the account.
+   */
+  @Override
+  public List<TransferResult> processTransfers(List<TransferRequest> transfers) {
+    if (2 * transfers.size() <= maxGroupUsers) {
+      return processGroup(transfers); // without partitioning, e.g. a single transfer
+    }
+    List<List<Integer>> groups = TransferGroups.of(transfers, maxGroupUsers);
+    if (groups.size() == 1) {
+      return processGroup(transfers);
+    }
+    TransferResult[] results = new TransferResult[transfers.size()];
+    for (List<Integer> group : groups) {
+      List<TransferRequest> groupTransfers = new ArrayList<>(group.size());
+      for (int index : group) {
+        groupTransfers.add(transfers.get(index));
+      }
+      List<TransferResult> groupResults = processGroup(groupTransfers);
+      for (int i = 0; i < group.size(); i++) {
+        results[group.get(i)] = groupResults.get(i);
+      }
     }
+    return asList(results);
+  }
 
-    try {
-      /* We lock before querying the db. This strategy increases lock time, but we only need a
-      single db query to retrieve the data. This strategy should be faster do to less I/O,
-      and works well if we expect low lock contention and most transactions to be valid, thus
-      the validation without the locks would not gain us much.
-      If we would expect lots of validation issues and have high lock contention (which cannot
-      be eliminated even by extending the stripes), a double-checked locking pattern could be
-      used, so we would perform the validations without the locks, lock, re-query and then redo
-      the balance check and complete the transaction.
-       */
-      List<Lock> locks = Stream.of(senderId, receiverId).sorted().map(multiLock::get).toList();
-      /* As we are using multiple locks, we have a potential for a deadlock if we are not careful
-      about lock ordering. To avoid it, we will always lock in userId ascending order. This
-      strategy should always ensure consistent lock ordering without knowing anything else about
-      any other transaction.
-      */
-      Lock lowerLock = locks.get(0);
-      Lock higherLock = locks.get(1);
-      boolean lowerLocked = false;
-      boolean higherLocked = false;
-      for (int reattemptCount = 0; reattemptCount < reattemptLimit; reattemptCount++) {
-        try {
-          lowerLocked = lowerLock.tryLock(LOCK_TIMEOUT_MILLIS, MILLISECONDS);
-          if (!lowerLocked) {
-            continue;
-          }
-          higherLocked = higherLock.tryLock(LOCK_TIMEOUT_MILLIS, MILLISECONDS);
-          if (!higherLocked) {
-            continue;
-          }
+  private List<TransferResult> processGroup(List<TransferRequest> transfers) {
+    TransferResult[] results = new TransferResult[transfers.size()];
+    List<Integer> accepted = new ArrayList<>(transfers.size());
+    Set<Long> lockedIds = Sets.newHashSetWithExpectedSize(2 * transfers.size());
+    boolean hotReceivers = false;
+    for (int i = 0; i < transfers.size(); i++) {
+      TransferRequest request = transfers.get(i);
+      try {
+        String error = checkPreconditions(request);
+        if (error != null) {
+          results[i] = TransferResult.failed(request.getRequestId(), error);
+          continue;
+        }
+      } catch (UnsupportedOperationException e) {
+        results[i] = TransferResult.failed(request.getRequestId(), e.getMessage());
+        continue;
+      }
+      accepted.add(i);
+      lockedIds.add(request.getSenderId());
+      hotAccounts.recordCredit(request.getReceiverId());
+      if (hotAccounts.isHot(request.getReceiverId())) {
+        hotReceivers = true;
+      } else {
+        lockedIds.add(request.getReceiverId());
+      }
+    }
+    if (accepted.isEmpty()) {
+      return asList(results);
+    }
 
-          Map<Long, User> userIdToUser =
-              getUsers(requestId, senderId, receiverId, notificationBuilder);
-          if (userIdToUser == null) {
-            return;
+    /* We lock before querying the db. This strategy increases lock time, but we only need a
+    single db query to retrieve the data. This strategy should be faster do to less I/O,
+    and works well if we expect low lock contention and most transactions to be valid, thus
+    the validation without the locks would not gain us much.
+    If we would expect lots of validation issues and have high lock contention (which cannot
+    be eliminated even by extending the stripes), a double-checked locking pattern could be
+    used, so we would perform the validations without the locks, lock, re-query and then redo
+    the balance check and complete the transaction.
+     */
+    /* As we are using multiple locks, we have a potential for a deadlock if we are not careful
+    about lock ordering. To avoid it, we will always lock in stripe index order. This strategy
+    should always ensure consistent lock ordering without knowing anything else about any other
+    transaction. Once sorted, the duplicates are next to each other.
+    */
+    int[] stripes = new int[lockedIds.size()];
+    int stripeCount = 0;
+    for (Long userId : lockedIds) {
+      stripes[stripeCount++] = stripeOf(userId);
+    }
+    Arrays.sort(stripes);
+    stripeCount = 0;
+    for (int stripe : stripes) {
+      if (stripeCount == 0 || stripes[stripeCount - 1] != stripe) {
+        stripes[stripeCount++] = stripe;
+      }
+    }
+    // the weak locks are only kept while referenced, so they are held on to until unlocked
+    Lock[] locks = new Lock[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      locks[i] = multiLock.getAt(stripes[i]);
+    }
+    // only the hot receivers are read without being locked
+    Set<Long> userIds;
+    if (hotReceivers) {
+      userIds = new HashSet<>(lockedIds);
+      for (int index : accepted) {
+        userIds.add(transfers.get(index).getReceiverId());
+      }
+    } else {
+      userIds = lockedIds;
+    }
+    // the outcomes are only reported once the locks are released, so a slow messaging queue or
+    // the failure notifications of a group never keep the other transfers of the stripes waiting
+    // the outcomes of the failed transfers by their index, null for the others
+    Outcome[] failures = new Outcome[transfers.size()];
+    List<TransactionNotification> notifications = null;
+    DuplicateKeyException violation = null;
+    Outcome groupFailure = null;
+    for (int reattemptCount = 0; reattemptCount < reattemptLimit; reattemptCount++) {
+      int lockedCount = 0;
+      Map<Long, Money> drainedCredits = new HashMap<>();
+      Arrays.fill(failures, null);
+      try {
+        long lockStart = System.nanoTime();
+        while (lockedCount < locks.length
+            && locks[lockedCount].tryLock(LOCK_TIMEOUT_MILLIS, MILLISECONDS)) {
+          lockedCount++;
+        }
+        if (lockedCount < locks.length) {
+          metrics.recordLockTimeout(stripes[lockedCount]);
+          if (reattemptCount + 1 < reattemptLimit) {
+            metrics.recordLockReattempt();
           }
+          continue;
+        }
+        metrics.recordStage(Stage.LOCK, lockStart);
+        // only a hot receiver is credited through the buffer, which most groups do not have
+        Map<Long, Money> hotCredits = hotReceivers ? new HashMap<>() : Map.of();
+        List<User> changedUsers = new ArrayList<>(lockedIds.size());
+        // committed before the locks are released, so the next holder reads the new balances
+        notifications =
+            transactionOperations.execute(
+                status ->
+                    transferGroup(
+                        transfers,
+                        accepted,
+                        lockedIds,
+                        userIds,
+                        results,
+                        drainedCredits,
+                        hotCredits,
+                        changedUsers,
+                        failures,
+                        status));
+        if (accountCache.isEnabled()) {
+          accountCache.put(changedUsers);
+        }
+        hotAccounts.markBuffered(hotCredits.keySet());
+        break;
+      } catch (InterruptedException e) {
+        // probably a shutdown, just log and quit
+        LOGGER.warn(
+            "Prematurely ended processing of {} transfers due to shutdown signal",
+            accepted.size());
+        Thread.currentThread().interrupt();
+        groupFailure = Outcome.INTERRUPTED;
+        break;
+      } catch (OptimisticLockingFailureException e) {
+        // another instance wrote a cached account, rolled back, so read it again and reattempt
+        LOGGER.warn("Reattempting a group of {} transfers: {}", accepted.size(), e.getMessage());
+        accountCache.invalidate(lockedIds);
+        hotAccounts.markBuffered(drainedCredits.keySet());
+      } catch (DuplicateKeyException e) {
+        // rolled back, a replayed request id only the unique index caught, e.g. after a restart,
+        // which should neither fail nor notify about the other transfers of the group
+        accountCache.invalidate(lockedIds);
+        hotAccounts.markBuffered(drainedCredits.keySet());
+        violation = e;
+        break;
+      } catch (Exception e) {
+        LOGGER.error("Unexpected error occurred during transfer processing", e);
+        // the drained credits were rolled back with the transaction, and so were the balances
+        accountCache.invalidate(lockedIds);
+        hotAccounts.markBuffered(drainedCredits.keySet());
+        groupFailure = Outcome.ERROR;
+        break;
+      } finally {
+        for (int i = lockedCount - 1; i >= 0; i--) {
+          locks[i].unlock();
+        }
+      }
+    }
+    if (notifications != null) {
+      // only report the outcomes once committed, a rolled back attempt may not hold on the next
+      for (int index = 0; index < failures.length; index++) {
+        if (failures[index] != null) {
+          TransferRequest request = transfers.get(index);
+          results[index] = report(request, notificationBuilder(request), failures[index], false);
+        }
+      }
+      recordCompleted(accepted, results);
+      notifications.forEach(messagingService::sendTransactionNotification);
+      return asList(results);
+    }
+    if (violation != null) {
+      return processIndividually(transfers, accepted, results, violation);
+    }
+    if (groupFailure == Outcome.INTERRUPTED) {
+      return failAccepted(
+          transfers,
+          accepted,
+          results,
+          Outcome.INTERRUPTED,
+          "Transfer processing was interrupted.");
+    }
+    if (groupFailure == Outcome.ERROR) {
+      return failAccepted(
+          transfers,
+          accepted,
+          results,
+          Outcome.ERROR,
+          "Could not allocate resources for transfer processing.");
+    }
+    LOGGER.error("Failed to acquire locks for a group of {} transfers", accepted.size());
+    return failAccepted(
+        transfers,
+        accepted,
+        results,
+        Outcome.LOCK_EXHAUSTION,
+        "Could not allocate resources to process your transfer.");
+  }
 
-          // validate sender balance
-          User sender = userIdToUser.get(senderId);
-          BigDecimal newBalance = sender.getBalance().subtract(amount);
-          if (ZERO.compareTo(newBalance) > 0) {
-            sendFailMessage(notificationBuilder, "Insufficient user balance.");
-            return;
-          }
+  private List<TransactionNotification> transferGroup(
+      List<TransferRequest> transfers,
+      List<Integer> accepted,
+      Set<Long> lockedIds,
+      Set<Long> userIds,
+      TransferResult[] results,
+      Map<Long, Money> drainedCredits,
+      Map<Long, Money> hotCredits,
+      List<User> changedUsers,
+      Outcome[] failures,
+      TransactionStatus status) {
+    Instant now = Instant.now();
+    // the buffered credits of the locked users are written first, so they can be spent
+    for (Long userId : lockedIds) {
+      Money credit = hotAccounts.drain(userId);
+      if (credit.signum() != 0) {
+        drainedCredits.put(userId, credit);
+        userRepository.addToBalance(userId, credit, now);
+        accountCache.invalidate(userId);
+      }
+    }
 
-          Instant now = Instant.now();
-          sender.setBalance(newBalance);
-          sender.setUpdated(now);
-          User receiver = userIdToUser.get(receiverId);
-          receiver.setBalance(receiver.getBalance().add(amount));
-          receiver.setUpdated(now);
-
-          Transaction transaction =
-              Transaction.builder()
-                  .amount(amount)
-                  .currency(currency)
-                  .senderId(senderId)
-                  .receiverId(receiverId)
-                  .requestId(requestId)
-                  .inserted(now)
-                  .build();
-          transactionRepository.save(transaction);
-          userRepository.saveAll(userIdToUser.values());
-          messagingService.sendTransactionNotification(
-              notificationBuilder.successful(true).build());
-          return;
-        } catch (InterruptedException e) {
-          // probably a shutdown, just log and quit
-          LOGGER.warn(
-              "Prematurely ended transfer request processing due to shutdown signal for={}",
-              notificationBuilder.build());
-          return;
-        } finally {
-          if (higherLocked) {
-            higherLock.unlock();
-          }
-          if (lowerLocked) {
-            lowerLock.unlock();
-          }
+    Map<Long, User> userIdToUser = Maps.newHashMapWithExpectedSize(userIds.size());
+    long readStart = System.nanoTime();
+    if (accountCache.isEnabled()) {
+      userIdToUser.putAll(accountCache.findAllById(userIds, lockedIds));
+    } else {
+      userRepository.findAllById(userIds).forEach(user -> userIdToUser.put(user.getId(), user));
+    }
+    metrics.recordStage(Stage.DB_READ, readStart);
+
+    // a single snapshot for the group, a refresh of the rates does not wait for the locks
+    FxRates rates = fxRateProvider.getRates();
+    List<Transaction> transactions = new ArrayList<>(accepted.size());
+    List<TransactionNotification> notifications = new ArrayList<>(accepted.size());
+    for (int index : accepted) {
+      TransferRequest request = transfers.get(index);
+      String requestId = request.getRequestId();
+      Long senderId = request.getSenderId();
+      Long receiverId = request.getReceiverId();
+      User sender = userIdToUser.get(senderId);
+      User receiver = userIdToUser.get(receiverId);
+      if (sender == null) {
+        failures[index] = Outcome.MISSING_SENDER;
+        continue;
+      }
+      if (receiver == null) {
+        // Transfer failed because there is no such receiver -> notify the sender
+        failures[index] = Outcome.MISSING_RECEIVER;
+        continue;
+      }
+      Currency currency = request.getCurrency();
+      Money amount = Money.of(request.getAmount());
+      // the same amount instances if the accounts are in the currency of the transfer
+      Money debit = rates.convertUp(amount, currency, sender.getCurrency());
+      Money credit = rates.convertDown(amount, currency, receiver.getCurrency());
+      if (debit == null || credit == null || credit.signum() == 0) {
+        failures[index] = Outcome.UNSUPPORTED_EXCHANGE;
+        continue;
+      }
+      // validate sender balance
+      Money newBalance = sender.getBalance().minus(debit);
+      if (newBalance.signum() < 0
+          && accountCache.isVersioned()
+          && !isChanged(changedUsers, senderId)) {
+        // nothing is written to check the version of an unchanged cached sender, so the stored
+        // balance decides; a changed sender is version-checked on write
+        User stored = accountCache.reload(senderId);
+        if (stored != null) {
+          sender = stored;
+          userIdToUser.put(senderId, sender);
+          newBalance = sender.getBalance().minus(debit);
         }
       }
-      LOGGER.error("Failed to acquire locks for transfer={}", notificationBuilder.build());
-      sendFailMessage(
-          notificationBuilder, "Could not allocate resources to process your transfer.");
-    } catch (EntityNotFoundException e) {
-      LOGGER.error(
-          "No user(s) exists for id(s)={} for requestId={}",
-          asList(senderId, receiverId),
-          requestId);
-    } catch (Exception e) { // we are in an executor, we don't really want to throw anything
-      LOGGER.error(
-          "Unexpected error occurred during transfer processing for requestId=" + requestId, e);
-      messagingService.sendTransactionNotification(
-          notificationBuilder
-              .successful(false)
-              .error("Could not allocate resources for transfer processing.")
-              .build());
+      if (newBalance.signum() < 0) {
+        failures[index] = Outcome.INSUFFICIENT_BALANCE;
+        continue;
+      }
+
+      sender.setBalance(newBalance);
+      sender.setUpdated(now);
+      markChanged(changedUsers, sender);
+      if (lockedIds.contains(receiverId)) {
+        receiver.setBalance(receiver.getBalance().plus(credit));
+        receiver.setUpdated(now);
+        markChanged(changedUsers, receiver);
+      } else {
+        hotCredits.merge(receiverId, credit, Money::plus);
+      }
+      // set one by one, a builder per transfer would be garbage of the hot path
+      Transaction transaction = new Transaction();
+      transaction.setAmount(request.getAmount());
+      transaction.setCurrency(currency);
+      transaction.setSenderAmount(sender.getCurrency() == currency ? null : debit.toBigDecimal());
+      transaction.setReceiverAmount(
+          receiver.getCurrency() == currency ? null : credit.toBigDecimal());
+      transaction.setSenderId(senderId);
+      transaction.setReceiverId(receiverId);
+      transaction.setRequestId(requestId);
+      transaction.setInserted(now);
+      transactions.add(transaction);
+      notifications.add(completedNotification(request));
+      results[index] = TransferResult.completed(requestId);
+    }
+    // the unlocked hot receivers are only read, they must not be written with absolute values
+    long writeStart = System.nanoTime();
+    transactionRepository.saveAll(transactions);
+    hotAccounts.writeCredits(hotCredits);
+    if (accountCache.isEnabled()) {
+      accountCache.writeBalances(changedUsers);
+    } else {
+      userRepository.saveAll(changedUsers);
+    }
+    if (outbox.isEnabled()) {
+      outbox.write(notifications);
+    }
+    // sends the statements now instead of on commit, so they are measured as the write stage
+    try {
+      status.flush();
+    } catch (DataIntegrityViolationException e) {
+      // the batched inserts are not translated by the constraint they violated
+      throw isUniqueViolation(e) ? new DuplicateKeyException(e.getMessage(), e) : e;
     }
+    metrics.recordStage(Stage.DB_WRITE, writeStart);
+    // with the outbox they are published by the relay once committed, nothing is left to send
+    return outbox.isEnabled() ? List.of() : notifications;
   }
 
-  private Map<Long, User> getUsers(
-      String requestId,
-      Long senderId,
-      Long receiverId,
-      TransactionNotificationBuilder notificationBuilder) {
-    Set<Long> nonNullIds =
-        Stream.of(senderId, receiverId).filter(Objects::nonNull).collect(Collectors.toSet());
-    List<User> users = userRepository.findAllById(nonNullIds);
-    if (users.size() != nonNullIds.size()) {
-      users.stream().map(User::getId).forEach(nonNullIds::remove);
-      LOGGER.error("No user(s) exists for id(s)={} for requestId={}", nonNullIds, requestId);
-      if (!users.isEmpty() && Objects.equals(users.get(0).getId(), senderId)) {
-        // Transfer failed because there is no such receiver -> notify the sender
-        sendFailMessage(notificationBuilder, "No user exists for receiver id=" + receiverId);
+  // a group holds at most maxGroupUsers users, so scanning them is cheaper than hashing them
+  private static boolean isChanged(List<User> changedUsers, Long userId) {
+    for (User user : changedUsers) {
+      if (user.getId().equals(userId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void markChanged(List<User> changedUsers, User user) {
+    if (!isChanged(changedUsers, user.getId())) {
+      changedUsers.add(user);
+    }
+  }
+
+  /**
+   * Processes the transfers of a group which violated the unique request id one by one, like the
+   * ledger writer, so only the replayed transfer is rejected. The group was rolled back, so every
+   * accepted transfer is processed again, including the ones which failed in the group, e.g. on a
+   * balance debited by the rolled back replay.
+   */
+  private List<TransferResult> processIndividually(
+      List<TransferRequest> transfers,
+      List<Integer> accepted,
+      TransferResult[] results,
+      DuplicateKeyException violation) {
+    if (accepted.size() == 1) {
+      int index = accepted.get(0);
+      String requestId = transfers.get(index).getRequestId();
+      // the unique request id caught a replay the idempotency index did not know about
+      LOGGER.warn(
+          "Rejected duplicate transfer request for requestId={}: {}",
+          requestId,
+          violation.getMessage());
+      metrics.recordOutcome(Outcome.DUPLICATE);
+      results[index] = new TransferResult(requestId, TransferStatus.DUPLICATE, null);
+      return asList(results);
+    }
+    LOGGER.warn(
+        "Group of {} transfers replayed a request id, retrying them one by one", accepted.size());
+    // the results of the rolled back group do not hold, the failed ones are processed again too
+    for (int index : accepted) {
+      results[index] = processTransfers(List.of(transfers.get(index))).get(0);
+    }
+    return asList(results);
+  }
+
+  /**
+   * Whether the violation is of a unique constraint, which is only told by the SQL state of the
+   * batched inserts, e.g. of the next exception of a {@link java.sql.BatchUpdateException}.
+   */
+  private static boolean isUniqueViolation(DataIntegrityViolationException e) {
+    for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+      for (SQLException sql = cause instanceof SQLException first ? first : null;
+          sql != null;
+          sql = sql.getNextException()) {
+        if (UNIQUE_VIOLATION_STATE.equals(sql.getSQLState())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void recordCompleted(List<Integer> accepted, TransferResult[] results) {
+    int completed = 0;
+    for (int index : accepted) {
+      if (results[index].getStatus() == TransferStatus.COMPLETED) {
+        completed++;
+      }
+    }
+    metrics.recordOutcome(Outcome.COMPLETED, completed);
+  }
+
+  /**
+   * The stripe of the lock of the user. Every lock of a user has to be taken through it, instead of
+   * {@link Striped#get(Object)}, so the locks of the groups can be ordered without collecting them.
+   */
+  private int stripeOf(Long userId) {
+    return Math.floorMod(Long.hashCode(userId), multiLock.size());
+  }
+
+  private List<TransferResult> failAccepted(
+      List<TransferRequest> transfers,
+      List<Integer> accepted,
+      TransferResult[] results,
+      Outcome outcome,
+      String error) {
+    // the failures of a rolled back attempt were not reported, so every accepted transfer fails
+    for (int index : accepted) {
+      metrics.recordOutcome(outcome);
+      TransferRequest request = transfers.get(index);
+      sendFailMessage(notificationBuilder(request), error);
+      results[index] = TransferResult.failed(request.getRequestId(), error);
+    }
+    return asList(results);
+  }
+
+  /**
+   * Writes the buffered credits of the hot accounts, each with a single relative balance update
+   * while holding the lock of the account.
+   */
+  @Scheduled(fixedDelayString = "${service.payment.hot.flush.interval.millis}")
+  public void flushHotCredits() {
+    for (Long accountId : hotAccounts.getBufferedAccounts()) {
+      Lock lock = multiLock.getAt(stripeOf(accountId));
+      lock.lock();
+      try {
+        transactionOperations.executeWithoutResult(
+            status -> {
+              Money credit = hotAccounts.drain(accountId);
+              if (credit.signum() != 0) {
+                userRepository.addToBalance(accountId, credit, Instant.now());
+              }
+            });
+        accountCache.invalidate(accountId);
+      } catch (RuntimeException e) {
+        LOGGER.error("Failed to flush the credits of hot account id=" + accountId, e);
+        // rolled back, the credits are still in the table
+        hotAccounts.markBuffered(Set.of(accountId));
+      } finally {
+        lock.unlock();
       }
-      return null;
     }
-    return users.stream().collect(Collectors.toMap(User::getId, Function.identity()));
   }
 
-  private void sendFailMessage(TransactionNotificationBuilder notificationBuilder, String error) {
-    TransactionNotification notification =
-        notificationBuilder.successful(false).error(error).build();
-    messagingService.sendTransactionNotification(notification.getSenderId(), notification);
+  @Override
+  public void destroy() {
+    flushHotCredits();
   }
 }
@@ -0,0 +1,178 @@
+package hu.gerab.payment.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Sinks;
+import reactor.core.publisher.Sinks.EmitResult;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderRecord;
+import reactor.kafka.sender.SenderResult;
+import reactor.util.concurrent.Queues;
+
+/**
+ * Messaging service of the reactive mode, sending the messages with reactor-kafka, so no thread
+ * waits for the broker. The messages are emitted into a bounded buffer, which the {@link
+ * KafkaSender} drains as fast as the producer accepts the records, with the same producer settings
+ * as the {@link MessagingServiceImpl}.
+ *
+ * <p>A message is dropped if the buffer is full, or if the producer gave up on it after its own
+ * retries until the delivery timeout. Unlike the {@link MessagingServiceImpl}, the failed sends
+ * are not retried again.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "reactive")
+public class ReactiveMessagingService implements MessagingService, DisposableBean {
+
+  private final String topic;
+  private final Queue<SenderRecord<Long, Object, PendingMessage>> queue;
+  private final Sinks.Many<SenderRecord<Long, Object, PendingMessage>> sink;
+  private final KafkaSender<Long, Object> sender;
+  private final Disposable sending;
+  private final CountDownLatch sent = new CountDownLatch(1);
+  private final long shutdownTimeoutMillis;
+  private final Counter acknowledged;
+  private final Counter dropped;
+  private final Timer lag;
+  private final PaymentMetrics metrics;
+
+  @Autowired
+  public ReactiveMessagingService(
+      ProducerFactory<Long, Object> producerFactory,
+      MeterRegistry meterRegistry,
+      PaymentMetrics metrics,
+      @Value("${kafka.transaction.topic}") String topic,
+      @Value("${service.messaging.queue.capacity}") int queueCapacity,
+      @Value("${service.messaging.shutdown.timeout.millis}") long shutdownTimeoutMillis) {
+    this.topic = topic;
+    this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    this.metrics = metrics;
+    this.acknowledged =
+        Counter.builder("payment.notifications.acknowledged")
+            .description("Notifications acknowledged by kafka")
+            .register(meterRegistry);
+    this.dropped =
+        Counter.builder("payment.notifications.dropped")
+            .description("Notifications given up on, because the queue was full or sends failed")
+            .register(meterRegistry);
+    this.lag =
+        Timer.builder("payment.notifications.lag")
+            .description("Time from queueing a notification until kafka acknowledged it")
+            .register(meterRegistry);
+    this.queue = Queues.<SenderRecord<Long, Object, PendingMessage>>get(queueCapacity).get();
+    Gauge.builder("payment.notifications.queue.depth", queue, Queue::size)
+        .description("Notifications waiting to be sent")
+        .register(meterRegistry);
+    this.sink = Sinks.many().unicast().onBackpressureBuffer(queue);
+    // a failed record is reported in its result, and does not end the sending of the others
+    this.sender =
+        KafkaSender.create(
+            SenderOptions.<Long, Object>create(producerFactory.getConfigurationProperties())
+                .stopOnError(false));
+    this.sending =
+        sender
+            .send(sink.asFlux().doOnNext(record -> record.correlationMetadata().sent()))
+            .doFinally(signal -> sent.countDown())
+            .subscribe(
+                this::onResult,
+                error -> LOGGER.error("Notification sending stopped unexpectedly", error));
+  }
+
+  @Override
+  public void sendTransactionNotification(TransactionNotification notification) {
+    final Long senderId = notification.getSenderId();
+    if (senderId != null) {
+      sendTransactionNotification(senderId, notification);
+    }
+    final Long receiverId = notification.getReceiverId();
+    if (receiverId != null) {
+      sendTransactionNotification(receiverId, notification);
+    }
+  }
+
+  /** Keyed by the user, as by the {@link MessagingServiceImpl}, so the ordering is per user. */
+  @Override
+  public void sendTransactionNotification(long userId, TransactionNotification notification) {
+    PendingMessage message = new PendingMessage(userId, notification, System.nanoTime());
+    SenderRecord<Long, Object, PendingMessage> record =
+        SenderRecord.create(new ProducerRecord<>(topic, userId, notification), message);
+    EmitResult result;
+    // the sink takes one emitter at a time, the concurrent ones only wait for the enqueue
+    while ((result = sink.tryEmitNext(record)) == EmitResult.FAIL_NON_SERIALIZED) {
+      Thread.onSpinWait();
+    }
+    if (result.isFailure()) {
+      dropped.increment();
+      LOGGER.error(
+          "Notification queue is full, dropped notification for userId={} notification={}",
+          userId,
+          notification);
+    }
+  }
+
+  private void onResult(SenderResult<PendingMessage> result) {
+    PendingMessage message = result.correlationMetadata();
+    if (result.exception() == null) {
+      acknowledged.increment();
+      lag.record(System.nanoTime() - message.enqueuedNanos, NANOSECONDS);
+      metrics.recordStage(Stage.KAFKA_SEND, message.sentNanos);
+    } else {
+      dropped.increment();
+      LOGGER.error(
+          "Giving up on notification for userId={} notification={}",
+          message.userId,
+          message.notification,
+          result.exception());
+    }
+  }
+
+  /** Sends the queued messages, and waits for their acknowledgement, up to the timeout. */
+  @Override
+  public void destroy() throws InterruptedException {
+    while (sink.tryEmitComplete() == EmitResult.FAIL_NON_SERIALIZED) {
+      Thread.onSpinWait();
+    }
+    if (!sent.await(shutdownTimeoutMillis, MILLISECONDS)) {
+      LOGGER.error("Shut down with {} queued or unacknowledged notifications", queue.size());
+      sending.dispose();
+    }
+    sender.close();
+  }
+
+  private static final class PendingMessage {
+    private final long userId;
+    private final TransactionNotification notification;
+    private final long enqueuedNanos;
+    // when the sender took it from the queue
+    private long sentNanos;
+
+    private PendingMessage(long userId, TransactionNotification notification, long enqueuedNanos) {
+      this.userId = userId;
+      this.notification = notification;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+
+    private void sent() {
+      sentNanos = System.nanoTime();
+    }
+  }
+}
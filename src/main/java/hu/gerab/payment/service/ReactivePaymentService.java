@@ -0,0 +1,209 @@
+package hu.gerab.payment.service;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Money;
+import hu.gerab.payment.domain.Transaction;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.fx.FxRates;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.metrics.PaymentMetrics.Outcome;
+import hu.gerab.payment.metrics.PaymentMetrics.Stage;
+import hu.gerab.payment.repository.ReactiveTransactionRepository;
+import hu.gerab.payment.repository.ReactiveUserRepository;
+import io.r2dbc.spi.R2dbcException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+/**
+ * Payment service processing the transfers without blocking a thread: the users are locked, read
+ * and written through R2DBC, and a transfer is a {@link Mono} completing once it is committed.
+ * Activated with service.payment.mode=reactive, by the reactive profile, which serves the transfer
+ * endpoints with WebFlux.
+ *
+ * <p>The validation, the exchange of the amounts and the failures are the same as in the {@link
+ * PaymentServiceImpl}, but the users are locked by the database, with row locks in id order,
+ * instead of the lock stripes of the instance, so a waiting transfer holds a connection but no
+ * thread. A transfer which could not lock the users, on a lock timeout or a deadlock, is
+ * reattempted up to service.payment.reattempt.limit times. The users are notified once the
+ * transfer is committed.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "service.payment.mode", havingValue = "reactive")
+public class ReactivePaymentService extends AbstractPaymentService {
+
+  // lock_not_available of Postgres, the lock_timeout of the connections expired
+  private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+  private final ReactiveUserRepository userRepository;
+  private final ReactiveTransactionRepository transactionRepository;
+  private final TransactionalOperator transactionalOperator;
+  private final FxRateProvider fxRateProvider;
+  private final int reattemptLimit;
+
+  @Autowired
+  public ReactivePaymentService(
+      MessagingService messagingService,
+      ReactiveUserRepository userRepository,
+      ReactiveTransactionRepository transactionRepository,
+      TransactionalOperator transactionalOperator,
+      FxRateProvider fxRateProvider,
+      PaymentMetrics metrics,
+      @Value("${service.payment.reattempt.limit}") int reattemptLimit) {
+    super(messagingService, metrics);
+    this.userRepository = userRepository;
+    this.transactionRepository = transactionRepository;
+    this.transactionalOperator = transactionalOperator;
+    this.fxRateProvider = fxRateProvider;
+    this.reattemptLimit = reattemptLimit;
+  }
+
+  @Override
+  public CompletableFuture<TransferResult> processTransfer(
+      String requestId, Long senderId, Long receiverId, BigDecimal amount, Currency currency) {
+    return transfer(new TransferRequest(requestId, senderId, receiverId, amount, currency))
+        .toFuture();
+  }
+
+  /**
+   * Processes the transfers one after the other, in the given order, and waits for them. Only for
+   * the callers which may block, e.g. the replay of the journal on startup.
+   */
+  @Override
+  public List<TransferResult> processTransfers(List<TransferRequest> transfers) {
+    return Flux.fromIterable(transfers).concatMap(this::transfer).collectList().block();
+  }
+
+  /**
+   * Processes the transfer in its own database transaction.
+   *
+   * @return the result of the transfer, once it is committed, or rolled back on a failure
+   */
+  public Mono<TransferResult> transfer(TransferRequest request) {
+    String requestId = request.getRequestId();
+    try {
+      String error = checkPreconditions(request);
+      if (error != null) {
+        return Mono.just(TransferResult.failed(requestId, error));
+      }
+    } catch (UnsupportedOperationException e) {
+      return Mono.just(TransferResult.failed(requestId, e.getMessage()));
+    }
+    return transactionalOperator
+        .transactional(Mono.defer(() -> execute(request)))
+        .retryWhen(
+            Retry.max(reattemptLimit - 1)
+                .filter(ReactivePaymentService::isLockFailure)
+                .doBeforeRetry(signal -> metrics.recordLockReattempt()))
+        // only notify about the outcome once the transaction is over
+        .map(outcome -> report(request, notificationBuilder(request), outcome, false))
+        .onErrorResume(e -> Mono.just(fail(request, e)));
+  }
+
+  private Mono<Outcome> execute(TransferRequest request) {
+    Long senderId = request.getSenderId();
+    Long receiverId = request.getReceiverId();
+    long lockStart = System.nanoTime();
+    return userRepository
+        .lockAll(senderId, receiverId)
+        .collectMap(User::getId)
+        .flatMap(
+            users -> {
+              // the users are read by the statement locking them
+              metrics.recordStage(Stage.LOCK, lockStart);
+              return write(request, users);
+            });
+  }
+
+  private Mono<Outcome> write(TransferRequest request, Map<Long, User> users) {
+    Long senderId = request.getSenderId();
+    Long receiverId = request.getReceiverId();
+    User sender = users.get(senderId);
+    User receiver = users.get(receiverId);
+    if (sender == null) {
+      return Mono.just(Outcome.MISSING_SENDER);
+    } else if (receiver == null) {
+      return Mono.just(Outcome.MISSING_RECEIVER);
+    }
+    FxRates rates = fxRateProvider.getRates();
+    Currency currency = request.getCurrency();
+    Money amount = Money.of(request.getAmount());
+    Money debit = rates.convertUp(amount, currency, sender.getCurrency());
+    Money credit = rates.convertDown(amount, currency, receiver.getCurrency());
+    if (debit == null || credit == null || credit.signum() == 0) {
+      return Mono.just(Outcome.UNSUPPORTED_EXCHANGE);
+    }
+    Money senderBalance = sender.getBalance().minus(debit);
+    if (senderBalance.signum() < 0) {
+      return Mono.just(Outcome.INSUFFICIENT_BALANCE);
+    }
+    Instant now = Instant.now();
+    Transaction transaction = new Transaction();
+    transaction.setAmount(request.getAmount());
+    transaction.setCurrency(currency);
+    transaction.setSenderAmount(sender.getCurrency() == currency ? null : debit.toBigDecimal());
+    transaction.setReceiverAmount(
+        receiver.getCurrency() == currency ? null : credit.toBigDecimal());
+    transaction.setSenderId(senderId);
+    transaction.setReceiverId(receiverId);
+    transaction.setRequestId(request.getRequestId());
+    transaction.setInserted(now);
+    long writeStart = System.nanoTime();
+    return userRepository
+        .setBalance(senderId, senderBalance, now)
+        .then(userRepository.setBalance(receiverId, receiver.getBalance().plus(credit), now))
+        .then(transactionRepository.save(transaction))
+        .doOnNext(saved -> metrics.recordStage(Stage.DB_WRITE, writeStart))
+        .thenReturn(Outcome.COMPLETED);
+  }
+
+  private TransferResult fail(TransferRequest request, Throwable e) {
+    String requestId = request.getRequestId();
+    if (e instanceof DuplicateKeyException) {
+      // the unique request id caught a replay the idempotency index did not know about
+      LOGGER.warn("Rejected duplicate transfer request for requestId={}", requestId);
+      metrics.recordOutcome(Outcome.DUPLICATE);
+      return new TransferResult(requestId, TransferStatus.DUPLICATE, null);
+    }
+    Outcome outcome;
+    String error;
+    if (Exceptions.isRetryExhausted(e)) {
+      LOGGER.error("Failed to lock the users for requestId={}", requestId, e.getCause());
+      outcome = Outcome.LOCK_EXHAUSTION;
+      error = "Could not allocate resources to process your transfer.";
+    } else {
+      LOGGER.error(
+          "Unexpected error occurred during transfer processing for requestId=" + requestId, e);
+      outcome = Outcome.ERROR;
+      error = "Could not allocate resources for transfer processing.";
+    }
+    metrics.recordOutcome(outcome);
+    sendFailMessage(notificationBuilder(request), error);
+    return TransferResult.failed(requestId, error);
+  }
+
+  /** The deadlocks and the serialization failures, or the lock timeout of Postgres. */
+  private static boolean isLockFailure(Throwable e) {
+    if (e instanceof TransientDataAccessException) {
+      return true;
+    }
+    return e.getCause() instanceof R2dbcException cause
+        && LOCK_NOT_AVAILABLE.equals(cause.getSqlState());
+  }
+}
@@ -0,0 +1,119 @@
+package hu.gerab.payment.service;
+
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the transfers of a batch into the groups the lock mode processes at once, so a large
+ * batch does not lock nearly every stripe, blocking the single transfers until it is written.
+ *
+ * <p>The transfers sharing an account are kept together, in their original order, as the outcome
+ * of a transfer depends on the earlier ones of its accounts. The transfers of unrelated accounts
+ * are packed into the same group up to maxUsers accounts, and a set of related transfers touching
+ * more accounts than that is cut into consecutive groups, which are processed in order.
+ */
+final class TransferGroups {
+
+  private TransferGroups() {}
+
+  /**
+   * @return the indexes of the transfers of every group, in the order the groups are processed
+   */
+  static List<List<Integer>> of(List<TransferRequest> transfers, int maxUsers) {
+    // union-find of the transfers sharing an account
+    int[] parents = new int[transfers.size()];
+    Map<Long, Integer> firstTransferOfUser = new HashMap<>();
+    for (int i = 0; i < transfers.size(); i++) {
+      parents[i] = i;
+      TransferRequest transfer = transfers.get(i);
+      for (Long userId : new Long[] {transfer.getSenderId(), transfer.getReceiverId()}) {
+        if (userId != null) {
+          Integer first = firstTransferOfUser.putIfAbsent(userId, i);
+          if (first != null) {
+            parents[root(parents, i)] = root(parents, first);
+          }
+        }
+      }
+    }
+    if (firstTransferOfUser.size() <= maxUsers) {
+      List<Integer> all = new ArrayList<>(transfers.size());
+      for (int i = 0; i < transfers.size(); i++) {
+        all.add(i);
+      }
+      return List.of(all);
+    }
+    // the related transfers in their original order, the sets ordered by their first transfer
+    Map<Integer, List<Integer>> related = new LinkedHashMap<>();
+    for (int i = 0; i < transfers.size(); i++) {
+      related.computeIfAbsent(root(parents, i), root -> new ArrayList<>()).add(i);
+    }
+
+    List<List<Integer>> groups = new ArrayList<>();
+    List<Integer> group = new ArrayList<>();
+    Set<Long> groupUsers = new HashSet<>();
+    for (List<Integer> indexes : related.values()) {
+      Set<Long> users = users(transfers, indexes);
+      if (groupUsers.size() + users.size() <= maxUsers) {
+        group.addAll(indexes);
+        groupUsers.addAll(users);
+        continue;
+      }
+      if (!group.isEmpty()) {
+        groups.add(group);
+        group = new ArrayList<>();
+        groupUsers.clear();
+      }
+      if (users.size() <= maxUsers) {
+        group.addAll(indexes);
+        groupUsers.addAll(users);
+        continue;
+      }
+      for (int index : indexes) {
+        Set<Long> transferUsers = users(transfers, List.of(index));
+        int newUsers = 0;
+        for (Long userId : transferUsers) {
+          newUsers += groupUsers.contains(userId) ? 0 : 1;
+        }
+        if (groupUsers.size() + newUsers > maxUsers) {
+          groups.add(group);
+          group = new ArrayList<>();
+          groupUsers.clear();
+        }
+        group.add(index);
+        groupUsers.addAll(transferUsers);
+      }
+    }
+    if (!group.isEmpty()) {
+      groups.add(group);
+    }
+    return groups;
+  }
+
+  private static int root(int[] parents, int index) {
+    while (parents[index] != index) {
+      parents[index] = parents[parents[index]];
+      index = parents[index];
+    }
+    return index;
+  }
+
+  private static Set<Long> users(List<TransferRequest> transfers, List<Integer> indexes) {
+    Set<Long> users = new HashSet<>();
+    for (int index : indexes) {
+      TransferRequest transfer = transfers.get(index);
+      if (transfer.getSenderId() != null) {
+        users.add(transfer.getSenderId());
+      }
+      if (transfer.getReceiverId() != null) {
+        users.add(transfer.getReceiverId());
+      }
+    }
+    return users;
+  }
+}
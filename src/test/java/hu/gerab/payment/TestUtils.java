@@ -1,11 +1,23 @@
 package hu.gerab.payment;
 
+import static hu.gerab.payment.domain.Currency.EUR;
+import static hu.gerab.payment.domain.Currency.JPY;
+import static hu.gerab.payment.domain.Currency.USD;
+
+import hu.gerab.payment.fx.FxRates;
 import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Map;
 
 public final class TestUtils {
 
   public static final BigDecimal THOUSAND = new BigDecimal("1000");
   public static final BigDecimal HUNDRED = new BigDecimal("100");
+  /** 1 EUR = 1.25 USD, 1 USD = 156.25 JPY, no rate for the other currencies. */
+  public static final FxRates RATES =
+      FxRates.of(
+          Map.of(USD, BigDecimal.ONE, EUR, new BigDecimal("1.25"), JPY, new BigDecimal("0.0064")),
+          Instant.EPOCH);
 
   private TestUtils() {}
 }
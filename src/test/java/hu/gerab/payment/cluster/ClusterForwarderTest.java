@@ -0,0 +1,76 @@
+package hu.gerab.payment.cluster;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import hu.gerab.payment.rest.PaymentAPI.TransferItem;
+import hu.gerab.payment.rest.PaymentAPI.TransferItemResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ClusterForwarderTest {
+
+  private HttpServer owner;
+
+  @AfterEach
+  void cleanup() {
+    owner.stop(0);
+  }
+
+  private static TransferItem item(long senderId) {
+    return new TransferItem(senderId, senderId + 1, BigDecimal.TEN, "USD", null);
+  }
+
+  @Test
+  public void givenItemsOfOneOwner_whenForwarded_thenOneBatchAndResultsByTheirIndexes()
+      throws IOException {
+    AtomicInteger requests = new AtomicInteger();
+    owner = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    owner.createContext(
+        "/payment/transfers/batch",
+        exchange -> {
+          requests.incrementAndGet();
+          exchange.getRequestBody().readAllBytes();
+          // the owner answers the first two items only, e.g. it stopped during the third one
+          byte[] response =
+              ("{\"index\":0,\"requestId\":\"r0\",\"status\":\"COMPLETED\"}\n"
+                      + "{\"index\":1,\"status\":\"REJECTED\",\"error\":\"invalid\"}\n")
+                  .getBytes(UTF_8);
+          exchange.sendResponseHeaders(200, response.length);
+          try (OutputStream body = exchange.getResponseBody()) {
+            body.write(response);
+          }
+        });
+    owner.start();
+    ClusterForwarder forwarder =
+        new ClusterForwarder(new ObjectMapper(), new SimpleMeterRegistry(), "a", "secret", 2000);
+    Map<Integer, TransferItem> items = new LinkedHashMap<>();
+    items.put(3, item(1));
+    items.put(7, item(3));
+    items.put(9, item(5));
+
+    List<TransferItemResult> results =
+        forwarder.forwardItems("http://localhost:" + owner.getAddress().getPort(), items);
+
+    assertEquals(1, requests.get());
+    assertEquals(
+        List.of(
+            new TransferItemResult(3, "r0", TransferStatus.COMPLETED, null),
+            new TransferItemResult(7, null, TransferStatus.REJECTED, "invalid"),
+            new TransferItemResult(
+                9, null, TransferStatus.FAILED, "The owner of the transfer did not answer")),
+        results);
+  }
+}
@@ -0,0 +1,182 @@
+package hu.gerab.payment.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ClusterRouterTest {
+
+  private static final Map<String, String> TWO_MEMBERS = Map.of("a", "http://a", "b", "http://b");
+  // a receiver above every user the tests route by
+  private static final long USERS_APART = 1_000_000;
+
+  @TempDir Path directory;
+  private final ClusterForwarder forwarder = mock(ClusterForwarder.class);
+
+  private ClusterRouter router(String self, String members, String membershipFile) {
+    ClusterRouter router =
+        new ClusterRouter(
+            forwarder,
+            self,
+            "secret",
+            members,
+            membershipFile,
+            1000,
+            64,
+            2000,
+            "lock",
+            "versioned",
+            "direct");
+    router.afterPropertiesSet();
+    return router;
+  }
+
+  /** @return the lowest user id owned by the member in the ring */
+  private static long lowestUserOf(String member, HashRing ring) {
+    long userId = 1;
+    while (!member.equals(ring.ownerOf(userId))) {
+      userId++;
+    }
+    return userId;
+  }
+
+  private void waitForRing(ClusterRouter router, HashRing ring) throws InterruptedException {
+    while (!router.getRing().equals(ring)) {
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void givenConfiguredMembers_whenRouted_thenOwnerOfLowerUserIdProcesses() {
+    ClusterRouter router = router("a", "a=http://a, b=http://b", "");
+    long ownedByA = lowestUserOf("a", router.getRing());
+    long ownedByB = lowestUserOf("b", router.getRing());
+
+    assertNull(router.route(ownedByA, ownedByA + USERS_APART, false));
+    assertEquals(
+        "http://b", router.route(ownedByB, Math.max(ownedByA, ownedByB) + USERS_APART, false));
+    // the receiver's owner does not matter
+    assertNull(router.route(Math.max(ownedByA, ownedByB) + USERS_APART, ownedByA, false));
+    // processed by the member it was forwarded to, even if it disagrees
+    assertNull(router.route(ownedByB, ownedByB + USERS_APART, true));
+    assertNull(ClusterRouter.disabled().route(ownedByB, ownedByA, false));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new ClusterRouter(
+                forwarder,
+                "a",
+                "secret",
+                "a=http://a",
+                "",
+                1000,
+                64,
+                2000,
+                "lock",
+                "local",
+                "direct"));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new ClusterRouter(
+                forwarder,
+                "a",
+                "secret",
+                "a=http://a",
+                "",
+                1000,
+                64,
+                2000,
+                "lock",
+                "versioned",
+                "outbox"));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new ClusterRouter(
+                forwarder,
+                "a",
+                " ",
+                "a=http://a",
+                "",
+                1000,
+                64,
+                2000,
+                "lock",
+                "versioned",
+                "direct"));
+  }
+
+  @Test
+  public void givenForwardedHeader_whenNotSentByMemberWithSecret_thenIgnored() {
+    ClusterRouter router = router("a", "a=http://a, b=http://b", "");
+
+    assertTrue(router.isMember("b", "secret"));
+    assertFalse(router.isMember("b", null));
+    assertFalse(router.isMember("b", "guess"));
+    assertFalse(router.isMember("c", "secret"));
+    assertFalse(router.isMember("a", "secret"));
+    assertFalse(ClusterRouter.disabled().isMember("b", "secret"));
+  }
+
+  @Test
+  public void givenTransferInFlight_whenItsUserMovesAway_thenHandedOffOnceDrained()
+      throws Exception {
+    Path file = directory.resolve("members.properties");
+    Files.writeString(file, "a=http://a\n");
+    ClusterRouter router = router("a", "", file.toString());
+    HashRing next = new HashRing(TWO_MEMBERS, 64);
+    long moving = lowestUserOf("b", next);
+    assertNull(router.route(moving, moving + USERS_APART, false));
+
+    Files.writeString(file, "a=http://a\nb=http://b\n");
+    CompletableFuture<Void> refresh = CompletableFuture.runAsync(router::refresh);
+    waitForRing(router, next);
+
+    // the new transfers of the user go to the new owner right away
+    assertEquals("http://b", router.route(moving, moving + USERS_APART, false));
+    verify(forwarder, after(200).never()).handoff(any(), any());
+    assertFalse(refresh.isDone());
+    router.release(moving, moving + USERS_APART);
+    verify(forwarder, timeout(1000)).handoff("http://b", next.getId());
+    refresh.get(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void givenAcquiredUser_whenPreviousOwnerDidNotHandOff_thenItsTransfersHeld()
+      throws Exception {
+    Path file = directory.resolve("members.properties");
+    Files.writeString(file, "a=http://a\n");
+    ClusterRouter router = router("b", "", file.toString());
+    HashRing next = new HashRing(TWO_MEMBERS, 64);
+    long acquired = lowestUserOf("b", next);
+
+    Files.writeString(file, "a=http://a\nb=http://b\n");
+    router.refresh();
+    CompletableFuture<String> route =
+        CompletableFuture.supplyAsync(() -> router.route(acquired, acquired + USERS_APART, false));
+
+    Thread.sleep(200);
+    assertFalse(route.isDone());
+    router.onHandoff("a", next.getId());
+    assertNull(route.get(1, TimeUnit.SECONDS));
+    // and it handed off to the previous owner, as it lost no users
+    verify(forwarder).handoff("http://a", next.getId());
+  }
+}
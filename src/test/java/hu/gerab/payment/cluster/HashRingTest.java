@@ -0,0 +1,64 @@
+package hu.gerab.payment.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class HashRingTest {
+
+  private static final int USERS = 100_000;
+
+  private static Map<String, String> members(String... ids) {
+    Map<String, String> members = new LinkedHashMap<>();
+    for (String id : ids) {
+      members.put(id, "http://" + id + ":8080");
+    }
+    return members;
+  }
+
+  @Test
+  public void givenMembers_whenOwnersComputed_thenSpreadEvenlyAndSameOnEveryInstance() {
+    HashRing ring = new HashRing(members("a", "b", "c", "d"), 128);
+    // another instance, told about the members in another order
+    HashRing other = new HashRing(members("d", "c", "b", "a"), 128);
+
+    Map<String, Integer> owned = new HashMap<>();
+    for (long userId = 1; userId <= USERS; userId++) {
+      String owner = ring.ownerOf(userId);
+      assertEquals(owner, other.ownerOf(userId));
+      owned.merge(owner, 1, Integer::sum);
+    }
+
+    assertEquals(ring, other);
+    assertEquals(ring.getId(), other.getId());
+    for (int count : owned.values()) {
+      // within 20% of the even share
+      assertTrue(Math.abs(count - USERS / 4) < USERS / 20, "Uneven share=" + count);
+    }
+    assertEquals(ring.ownerOf(7), ring.ownerOf(7, 1000));
+    assertEquals(ring.ownerOf(7), ring.ownerOf(1000, 7));
+    assertNull(HashRing.empty().ownerOf(7));
+  }
+
+  @Test
+  public void givenMemberAdded_whenOwnersComputed_thenOnlyItsShareMovesToIt() {
+    HashRing before = new HashRing(members("a", "b", "c"), 128);
+    HashRing after = new HashRing(members("a", "b", "c", "d"), 128);
+
+    int moved = 0;
+    for (long userId = 1; userId <= USERS; userId++) {
+      String owner = after.ownerOf(userId);
+      if (!owner.equals(before.ownerOf(userId))) {
+        assertEquals("d", owner);
+        moved++;
+      }
+    }
+
+    assertTrue(Math.abs(moved - USERS / 4) < USERS / 20, "Moved=" + moved);
+  }
+}
@@ -1,6 +1,7 @@
 package hu.gerab.payment.config;
 
 import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
@@ -14,11 +15,13 @@ public class TestDatabaseConfig {
     @Bean
     @Primary
     @Profile("test") // This bean is active for all profiles except 'test'
-    public DataSource integrationTestDataSource() {
+    public DataSource integrationTestDataSource(
+            // a context of other beans, e.g. the reactive one, needs a database of its own
+            @Value("${test.database.name:kibit}") String name) {
         // Your production data source configuration
         return new EmbeddedDatabaseBuilder()
                 .setType(EmbeddedDatabaseType.H2)
-                .setName("kibit")
+                .setName(name)
                 .addScript("classpath:test-schema.sql")
                 .addScript("classpath:test-data.sql")
                 .build();
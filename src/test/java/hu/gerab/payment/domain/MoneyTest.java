@@ -0,0 +1,68 @@
+package hu.gerab.payment.domain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class MoneyTest {
+
+  @Test
+  public void givenAmountsOfTheColumnScale_whenCalculated_thenMicroUnitsUsed() {
+    Money balance = Money.of(new BigDecimal("100.000000"));
+    Money amount = Money.of(new BigDecimal("10.5"));
+
+    assertEquals(10_500_000, amount.getMicros());
+    assertEquals(Money.of(new BigDecimal("89.5")), balance.minus(amount));
+    assertEquals(new BigDecimal("110.500000"), balance.plus(amount).toBigDecimal());
+    assertEquals(-1, amount.minus(balance).signum());
+    assertTrue(balance.compareTo(amount) > 0);
+    // the trailing zeros beyond the scale do not make an amount inflated
+    assertTrue(Money.of(new BigDecimal("1.500000000")).isCompact());
+    assertEquals(Money.ZERO, Money.of(new BigDecimal("0E-10")));
+  }
+
+  @Test
+  public void givenAmountsBeyondTheMicroUnits_whenCalculated_thenInflatedExactly() {
+    Money max = Money.ofMicros(Long.MAX_VALUE);
+    Money micro = Money.ofMicros(1);
+
+    Money overflown = max.plus(micro);
+    assertFalse(overflown.isCompact());
+    assertEquals(new BigDecimal("9223372036854.775808"), overflown.toBigDecimal());
+    // back in the range of the long
+    assertEquals(max, overflown.minus(micro));
+    assertTrue(overflown.minus(micro).isCompact());
+    assertEquals(-1, Money.ofMicros(Long.MIN_VALUE).minus(micro).signum());
+    assertThrows(ArithmeticException.class, overflown::getMicros);
+
+    Money fraction = Money.of(new BigDecimal("0.0000001"));
+    assertFalse(fraction.isCompact());
+    assertEquals(
+        new BigDecimal("1.0000001"), fraction.plus(Money.of(BigDecimal.ONE)).toBigDecimal());
+    assertEquals(
+        Money.of(new BigDecimal("1E+20")), Money.of(new BigDecimal("100000000000000000000")));
+  }
+
+  @Test
+  public void givenCompactAmountsOfEveryScale_whenConverted_thenExactMicroUnits() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100_000; i++) {
+      int scale = 1 + random.nextInt(Money.SCALE);
+      // up to the 18 digits of the compact amounts, beyond the ones converted through the double
+      long unscaled = random.nextLong() % (long) Math.pow(10, 1 + random.nextInt(12 + scale));
+      BigDecimal amount = BigDecimal.valueOf(unscaled, scale);
+
+      assertEquals(
+          amount.movePointRight(Money.SCALE).longValueExact(),
+          Money.of(amount).getMicros(),
+          amount::toPlainString);
+    }
+    assertEquals(999_999_999_999_999L, Money.of(new BigDecimal("999999999.999999")).getMicros());
+    assertEquals(-1, Money.of(new BigDecimal("-0.000001")).getMicros());
+  }
+}
@@ -0,0 +1,51 @@
+package hu.gerab.payment.fx;
+
+import static hu.gerab.payment.domain.Currency.EUR;
+import static hu.gerab.payment.domain.Currency.USD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+class FxRateProviderTest {
+
+  @TempDir Path directory;
+
+  private void writeRates(Path file, String rates, Instant modified) throws Exception {
+    Files.writeString(file, rates);
+    Files.setLastModifiedTime(file, FileTime.from(modified));
+  }
+
+  @Test
+  public void givenRatesFile_whenRefreshed_thenNewSnapshotOnlyIfModifiedAndValid()
+      throws Exception {
+    Path file = directory.resolve("rates.properties");
+    Instant published = Instant.parse("2025-03-15T10:00:00Z");
+    writeRates(file, "USD=1\nEUR=1.25\n", published);
+    FxRateProvider provider = new FxRateProvider(mock(JdbcTemplate.class), file.toString());
+
+    provider.afterPropertiesSet();
+    FxRates loaded = provider.getRates();
+    provider.refresh();
+
+    assertEquals(published, loaded.getAsOf());
+    assertEquals(800, loaded.convertDown(1000, USD, EUR));
+    assertSame(loaded, provider.getRates());
+
+    writeRates(file, "USD=1\nEUR=2\n", published.plusSeconds(60));
+    provider.refresh();
+    assertEquals(500, provider.getRates().convertDown(1000, USD, EUR));
+
+    // a broken file does not replace the rates in use
+    writeRates(file, "USD=1\nEUR=abc\n", published.plusSeconds(120));
+    provider.refresh();
+    assertEquals(published.plusSeconds(60), provider.getRates().getAsOf());
+  }
+}
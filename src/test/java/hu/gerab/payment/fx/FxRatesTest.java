@@ -0,0 +1,89 @@
+package hu.gerab.payment.fx;
+
+import static hu.gerab.payment.TestUtils.RATES;
+import static hu.gerab.payment.domain.Currency.EUR;
+import static hu.gerab.payment.domain.Currency.GBP;
+import static hu.gerab.payment.domain.Currency.JPY;
+import static hu.gerab.payment.domain.Currency.USD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import hu.gerab.payment.domain.Money;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class FxRatesTest {
+
+  @Test
+  public void givenRates_whenMinorUnitsConverted_thenRoundedDownOrUp() {
+    // 10 USD is 1562.5 JPY
+    assertEquals(1562, RATES.convertDown(1000, USD, JPY));
+    assertEquals(1563, RATES.convertUp(1000, USD, JPY));
+    // a cent of EUR is 1.25 cents of USD
+    assertEquals(1, RATES.convertDown(1, EUR, USD));
+    assertEquals(2, RATES.convertUp(1, EUR, USD));
+    assertEquals(800, RATES.convertDown(1000, USD, EUR));
+    assertEquals(800, RATES.convertUp(1000, USD, EUR));
+    assertEquals(1000, RATES.convertUp(1000, GBP, GBP));
+    assertEquals(FxRates.NO_RATE, RATES.convertDown(1000, USD, GBP));
+    assertFalse(RATES.hasRate(GBP, EUR));
+  }
+
+  @Test
+  public void givenAmounts_whenConverted_thenScaleOfTheTargetCurrency() {
+    BigDecimal amount = new BigDecimal("10.00");
+
+    assertSame(amount, RATES.convertDown(amount, USD, USD));
+    assertEquals(new BigDecimal("8.00"), RATES.convertDown(amount, USD, EUR));
+    assertEquals(new BigDecimal("1562"), RATES.convertDown(amount, USD, JPY));
+    assertEquals(new BigDecimal("1563"), RATES.convertUp(new BigDecimal("10"), USD, JPY));
+    assertNull(RATES.convertUp(amount, GBP, USD));
+  }
+
+  @Test
+  public void givenMoney_whenConverted_thenSameAsTheAmounts() {
+    Money amount = Money.of(new BigDecimal("10.00"));
+
+    assertSame(amount, RATES.convertDown(amount, USD, USD));
+    assertEquals(Money.of(new BigDecimal("8")), RATES.convertDown(amount, USD, EUR));
+    assertEquals(Money.of(new BigDecimal("1562")), RATES.convertDown(amount, USD, JPY));
+    assertEquals(Money.of(new BigDecimal("1563")), RATES.convertUp(amount, USD, JPY));
+    // 1563 JPY is 10.0032 USD
+    assertEquals(
+        Money.of(new BigDecimal("10.01")),
+        RATES.convertUp(Money.of(new BigDecimal("1563")), JPY, USD));
+    assertNull(RATES.convertUp(amount, GBP, USD));
+    // fractions of the minor unit, and amounts beyond the micro units, as the amounts
+    assertEquals(Money.ZERO, RATES.convertDown(Money.of(new BigDecimal("0.005")), USD, JPY));
+    assertEquals(
+        Money.of(BigDecimal.ONE), RATES.convertUp(Money.of(new BigDecimal("0.005")), USD, JPY));
+    BigDecimal large = new BigDecimal("10000000000000000");
+    assertEquals(
+        Money.of(RATES.convertDown(large, USD, JPY)),
+        RATES.convertDown(Money.of(large), USD, JPY));
+  }
+
+  @Test
+  public void givenAmountsOutsideTheLongArithmetic_whenConverted_thenExactlyRounded() {
+    // the product of the minor units and the mantissa of the rate overflows a long
+    assertEquals(1_562_500_000_000_000L, RATES.convertDown(1_000_000_000_000_000L, USD, JPY));
+    assertEquals(
+        new BigDecimal("1562500000000000"),
+        RATES.convertDown(new BigDecimal("10000000000000"), USD, JPY));
+    // fractions of the minor unit, half a cent is 0.78125 JPY
+    assertEquals(BigDecimal.ZERO, RATES.convertDown(new BigDecimal("0.005"), USD, JPY));
+    assertEquals(BigDecimal.ONE, RATES.convertUp(new BigDecimal("0.005"), USD, JPY));
+  }
+
+  @Test
+  public void givenNonPositiveValue_whenBuilt_thenRejected() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> FxRates.of(Map.of(USD, BigDecimal.ONE, EUR, BigDecimal.ZERO), Instant.EPOCH));
+  }
+}
@@ -0,0 +1,164 @@
+package hu.gerab.payment.journal;
+
+import static hu.gerab.payment.domain.Currency.EUR;
+import static hu.gerab.payment.domain.Currency.USD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hu.gerab.payment.journal.TransferJournal.JournaledTransfer;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TransferJournalTest {
+
+  private static final int SEGMENT_SIZE = 64 * 1024;
+
+  @TempDir Path directory;
+  // the "crashed" ones as well, their pre-allocating threads must not outlive the temp directory
+  private final List<TransferJournal> opened = new ArrayList<>();
+
+  @AfterEach
+  void cleanup() throws IOException {
+    for (int i = opened.size() - 1; i >= 0; i--) {
+      opened.get(i).destroy();
+    }
+  }
+
+  private TransferJournal open() throws IOException {
+    TransferJournal journal =
+        new TransferJournal(
+            directory.toString(), SEGMENT_SIZE, true, PaymentMetrics.unpublished());
+    opened.add(journal);
+    journal.afterPropertiesSet();
+    return journal;
+  }
+
+  private void close(TransferJournal journal) throws IOException {
+    opened.remove(journal);
+    journal.destroy();
+  }
+
+  private static TransferRequest transfer(int index) {
+    return new TransferRequest(
+        "request-" + index,
+        (long) index,
+        index + 1L,
+        new BigDecimal(index + ".25"),
+        index % 2 == 0 ? USD : EUR);
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      return paths.filter(path -> path.toString().endsWith(JournalSegment.SUFFIX)).toList();
+    }
+  }
+
+  // the spare segment of the crashed journal is still being pre-allocated in the background
+  private void awaitSpareSegment() throws IOException {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (segments().size() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.onSpinWait();
+    }
+  }
+
+  @Test
+  public void givenUnprocessedTransfers_whenCrashedAndReopened_thenOnlyTheyAreRecovered()
+      throws IOException {
+    TransferJournal journal = open();
+    long first = journal.append(transfer(1));
+    long second = journal.append(transfer(2));
+    long third = journal.append(transfer(3));
+    journal.markProcessed(first);
+    journal.checkpoint();
+    journal.markProcessed(third);
+    // no shutdown, the second transfer is still in the queue when the application crashes
+    awaitSpareSegment();
+
+    TransferJournal reopened = open();
+
+    assertEquals(List.of(new JournaledTransfer(second, transfer(2))), reopened.getRecovered());
+    assertEquals(third + 1, reopened.append(transfer(4)));
+  }
+
+  @Test
+  public void givenFailedTransferMarkedDurably_whenCrashedAndReopened_thenNotRecovered()
+      throws IOException {
+    TransferJournal journal = open();
+    long failed = journal.append(transfer(1));
+    long queued = journal.append(transfer(2));
+    journal.markProcessed(failed, true);
+    awaitSpareSegment();
+
+    TransferJournal reopened = open();
+
+    assertEquals(List.of(new JournaledTransfer(queued, transfer(2))), reopened.getRecovered());
+  }
+
+  @Test
+  public void givenProcessedTransfers_whenCheckpointed_thenFullSegmentsDeleted()
+      throws IOException {
+    TransferJournal journal = open();
+    List<Long> sequences = new ArrayList<>();
+    // several segments of records
+    for (int i = 0; i < 5_000; i++) {
+      sequences.add(journal.append(transfer(i)));
+    }
+    long unprocessed = sequences.remove(4_000);
+    sequences.forEach(journal::markProcessed);
+    int written = segments().size();
+    journal.checkpoint();
+
+    assertTrue(written > 3);
+    // the segments from the one of the unprocessed transfer are kept
+    assertTrue(segments().size() < written);
+    close(journal);
+    TransferJournal reopened = open();
+    assertEquals(
+        List.of(new JournaledTransfer(unprocessed, transfer(4_000))), reopened.getRecovered());
+
+    reopened.markProcessed(unprocessed);
+    reopened.checkpoint();
+    // only the new current segment, and its pre-allocated spare
+    assertTrue(segments().size() <= 2);
+  }
+
+  @Test
+  public void givenTornLastRecord_whenReopened_thenRecordsBeforeItRecovered() throws IOException {
+    TransferJournal journal = open();
+    long first = journal.append(transfer(1));
+    journal.append(transfer(2));
+    awaitSpareSegment();
+    Path segment = segments().stream().sorted().findFirst().orElseThrow();
+    // flips the last byte of the amount of the second record
+    int secondRecord = recordLength(segment, 0);
+    int lastPayloadByte = secondRecord + recordLength(segment, secondRecord) - 1;
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xFF}), lastPayloadByte);
+    }
+
+    TransferJournal reopened = open();
+
+    assertEquals(List.of(new JournaledTransfer(first, transfer(1))), reopened.getRecovered());
+  }
+
+  private static int recordLength(Path segment, int offset) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+      channel.read(length, offset);
+    }
+    return length.flip().getInt();
+  }
+}
@@ -0,0 +1,82 @@
+package hu.gerab.payment.ledger;
+
+import static hu.gerab.payment.TestUtils.*;
+import static hu.gerab.payment.domain.Currency.*;
+import static java.math.BigDecimal.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.repository.UserRepository;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LedgerEngineTest {
+
+  private static final long SENDER = 1;
+  private static final long RECEIVER = 2;
+  private static final long OTHER = 3;
+
+  private final UserRepository userRepository = mock(UserRepository.class);
+  private final LedgerWriter writer = mock(LedgerWriter.class);
+  private LedgerEngine engine;
+
+  @BeforeEach
+  void setup() {
+    when(userRepository.findById(anyLong()))
+        .thenAnswer(
+            invocation -> {
+              long id = invocation.getArgument(0);
+              return Optional.of(
+                  User.builder()
+                      .id(id)
+                      .balance(id == SENDER ? HUNDRED : ZERO)
+                      .currency(USD)
+                      .build());
+            });
+    engine = new LedgerEngine(userRepository, writer, FxRateProvider.fixed(RATES), 2);
+  }
+
+  @AfterEach
+  void cleanup() throws InterruptedException {
+    engine.destroy();
+  }
+
+  private LedgerOutcome transfer(long senderId, long receiverId) throws Exception {
+    return engine.submit("r", senderId, receiverId, HUNDRED, USD).get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void givenCreditNotPersistedYet_whenReceiverSpendsIt_thenRejectedAndRevertedSafely()
+      throws Exception {
+    CompletableFuture<Void> write = new CompletableFuture<>();
+    when(writer.write(any())).thenReturn(write);
+    CompletableFuture<LedgerOutcome> credited =
+        engine.submit("r", SENDER, RECEIVER, HUNDRED, USD);
+    verify(writer, timeout(1000)).write(any());
+
+    // the credit is not spendable until the write completes
+    assertEquals(LedgerOutcome.INSUFFICIENT_BALANCE, transfer(RECEIVER, OTHER));
+
+    write.completeExceptionally(new IllegalStateException("database down"));
+    assertThrows(ExecutionException.class, () -> credited.get(5, TimeUnit.SECONDS));
+    // reverted without overdrawing the receiver, and the sender refunded
+    assertEquals(LedgerOutcome.INSUFFICIENT_BALANCE, transfer(RECEIVER, OTHER));
+    when(writer.write(any())).thenReturn(CompletableFuture.completedFuture(null));
+    assertEquals(LedgerOutcome.COMPLETED, transfer(SENDER, RECEIVER));
+    // spendable once persisted
+    assertEquals(LedgerOutcome.COMPLETED, transfer(RECEIVER, OTHER));
+  }
+}
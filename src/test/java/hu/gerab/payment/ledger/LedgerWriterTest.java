@@ -0,0 +1,113 @@
+package hu.gerab.payment.ledger;
+
+import static hu.gerab.payment.TestUtils.*;
+import static hu.gerab.payment.domain.Currency.*;
+import static java.math.BigDecimal.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.Money;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.TransactionRepository;
+import hu.gerab.payment.repository.UserRepository;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class LedgerWriterTest {
+
+  private LedgerWriter ledgerWriter;
+  @Autowired private UserRepository userRepository;
+  @Autowired private TransactionRepository transactionRepository;
+  @Autowired private TransactionTemplate transactionTemplate;
+  @Autowired private JdbcTemplate jdbcTemplate;
+
+  @BeforeEach
+  void setup() {
+    // a long window, so the size bound closes the groups
+    ledgerWriter =
+        new LedgerWriter(
+            jdbcTemplate,
+            transactionTemplate,
+            TransactionOutbox.disabled(),
+            PaymentMetrics.unpublished(),
+            50,
+            10_000,
+            1000);
+  }
+
+  @AfterEach
+  void cleanup() throws InterruptedException {
+    ledgerWriter.destroy();
+    userRepository.deleteAll();
+    transactionRepository.deleteAll();
+  }
+
+  private LedgerTransfer appliedTransfer(String requestId, Long senderId, Long receiverId) {
+    LedgerTransfer transfer = new LedgerTransfer(requestId, senderId, receiverId, ONE, USD);
+    transfer.markApplied();
+    return transfer;
+  }
+
+  @Test
+  public void whenManyTransfersWritten_thenGroupCommittedWithCollapsedBalances() throws Exception {
+    Long senderId =
+        userRepository.save(User.builder().balance(THOUSAND).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+
+    List<CompletableFuture<Void>> results = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      results.add(ledgerWriter.write(appliedTransfer("r-" + i, senderId, receiverId)));
+    }
+    CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+    assertEquals(2, ledgerWriter.getCommitCount());
+    assertEquals(100, transactionRepository.count());
+    assertEquals(
+        Money.of(new BigDecimal("900")), userRepository.findById(senderId).get().getBalance());
+    assertEquals(Money.of(HUNDRED), userRepository.findById(receiverId).get().getBalance());
+  }
+
+  @Test
+  public void givenFailingTransferInGroup_whenWritten_thenOnlyThatTransferFails()
+      throws Exception {
+    Long senderId =
+        userRepository.save(User.builder().balance(THOUSAND).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+
+    List<CompletableFuture<Void>> results = new ArrayList<>();
+    for (int i = 0; i < 49; i++) {
+      results.add(ledgerWriter.write(appliedTransfer("r-" + i, senderId, receiverId)));
+    }
+    // there is no such receiver
+    CompletableFuture<Void> failing =
+        ledgerWriter.write(appliedTransfer("bad", senderId, receiverId + 1000));
+    CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+    assertTrue(
+        failing.handle((ignored, error) -> error != null).get(10, TimeUnit.SECONDS),
+        "The invalid transfer should not have been persisted");
+    assertEquals(49, transactionRepository.count());
+    assertEquals(
+        Money.of(new BigDecimal("49")), userRepository.findById(receiverId).get().getBalance());
+  }
+}
@@ -0,0 +1,106 @@
+package hu.gerab.payment.messaging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+class TransactionNotificationCodecTest {
+
+  private final TransactionNotificationSerializer serializer =
+      new TransactionNotificationSerializer();
+  private final TransactionNotificationDeserializer deserializer =
+      new TransactionNotificationDeserializer();
+
+  private TransactionNotification roundTrip(TransactionNotification notification) {
+    return deserializer.deserialize("topic", serializer.serialize("topic", notification));
+  }
+
+  @Test
+  public void givenSuccessfulNotification_whenSerialized_thenDecodedEqualAndSmallerThanJson() {
+    TransactionNotification notification =
+        TransactionNotification.builder()
+            .requestId("c0a80101-0000-4000-8000-000000000001")
+            .senderId(1L)
+            .receiverId(Long.MAX_VALUE)
+            .amount(new BigDecimal("1234.56"))
+            .currency("USD")
+            .successful(true)
+            .build();
+
+    assertEquals(notification, roundTrip(notification));
+    try (var json = new JsonSerializer<TransactionNotification>()) {
+      int jsonSize = json.serialize("topic", notification).length;
+      int binarySize = serializer.serialize("topic", notification).length;
+      assertTrue(binarySize * 2 < jsonSize, binarySize + " vs " + jsonSize);
+    }
+  }
+
+  @Test
+  public void givenFailedNotificationWithMissingFields_whenSerialized_thenDecodedEqual() {
+    TransactionNotification notification =
+        TransactionNotification.builder()
+            .requestId("kérés-1")
+            .senderId(42L)
+            .amount(new BigDecimal("-0.001"))
+            .currency("USD")
+            .error("Insufficient user balance. 💸")
+            .build();
+
+    assertEquals(notification, roundTrip(notification));
+    assertEquals(
+        TransactionNotification.builder().build(),
+        roundTrip(TransactionNotification.builder().build()));
+  }
+
+  @Test
+  public void givenAmountNotFittingIntoLong_whenSerialized_thenDecodedEqual() {
+    TransactionNotification notification =
+        TransactionNotification.builder()
+            .amount(new BigDecimal("123456789012345678901234567890.123456789"))
+            .build();
+    TransactionNotification scaled =
+        TransactionNotification.builder().amount(new BigDecimal("1E+300")).build();
+
+    assertEquals(notification, roundTrip(notification));
+    assertEquals(scaled, roundTrip(scaled));
+  }
+
+  @Test
+  public void givenWideAmounts_whenEncoded_thenFitIntoMaxEncodedSize() {
+    BigDecimal amount = new BigDecimal("98765432109876543210.5");
+    for (int i = 0; i < 60; i++) {
+      amount = amount.multiply(new BigDecimal("-98765.4321"));
+      TransactionNotification notification =
+          TransactionNotification.builder().amount(amount).build();
+      int maxSize = TransactionNotificationCodec.maxEncodedSize(notification);
+      ByteBuffer buffer = ByteBuffer.allocate(maxSize);
+
+      TransactionNotificationCodec.encode(notification, buffer);
+
+      // only the absent ids and currency are overestimated
+      assertTrue(maxSize - buffer.position() <= 8 + 8 + 1, amount.toString());
+      assertEquals(notification, TransactionNotificationCodec.decode(buffer.flip()));
+    }
+  }
+
+  @Test
+  public void givenUnknownVersion_whenDeserialized_thenRejected() {
+    byte[] data = serializer.serialize("topic", TransactionNotification.builder().build());
+    data[0] = TransactionNotificationCodec.VERSION + 1;
+
+    assertThrows(SerializationException.class, () -> deserializer.deserialize("topic", data));
+    assertThrows(
+        SerializationException.class,
+        () ->
+            TransactionNotificationCodec.encode(
+                TransactionNotification.builder().currency("XXX").build(),
+                ByteBuffer.allocate(64)));
+  }
+}
@@ -0,0 +1,155 @@
+package hu.gerab.payment.outbox;
+
+import static hu.gerab.payment.TestUtils.*;
+import static hu.gerab.payment.domain.Currency.*;
+import static java.math.BigDecimal.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.fx.FxRates;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.repository.AccountCache;
+import hu.gerab.payment.repository.OutboxRepository;
+import hu.gerab.payment.repository.TransactionRepository;
+import hu.gerab.payment.repository.UserRepository;
+import hu.gerab.payment.service.HotAccountRegistry;
+import hu.gerab.payment.service.MessagingService;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import hu.gerab.payment.service.PaymentService;
+import hu.gerab.payment.service.PaymentServiceImpl;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class OutboxRelayTest {
+
+  private static final int PARTITIONS = 2;
+
+  @SuppressWarnings("unchecked")
+  private final KafkaTemplate<Long, Object> kafkaTemplate = mock(KafkaTemplate.class);
+
+  private final MessagingService messagingService = spy(MessagingService.class);
+  private PaymentService paymentService;
+  private OutboxRelay relay;
+  @Autowired private UserRepository userRepository;
+  @Autowired private TransactionRepository transactionRepository;
+  @Autowired private OutboxRepository outboxRepository;
+  @Autowired private TransactionTemplate transactionTemplate;
+  @Autowired private JdbcTemplate jdbcTemplate;
+  @Autowired private ObjectMapper objectMapper;
+
+  @BeforeEach
+  void setup() {
+    paymentService =
+        new PaymentServiceImpl(
+            messagingService,
+            userRepository,
+            transactionRepository,
+            transactionTemplate,
+            HotAccountRegistry.disabled(),
+            AccountCache.disabled(),
+            new TransactionOutbox(jdbcTemplate, objectMapper, TransactionOutbox.OUTBOX_MODE),
+            FxRateProvider.fixed(FxRates.none()),
+            PaymentMetrics.unpublished(),
+            4,
+            100,
+            3,
+            32);
+    // not started, the test relays the partitions itself
+    relay =
+        new OutboxRelay(
+            jdbcTemplate,
+            kafkaTemplate,
+            objectMapper,
+            new SimpleMeterRegistry(),
+            PaymentMetrics.unpublished(),
+            "topic",
+            PARTITIONS,
+            100,
+            10,
+            1000,
+            24);
+  }
+
+  @AfterEach
+  void cleanup() {
+    outboxRepository.deleteAll();
+    userRepository.deleteAll();
+    transactionRepository.deleteAll();
+  }
+
+  @Test
+  public void givenCommittedTransfer_whenRelayed_thenPublishedForBothUsersAndMarkedDelivered()
+      throws Exception {
+    Long senderId =
+        userRepository.save(User.builder().balance(THOUSAND).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    when(kafkaTemplate.send(eq("topic"), anyLong(), any()))
+        .thenReturn(CompletableFuture.completedFuture(mock(SendResult.class)));
+
+    paymentService.processTransfer("1", senderId, receiverId, TEN, USD);
+
+    // the notification is only in the outbox, not sent directly
+    verify(messagingService, never()).sendTransactionNotification(any());
+    assertEquals(2, outboxRepository.countByDeliveredIsNull());
+
+    for (int partition = 0; partition < PARTITIONS; partition++) {
+      relay.relay(partition);
+    }
+    var notificationCaptor = ArgumentCaptor.forClass(Object.class);
+    verify(kafkaTemplate).send(eq("topic"), eq(senderId), notificationCaptor.capture());
+    verify(kafkaTemplate).send(eq("topic"), eq(receiverId), any());
+    assertEquals("1", ((TransactionNotification) notificationCaptor.getValue()).getRequestId());
+    assertEquals(0, outboxRepository.countByDeliveredIsNull());
+  }
+
+  @Test
+  public void givenFailingSend_whenRelayed_thenFailedAndLaterMessagesKeptPending()
+      throws Exception {
+    Long senderId =
+        userRepository.save(User.builder().balance(THOUSAND).currency(USD).build()).getId();
+    Long receiverId;
+    do { // the receiver has to be on the same partition as the sender
+      receiverId =
+          userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    } while (receiverId % PARTITIONS != senderId % PARTITIONS);
+    when(kafkaTemplate.send(eq("topic"), anyLong(), any()))
+        .thenReturn(CompletableFuture.failedFuture(new TimeoutException("broker unavailable")))
+        .thenReturn(CompletableFuture.completedFuture(mock(SendResult.class)));
+
+    paymentService.processTransfer("1", senderId, receiverId, TEN, USD);
+    int partition = (int) (senderId % PARTITIONS);
+
+    assertEquals(-1, relay.relay(partition));
+    assertEquals(2, outboxRepository.countByDeliveredIsNull());
+    assertEquals(2, relay.relay(partition));
+    assertEquals(0, outboxRepository.countByDeliveredIsNull());
+  }
+}
@@ -0,0 +1,173 @@
+package hu.gerab.payment.reconciliation;
+
+import static hu.gerab.payment.domain.Currency.USD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.reconciliation.BalanceReconciler.Drift;
+import hu.gerab.payment.reconciliation.BalanceReconciler.Report;
+import hu.gerab.payment.repository.TransactionRepository;
+import hu.gerab.payment.repository.UserRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class BalanceReconcilerTest {
+
+  private static final BigDecimal HUNDRED = new BigDecimal("100");
+
+  @Autowired private UserRepository userRepository;
+  @Autowired private TransactionRepository transactionRepository;
+  @Autowired private JdbcTemplate jdbcTemplate;
+  @Autowired private TransactionTemplate transactionTemplate;
+  private BalanceReconciler reconciler;
+
+  @BeforeEach
+  void setup() {
+    // no lag, and ranges of 2 users, so even a few users are verified by several tasks
+    reconciler =
+        new BalanceReconciler(
+            jdbcTemplate, transactionTemplate, new SimpleMeterRegistry(), 0, 1000, 2, 2, 0);
+  }
+
+  @AfterEach
+  void cleanup() {
+    reconciler.destroy();
+    jdbcTemplate.update("DELETE FROM balance_snapshots");
+    jdbcTemplate.update("DELETE FROM hot_credits");
+    transactionRepository.deleteAll();
+    userRepository.deleteAll();
+  }
+
+  private Long saveUser() {
+    return userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+  }
+
+  /** A transfer as the payment services write it, the transaction and the balances together. */
+  private long transfer(Long senderId, Long receiverId, String amount, Instant inserted) {
+    long id = jdbcTemplate.queryForObject("SELECT nextval('transaction_sequence')", Long.class);
+    jdbcTemplate.update(
+        "INSERT INTO transactions"
+            + " (id, sender_id, receiver_id, request_id, amount, currency, inserted)"
+            + " VALUES (?, ?, ?, ?, ?, 'USD', ?)",
+        id,
+        senderId,
+        receiverId,
+        UUID.randomUUID().toString(),
+        new BigDecimal(amount),
+        Timestamp.from(inserted));
+    addToBalance(senderId, "-" + amount);
+    addToBalance(receiverId, amount);
+    return id;
+  }
+
+  private void addToBalance(Long userId, String amount) {
+    jdbcTemplate.update(
+        "UPDATE users SET balance = balance + ? WHERE id = ?", new BigDecimal(amount), userId);
+  }
+
+  private BigDecimal snapshotOf(Long userId) {
+    return jdbcTemplate.queryForObject(
+        "SELECT balance FROM balance_snapshots WHERE user_id = ?", BigDecimal.class, userId);
+  }
+
+  @Test
+  public void givenTransfersSinceSnapshot_whenReconciled_thenNoDriftAndSnapshotsMoved() {
+    Long first = saveUser();
+    Long second = saveUser();
+    Long third = saveUser();
+    Report baseline = reconciler.reconcile();
+    assertTrue(baseline.drifts().isEmpty());
+    assertEquals(0, HUNDRED.compareTo(snapshotOf(first)));
+
+    long settledId = transfer(first, second, "10", Instant.now());
+    transfer(third, first, "30", Instant.now());
+    // inserted after the as_of of the next run, already in the balances, but not in the snapshots
+    transfer(second, first, "5", Instant.now().plus(Duration.ofHours(1)));
+    Report report = reconciler.reconcile();
+
+    assertTrue(report.drifts().isEmpty());
+    assertEquals(baseline.users(), report.users());
+    assertEquals(0, new BigDecimal("120").compareTo(snapshotOf(first)));
+    assertEquals(0, new BigDecimal("110").compareTo(snapshotOf(second)));
+    assertEquals(0, new BigDecimal("70").compareTo(snapshotOf(third)));
+    assertEquals(
+        settledId,
+        jdbcTemplate.queryForObject(
+            "SELECT last_transaction_id FROM balance_snapshots WHERE user_id = ?",
+            Long.class,
+            second));
+  }
+
+  @Test
+  public void givenUntransactedChange_whenReconciledTwice_thenDriftReportedOnceAndKept() {
+    Long first = saveUser();
+    Long second = saveUser();
+    reconciler.reconcile();
+
+    addToBalance(second, "7");
+    transfer(first, second, "1", Instant.now());
+    Report suspected = reconciler.reconcile();
+    Report confirmed = reconciler.reconcile();
+    Report accepted = reconciler.reconcile();
+
+    // the first difference might be a buffered credit, it is only reported if it stays
+    assertTrue(suspected.drifts().isEmpty());
+    assertEquals(1, confirmed.drifts().size());
+    Drift drift = confirmed.drifts().get(0);
+    assertEquals(second.longValue(), drift.userId());
+    assertEquals(0, new BigDecimal("101").compareTo(drift.expected()));
+    assertEquals(0, new BigDecimal("108").compareTo(drift.actual()));
+    assertEquals(List.of(), accepted.drifts());
+    assertEquals(0, new BigDecimal("99").compareTo(snapshotOf(first)));
+    // the drifted balance is not accepted as the snapshot
+    assertEquals(0, HUNDRED.compareTo(snapshotOf(second)));
+  }
+
+  @Test
+  public void givenBufferedHotCredit_whenReconciled_thenNoDriftAndCreditInSnapshot() {
+    Long customer = saveUser();
+    Long merchant = saveUser();
+    reconciler.reconcile();
+
+    // the credit of the hot merchant is buffered, its balance is written by the next flush
+    String amount = "10";
+    long id = transfer(customer, merchant, amount, Instant.now());
+    addToBalance(merchant, "-" + amount);
+    jdbcTemplate.update(
+        "INSERT INTO hot_credits (account_id, amount, inserted) VALUES (?, ?, ?)",
+        merchant,
+        new BigDecimal(amount),
+        Timestamp.from(Instant.now()));
+    Report first = reconciler.reconcile();
+    Report second = reconciler.reconcile();
+
+    assertTrue(first.drifts().isEmpty());
+    assertTrue(second.drifts().isEmpty());
+    assertEquals(0, new BigDecimal("110").compareTo(snapshotOf(merchant)));
+    assertEquals(
+        id,
+        jdbcTemplate.queryForObject(
+            "SELECT last_transaction_id FROM balance_snapshots WHERE user_id = ?",
+            Long.class,
+            merchant));
+  }
+}
@@ -0,0 +1,45 @@
+package hu.gerab.payment.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.Transaction;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class SequenceBlockAllocatorTest {
+
+  @Autowired private JdbcTemplate jdbcTemplate;
+
+  @Test
+  public void whenIdsAllocated_thenUniqueAndSequenceOnlyCalledOncePerBlock() {
+    SequenceBlockAllocator allocator =
+        new SequenceBlockAllocator(
+            jdbcTemplate, "transaction_sequence", Transaction.ID_ALLOCATION_SIZE);
+    Set<Long> ids = new HashSet<>();
+    long first = allocator.nextId();
+    ids.add(first);
+    for (int i = 1; i < Transaction.ID_ALLOCATION_SIZE; i++) {
+      ids.add(allocator.nextId());
+    }
+    assertEquals(Transaction.ID_ALLOCATION_SIZE, ids.size());
+    assertEquals(
+        first + Transaction.ID_ALLOCATION_SIZE - 1,
+        ids.stream().mapToLong(Long::longValue).max().getAsLong());
+
+    // the block is exhausted, the next id comes from a new block reserved by the sequence
+    long sequenceValue =
+        jdbcTemplate.queryForObject("SELECT nextval('transaction_sequence')", Long.class);
+    long next = allocator.nextId();
+    assertEquals(sequenceValue + Transaction.ID_ALLOCATION_SIZE, next);
+  }
+}
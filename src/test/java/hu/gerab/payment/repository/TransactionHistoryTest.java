@@ -0,0 +1,96 @@
+package hu.gerab.payment.repository;
+
+import static hu.gerab.payment.domain.Currency.USD;
+import static java.math.BigDecimal.TEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.Transaction;
+import hu.gerab.payment.repository.TransactionHistory.Cursor;
+import hu.gerab.payment.repository.TransactionHistory.Direction;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class TransactionHistoryTest {
+
+  @Autowired private TransactionRepository transactionRepository;
+  @Autowired private JdbcTemplate jdbcTemplate;
+
+  @AfterEach
+  void cleanup() {
+    transactionRepository.deleteAll();
+  }
+
+  private List<Transaction> saveTransactions(int count, Long senderId, Long receiverId) {
+    Instant start = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    List<Transaction> transactions = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      transactions.add(
+          Transaction.builder()
+              .senderId(senderId)
+              .receiverId(receiverId)
+              .amount(TEN)
+              .currency(USD)
+              .requestId(senderId + "-" + receiverId + "-" + i)
+              // every third shares its timestamp with the previous one, the id decides the order
+              .inserted(start.plusMillis(i - i / 3))
+              .build());
+    }
+    return transactionRepository.saveAll(transactions);
+  }
+
+  @Test
+  public void givenLongHistory_whenPaged_thenEveryTransactionReturnedOnceNewestFirst() {
+    TransactionHistory history = new TransactionHistory(jdbcTemplate);
+    List<Transaction> sent = saveTransactions(25, 1L, 2L);
+    saveTransactions(5, 3L, 1L);
+
+    List<Long> pagedIds = new ArrayList<>();
+    List<Integer> pageSizes = new ArrayList<>();
+    Cursor cursor = null;
+    do {
+      int before = pagedIds.size();
+      cursor =
+          history.forEach(1L, Direction.SENT, cursor, 10, tx -> pagedIds.add(tx.getId()));
+      pageSizes.add(pagedIds.size() - before);
+    } while (cursor != null);
+
+    List<Long> expectedIds =
+        sent.stream()
+            .sorted(
+                Comparator.comparing(Transaction::getInserted)
+                    .thenComparing(Transaction::getId)
+                    .reversed())
+            .map(Transaction::getId)
+            .toList();
+    assertEquals(expectedIds, pagedIds);
+    assertEquals(List.of(10, 10, 5), pageSizes);
+    List<Long> receivedIds = new ArrayList<>();
+    assertNull(
+        history.forEach(1L, Direction.RECEIVED, null, 10, tx -> receivedIds.add(tx.getId())));
+    assertEquals(5, receivedIds.size());
+  }
+
+  @Test
+  public void givenCursor_whenEncodedAndDecoded_thenEqual() {
+    Cursor cursor = new Cursor(Instant.parse("2024-05-01T10:15:30.123456Z"), 42L);
+
+    assertEquals(cursor, Cursor.decode(cursor.encode()));
+    assertThrows(IllegalArgumentException.class, () -> Cursor.decode("not a cursor"));
+  }
+}
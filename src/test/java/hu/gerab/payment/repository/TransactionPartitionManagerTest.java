@@ -0,0 +1,105 @@
+package hu.gerab.payment.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/** The partitioning needs Postgres, these tests check the statements of the maintenance. */
+class TransactionPartitionManagerTest {
+
+  private static final LocalDate TODAY = LocalDate.of(2025, 3, 15);
+
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+  /** The partitions attached to the table, with the ones pending a detach. */
+  private void givenPartitions(List<String> attached, List<String> detachPending)
+      throws Exception {
+    List<String> names = new ArrayList<>(attached);
+    names.addAll(detachPending);
+    ResultSet rs = mock(ResultSet.class);
+    doAnswer(
+            invocation -> {
+              RowCallbackHandler handler = invocation.getArgument(1);
+              for (String name : names) {
+                when(rs.getString("relname")).thenReturn(name);
+                when(rs.getBoolean("inhdetachpending")).thenReturn(detachPending.contains(name));
+                handler.processRow(rs);
+              }
+              return null;
+            })
+        .when(jdbcTemplate)
+        .query(anyString(), any(RowCallbackHandler.class));
+  }
+
+  private List<String> executedStatements() {
+    ArgumentCaptor<String> statements = ArgumentCaptor.forClass(String.class);
+    verify(jdbcTemplate, atLeast(0)).execute(statements.capture());
+    return statements.getAllValues();
+  }
+
+  @Test
+  public void givenDailyPartitions_whenMaintained_thenMissingCreatedAndExpiredDetached()
+      throws Exception {
+    var manager = new TransactionPartitionManager(jdbcTemplate, "daily", 2, 30, "detach");
+    givenPartitions(
+        List.of(
+            "transactions_p20250212", // expired
+            "transactions_p20250213", // the oldest kept
+            "transactions_p20250315",
+            "transactions_p20250316",
+            "transactions_legacy"),
+        List.of());
+
+    manager.maintain(TODAY);
+
+    assertEquals(
+        List.of(
+            "CREATE TABLE IF NOT EXISTS transactions_p20250317 (LIKE transactions)",
+            "ALTER TABLE transactions ATTACH PARTITION transactions_p20250317"
+                + " FOR VALUES FROM ('2025-03-17') TO ('2025-03-18')",
+            "ALTER TABLE transactions DETACH PARTITION transactions_p20250212 CONCURRENTLY"),
+        executedStatements());
+    verify(jdbcTemplate)
+        .update(anyString(), eq((Object) LocalDate.of(2025, 2, 13).atStartOfDay()));
+  }
+
+  @Test
+  public void givenMonthlyPartitionsAndInterruptedDetach_whenMaintained_thenDetachFinished()
+      throws Exception {
+    var manager = new TransactionPartitionManager(jdbcTemplate, "monthly", 1, 0, "drop");
+    givenPartitions(
+        List.of("transactions_p202501", "transactions_p202503"), List.of("transactions_p202412"));
+
+    manager.maintain(TODAY);
+
+    assertEquals(
+        List.of(
+            "ALTER TABLE transactions DETACH PARTITION transactions_p202412 FINALIZE",
+            "DROP TABLE transactions_p202412",
+            "CREATE TABLE IF NOT EXISTS transactions_p202504 (LIKE transactions)",
+            "ALTER TABLE transactions ATTACH PARTITION transactions_p202504"
+                + " FOR VALUES FROM ('2025-04-01') TO ('2025-05-01')"),
+        executedStatements());
+    // no retention, nothing else is detached
+    assertTrue(
+        mockingDetails(jdbcTemplate).getInvocations().stream()
+            .noneMatch(invocation -> invocation.getMethod().getName().equals("update")));
+  }
+}
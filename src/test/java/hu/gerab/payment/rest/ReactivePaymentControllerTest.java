@@ -0,0 +1,192 @@
+package hu.gerab.payment.rest;
+
+import static hu.gerab.payment.TestUtils.HUNDRED;
+import static hu.gerab.payment.domain.Currency.USD;
+import static java.math.BigDecimal.ZERO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.Money;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.repository.TransactionRepository;
+import hu.gerab.payment.repository.UserRepository;
+import hu.gerab.payment.rest.PaymentAPI.TransferItemResult;
+import hu.gerab.payment.service.IdempotencyIndex;
+import hu.gerab.payment.service.MessagingService;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import java.math.BigDecimal;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+@SpringBootTest(
+    properties = {
+      "spring.main.web-application-type=reactive",
+      // the embedded database of the TestDatabaseConfig, next to the one of the other tests
+      "test.database.name=reactive",
+      "db.r2dbc.url=r2dbc:h2:mem:///reactive",
+      "db.postgres.username=sa",
+      "db.postgres.password="
+    })
+@ActiveProfiles({"test", "reactive"})
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+@AutoConfigureWebTestClient
+class ReactivePaymentControllerTest {
+
+  @Autowired private WebTestClient webTestClient;
+  @Autowired private UserRepository userRepository;
+  @Autowired private TransactionRepository transactionRepository;
+  // instead of kafka
+  @MockitoBean private MessagingService messagingService;
+
+  @AfterEach
+  void cleanup() {
+    transactionRepository.deleteAll();
+    userRepository.deleteAll();
+  }
+
+  private Long saveUser(BigDecimal balance) {
+    return userRepository.save(User.builder().balance(balance).currency(USD).build()).getId();
+  }
+
+  private BigDecimal balanceOf(Long userId) {
+    return userRepository.findById(userId).get().getBalance().toBigDecimal();
+  }
+
+  @Test
+  public void givenUsers_whenTransferPosted_thenRequestIdReturnedOnceCommitted() {
+    Long senderId = saveUser(HUNDRED);
+    Long receiverId = saveUser(ZERO);
+
+    String requestId =
+        webTestClient
+            .post()
+            .uri(
+                "/payment/transfer?senderId={sender}&receiverId={receiver}&amount=10"
+                    + "&currency=USD",
+                senderId,
+                receiverId)
+            .header(PaymentAPI.IDEMPOTENCY_KEY_HEADER, "key-1")
+            .exchange()
+            .expectStatus()
+            .isOk()
+            .expectBody(String.class)
+            .returnResult()
+            .getResponseBody();
+
+    assertEquals(IdempotencyIndex.requestId(senderId, "key-1"), requestId);
+    assertEquals(0, new BigDecimal(90).compareTo(balanceOf(senderId)));
+    assertEquals(0, BigDecimal.TEN.compareTo(balanceOf(receiverId)));
+    assertEquals(1, transactionRepository.count());
+  }
+
+  @Test
+  public void givenTransferPosted_whenKeyReusedForAnotherAmount_thenUnprocessable() {
+    Long senderId = saveUser(HUNDRED);
+    Long receiverId = saveUser(ZERO);
+    String uri =
+        "/payment/transfer?senderId={sender}&receiverId={receiver}&amount={amount}&currency=USD";
+    webTestClient
+        .post()
+        .uri(uri, senderId, receiverId, 10)
+        .header(PaymentAPI.IDEMPOTENCY_KEY_HEADER, "key-1")
+        .exchange()
+        .expectStatus()
+        .isOk();
+
+    webTestClient
+        .post()
+        .uri(uri, senderId, receiverId, 20)
+        .header(PaymentAPI.IDEMPOTENCY_KEY_HEADER, "key-1")
+        .exchange()
+        .expectStatus()
+        .isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY);
+
+    assertEquals(0, new BigDecimal(90).compareTo(balanceOf(senderId)));
+    assertEquals(1, transactionRepository.count());
+  }
+
+  @Test
+  public void givenBatchWithInvalidAndMalformedItems_whenPosted_thenResultPerItemInOrder() {
+    Long senderId = saveUser(HUNDRED);
+    Long receiverId = saveUser(ZERO);
+    String body =
+        String.format(
+            "{\"senderId\":%d,\"receiverId\":%d,\"amount\":10,\"currency\":\"USD\"}\n"
+                + "{\"senderId\":%d,\"receiverId\":%d,\"amount\":10,\"currency\":\"XYZ\"}\n"
+                + "{\"senderId\":%d,\"receiverId\":%d,\"amount\":1000,\"currency\":\"USD\"}\n"
+                + "{\"senderId\":",
+            senderId, receiverId, senderId, receiverId, senderId, receiverId);
+
+    List<TransferItemResult> results =
+        webTestClient
+            .post()
+            .uri("/payment/transfers/batch")
+            .contentType(APPLICATION_NDJSON)
+            .accept(APPLICATION_NDJSON)
+            .bodyValue(body)
+            .exchange()
+            .expectStatus()
+            .isOk()
+            .returnResult(TransferItemResult.class)
+            .getResponseBody()
+            .collectList()
+            .block();
+
+    assertEquals(4, results.size());
+    assertEquals(TransferStatus.COMPLETED, results.get(0).status());
+    assertEquals(
+        new TransferItemResult(1, null, TransferStatus.REJECTED, "XYZ currency is not supported"),
+        results.get(1));
+    assertEquals(TransferStatus.FAILED, results.get(2).status());
+    assertEquals("Insufficient user balance.", results.get(2).error());
+    assertEquals(
+        new TransferItemResult(3, null, TransferStatus.REJECTED, "Malformed item"),
+        results.get(3));
+    assertEquals(0, new BigDecimal(90).compareTo(balanceOf(senderId)));
+  }
+
+  @Test
+  public void givenFailedIdempotentTransfer_whenRetriedWithSameKey_thenProcessedAgain() {
+    Long senderId = saveUser(ZERO);
+    Long receiverId = saveUser(ZERO);
+    String body =
+        String.format(
+            "{\"senderId\":%d,\"receiverId\":%d,\"amount\":10,\"currency\":\"USD\","
+                + "\"idempotencyKey\":\"key-1\"}",
+            senderId, receiverId);
+
+    assertEquals(TransferStatus.FAILED, postBatch(body).get(0).status());
+    User sender = userRepository.findById(senderId).get();
+    sender.setBalance(Money.of(HUNDRED));
+    userRepository.save(sender);
+
+    assertEquals(TransferStatus.COMPLETED, postBatch(body).get(0).status());
+    assertEquals(0, new BigDecimal(90).compareTo(balanceOf(senderId)));
+  }
+
+  private List<TransferItemResult> postBatch(String body) {
+    return webTestClient
+        .post()
+        .uri("/payment/transfers/batch")
+        .contentType(APPLICATION_NDJSON)
+        .accept(APPLICATION_NDJSON)
+        .bodyValue(body)
+        .exchange()
+        .expectStatus()
+        .isOk()
+        .returnResult(TransferItemResult.class)
+        .getResponseBody()
+        .collectList()
+        .block();
+  }
+}
@@ -0,0 +1,164 @@
+package hu.gerab.payment.rest;
+
+import static hu.gerab.payment.domain.Currency.USD;
+import static java.math.BigDecimal.TEN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.Transaction;
+import hu.gerab.payment.repository.TransactionRepository;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class TransactionStatementControllerTest {
+
+  private static final Instant START = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+
+  @Autowired private TransactionStatementController controller;
+  @Autowired private TransactionRepository transactionRepository;
+
+  @AfterEach
+  void cleanup() {
+    transactionRepository.deleteAll();
+  }
+
+  private Transaction saveTransaction(Long senderId, Long receiverId, String requestId, int i) {
+    return transactionRepository.save(
+        Transaction.builder()
+            .senderId(senderId)
+            .receiverId(receiverId)
+            .amount(TEN)
+            .currency(USD)
+            .requestId(requestId)
+            .inserted(START.plusSeconds(i))
+            .build());
+  }
+
+  private static String csvLine(Transaction transaction, String requestIdField) {
+    return transaction.getId()
+        + ","
+        + transaction.getInserted()
+        + ","
+        + requestIdField
+        + ","
+        + transaction.getSenderId()
+        + ","
+        + transaction.getReceiverId()
+        + ",10,USD,,";
+  }
+
+  private static List<String> read(ResponseEntity<StreamingResponseBody> response, boolean gzip)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    response.getBody().writeTo(out);
+    InputStream in = new ByteArrayInputStream(out.toByteArray());
+    if (gzip) {
+      in = new GZIPInputStream(in);
+    }
+    // the scale of the amounts depends on the database
+    return Stream.of(new String(in.readAllBytes(), UTF_8).split("\r\n"))
+        .map(line -> line.replaceFirst(",10\\.0*,", ",10,"))
+        .toList();
+  }
+
+  @Test
+  public void givenSentAndReceivedTransactions_whenUserStatementExported_thenMergedOldestFirst()
+      throws IOException {
+    List<Transaction> expected = new ArrayList<>();
+    expected.add(saveTransaction(1L, 2L, "a", 0));
+    saveTransaction(2L, 3L, "b", 1);
+    expected.add(saveTransaction(3L, 1L, "c,\"quoted\"", 2));
+    expected.add(saveTransaction(1L, 3L, "d", 3));
+
+    ResponseEntity<StreamingResponseBody> response =
+        controller.exportStatement(1L, null, null, null);
+
+    assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(
+        List.of(
+            TransactionCsvWriter.HEADER,
+            csvLine(expected.get(0), "a"),
+            csvLine(expected.get(1), "\"c,\"\"quoted\"\"\""),
+            csvLine(expected.get(2), "d")),
+        read(response, false));
+  }
+
+  @Test
+  public void givenCrossCurrencyTransaction_whenStatementExported_thenExchangedAmountWritten()
+      throws IOException {
+    Transaction transaction =
+        transactionRepository.save(
+            Transaction.builder()
+                .senderId(1L)
+                .receiverId(2L)
+                .amount(TEN)
+                .currency(USD)
+                .receiverAmount(new BigDecimal("9.25"))
+                .requestId("a")
+                .inserted(START)
+                .build());
+
+    List<String> lines = read(controller.exportStatement(1L, null, null, null), false);
+
+    assertEquals(2, lines.size());
+    String[] fields = lines.get(1).split(",", -1);
+    assertEquals(String.valueOf(transaction.getId()), fields[0]);
+    assertEquals("", fields[7]);
+    assertEquals(0, new BigDecimal("9.25").compareTo(new BigDecimal(fields[8])));
+  }
+
+  @Test
+  public void givenRangeAndGzipAccepted_whenStatementExported_thenRangeGzipped()
+      throws IOException {
+    saveTransaction(1L, 2L, "a", 0);
+    Transaction inRange = saveTransaction(2L, 3L, "b", 1);
+    saveTransaction(3L, 1L, "c", 2);
+
+    ResponseEntity<StreamingResponseBody> response =
+        controller.exportStatement(
+            null, START.plusSeconds(1), START.plusSeconds(2), "deflate, gzip;q=0.5");
+
+    assertEquals("gzip", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(
+        List.of(TransactionCsvWriter.HEADER, csvLine(inRange, "b")), read(response, true));
+  }
+
+  @Test
+  public void givenNoFilterOrEmptyRange_whenStatementExported_thenRejected() {
+    assertThrows(
+        ResponseStatusException.class, () -> controller.exportStatement(null, null, null, null));
+    assertThrows(
+        ResponseStatusException.class,
+        () -> controller.exportStatement(1L, START, START, null));
+    assertTrue(TransactionStatementController.acceptsGzip("br, GZIP"));
+    assertFalse(TransactionStatementController.acceptsGzip("gzip; q=0"));
+    assertFalse(TransactionStatementController.acceptsGzip("identity"));
+  }
+}
@@ -0,0 +1,85 @@
+package hu.gerab.payment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class AdmissionLimiterTest {
+
+  private final AtomicLong clock = new AtomicLong();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final AdmissionLimiter limiter =
+      new AdmissionLimiter(4, 2, 6, 100, 0.5, 1, meterRegistry, clock::get);
+
+  @Test
+  public void givenLimitReached_whenTransferComes_thenRejected() {
+    for (int i = 0; i < 4; i++) {
+      limiter.acquire();
+    }
+
+    assertThrows(AdmissionRejectedException.class, limiter::acquire);
+    assertEquals(1, meterRegistry.counter("payment.admission.rejections").count());
+    limiter.onIgnore();
+    assertTrue(limiter.tryAcquire());
+  }
+
+  @Test
+  public void givenFastTransfersAtTheLimit_whenCompleted_thenLimitIncreased() {
+    for (int round = 0; round < 5; round++) {
+      long start = limiter.acquire();
+      for (int i = 1; i < (int) limiter.getLimit(); i++) {
+        limiter.acquire();
+      }
+      clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+      while (limiter.getInflight() > 0) {
+        limiter.onSuccess(start);
+      }
+    }
+
+    assertEquals(6, limiter.getLimit());
+  }
+
+  @Test
+  public void givenSlowTransfers_whenCompleted_thenLimitDecreasedToMinimum() {
+    long start = limiter.acquire();
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+    limiter.onSuccess(start);
+    assertEquals(2, limiter.getLimit());
+
+    limiter.acquire();
+    limiter.onDropped();
+    assertEquals(2, limiter.getLimit());
+    limiter.acquire();
+    limiter.acquire();
+    assertFalse(limiter.tryAcquire());
+  }
+
+  @Test
+  public void givenManySlowTransfers_whenCompletedInOneWindow_thenLimitDecreasedOnce() {
+    AdmissionLimiter wideLimiter =
+        new AdmissionLimiter(200, 2, 400, 100, 0.9, 1, meterRegistry, clock::get);
+    long start = wideLimiter.acquire();
+    for (int i = 1; i < 200; i++) {
+      wideLimiter.acquire();
+    }
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+
+    while (wideLimiter.getInflight() > 0) {
+      wideLimiter.onSuccess(start);
+    }
+    wideLimiter.acquire();
+    wideLimiter.onDropped();
+    assertEquals(180, wideLimiter.getLimit(), 0.001);
+
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    wideLimiter.acquire();
+    wideLimiter.onDropped();
+    assertEquals(162, wideLimiter.getLimit(), 0.001);
+  }
+}
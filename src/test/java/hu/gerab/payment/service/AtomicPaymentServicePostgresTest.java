@@ -0,0 +1,217 @@
+package hu.gerab.payment.service;
+
+import static hu.gerab.payment.domain.Currency.EUR;
+import static hu.gerab.payment.domain.Currency.USD;
+import static java.math.BigDecimal.TEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+/**
+ * Runs the statement of the atomic mode against Postgres, as H2 does not support data modifying
+ * common table expressions. Skipped without docker.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class AtomicPaymentServicePostgresTest {
+
+  // the schema script grants the privileges to the user of the application
+  @Container
+  private static final PostgreSQLContainer<?> POSTGRES =
+      new PostgreSQLContainer<>("postgres:15").withUsername("kibit");
+
+  private static JdbcTemplate jdbcTemplate;
+  private final MessagingService messagingService = mock(MessagingService.class);
+  private final PaymentService paymentService = atomicService(TransactionOutbox.disabled());
+
+  @BeforeAll
+  static void createSchema() {
+    DriverManagerDataSource dataSource =
+        new DriverManagerDataSource(
+            POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+    new ResourceDatabasePopulator(new FileSystemResource("docker-db-schema-init.sql"))
+        .execute(dataSource);
+    jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  @AfterEach
+  void cleanup() {
+    jdbcTemplate.update("DELETE FROM outbox");
+    jdbcTemplate.update("DELETE FROM transactions");
+    jdbcTemplate.update("DELETE FROM users");
+  }
+
+  private PaymentService atomicService(TransactionOutbox outbox) {
+    return new AtomicPaymentService(
+        messagingService, jdbcTemplate, outbox, PaymentMetrics.unpublished());
+  }
+
+  private Long saveUser(String balance, Currency currency) {
+    return jdbcTemplate.queryForObject(
+        "INSERT INTO users (balance, currency) VALUES (?, ?) RETURNING id",
+        Long.class,
+        new BigDecimal(balance),
+        currency.name());
+  }
+
+  private BigDecimal balanceOf(Long userId) {
+    return jdbcTemplate.queryForObject(
+        "SELECT balance FROM users WHERE id = ?", BigDecimal.class, userId);
+  }
+
+  private long count(String table) {
+    return jdbcTemplate.queryForObject("SELECT count(*) FROM " + table, Long.class);
+  }
+
+  private TransferResult transfer(
+      PaymentService service, String requestId, Long senderId, Long receiverId, BigDecimal amount) {
+    TransferRequest request = new TransferRequest(requestId, senderId, receiverId, amount, USD);
+    return service.processTransfers(List.of(request)).get(0);
+  }
+
+  @Test
+  public void givenCoveredTransfer_whenProcessed_thenBothUsersAndTransactionWritten() {
+    Long senderId = saveUser("100", USD);
+    Long receiverId = saveUser("0", USD);
+
+    TransferResult result = transfer(paymentService, "1", senderId, receiverId, TEN);
+
+    assertEquals(TransferStatus.COMPLETED, result.getStatus());
+    assertEquals(0, new BigDecimal(90).compareTo(balanceOf(senderId)));
+    assertEquals(0, TEN.compareTo(balanceOf(receiverId)));
+    assertEquals(
+        1,
+        jdbcTemplate.queryForObject(
+            "SELECT count(*) FROM transactions"
+                + " WHERE request_id = '1' AND sender_id = ? AND receiver_id = ? AND amount = 10",
+            Long.class,
+            senderId,
+            receiverId));
+    assertEquals(
+        List.of(1L, 1L),
+        jdbcTemplate.queryForList(
+            "SELECT version FROM users WHERE id IN (?, ?)", Long.class, senderId, receiverId));
+  }
+
+  @Test
+  public void givenOutbox_whenProcessed_thenMessageOfBothUsersWrittenByTheStatement() {
+    Long senderId = saveUser("100", USD);
+    Long receiverId = saveUser("0", USD);
+    PaymentService outboxService =
+        atomicService(new TransactionOutbox(jdbcTemplate, new ObjectMapper(), "outbox"));
+
+    TransferResult result = transfer(outboxService, "1", senderId, receiverId, TEN);
+
+    assertEquals(TransferStatus.COMPLETED, result.getStatus());
+    assertEquals(
+        List.of(senderId, receiverId),
+        jdbcTemplate.queryForList("SELECT user_id FROM outbox ORDER BY user_id", Long.class));
+  }
+
+  @Test
+  public void givenInsufficientBalance_whenProcessed_thenFailedAndNothingWritten() {
+    Long senderId = saveUser("5", USD);
+    Long receiverId = saveUser("0", USD);
+
+    TransferResult result = transfer(paymentService, "1", senderId, receiverId, TEN);
+
+    assertEquals(TransferStatus.FAILED, result.getStatus());
+    assertEquals("Insufficient user balance.", result.getError());
+    assertEquals(0, new BigDecimal(5).compareTo(balanceOf(senderId)));
+    assertEquals(0, BigDecimal.ZERO.compareTo(balanceOf(receiverId)));
+    assertEquals(0, count("transactions"));
+  }
+
+  @Test
+  public void givenMissingUser_whenProcessed_thenFailedAndNothingWritten() {
+    Long userId = saveUser("100", USD);
+    Long missingId = userId + 1;
+
+    TransferResult missingSender = transfer(paymentService, "1", missingId, userId, TEN);
+    TransferResult missingReceiver = transfer(paymentService, "2", userId, missingId, TEN);
+
+    assertEquals("No user exists for sender id=" + missingId, missingSender.getError());
+    assertEquals("No user exists for receiver id=" + missingId, missingReceiver.getError());
+    // the sender is not debited without a receiver to credit
+    assertEquals(0, new BigDecimal(100).compareTo(balanceOf(userId)));
+    assertEquals(0, count("transactions"));
+  }
+
+  @Test
+  public void givenAccountOfAnotherCurrency_whenProcessed_thenFailedAsUnsupportedExchange() {
+    Long senderId = saveUser("100", USD);
+    Long receiverId = saveUser("0", EUR);
+
+    TransferResult result = transfer(paymentService, "1", senderId, receiverId, TEN);
+
+    assertEquals(TransferStatus.FAILED, result.getStatus());
+    assertEquals(AbstractPaymentService.UNSUPPORTED_EXCHANGE_ERROR, result.getError());
+    assertEquals(0, new BigDecimal(100).compareTo(balanceOf(senderId)));
+    assertEquals(0, count("transactions"));
+  }
+
+  @Test
+  public void givenReplayedRequestId_whenProcessed_thenDuplicateAndDebitRolledBack() {
+    Long senderId = saveUser("100", USD);
+    Long receiverId = saveUser("0", USD);
+    transfer(paymentService, "1", senderId, receiverId, TEN);
+
+    TransferResult replay = transfer(paymentService, "1", senderId, receiverId, TEN);
+
+    assertEquals(TransferStatus.DUPLICATE, replay.getStatus());
+    assertEquals(0, new BigDecimal(90).compareTo(balanceOf(senderId)));
+    assertEquals(0, TEN.compareTo(balanceOf(receiverId)));
+    assertEquals(1, count("transactions"));
+  }
+
+  @Test
+  public void givenConcurrentOppositeTransfers_whenProcessed_thenAllCompletedWithoutDeadlock()
+      throws Exception {
+    Long firstId = saveUser("1000", USD);
+    Long secondId = saveUser("1000", USD);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<TransferResult>> results = new ArrayList<>();
+    try {
+      for (int i = 0; i < 400; i++) {
+        String requestId = "r-" + i;
+        // every other transfer locks the same two users from the other side
+        Long senderId = i % 2 == 0 ? firstId : secondId;
+        Long receiverId = i % 2 == 0 ? secondId : firstId;
+        results.add(
+            executor.submit(
+                () -> transfer(paymentService, requestId, senderId, receiverId, BigDecimal.ONE)));
+      }
+      for (Future<TransferResult> result : results) {
+        assertEquals(TransferStatus.COMPLETED, result.get().getStatus());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(0, new BigDecimal(1000).compareTo(balanceOf(firstId)));
+    assertEquals(0, new BigDecimal(1000).compareTo(balanceOf(secondId)));
+    assertEquals(400, count("transactions"));
+  }
+}
@@ -0,0 +1,165 @@
+package hu.gerab.payment.service;
+
+import static hu.gerab.payment.domain.Currency.EUR;
+import static hu.gerab.payment.domain.Currency.USD;
+import static java.math.BigDecimal.TEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * The statement itself needs Postgres, see {@link AtomicPaymentServicePostgresTest}, these tests
+ * check its parameters and its results.
+ */
+class AtomicPaymentServiceTest {
+
+  private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+  private final MessagingService messagingService = spy(MessagingService.class);
+  private final AtomicInteger boundParameters = new AtomicInteger();
+  private String statement;
+
+  @BeforeEach
+  void setup() {
+    when(jdbcTemplate.queryForObject(anyString(), eq(Long.class))).thenReturn(1L);
+  }
+
+  private PaymentService atomicService(TransactionOutbox outbox) {
+    return new AtomicPaymentService(
+        messagingService, jdbcTemplate, outbox, PaymentMetrics.unpublished());
+  }
+
+  private void givenStatementResult(
+      boolean senderExists, boolean receiverExists, long transferred) throws Exception {
+    givenStatementResult(senderExists, receiverExists, false, transferred);
+  }
+
+  /** Executes the binding of the parameters, and returns the given statement result. */
+  @SuppressWarnings("unchecked")
+  private void givenStatementResult(
+      boolean senderExists, boolean receiverExists, boolean currencyMismatch, long transferred)
+      throws Exception {
+    PreparedStatement ps = mock(PreparedStatement.class);
+    ResultSet rs = mock(ResultSet.class);
+    when(rs.next()).thenReturn(true);
+    when(rs.getBoolean("sender_exists")).thenReturn(senderExists);
+    when(rs.getBoolean("receiver_exists")).thenReturn(receiverExists);
+    when(rs.getBoolean("currency_mismatch")).thenReturn(currencyMismatch);
+    when(rs.getLong("transferred")).thenReturn(transferred);
+    when(jdbcTemplate.query(
+            anyString(), any(PreparedStatementSetter.class), any(ResultSetExtractor.class)))
+        .thenAnswer(
+            invocation -> {
+              statement = invocation.getArgument(0);
+              invocation.getArgument(1, PreparedStatementSetter.class).setValues(ps);
+              // nothing else is called on the statement than the setters
+              boundParameters.set(mockingDetails(ps).getInvocations().size());
+              return invocation.getArgument(2, ResultSetExtractor.class).extractData(rs);
+            });
+  }
+
+  private static long placeholders(String sql) {
+    return sql.chars().filter(c -> c == '?').count();
+  }
+
+  @Test
+  public void givenStatementTransferred_whenProcessed_thenCompletedAndEveryParameterBound()
+      throws Exception {
+    givenStatementResult(true, true, 1);
+
+    var results =
+        atomicService(TransactionOutbox.disabled())
+            .processTransfers(List.of(new TransferRequest("1", 1L, 2L, TEN, USD)));
+
+    assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+    assertEquals(placeholders(statement), boundParameters.get());
+    verify(messagingService).sendTransactionNotification(any(TransactionNotification.class));
+  }
+
+  @Test
+  public void givenOutbox_whenProcessed_thenMessagesWrittenByTheStatement() throws Exception {
+    givenStatementResult(true, true, 1);
+    TransactionOutbox outbox = new TransactionOutbox(jdbcTemplate, new ObjectMapper(), "outbox");
+
+    var results =
+        atomicService(outbox).processTransfers(List.of(new TransferRequest("1", 1L, 2L, TEN, USD)));
+
+    assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+    assertEquals(placeholders(statement), boundParameters.get());
+    verify(messagingService, never()).sendTransactionNotification(any());
+  }
+
+  @Test
+  public void givenStatementNotTransferred_whenProcessed_thenFailedWithTheReason()
+      throws Exception {
+    PaymentService paymentService = atomicService(TransactionOutbox.disabled());
+    givenStatementResult(true, true, 0);
+    assertEquals(
+        "Insufficient user balance.",
+        paymentService
+            .processTransfers(List.of(new TransferRequest("1", 1L, 2L, TEN, USD)))
+            .get(0)
+            .getError());
+    givenStatementResult(true, false, 0);
+    assertEquals(
+        "No user exists for receiver id=2",
+        paymentService
+            .processTransfers(List.of(new TransferRequest("2", 1L, 2L, TEN, USD)))
+            .get(0)
+            .getError());
+    givenStatementResult(false, true, 0);
+    assertEquals(
+        "No user exists for sender id=1",
+        paymentService
+            .processTransfers(List.of(new TransferRequest("3", 1L, 2L, TEN, USD)))
+            .get(0)
+            .getError());
+    givenStatementResult(true, true, true, 0);
+    assertEquals(
+        "The amount cannot be exchanged between the currencies of the accounts.",
+        paymentService
+            .processTransfers(List.of(new TransferRequest("4", 1L, 2L, TEN, EUR)))
+            .get(0)
+            .getError());
+    verify(messagingService, never()).sendTransactionNotification(any());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void givenReplayedRequestId_whenProcessed_thenDuplicate() {
+    when(jdbcTemplate.query(
+            anyString(), any(PreparedStatementSetter.class), any(ResultSetExtractor.class)))
+        .thenThrow(new DuplicateKeyException("transactions_request_id_key"));
+
+    var results =
+        atomicService(TransactionOutbox.disabled())
+            .processTransfers(List.of(new TransferRequest("1", 1L, 2L, TEN, USD)));
+
+    assertEquals(TransferStatus.DUPLICATE, results.get(0).getStatus());
+    verify(messagingService, never()).sendTransactionNotification(anyLong(), any());
+  }
+}
@@ -0,0 +1,94 @@
+package hu.gerab.payment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.service.IdempotencyIndex.Fingerprint;
+import java.math.BigDecimal;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class IdempotencyIndexTest {
+
+  private final AtomicLong clock = new AtomicLong();
+  private final IdempotencyIndex index = new IdempotencyIndex(60, 1000, clock::get);
+
+  private static Fingerprint fingerprint(long amount) {
+    return Fingerprint.of(1, 2, BigDecimal.valueOf(amount), Currency.USD);
+  }
+
+  @Test
+  public void whenSameKeyUsed_thenSameRequestIdDerived() {
+    assertEquals(IdempotencyIndex.requestId(1, "key"), IdempotencyIndex.requestId(1, "key"));
+    assertNotEquals(IdempotencyIndex.requestId(1, "key"), IdempotencyIndex.requestId(2, "key"));
+  }
+
+  @Test
+  public void givenRegisteredRequest_whenReplayed_thenRecognised() {
+    String requestId = IdempotencyIndex.requestId(1, "key");
+
+    assertTrue(index.register(requestId, fingerprint(42)));
+    assertFalse(index.register(requestId, fingerprint(42)));
+  }
+
+  @Test
+  public void givenRegisteredRequest_whenKeyReusedWithDifferentParameters_thenRejected() {
+    String requestId = IdempotencyIndex.requestId(1, "key");
+    index.register(requestId, fingerprint(42));
+
+    assertThrows(IdempotencyKeyReusedException.class, () -> index.register(requestId, fingerprint(43)));
+  }
+
+  @Test
+  public void givenRegisteredRequest_whenReplayedWithEqualAmountOfOtherScale_thenRecognised() {
+    String requestId = IdempotencyIndex.requestId(1, "key");
+    index.register(requestId, Fingerprint.of(1, 2, new BigDecimal("10"), Currency.USD));
+
+    assertFalse(
+        index.register(requestId, Fingerprint.of(1, 2, new BigDecimal("10.00"), Currency.USD)));
+  }
+
+  @Test
+  public void givenRegisteredRequest_whenKeyReusedWithCollidingParameters_thenRejected() {
+    String requestId = IdempotencyIndex.requestId(1, "key");
+    // the hash of the parameters is the same, sender * 31 + receiver
+    assertEquals(
+        Objects.hash(1L, 32L, BigDecimal.TEN, Currency.USD),
+        Objects.hash(2L, 1L, BigDecimal.TEN, Currency.USD));
+    index.register(requestId, Fingerprint.of(1, 32, BigDecimal.TEN, Currency.USD));
+
+    assertThrows(
+        IdempotencyKeyReusedException.class,
+        () -> index.register(requestId, Fingerprint.of(2, 1, BigDecimal.TEN, Currency.USD)));
+  }
+
+  @Test
+  public void givenRegisteredRequest_whenTtlElapsed_thenEvicted() {
+    String requestId = IdempotencyIndex.requestId(1, "key");
+    index.register(requestId, fingerprint(42));
+
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(61));
+
+    assertTrue(index.register(requestId, fingerprint(42)));
+  }
+
+  @Test
+  public void givenFullIndex_whenNewRequestsCome_thenOldestEvicted() {
+    IdempotencyIndex smallIndex = new IdempotencyIndex(60, 16, clock::get);
+    int registered = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (smallIndex.register(IdempotencyIndex.requestId(1, "key-" + i), fingerprint(i))) {
+        registered++;
+      }
+    }
+    assertEquals(1000, registered);
+    // the first requests were evicted to make room for the later ones
+    assertTrue(smallIndex.register(IdempotencyIndex.requestId(1, "key-0"), fingerprint(0)));
+  }
+}
@@ -0,0 +1,203 @@
+package hu.gerab.payment.service;
+
+import static hu.gerab.payment.TestUtils.*;
+import static hu.gerab.payment.domain.Currency.*;
+import static java.math.BigDecimal.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.ledger.LedgerEngine;
+import hu.gerab.payment.ledger.LedgerWriter;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.TransactionRepository;
+import hu.gerab.payment.repository.UserRepository;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class LedgerPaymentServiceTest {
+
+  private static final int SHARDS = 4;
+
+  private PaymentService paymentService;
+  private LedgerWriter ledgerWriter;
+  private LedgerEngine ledgerEngine;
+  private MessagingService messagingService;
+  @Autowired private UserRepository userRepository;
+  @Autowired private TransactionRepository transactionRepository;
+  @Autowired private TransactionTemplate transactionTemplate;
+  @Autowired private JdbcTemplate jdbcTemplate;
+
+  @BeforeEach
+  void setup() {
+    messagingService = spy(MessagingService.class);
+    ledgerWriter =
+        new LedgerWriter(
+            jdbcTemplate,
+            transactionTemplate,
+            TransactionOutbox.disabled(),
+            PaymentMetrics.unpublished(),
+            100,
+            5,
+            1000);
+    ledgerEngine =
+        new LedgerEngine(userRepository, ledgerWriter, FxRateProvider.fixed(RATES), SHARDS);
+    paymentService =
+        new LedgerPaymentService(
+            messagingService,
+            ledgerEngine,
+            TransactionOutbox.disabled(),
+            PaymentMetrics.unpublished(),
+            Runnable::run);
+  }
+
+  @AfterEach
+  void cleanup() throws InterruptedException {
+    ledgerEngine.destroy();
+    ledgerWriter.destroy();
+    userRepository.deleteAll();
+    transactionRepository.deleteAll();
+  }
+
+  private Long saveUser(BigDecimal balance) {
+    return saveUser(balance, USD);
+  }
+
+  private Long saveUser(BigDecimal balance, Currency currency) {
+    return userRepository.save(User.builder().balance(balance).currency(currency).build()).getId();
+  }
+
+  private BigDecimal balanceOf(Long userId) {
+    return userRepository.findById(userId).get().getBalance().toBigDecimal();
+  }
+
+  @Test
+  public void givenUsersOnDifferentShards_whenTransferComes_thenBothSidesPersisted()
+      throws Exception {
+    Long senderId = saveUser(THOUSAND);
+    Long receiverId = saveUser(ZERO);
+    var notificationCaptor = ArgumentCaptor.forClass(TransactionNotification.class);
+
+    paymentService.processTransfer("1", senderId, receiverId, TEN, USD).get(5, TimeUnit.SECONDS);
+
+    assertEquals(0, new BigDecimal("990").compareTo(balanceOf(senderId)));
+    assertEquals(0, TEN.compareTo(balanceOf(receiverId)));
+    assertEquals(1, transactionRepository.count());
+    verify(messagingService).sendTransactionNotification(notificationCaptor.capture());
+    assertTrue(notificationCaptor.getValue().isSuccessful());
+  }
+
+  @Test
+  public void givenAccountsOfOtherCurrencies_whenTransfersCome_thenExchangedOrRefunded()
+      throws Exception {
+    Long senderId = saveUser(new BigDecimal("2000"), JPY);
+    Long receiverId = saveUser(ZERO, EUR);
+    Long gbpReceiverId = saveUser(ZERO, GBP);
+
+    // 6.40 USD is 1000 JPY and 5.12 EUR
+    paymentService
+        .processTransfer("1", senderId, receiverId, new BigDecimal("6.40"), USD)
+        .get(5, TimeUnit.SECONDS);
+    // debited by the shard of the sender, then refunded, as there is no rate to GBP
+    var result =
+        paymentService.processTransfers(
+            List.of(new TransferRequest("2", senderId, gbpReceiverId, TEN, JPY)));
+
+    assertEquals(
+        "The amount cannot be exchanged between the currencies of the accounts.",
+        result.get(0).getError());
+    assertEquals(0, THOUSAND.compareTo(balanceOf(senderId)));
+    assertEquals(0, new BigDecimal("5.12").compareTo(balanceOf(receiverId)));
+    assertEquals(0, ZERO.compareTo(balanceOf(gbpReceiverId)));
+    assertEquals(1, transactionRepository.count());
+  }
+
+  @Test
+  public void givenUserWithNoBalance_whenSendingTransactionComes_Fails() throws Exception {
+    Long senderId = saveUser(ZERO);
+    Long receiverId = saveUser(TEN);
+    var notificationCaptor = ArgumentCaptor.forClass(TransactionNotification.class);
+
+    paymentService.processTransfer("1", senderId, receiverId, TEN, USD).get(5, TimeUnit.SECONDS);
+
+    assertEquals(0, ZERO.compareTo(balanceOf(senderId)));
+    assertEquals(0, transactionRepository.count());
+    verify(messagingService)
+        .sendTransactionNotification(eq(senderId), notificationCaptor.capture());
+    assertFalse(notificationCaptor.getValue().isSuccessful());
+  }
+
+  @Test
+  public void givenNoReceiver_whenTransactionComes_thenSenderRefundedAndNotified()
+      throws Exception {
+    Long senderId = saveUser(TEN);
+    var notificationCaptor = ArgumentCaptor.forClass(TransactionNotification.class);
+
+    // the missing receiver is on another shard, so the debit has to be compensated
+    paymentService
+        .processTransfer("1", senderId, senderId + 1, TEN, USD)
+        .get(5, TimeUnit.SECONDS);
+    paymentService
+        .processTransfer("2", senderId, senderId + 2, TEN, USD)
+        .get(5, TimeUnit.SECONDS);
+
+    assertEquals(0, transactionRepository.count());
+    assertEquals(0, TEN.compareTo(balanceOf(senderId)));
+    verify(messagingService, times(2))
+        .sendTransactionNotification(eq(senderId), notificationCaptor.capture());
+    assertFalse(notificationCaptor.getValue().isSuccessful());
+  }
+
+  @Test
+  public void givenRingOfUsers_whenManyConcurrentTransfersCome_thenBalancesAreConsistent()
+      throws Exception {
+    List<Long> userIds = new ArrayList<>();
+    for (int i = 0; i < SHARDS + 1; i++) {
+      userIds.add(saveUser(HUNDRED));
+    }
+    List<CompletableFuture<TransferResult>> results = new ArrayList<>();
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < userIds.size(); i++) {
+        Long senderId = userIds.get(i);
+        Long receiverId = userIds.get((i + 1) % userIds.size());
+        results.add(
+            paymentService.processTransfer(
+                senderId + "-" + round, senderId, receiverId, ONE, USD));
+      }
+    }
+    CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+    assertEquals(20L * userIds.size(), transactionRepository.count());
+    for (Long userId : userIds) {
+      assertEquals(0, HUNDRED.compareTo(balanceOf(userId)));
+    }
+  }
+}
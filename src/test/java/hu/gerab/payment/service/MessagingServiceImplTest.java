@@ -0,0 +1,110 @@
+package hu.gerab.payment.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+
+class MessagingServiceImplTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @SuppressWarnings("unchecked")
+  private final KafkaTemplate<Long, Object> kafkaTemplate = mock(KafkaTemplate.class);
+
+  private final MessagingServiceImpl messagingService =
+      new MessagingServiceImpl(
+          kafkaTemplate,
+          meterRegistry,
+          new PaymentMetrics(meterRegistry),
+          "topic",
+          100,
+          10,
+          3,
+          1,
+          10,
+          1000);
+
+  @AfterEach
+  void cleanup() throws InterruptedException {
+    messagingService.destroy();
+  }
+
+  @Test
+  public void whenNotificationSent_thenSentForBothUsersAndAcknowledged()
+      throws InterruptedException {
+    when(kafkaTemplate.send(eq("topic"), anyLong(), any()))
+        .thenReturn(CompletableFuture.completedFuture(mock(SendResult.class)));
+    TransactionNotification notification =
+        TransactionNotification.builder().senderId(1L).receiverId(2L).successful(true).build();
+
+    messagingService.sendTransactionNotification(notification);
+
+    verify(kafkaTemplate, timeout(1000)).send("topic", 1L, notification);
+    verify(kafkaTemplate, timeout(1000)).send("topic", 2L, notification);
+    messagingService.destroy();
+    assertEquals(2, meterRegistry.counter("payment.notifications.acknowledged").count());
+    assertEquals(0, messagingService.getInflight());
+  }
+
+  @Test
+  public void givenFailingBroker_whenNotificationSent_thenRetriedUntilAcknowledged()
+      throws InterruptedException {
+    when(kafkaTemplate.send(eq("topic"), anyLong(), any()))
+        .thenReturn(CompletableFuture.failedFuture(new TimeoutException("broker unavailable")))
+        .thenReturn(CompletableFuture.failedFuture(new TimeoutException("broker unavailable")))
+        .thenReturn(CompletableFuture.completedFuture(mock(SendResult.class)));
+    TransactionNotification notification =
+        TransactionNotification.builder().senderId(1L).successful(false).build();
+
+    messagingService.sendTransactionNotification(notification);
+
+    verify(kafkaTemplate, timeout(1000).times(3)).send("topic", 1L, notification);
+    messagingService.destroy();
+    assertEquals(2, meterRegistry.counter("payment.notifications.retried").count());
+    assertEquals(1, meterRegistry.counter("payment.notifications.acknowledged").count());
+    assertEquals(0, meterRegistry.counter("payment.notifications.dropped").count());
+  }
+
+  @Test
+  public void givenRetryScheduled_whenShutDown_thenDroppedAndCounted()
+      throws InterruptedException {
+    MessagingServiceImpl slowRetries =
+        new MessagingServiceImpl(
+            kafkaTemplate,
+            meterRegistry,
+            new PaymentMetrics(meterRegistry),
+            "topic",
+            100,
+            10,
+            3,
+            60000,
+            60000,
+            1000);
+    when(kafkaTemplate.send(eq("topic"), anyLong(), any()))
+        .thenReturn(CompletableFuture.failedFuture(new TimeoutException("broker unavailable")));
+    TransactionNotification notification =
+        TransactionNotification.builder().senderId(1L).successful(false).build();
+
+    slowRetries.sendTransactionNotification(notification);
+
+    verify(kafkaTemplate, timeout(1000)).send("topic", 1L, notification);
+    slowRetries.destroy();
+    assertEquals(1, meterRegistry.counter("payment.notifications.retried").count());
+    assertEquals(1, meterRegistry.counter("payment.notifications.dropped").count());
+  }
+}
@@ -0,0 +1,174 @@
+package hu.gerab.payment.service;
+
+import static hu.gerab.payment.TestUtils.*;
+import static hu.gerab.payment.domain.Currency.*;
+import static java.math.BigDecimal.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.TransactionRepository;
+import hu.gerab.payment.repository.UserRepository;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class OptimisticPaymentServiceTest {
+
+  private SimpleMeterRegistry meterRegistry;
+  private MessagingService messagingService;
+  @Autowired private UserRepository userRepository;
+  @Autowired private TransactionRepository transactionRepository;
+  @Autowired private TransactionTemplate transactionTemplate;
+  @Autowired private JdbcTemplate jdbcTemplate;
+  @Autowired private DataSource dataSource;
+
+  @BeforeEach
+  void setup() {
+    meterRegistry = new SimpleMeterRegistry();
+    messagingService = Mockito.spy(MessagingService.class);
+  }
+
+  @AfterEach
+  void cleanup() {
+    userRepository.deleteAll();
+    transactionRepository.deleteAll();
+  }
+
+  private PaymentService optimisticService(JdbcTemplate jdbcTemplate) {
+    return new OptimisticPaymentService(
+        messagingService,
+        jdbcTemplate,
+        transactionTemplate,
+        TransactionOutbox.disabled(),
+        FxRateProvider.fixed(RATES),
+        new PaymentMetrics(meterRegistry),
+        20,
+        1);
+  }
+
+  private Long saveUser(BigDecimal balance) {
+    return userRepository.save(User.builder().balance(balance).currency(USD).build()).getId();
+  }
+
+  private BigDecimal balanceOf(Long userId) {
+    return userRepository.findById(userId).get().getBalance().toBigDecimal();
+  }
+
+  @Test
+  public void givenTransfers_whenProcessed_thenBalancesAndVersionsUpdated() {
+    PaymentService paymentService = optimisticService(jdbcTemplate);
+    Long senderId = saveUser(HUNDRED);
+    Long receiverId = saveUser(ZERO);
+
+    List<TransferResult> results =
+        paymentService.processTransfers(
+            List.of(
+                new TransferRequest("1", senderId, receiverId, TEN, USD),
+                new TransferRequest("2", senderId, receiverId, THOUSAND, USD),
+                new TransferRequest("3", senderId, receiverId + 1000, TEN, USD),
+                new TransferRequest("4", senderId, receiverId, TEN, USD)));
+
+    assertEquals(
+        List.of(
+            TransferStatus.COMPLETED,
+            TransferStatus.FAILED,
+            TransferStatus.FAILED,
+            TransferStatus.COMPLETED),
+        results.stream().map(TransferResult::getStatus).toList());
+    assertEquals(0, new BigDecimal(80).compareTo(balanceOf(senderId)));
+    assertEquals(0, new BigDecimal(20).compareTo(balanceOf(receiverId)));
+    assertEquals(2, userRepository.findById(senderId).get().getVersion());
+    assertEquals(2, transactionRepository.count());
+  }
+
+  @Test
+  public void givenSenderChangedAfterRead_whenDebited_thenTransferRetriedWithNewBalance() {
+    Long senderId = saveUser(HUNDRED);
+    Long receiverId = saveUser(ZERO);
+    // another instance credits the sender between the read and the debit of the first attempt
+    JdbcTemplate interferingTemplate =
+        new JdbcTemplate(dataSource) {
+          private boolean interfered;
+
+          @Override
+          public int update(String sql, Object... args) {
+            if (!interfered && sql.contains("balance >= ?")) {
+              interfered = true;
+              CompletableFuture.runAsync(
+                      () ->
+                          jdbcTemplate.update(
+                              "UPDATE users SET balance = balance + 5, version = version + 1"
+                                  + " WHERE id = ?",
+                              senderId))
+                  .join();
+            }
+            return super.update(sql, args);
+          }
+        };
+
+    List<TransferResult> results =
+        optimisticService(interferingTemplate)
+            .processTransfers(List.of(new TransferRequest("1", senderId, receiverId, TEN, USD)));
+
+    assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+    assertEquals(0, new BigDecimal(95).compareTo(balanceOf(senderId)));
+    assertEquals(0, TEN.compareTo(balanceOf(receiverId)));
+    assertEquals(1, meterRegistry.get("payment.transfer.conflicts").counter().count());
+  }
+
+  @Test
+  public void givenRingOfUsers_whenManyConcurrentTransfersCome_thenBalancesAreConsistent()
+      throws Exception {
+    PaymentService paymentService = optimisticService(jdbcTemplate);
+    List<Long> userIds = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      userIds.add(saveUser(HUNDRED));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(6);
+    List<Future<List<TransferResult>>> results = new ArrayList<>();
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < userIds.size(); i++) {
+        Long senderId = userIds.get(i);
+        Long receiverId = userIds.get((i + 1) % userIds.size());
+        TransferRequest request =
+            new TransferRequest(senderId + "-" + round, senderId, receiverId, ONE, USD);
+        results.add(executor.submit(() -> paymentService.processTransfers(List.of(request))));
+      }
+    }
+    for (Future<List<TransferResult>> result : results) {
+      assertEquals(TransferStatus.COMPLETED, result.get().get(0).getStatus());
+    }
+    executor.shutdown();
+
+    assertEquals(60, transactionRepository.count());
+    for (Long userId : userIds) {
+      assertEquals(0, HUNDRED.compareTo(balanceOf(userId)));
+    }
+  }
+}
@@ -2,30 +2,53 @@ package hu.gerab.payment.service;
 
 import static hu.gerab.payment.TestUtils.*;
 import static hu.gerab.payment.domain.Currency.*;
+import static java.math.BigDecimal.TEN;
+import static java.math.BigDecimal.ZERO;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import hu.gerab.payment.config.TestDatabaseConfig;
 import hu.gerab.payment.domain.Transaction;
 import hu.gerab.payment.domain.User;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.outbox.TransactionOutbox;
+import hu.gerab.payment.repository.AccountCache;
 import hu.gerab.payment.repository.TransactionRepository;
 import hu.gerab.payment.repository.UserRepository;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.math.BigDecimal;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.LongStream;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @SpringBootTest
 @ActiveProfiles("test")
@@ -36,6 +59,8 @@ class PaymentServiceImplTest {
   private MessagingServiceStub messagingService;
   @Autowired private UserRepository userRepository;
   @Autowired private TransactionRepository transactionRepository;
+  @Autowired private TransactionTemplate transactionTemplate;
+  @Autowired private JdbcTemplate jdbcTemplate;
 
   @BeforeEach
   void setup() {
@@ -50,9 +75,40 @@ class PaymentServiceImplTest {
     transactionRepository.deleteAll();
   }
 
+  private PaymentServiceImpl transactionalService(HotAccountRegistry hotAccounts) {
+    return transactionalService(hotAccounts, PaymentMetrics.unpublished(), AccountCache.disabled());
+  }
+
+  private PaymentServiceImpl transactionalService(
+      HotAccountRegistry hotAccounts, PaymentMetrics metrics, AccountCache accountCache) {
+    return transactionalService(hotAccounts, metrics, accountCache, 32);
+  }
+
+  private PaymentServiceImpl transactionalService(
+      HotAccountRegistry hotAccounts,
+      PaymentMetrics metrics,
+      AccountCache accountCache,
+      int maxGroupUsers) {
+    return new PaymentServiceImpl(
+        messagingService,
+        userRepository,
+        transactionRepository,
+        transactionTemplate,
+        hotAccounts,
+        accountCache,
+        TransactionOutbox.disabled(),
+        FxRateProvider.fixed(RATES),
+        metrics,
+        4,
+        100,
+        3,
+        maxGroupUsers);
+  }
+
   private class MessagingServiceStub implements MessagingService {
 
     private Map<Long, CountDownLatch> latches;
+    private Runnable onSend = () -> {};
 
     @Override
     public void sendTransactionNotification(TransactionNotification notification) {
@@ -64,6 +120,7 @@ class PaymentServiceImplTest {
 
     @Override
     public void sendTransactionNotification(long userId, TransactionNotification notification) {
+      onSend.run();
       CountDownLatch latch = latches.get(userId);
       if (latch != null) {
         latch.countDown();
@@ -73,6 +130,10 @@ class PaymentServiceImplTest {
     public void initLatches(Map<Long, CountDownLatch> latches) {
       this.latches = new ConcurrentHashMap<>(latches);
     }
+
+    public void onSend(Runnable onSend) {
+      this.onSend = onSend;
+    }
   }
 
   @Test
@@ -134,8 +195,397 @@ class PaymentServiceImplTest {
         assertEquals(String.format("%d-%d", userId, i + 1), transaction.getRequestId());
       }
     }
-    assertEquals(0, userRepository.findById(userId1).get().getBalance().compareTo(THOUSAND));
-    assertEquals(0, userRepository.findById(userId2).get().getBalance().compareTo(THOUSAND));
-    assertEquals(0, userRepository.findById(userId3).get().getBalance().compareTo(THOUSAND));
+    assertEquals(0, balanceOf(userId1).compareTo(THOUSAND));
+    assertEquals(0, balanceOf(userId2).compareTo(THOUSAND));
+    assertEquals(0, balanceOf(userId3).compareTo(THOUSAND));
+  }
+
+  @Test
+  public void givenThreeUsers_whenBatchOfTransfersComes_ThenProcessedInOrderInOneGroup() {
+    PaymentService batchService = transactionalService(HotAccountRegistry.disabled());
+    messagingService.initLatches(Map.of());
+    Long userId1 =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long userId2 =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    Long userId3 =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+
+    List<TransferResult> results =
+        batchService.processTransfers(
+            List.of(
+                new TransferRequest("1", userId1, userId2, HUNDRED, USD),
+                // only succeeds because the previous transfer is applied first
+                new TransferRequest("2", userId2, userId3, TEN, USD),
+                new TransferRequest("3", userId3, userId1, HUNDRED, USD),
+                new TransferRequest("4", userId1, userId1, TEN, USD)));
+
+    assertEquals(
+        List.of(
+            TransferStatus.COMPLETED,
+            TransferStatus.COMPLETED,
+            TransferStatus.FAILED,
+            TransferStatus.FAILED),
+        results.stream().map(TransferResult::getStatus).toList());
+    assertEquals("Insufficient user balance.", results.get(2).getError());
+    assertEquals(2, transactionRepository.count());
+    assertEquals(0, ZERO.compareTo(balanceOf(userId1)));
+    assertEquals(0, new BigDecimal("90").compareTo(balanceOf(userId2)));
+    assertEquals(0, TEN.compareTo(balanceOf(userId3)));
+  }
+
+  @Test
+  public void givenBatchOverGroupUsers_whenProcessed_thenSplitIntoGroupsKeepingAccountOrder() {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    PaymentService groupedService =
+        transactionalService(
+            HotAccountRegistry.disabled(),
+            new PaymentMetrics(meterRegistry),
+            AccountCache.disabled(),
+            3);
+    messagingService.initLatches(Map.of());
+    Long[] userIds = new Long[6];
+    for (int i = 0; i < userIds.length; i++) {
+      BigDecimal balance = i == 0 || i == 4 ? HUNDRED : ZERO;
+      userIds[i] =
+          userRepository.save(User.builder().balance(balance).currency(USD).build()).getId();
+    }
+
+    List<TransferResult> results =
+        groupedService.processTransfers(
+            List.of(
+                new TransferRequest("1", userIds[0], userIds[1], HUNDRED, USD),
+                new TransferRequest("2", userIds[4], userIds[5], TEN, USD),
+                // only succeed after the previous transfers of the chain, over two groups
+                new TransferRequest("3", userIds[1], userIds[2], HUNDRED, USD),
+                new TransferRequest("4", userIds[2], userIds[3], HUNDRED, USD)));
+
+    assertTrue(results.stream().allMatch(result -> result.getStatus() == TransferStatus.COMPLETED));
+    assertEquals(
+        List.of("1", "2", "3", "4"),
+        results.stream().map(TransferResult::getRequestId).toList());
+    assertEquals(0, HUNDRED.compareTo(balanceOf(userIds[3])));
+    assertEquals(0, TEN.compareTo(balanceOf(userIds[5])));
+    // the chain of 4 users is cut in two, the unrelated transfer is a group of its own
+    assertEquals(
+        3, meterRegistry.get("payment.transfer.stage").tag("stage", "lock").timer().count());
+  }
+
+  @Test
+  public void givenReplayedRequestIdInGroup_whenProcessed_thenOnlyReplayRejectedAsDuplicate() {
+    PaymentService batchService = transactionalService(HotAccountRegistry.disabled());
+    Map<Long, CountDownLatch> latches = new HashMap<>();
+    messagingService.initLatches(latches);
+    Long senderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    batchService.processTransfers(
+        List.of(new TransferRequest("1", senderId, receiverId, TEN, USD)));
+    // e.g. after a restart, the idempotency index does not know the request id anymore
+    CountDownLatch notifications = new CountDownLatch(3);
+    messagingService.initLatches(Map.of(senderId, notifications));
+
+    List<TransferResult> results =
+        batchService.processTransfers(
+            List.of(
+                new TransferRequest("2", senderId, receiverId, TEN, USD),
+                new TransferRequest("1", senderId, receiverId, TEN, USD),
+                new TransferRequest("3", senderId, receiverId, TEN, USD)));
+
+    assertEquals(
+        List.of(TransferStatus.COMPLETED, TransferStatus.DUPLICATE, TransferStatus.COMPLETED),
+        results.stream().map(TransferResult::getStatus).toList());
+    assertNull(results.get(1).getError());
+    // only the completed transfers were notified, no failure about the others of the group
+    assertEquals(1, notifications.getCount());
+    assertEquals(3, transactionRepository.count());
+    assertEquals(0, new BigDecimal("70").compareTo(balanceOf(senderId)));
+    assertEquals(0, new BigDecimal("30").compareTo(balanceOf(receiverId)));
+  }
+
+  @Test
+  public void givenReplayDebitingTheSenderInGroup_whenRolledBack_thenOthersProcessedAgain() {
+    PaymentService batchService = transactionalService(HotAccountRegistry.disabled());
+    messagingService.initLatches(Map.of());
+    Long senderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long otherSenderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    Long otherReceiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    batchService.processTransfers(
+        List.of(new TransferRequest("1", otherSenderId, receiverId, TEN, USD)));
+    CountDownLatch notifications = new CountDownLatch(2);
+    messagingService.initLatches(Map.of(senderId, notifications));
+
+    // the replay debits the sender in the group, so the second transfer fails there
+    List<TransferResult> results =
+        batchService.processTransfers(
+            List.of(
+                new TransferRequest("1", senderId, receiverId, new BigDecimal(80), USD),
+                new TransferRequest("2", senderId, otherReceiverId, new BigDecimal(50), USD)));
+
+    assertEquals(
+        List.of(TransferStatus.DUPLICATE, TransferStatus.COMPLETED),
+        results.stream().map(TransferResult::getStatus).toList());
+    assertEquals(0, new BigDecimal(50).compareTo(balanceOf(senderId)));
+    assertEquals(0, new BigDecimal(50).compareTo(balanceOf(otherReceiverId)));
+    // only the completion was notified, not the failure in the rolled back group
+    assertEquals(1, notifications.getCount());
+  }
+
+  @Test
+  public void givenIntegrityViolationOtherThanReplay_whenProcessed_thenFailedAndNotified() {
+    TransactionRepository failingRepository =
+        mock(TransactionRepository.class, delegatesTo(transactionRepository));
+    doThrow(new DataIntegrityViolationException("numeric value out of range"))
+        .when(failingRepository)
+        .saveAll(any());
+    PaymentService failingService =
+        new PaymentServiceImpl(
+            messagingService,
+            userRepository,
+            failingRepository,
+            transactionTemplate,
+            HotAccountRegistry.disabled(),
+            AccountCache.disabled(),
+            TransactionOutbox.disabled(),
+            FxRateProvider.fixed(RATES),
+            PaymentMetrics.unpublished(),
+            4,
+            100,
+            3,
+            32);
+    Long senderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    CountDownLatch notifications = new CountDownLatch(1);
+    messagingService.initLatches(Map.of(senderId, notifications));
+
+    List<TransferResult> results =
+        failingService.processTransfers(
+            List.of(new TransferRequest("1", senderId, receiverId, TEN, USD)));
+
+    assertEquals(TransferStatus.FAILED, results.get(0).getStatus());
+    assertEquals(0, notifications.getCount());
+    assertEquals(0, HUNDRED.compareTo(balanceOf(senderId)));
+  }
+
+  @Test
+  public void givenSlowNotification_whenSent_thenLocksAlreadyReleased() throws Exception {
+    PaymentService service = transactionalService(HotAccountRegistry.disabled());
+    Long senderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    messagingService.initLatches(Map.of());
+    AtomicBoolean sending = new AtomicBoolean();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    List<TransferResult> concurrentResults = new ArrayList<>();
+    // a transfer of the same users while the first notification is sent would wait for the locks
+    messagingService.onSend(
+        () -> {
+          if (sending.compareAndSet(false, true)) {
+            try {
+              concurrentResults.addAll(
+                  executor
+                      .submit(
+                          () ->
+                              service.processTransfers(
+                                  List.of(
+                                      new TransferRequest("2", receiverId, senderId, TEN, USD))))
+                      .get(10, TimeUnit.SECONDS));
+            } catch (Exception e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        });
+    try {
+      List<TransferResult> results =
+          service.processTransfers(
+              List.of(new TransferRequest("1", senderId, receiverId, TEN, USD)));
+
+      assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+      assertEquals(TransferStatus.COMPLETED, concurrentResults.get(0).getStatus());
+      assertEquals(0, HUNDRED.compareTo(balanceOf(senderId)));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void givenHotReceiver_whenTransfersCome_thenCreditsBufferedAndFlushedAtOnce() {
+    messagingService.initLatches(Map.of());
+    Long merchantId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    Long customerId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    PaymentServiceImpl hotService =
+        transactionalService(new HotAccountRegistry(jdbcTemplate, merchantId.toString(), 0));
+
+    for (int i = 0; i < 10; i++) {
+      hotService.processTransfer("c-" + i, customerId, merchantId, TEN, USD);
+    }
+
+    assertEquals(10, transactionRepository.count());
+    assertEquals(0, ZERO.compareTo(balanceOf(customerId)));
+    assertEquals(0, ZERO.compareTo(balanceOf(merchantId)));
+    // the buffered credits of a hot sender are written before its balance is checked
+    List<TransferResult> results =
+        hotService.processTransfers(
+            List.of(new TransferRequest("m-1", merchantId, customerId, HUNDRED, USD)));
+    assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+    assertEquals(0, HUNDRED.compareTo(balanceOf(customerId)));
+
+    hotService.processTransfer("c-10", customerId, merchantId, TEN, USD);
+    // the committed credits are flushed by the next instance if this one crashes
+    HotAccountRegistry restarted = new HotAccountRegistry(jdbcTemplate, merchantId.toString(), 0);
+    restarted.afterPropertiesSet();
+    transactionalService(restarted).flushHotCredits();
+    assertEquals(0, TEN.compareTo(balanceOf(merchantId)));
+    assertEquals(0, jdbcTemplate.queryForObject("SELECT count(*) FROM hot_credits", Long.class));
+  }
+
+  @Test
+  public void givenTransfersWithDifferentOutcomes_whenProcessed_thenOutcomesAndStagesRecorded() {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    PaymentService measuredService =
+        transactionalService(
+            HotAccountRegistry.disabled(),
+            new PaymentMetrics(meterRegistry),
+            AccountCache.disabled());
+    messagingService.initLatches(Map.of());
+    Long senderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+
+    measuredService.processTransfers(
+        List.of(
+            new TransferRequest("1", senderId, receiverId, TEN, USD),
+            new TransferRequest("2", senderId, receiverId, THOUSAND, USD),
+            new TransferRequest("3", senderId, receiverId + 1000, TEN, USD),
+            new TransferRequest("4", senderId, receiverId, ZERO, USD)));
+
+    for (String outcome :
+        List.of("completed", "insufficient.balance", "missing.receiver", "invalid")) {
+      assertEquals(
+          1,
+          meterRegistry.get("payment.transfer.outcome").tag("outcome", outcome).counter().count(),
+          outcome);
+    }
+    for (String stage : List.of("lock", "db.read", "db.write")) {
+      assertEquals(
+          1, meterRegistry.get("payment.transfer.stage").tag("stage", stage).timer().count());
+    }
+  }
+
+  @Test
+  public void givenAccountsOfOtherCurrencies_whenTransferred_thenExchangedAmountsBooked() {
+    PaymentService exchangingService = transactionalService(HotAccountRegistry.disabled());
+    messagingService.initLatches(Map.of());
+    Long senderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(EUR).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(JPY).build()).getId();
+    Long gbpReceiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(GBP).build()).getId();
+
+    List<TransferResult> results =
+        exchangingService.processTransfers(
+            List.of(
+                new TransferRequest("1", senderId, receiverId, TEN, USD),
+                new TransferRequest("2", senderId, gbpReceiverId, TEN, USD)));
+
+    assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+    assertEquals(TransferStatus.FAILED, results.get(1).getStatus());
+    assertEquals(
+        "The amount cannot be exchanged between the currencies of the accounts.",
+        results.get(1).getError());
+    // 10 USD is 8 EUR and 1562.5 JPY, the credit is rounded down to whole yens
+    assertEquals(0, new BigDecimal("92").compareTo(balanceOf(senderId)));
+    assertEquals(0, new BigDecimal("1562").compareTo(balanceOf(receiverId)));
+    assertEquals(0, ZERO.compareTo(balanceOf(gbpReceiverId)));
+    Transaction transaction = transactionRepository.findBySenderId(senderId).get(0);
+    assertEquals(0, TEN.compareTo(transaction.getAmount()));
+    assertEquals(0, new BigDecimal("8").compareTo(transaction.getSenderAmount()));
+    assertEquals(0, new BigDecimal("1562").compareTo(transaction.getReceiverAmount()));
+  }
+
+  private BigDecimal balanceOf(Long userId) {
+    return userRepository.findById(userId).get().getBalance().toBigDecimal();
+  }
+
+  private AccountCache accountCache(UserRepository repository, String mode) {
+    return new AccountCache(repository, jdbcTemplate, new SimpleMeterRegistry(), mode, 100);
+  }
+
+  @Test
+  public void givenWarmAccountCache_whenTransfersCome_thenUsersAreNotQueriedAgain() {
+    UserRepository countingRepository = mock(UserRepository.class, delegatesTo(userRepository));
+    PaymentService cachedService =
+        transactionalService(
+            HotAccountRegistry.disabled(),
+            PaymentMetrics.unpublished(),
+            accountCache(countingRepository, AccountCache.LOCAL_MODE));
+    messagingService.initLatches(Map.of());
+    Long senderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+
+    for (int i = 0; i < 5; i++) {
+      List<TransferResult> results =
+          cachedService.processTransfers(
+              List.of(new TransferRequest("c-" + i, senderId, receiverId, TEN, USD)));
+      assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+    }
+
+    verify(countingRepository, times(1)).findAllById(any());
+    assertEquals(0, new BigDecimal(50).compareTo(balanceOf(senderId)));
+    assertEquals(0, new BigDecimal(50).compareTo(balanceOf(receiverId)));
+    assertEquals(5, userRepository.findById(senderId).get().getVersion());
+  }
+
+  @Test
+  public void givenAccountChangedByAnotherInstance_whenVersionedCacheIsStale_thenReattempted() {
+    PaymentService cachedService =
+        transactionalService(
+            HotAccountRegistry.disabled(),
+            PaymentMetrics.unpublished(),
+            accountCache(userRepository, AccountCache.VERSIONED_MODE));
+    messagingService.initLatches(Map.of());
+    Long senderId =
+        userRepository.save(User.builder().balance(HUNDRED).currency(USD).build()).getId();
+    Long receiverId =
+        userRepository.save(User.builder().balance(ZERO).currency(USD).build()).getId();
+    cachedService.processTransfers(
+        List.of(new TransferRequest("1", senderId, receiverId, TEN, USD)));
+
+    // written by another instance, behind the cache
+    jdbcTemplate.update(
+        "UPDATE users SET balance = balance + 5, version = version + 1 WHERE id = ?", senderId);
+    List<TransferResult> results =
+        cachedService.processTransfers(
+            List.of(new TransferRequest("2", senderId, receiverId, TEN, USD)));
+    List<TransferResult> rejected =
+        cachedService.processTransfers(
+            List.of(new TransferRequest("3", receiverId, senderId, new BigDecimal(25), USD)));
+    jdbcTemplate.update(
+        "UPDATE users SET balance = balance + 10, version = version + 1 WHERE id = ?", receiverId);
+    // the cached balance is short of the transfer, the stored one decides
+    List<TransferResult> allowed =
+        cachedService.processTransfers(
+            List.of(new TransferRequest("4", receiverId, senderId, new BigDecimal(25), USD)));
+
+    assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+    assertEquals(TransferStatus.FAILED, rejected.get(0).getStatus());
+    assertEquals(TransferStatus.COMPLETED, allowed.get(0).getStatus());
+    assertEquals(0, new BigDecimal(110).compareTo(balanceOf(senderId)));
+    assertEquals(0, new BigDecimal(5).compareTo(balanceOf(receiverId)));
   }
 }
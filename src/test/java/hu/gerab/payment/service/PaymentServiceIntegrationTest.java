@@ -12,6 +12,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 
 import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.Money;
 import hu.gerab.payment.domain.User;
 import hu.gerab.payment.repository.TransactionRepository;
 import hu.gerab.payment.repository.UserRepository;
@@ -93,10 +94,10 @@ class PaymentServiceIntegrationTest {
     paymentService.processTransfer("1", senderId, receiverId, TEN, USD);
 
     User sender = userRepository.findById(senderId).get();
-    assertEquals(0, new BigDecimal("990").compareTo(sender.getBalance()));
+    assertEquals(Money.of(new BigDecimal("990")), sender.getBalance());
 
     User receiver = userRepository.findById(receiverId).get();
-    assertEquals(0, TEN.compareTo(receiver.getBalance()));
+    assertEquals(Money.of(TEN), receiver.getBalance());
 
     assertEquals(1, transactionRepository.count());
     assertEquals(
@@ -119,10 +120,10 @@ class PaymentServiceIntegrationTest {
     paymentService.processTransfer("1", senderId, receiverId, TEN, USD);
 
     User sender = userRepository.findById(senderId).get();
-    assertEquals(0, ZERO.compareTo(sender.getBalance()));
+    assertEquals(Money.ZERO, sender.getBalance());
 
     User receiver = userRepository.findById(receiverId).get();
-    assertEquals(0, TEN.compareTo(receiver.getBalance()));
+    assertEquals(Money.of(TEN), receiver.getBalance());
 
     assertEquals(1, transactionRepository.count());
     assertEquals(
@@ -142,7 +143,7 @@ class PaymentServiceIntegrationTest {
 
     paymentService.processTransfer("1", senderId, receiverId, TEN, USD);
 
-    assertEquals(0, ZERO.compareTo(userRepository.findById(senderId).get().getBalance()));
+    assertEquals(Money.ZERO, userRepository.findById(senderId).get().getBalance());
     assertEquals(0, transactionRepository.count());
     verify(messagingService)
         .sendTransactionNotification(eq(senderId), notificationCaptor.capture());
@@ -159,7 +160,7 @@ class PaymentServiceIntegrationTest {
 
     paymentService.processTransfer("1", userId, userId2, ZERO, USD);
 
-    assertEquals(0, TEN.compareTo(userRepository.findById(userId).get().getBalance()));
+    assertEquals(Money.of(TEN), userRepository.findById(userId).get().getBalance());
     assertEquals(0, transactionRepository.count());
     verify(messagingService).sendTransactionNotification(eq(userId), notificationCaptor.capture());
     assertFalse(notificationCaptor.getValue().isSuccessful());
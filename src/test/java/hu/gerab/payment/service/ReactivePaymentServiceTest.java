@@ -0,0 +1,220 @@
+package hu.gerab.payment.service;
+
+import static hu.gerab.payment.TestUtils.*;
+import static hu.gerab.payment.domain.Currency.*;
+import static io.r2dbc.spi.ConnectionFactoryOptions.PASSWORD;
+import static io.r2dbc.spi.ConnectionFactoryOptions.USER;
+import static java.math.BigDecimal.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import hu.gerab.payment.config.TestDatabaseConfig;
+import hu.gerab.payment.domain.Currency;
+import hu.gerab.payment.domain.Transaction;
+import hu.gerab.payment.domain.User;
+import hu.gerab.payment.fx.FxRateProvider;
+import hu.gerab.payment.metrics.PaymentMetrics;
+import hu.gerab.payment.repository.ReactiveTransactionRepository;
+import hu.gerab.payment.repository.ReactiveUserRepository;
+import hu.gerab.payment.repository.TransactionRepository;
+import hu.gerab.payment.repository.UserRepository;
+import hu.gerab.payment.service.MessagingService.TransactionNotification;
+import hu.gerab.payment.service.PaymentService.TransferRequest;
+import hu.gerab.payment.service.PaymentService.TransferResult;
+import hu.gerab.payment.service.PaymentService.TransferStatus;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.r2dbc.connection.R2dbcTransactionManager;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestDatabaseConfig.class)
+class ReactivePaymentServiceTest {
+
+  // the embedded database of the TestDatabaseConfig, through R2DBC
+  private static final String R2DBC_URL = "r2dbc:h2:mem:///kibit";
+
+  private ReactivePaymentService paymentService;
+  private MessagingService messagingService;
+  @Autowired private UserRepository userRepository;
+  @Autowired private TransactionRepository transactionRepository;
+
+  @BeforeEach
+  void setup() {
+    ConnectionFactory connectionFactory =
+        ConnectionFactories.get(
+            ConnectionFactoryOptions.parse(R2DBC_URL)
+                .mutate()
+                .option(USER, "sa")
+                .option(PASSWORD, "")
+                .build());
+    DatabaseClient databaseClient = DatabaseClient.create(connectionFactory);
+    messagingService = spy(MessagingService.class);
+    paymentService =
+        new ReactivePaymentService(
+            messagingService,
+            new ReactiveUserRepository(databaseClient),
+            new ReactiveTransactionRepository(databaseClient),
+            TransactionalOperator.create(new R2dbcTransactionManager(connectionFactory)),
+            FxRateProvider.fixed(RATES),
+            PaymentMetrics.unpublished(),
+            3);
+  }
+
+  @AfterEach
+  void cleanup() {
+    transactionRepository.deleteAll();
+    userRepository.deleteAll();
+  }
+
+  private Long saveUser(BigDecimal balance, Currency currency) {
+    return userRepository.save(User.builder().balance(balance).currency(currency).build()).getId();
+  }
+
+  private BigDecimal balanceOf(Long userId) {
+    return userRepository.findById(userId).get().getBalance().toBigDecimal();
+  }
+
+  @Test
+  public void givenTransfers_whenProcessed_thenSameOutcomesAsInLockMode() {
+    Long senderId = saveUser(HUNDRED, USD);
+    Long receiverId = saveUser(ZERO, USD);
+
+    List<TransferResult> results =
+        paymentService.processTransfers(
+            List.of(
+                new TransferRequest("1", senderId, receiverId, TEN, USD),
+                new TransferRequest("2", senderId, receiverId, THOUSAND, USD),
+                new TransferRequest("3", senderId, receiverId + 1000, TEN, USD),
+                new TransferRequest("4", receiverId + 1000, receiverId, TEN, USD),
+                new TransferRequest("5", senderId, senderId, TEN, USD),
+                new TransferRequest("6", senderId, receiverId, TEN, USD)));
+
+    assertEquals(
+        List.of(
+            TransferResult.completed("1"),
+            TransferResult.failed("2", "Insufficient user balance."),
+            TransferResult.failed("3", "No user exists for receiver id=" + (receiverId + 1000)),
+            TransferResult.failed("4", "No user exists for sender id=" + (receiverId + 1000)),
+            TransferResult.failed("5", "Sender and receiver account cannot be the same"),
+            TransferResult.completed("6")),
+        results);
+    assertEquals(0, new BigDecimal(80).compareTo(balanceOf(senderId)));
+    assertEquals(0, new BigDecimal(20).compareTo(balanceOf(receiverId)));
+    assertEquals(2, userRepository.findById(senderId).get().getVersion());
+    assertEquals(2, transactionRepository.count());
+    verify(messagingService, times(2)).sendTransactionNotification(any());
+    // the insufficient balance, the missing receiver and the same accounts, not the missing sender
+    verify(messagingService, times(3)).sendTransactionNotification(eq(senderId), any());
+    verify(messagingService, never()).sendTransactionNotification(eq(receiverId + 1000), any());
+  }
+
+  @Test
+  public void givenCompletedTransfer_whenNotified_thenSuccessfulNotificationSentAfterCommit() {
+    Long senderId = saveUser(TEN, USD);
+    Long receiverId = saveUser(ZERO, USD);
+    var notificationCaptor = ArgumentCaptor.forClass(TransactionNotification.class);
+
+    TransferResult result =
+        paymentService.transfer(new TransferRequest("1", senderId, receiverId, TEN, USD)).block();
+
+    assertEquals(TransferStatus.COMPLETED, result.getStatus());
+    assertEquals(0, ZERO.compareTo(balanceOf(senderId)));
+    assertEquals(0, TEN.compareTo(balanceOf(receiverId)));
+    verify(messagingService).sendTransactionNotification(notificationCaptor.capture());
+    assertEquals("1", notificationCaptor.getValue().getRequestId());
+    assertEquals(receiverId, notificationCaptor.getValue().getReceiverId());
+  }
+
+  @Test
+  public void givenAccountsOfOtherCurrencies_whenTransferred_thenExchangedAmountsRecorded() {
+    Long senderId = saveUser(HUNDRED, EUR);
+    Long receiverId = saveUser(ZERO, USD);
+    Long unsupportedId = saveUser(ZERO, GBP);
+
+    List<TransferResult> results =
+        paymentService.processTransfers(
+            List.of(
+                new TransferRequest("1", senderId, receiverId, TEN, USD),
+                new TransferRequest("2", senderId, unsupportedId, TEN, USD)));
+
+    assertEquals(TransferStatus.COMPLETED, results.get(0).getStatus());
+    assertEquals(AbstractPaymentService.UNSUPPORTED_EXCHANGE_ERROR, results.get(1).getError());
+    // 10 USD is 8 EUR
+    assertEquals(0, new BigDecimal(92).compareTo(balanceOf(senderId)));
+    assertEquals(0, TEN.compareTo(balanceOf(receiverId)));
+    assertEquals(0, ZERO.compareTo(balanceOf(unsupportedId)));
+    Transaction transaction = transactionRepository.findBySenderId(senderId).get(0);
+    assertEquals(0, new BigDecimal(8).compareTo(transaction.getSenderAmount()));
+    assertNull(transaction.getReceiverAmount());
+  }
+
+  @Test
+  public void givenAlreadyWrittenRequestId_whenTransferred_thenDuplicateWithoutChanges() {
+    Long senderId = saveUser(HUNDRED, USD);
+    Long receiverId = saveUser(ZERO, USD);
+
+    List<TransferResult> results =
+        paymentService.processTransfers(
+            List.of(
+                new TransferRequest("1", senderId, receiverId, TEN, USD),
+                new TransferRequest("1", senderId, receiverId, TEN, USD)));
+
+    assertEquals(TransferStatus.DUPLICATE, results.get(1).getStatus());
+    // rolled back with the transaction
+    assertEquals(0, new BigDecimal(90).compareTo(balanceOf(senderId)));
+    assertEquals(1, transactionRepository.count());
+    verify(messagingService, never()).sendTransactionNotification(anyLong(), any());
+  }
+
+  @Test
+  public void givenRingOfUsers_whenManyConcurrentTransfersCome_thenBalancesAreConsistent() {
+    List<Long> userIds = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      userIds.add(saveUser(HUNDRED, USD));
+    }
+    List<TransferRequest> requests = new ArrayList<>();
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < userIds.size(); i++) {
+        Long senderId = userIds.get(i);
+        Long receiverId = userIds.get((i + 1) % userIds.size());
+        requests.add(new TransferRequest(senderId + "-" + round, senderId, receiverId, ONE, USD));
+      }
+    }
+
+    List<TransferResult> results =
+        Flux.fromIterable(requests).flatMap(paymentService::transfer, 6).collectList().block();
+
+    assertFalse(results.isEmpty());
+    for (TransferResult result : results) {
+      assertEquals(TransferStatus.COMPLETED, result.getStatus());
+    }
+    assertEquals(60, transactionRepository.count());
+    for (Long userId : userIds) {
+      assertEquals(0, HUNDRED.compareTo(balanceOf(userId)));
+    }
+  }
+}
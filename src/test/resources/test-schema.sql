@@ -1,20 +1,61 @@
-CREATE SEQUENCE user_sequence MINVALUE 1 INCREMENT BY 1;
+CREATE SEQUENCE user_sequence MINVALUE 1 INCREMENT BY 50;
 CREATE TABLE users
 (
     id       INTEGER            DEFAULT nextval('user_sequence') PRIMARY KEY, -- over 4 billion users does not seem realistic
     balance  DECIMAL(32, 6)     DEFAULT 0,                                    -- actual precision may depend here on policy/main balance currency denominations
     currency VARCHAR(3)         DEFAULT 'USD' NOT NULL,
-    updated  timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP
+    updated  timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    version  BIGINT    NOT NULL DEFAULT 0
 );
 
-CREATE SEQUENCE transaction_sequence MINVALUE 1 INCREMENT BY 1;
+CREATE SEQUENCE transaction_sequence MINVALUE 1 INCREMENT BY 50;
 CREATE TABLE transactions
 (
-    id          BIGINT                  DEFAULT nextval('transaction_sequence') PRIMARY KEY, -- let's be an optimistic and plan for a long future
-    sender_id   INTEGER REFERENCES users (id),
-    receiver_id INTEGER REFERENCES users (id),
-    request_id  varchar(50),
-    amount      DECIMAL(32, 6) NOT NULL,
-    currency    VARCHAR(3)     NOT NULL,
-    inserted    timestamp      NOT NULL DEFAULT CURRENT_TIMESTAMP
+    id              BIGINT                  DEFAULT nextval('transaction_sequence') PRIMARY KEY, -- let's be an optimistic and plan for a long future
+    sender_id       INTEGER REFERENCES users (id),
+    receiver_id     INTEGER REFERENCES users (id),
+    request_id      varchar(50),
+    amount          DECIMAL(32, 6) NOT NULL,
+    currency        VARCHAR(3)     NOT NULL,
+    sender_amount   DECIMAL(32, 6),
+    receiver_amount DECIMAL(32, 6),
+    inserted        timestamp      NOT NULL DEFAULT CURRENT_TIMESTAMP
 );
+CREATE UNIQUE INDEX transactions_request_id_idx ON transactions (request_id);
+CREATE INDEX transactions_sender_history_idx ON transactions (sender_id, inserted, id);
+CREATE INDEX transactions_receiver_history_idx ON transactions (receiver_id, inserted, id);
+
+CREATE TABLE balance_snapshots
+(
+    user_id             INTEGER PRIMARY KEY,
+    balance             DECIMAL(32, 6) NOT NULL,
+    last_transaction_id BIGINT,
+    as_of               timestamp      NOT NULL
+);
+
+CREATE TABLE fx_rates
+(
+    currency VARCHAR(3) PRIMARY KEY,
+    rate     DECIMAL(32, 12) NOT NULL,
+    updated  timestamp       NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE SEQUENCE outbox_sequence MINVALUE 1 INCREMENT BY 50;
+CREATE TABLE outbox
+(
+    id        BIGINT    DEFAULT nextval('outbox_sequence') PRIMARY KEY,
+    user_id   INTEGER   NOT NULL,
+    payload   VARCHAR(2000) NOT NULL,
+    created   timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    delivered timestamp
+);
+
+CREATE SEQUENCE hot_credit_sequence MINVALUE 1;
+CREATE TABLE hot_credits
+(
+    id         BIGINT         DEFAULT nextval('hot_credit_sequence') PRIMARY KEY,
+    account_id INTEGER        NOT NULL,
+    amount     DECIMAL(32, 6) NOT NULL,
+    inserted   timestamp      NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+CREATE INDEX hot_credits_account_idx ON hot_credits (account_id);